@@ -0,0 +1,68 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class runs the message path benchmarks of MessagePathBenchmark under JMH, which warms
+ * up and measures every one of them in forked JVMs of its own, so a benchmark is not slowed
+ * down or sped up by what the JIT made of the ones before it.
+ *
+ * The operations themselves are MessagePathBenchmark's, so both measure exactly the same
+ * thing: building and validating a Message, encoding and decoding it, a User round trip,
+ * queueing a frame for a UserHandler, a Histogram record, and broadcasting to 10, 1000 and
+ * 10000 simulated UserHandlers.
+ *
+ * Usage: java -jar benchmarks/target/benchmarks.jar [JMH options] -rf csv -rff jmh.csv
+ *
+ * The CSV can be compared against a baseline with MessagePathBenchmark --jmh=jmh.csv
+ * --baseline=file, which exits with 1 on a regression (see README.md).
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MessagePathJmh {
+
+	/**
+	 * This field is the name of the benchmark, as MessagePathBenchmark lists it
+	 */
+	@Param({"message.construct.chat", "message.construct.status", "message.construct.direct", "message.decode.binary",
+			"message.roundtrip.java", "message.roundtrip.binary", "user.roundtrip.java", "handler.enqueueDequeue",
+			"metrics.histogram.record", "broadcast.fanout.10", "broadcast.fanout.1000", "broadcast.fanout.10000"})
+	public String name;
+
+	private LongSupplier operation;
+
+	/**
+	 * Gets the operation from MessagePathBenchmark. The Server's classes are all in the default
+	 * package, which a class in a package cannot name, and JMH only runs benchmarks that are in
+	 * a package, so it is looked up by name once here
+	 */
+	@Setup
+	public void setUp() throws ReflectiveOperationException {
+		operation = (LongSupplier) Class.forName("MessagePathBenchmark").getMethod("operation", String.class).invoke(null,
+				name);
+	}
+
+	@Benchmark
+	public long run() {
+		return operation.getAsLong();
+	}
+
+}
@@ -0,0 +1,282 @@
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * This class encodes Messages in the compact FORMAT_BINARY wire format, and decodes them again.
+ * Unlike Java serialization it sends no class descriptors and no object graph, only the values:
+ *
+ *     type       1 byte, the ordinal of the MessageType
+ *     timestamp  varint, milliseconds since the epoch (UTC)
+ *     user       varint ID followed by the username
+ *     text       only for types that include messageText: varint length + 1 (0 means null),
+ *                followed by the UTF-8 bytes
+ *     details    one value per entry in MessageType.messageDetailTypes, encoded by its class
+ *
+ * Users are written as a zigzag varint ID followed by their username, so that the
+ * negative IDs of User.NO_USER and User.SERVER stay small.
+ *
+ */
+public class BinaryMessageCodec {
+
+	/**
+	 * Encodes a Message into a frame (see MessageCodec). The frame header is left as
+	 * MessageCodec.HEADER_SIZE empty bytes at the start of the array, for MessageCodec to fill in
+	 * @param message - message that is being encoded
+	 * @return the frame, of which only the first getFrameLength bytes are used
+	 */
+	static Writer encode(Message message) {
+		Writer out = new Writer(64 + textLength(message));
+		out.position = MessageCodec.HEADER_SIZE;
+		MessageType type = message.getType();
+		out.writeByte(type.ordinal());
+		out.writeVarLong(message.getMessageTimestampMillis());
+		writeUser(out, message.getOriginatingUser());
+		if (type.includesMessageTextString) {
+			writeString(out, message.getMessageText());
+		}
+		Object[] details = message.getMessageDetails();
+		for (int i = 0; i < details.length; i++) {
+			writeDetail(out, type.messageDetailTypes[i], details[i]);
+		}
+		return out;
+	}
+
+	/**
+	 * Decodes a payload written by encode
+	 * @param payload - array holding the payload
+	 * @param offset - where the payload starts in the array
+	 * @param length - length of the payload
+	 * @return the decoded message
+	 * @throws IOException if the payload is not a valid Message, an InvalidObjectException if it
+	 * holds one its constructor would not allow
+	 */
+	static Message decode(byte[] payload, int offset, int length) throws IOException {
+		Reader in = new Reader(payload, offset, offset + length);
+		try {
+			MessageType[] types = MessageType.values();
+			int ordinal = in.readByte();
+			if (ordinal >= types.length) {
+				throw new IOException("Unknown message type " + ordinal);
+			}
+			MessageType type = types[ordinal];
+			long timestamp = in.readVarLong();
+			User user = readUser(in);
+			String text = type.includesMessageTextString ? readString(in) : null;
+			Object[] details = null;
+			if (type.messageDetailTypes.length > 0) {
+				details = new Object[type.messageDetailTypes.length];
+				for (int i = 0; i < details.length; i++) {
+					details[i] = readDetail(in, type.messageDetailTypes[i]);
+				}
+			}
+			if (in.position != in.limit) {
+				throw new IOException("Frame has " + (in.limit - in.position) + " bytes left over.");
+			}
+			return new Message(type, user, text, details, timestamp);
+		} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			InvalidObjectException invalid = new InvalidObjectException("Frame did not contain a valid Message.");
+			invalid.initCause(e);
+			throw invalid;
+		}
+	}
+
+	private static int textLength(Message message) {
+		String text = message.getMessageText();
+		return text == null ? 0 : text.length() * 3;
+	}
+
+	private static void writeDetail(Writer out, Class<?> type, Object detail) {
+		if (type == User.class) {
+			writeUser(out, (User) detail);
+		} else if (type == Boolean.class) {
+			out.writeByte(((Boolean) detail) ? 1 : 0);
+		} else if (type == Integer.class) {
+			out.writeVarLong(zigzag((Integer) detail));
+		} else if (type == Long.class) {
+			out.writeVarLong(zigzag((Long) detail));
+		} else if (type == String.class) {
+			writeString(out, (String) detail);
+		} else if (type == ArrayList.class) {
+			// The only list sent in a Message is a list of users
+			ArrayList<?> list = (ArrayList<?>) detail;
+			out.writeVarLong(list.size());
+			for (Object user : list) {
+				writeUser(out, (User) user);
+			}
+		} else {
+			throw new IllegalArgumentException("The binary wire format cannot encode details of " + type);
+		}
+	}
+
+	private static Object readDetail(Reader in, Class<?> type) throws IOException {
+		if (type == User.class) {
+			return readUser(in);
+		} else if (type == Boolean.class) {
+			return in.readByte() != 0;
+		} else if (type == Integer.class) {
+			return (int) unzigzag(in.readVarLong());
+		} else if (type == Long.class) {
+			return unzigzag(in.readVarLong());
+		} else if (type == String.class) {
+			return readString(in);
+		} else if (type == ArrayList.class) {
+			int size = in.readLength();
+			ArrayList<User> list = new ArrayList<User>(size);
+			for (int i = 0; i < size; i++) {
+				list.add(readUser(in));
+			}
+			return list;
+		}
+		throw new IOException("The binary wire format cannot decode details of " + type);
+	}
+
+	private static void writeUser(Writer out, User user) {
+		out.writeVarLong(zigzag(user.getId()));
+		writeString(out, user.getUsername());
+	}
+
+	/**
+	 * Reads a User. The special users NO_USER and SERVER are returned as the constants
+	 * themselves, because Message checks for the server by identity
+	 */
+	private static User readUser(Reader in) throws IOException {
+		int id = (int) unzigzag(in.readVarLong());
+		String username = readString(in);
+		if (id == User.SERVER.getId()) {
+			return User.SERVER;
+		}
+		if (id == User.NO_USER.getId()) {
+			return User.NO_USER;
+		}
+		return new User(id, username);
+	}
+
+	private static void writeString(Writer out, String text) {
+		if (text == null) {
+			out.writeVarLong(0);
+			return;
+		}
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		out.writeVarLong(bytes.length + 1L);
+		out.writeBytes(bytes);
+	}
+
+	private static String readString(Reader in) throws IOException {
+		int length = in.readLength();
+		if (length == 0) {
+			return null;
+		}
+		length--;
+		in.require(length);
+		String text = new String(in.bytes, in.position, length, StandardCharsets.UTF_8);
+		in.position += length;
+		return text;
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * This class is a growable byte array that varints can be written into
+	 */
+	static class Writer {
+
+		byte[] bytes;
+
+		int position;
+
+		Writer(int initialSize) {
+			bytes = new byte[Math.max(16, initialSize)];
+		}
+
+		void writeByte(int b) {
+			ensure(1);
+			bytes[position++] = (byte) b;
+		}
+
+		void writeBytes(byte[] source) {
+			ensure(source.length);
+			System.arraycopy(source, 0, bytes, position, source.length);
+			position += source.length;
+		}
+
+		void writeVarLong(long value) {
+			ensure(10);
+			while ((value & ~0x7FL) != 0) {
+				bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes[position++] = (byte) value;
+		}
+
+		private void ensure(int extra) {
+			if (position + extra > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, position + extra));
+			}
+		}
+
+	}
+
+	/**
+	 * This class reads varints back out of a byte array, refusing to read past the end
+	 */
+	static class Reader {
+
+		final byte[] bytes;
+
+		int position;
+
+		final int limit;
+
+		Reader(byte[] bytes, int position, int limit) {
+			this.bytes = bytes;
+			this.position = position;
+			this.limit = limit;
+		}
+
+		void require(int count) throws IOException {
+			if (count < 0 || limit - position < count) {
+				throw new IOException("Frame ended in the middle of a value.");
+			}
+		}
+
+		int readByte() throws IOException {
+			require(1);
+			return bytes[position++] & 0xFF;
+		}
+
+		long readVarLong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Varint is too long.");
+		}
+
+		/**
+		 * Reads a varint that is used as a length or count, which can never be more than
+		 * the bytes left in the frame
+		 */
+		int readLength() throws IOException {
+			long length = readVarLong();
+			if (length < 0 || length > limit - position + 1) {
+				throw new IOException("Invalid length " + length);
+			}
+			return (int) length;
+		}
+
+	}
+
+}
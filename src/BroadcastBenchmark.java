@@ -0,0 +1,63 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class measures the CPU cost of preparing one broadcast for a room of a given size.
+ * It compares encoding the Message again for every recipient (how broadcasts used to work)
+ * with encoding it once into an OutboundFrame and handing every recipient a read-only view.
+ *
+ * Usage: java BroadcastBenchmark [format]
+ *
+ */
+public class BroadcastBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int format = args.length > 0 ? MessageCodec.parseFormat(args[0]) : MessageCodec.FORMAT_BINARY;
+		Message message = new Message(MessageType.CHAT_MESSAGE, new User("Alice"), "Hello room!", null);
+		int[] roomSizes = {10, 100, 1000, 5000};
+
+		System.out.println("Broadcast preparation cost, " + MessageCodec.formatName(format) + " format:");
+		for (int recipients : roomSizes) {
+			int broadcasts = Math.max(20, 2000000 / recipients);
+			if (format == MessageCodec.FORMAT_JAVA) {
+				broadcasts /= 20;
+			}
+			double perRecipient = nanosPerBroadcast(message, format, recipients, broadcasts, false);
+			double once = nanosPerBroadcast(message, format, recipients, broadcasts, true);
+			System.out.printf("  %5d recipients: per-recipient encode %,12.0f ns  encode-once %,10.0f ns  (%.0fx)%n",
+					recipients, perRecipient, once, perRecipient / once);
+		}
+	}
+
+	private static double nanosPerBroadcast(Message message, int format, int recipients, int broadcasts,
+			boolean encodeOnce) throws IOException {
+		long sink = 0;
+		// The first pass warms up the JIT and is not counted
+		for (int pass = 0; pass < 2; pass++) {
+			long start = System.nanoTime();
+			for (int b = 0; b < broadcasts; b++) {
+				if (encodeOnce) {
+					OutboundFrame frame = new OutboundFrame(message);
+					for (int r = 0; r < recipients; r++) {
+						ByteBuffer view = frame.retain().buffer(format);
+						sink += view.remaining();
+						frame.release();
+					}
+					frame.release();
+				} else {
+					for (int r = 0; r < recipients; r++) {
+						sink += MessageCodec.encode(message, format).length;
+					}
+				}
+			}
+			if (pass == 1) {
+				if (sink == 42) {
+					System.out.println();
+				}
+				return (System.nanoTime() - start) / (double) broadcasts;
+			}
+		}
+		return 0;
+	}
+
+}
@@ -0,0 +1,106 @@
+import java.lang.reflect.Method;
+
+/**
+ * This class creates the Threads used by UserHandler, Server and Client. Depending on
+ * the setting, these are either normal platform Threads or virtual Threads.
+ *
+ * Virtual Threads are released from their carrier thread whenever they block on a socket
+ * or a BlockingQueue, so tens of thousands of them only need a handful of real threads.
+ * They only exist from Java 21 onwards, so they are looked up by reflection. On an older
+ * Java, asking for virtual Threads prints a warning and platform Threads are used instead.
+ *
+ */
+public class ChatThreads {
+
+	/**
+	 * This field is true when new Threads should be virtual
+	 */
+	private static boolean virtual = false;
+
+	/**
+	 * These fields hold Thread.ofVirtual(), Thread.Builder.name(String) and
+	 * Thread.Builder.unstarted(Runnable), or null if this Java has no virtual Threads
+	 */
+	private static final Method OF_VIRTUAL;
+	private static final Method BUILDER_NAME;
+	private static final Method BUILDER_UNSTARTED;
+
+	static {
+		Method ofVirtual = null;
+		Method builderName = null;
+		Method builderUnstarted = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			builderName = builder.getMethod("name", String.class);
+			builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+		} catch (ReflectiveOperationException e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = builderName;
+		BUILDER_UNSTARTED = builderUnstarted;
+	}
+
+	/**
+	 * @return true if this Java is able to create virtual Threads
+	 */
+	public static boolean virtualThreadsAvailable() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * @return true if new Threads will be virtual
+	 */
+	public static boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Chooses whether new Threads will be virtual. If this Java has no virtual Threads,
+	 * a warning is printed and platform Threads will still be used
+	 * @param useVirtual - true to use virtual Threads
+	 */
+	public static void setVirtual(boolean useVirtual) {
+		if (useVirtual && !virtualThreadsAvailable()) {
+			System.out.println("Virtual threads need Java 21 or newer (running "
+					+ System.getProperty("java.version") + "), using platform threads instead.");
+			useVirtual = false;
+		}
+		virtual = useVirtual;
+	}
+
+	/**
+	 * Reads a "platform" or "virtual" setting
+	 * @param value - value of the setting
+	 * @throws IllegalArgumentException if the value is neither
+	 */
+	public static void setMode(String value) {
+		if (value.equalsIgnoreCase("virtual")) {
+			setVirtual(true);
+		} else if (value.equalsIgnoreCase("platform")) {
+			setVirtual(false);
+		} else {
+			throw new IllegalArgumentException("Threads must be 'platform' or 'virtual', not '" + value + "'.");
+		}
+	}
+
+	/**
+	 * Creates a new Thread that has not been started yet
+	 * @param task - what the Thread will run
+	 * @param name - name of the Thread
+	 * @return the new Thread
+	 */
+	public static Thread newThread(Runnable task, String name) {
+		if (virtual) {
+			try {
+				Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("Could not create a virtual thread.", e);
+			}
+		}
+		return new Thread(task, name);
+	}
+
+}
@@ -2,6 +2,7 @@ import java.io.*;
 import java.net.*;
 import java.text.*;
 import java.util.*;
+import java.util.zip.Deflater;
 
 /**
  * This class represents an instance of a client. The user primarily interacts with this class
@@ -22,20 +23,68 @@ public class Client implements Runnable
 	private BufferedReader in;
 
 	/*
-	 * This field contains a ObjectOutputStream that will send Messages to the server
+	 * This field contains a DataOutputStream that will send framed Messages to the server
 	 */
-	private ObjectOutputStream toServer;
+	private DataOutputStream toServer;
 
 	/*
-	 * This field contains a ObjectInputStream that will accept messages from the server
+	 * This field contains a DataInputStream that will accept framed messages from the server
 	 */
-	private ObjectInputStream fromServer;
+	private DataInputStream fromServer;
 
 	/*
 	 * This field contains a User object that represents the client
 	 */
 	private User self;
 
+	/*
+	 * This field contains the wire format the server picked during the connection (see MessageCodec)
+	 */
+	private int wireFormat = MessageCodec.FORMAT_JAVA;
+
+	/*
+	 * This field is true once the server has agreed to compressed messages, so we compress
+	 * the large ones we send as well (see MessageCodec.COMPRESSION)
+	 */
+	private boolean compressing = false;
+
+	/*
+	 * This field is true if "--trace" was passed to main, so the client asks for traced messages
+	 */
+	private static boolean traceRequested = false;
+
+	/*
+	 * This field is true once the server has agreed to trace our messages (see MessageTrace)
+	 */
+	private boolean tracing = false;
+
+	/*
+	 * This field collects the time spent in every stage by the traced messages we received
+	 */
+	private final MessageTrace.Stages traceStages = new MessageTrace.Stages();
+
+	/*
+	 * This field contains every user in the chat, including this client, keyed by ID
+	 */
+	private final HashMap<Integer, User> roster = new HashMap<Integer, User>();
+
+	/*
+	 * This field contains the roster version the roster field is at. It is sent to the server
+	 * when connecting, so that a reconnect only has to send what changed (see Roster)
+	 */
+	private long rosterVersion = 0;
+
+	/*
+	 * This field contains the number of pages still to come of the snapshot being received
+	 */
+	private int rosterPagesLeft = 0;
+
+	/*
+	 * This field contains the details of status changes that arrived before an earlier one,
+	 * keyed by their roster version, until the earlier ones have arrived too
+	 */
+	private final TreeMap<Long, Object[]> pendingStatusChanges = new TreeMap<Long, Object[]>();
+
 	/*
 	 * This field contains a boolean that is true while the program is running, and set to false when it should stop
 	 */
@@ -86,8 +135,8 @@ public class Client implements Runnable
 
 			//Two threads are generated with the user thread designed to listen for user input
 			//while the server thread waits for messages from the server
-			Thread user = new Thread(this, "user");
-			Thread server = new Thread(this, "server");
+			Thread user = ChatThreads.newThread(this, "user");
+			Thread server = ChatThreads.newThread(this, "server");
 
 			//The threads continue listening for input until the variable stop is changed
 			//and ends the while loop
@@ -115,14 +164,10 @@ public class Client implements Runnable
 			User ourUserObject = new User(username);
 
 			//Upon acknowledgement the client extracts the data held in the message
-			toServer = new ObjectOutputStream(clientSocket.getOutputStream());
-
-			//The User object is used to send a connection request Message to the server
-			Message connRequest = new Message(MessageType.CONNECTION_REQUEST_MESSAGE, ourUserObject, username, null);
-			toServer.writeObject(connRequest);
+			toServer = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
 
-			fromServer = new ObjectInputStream(clientSocket.getInputStream());
-			Message connAck = (Message)fromServer.readObject();
+			fromServer = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+			Message connAck = requestConnection(toServer, fromServer, ourUserObject, rosterVersion, traceRequested, true);
 			//			fromServer.close();
 			Object[] details = connAck.getMessageDetails();
 
@@ -130,10 +175,32 @@ public class Client implements Runnable
 			//The client's User object is updated to match the User held in the server
 			ourUserObject = (User)details[1];
 
-			//The arraylist of UserHandlers is extracted and the client iterates through the list
-			//to inform the user of the other users currently present
-			@SuppressWarnings("unchecked")
-			ArrayList<User> otherUsers = (ArrayList<User>)details[0];
+			//Everything from now on is sent in the wire format the server picked, and compressed
+			//and traced if the server agreed to it
+			wireFormat = (Integer)details[2] & ~(MessageCodec.TRACING | MessageCodec.COMPRESSION | MessageCodec.HEARTBEATS);
+			compressing = ((Integer)details[2] & MessageCodec.COMPRESSION) != 0;
+			tracing = ((Integer)details[2] & MessageCodec.TRACING) != 0;
+
+			//The server follows up with the roster messages that bring our list of users to the
+			//version in the acknowledgement. Nothing else arrives before they are done
+			long ackVersion = (Long)details[0];
+			Object[] rosterDetails;
+			do {
+				Message rosterMessage = MessageCodec.readMessage(fromServer);
+				if (rosterMessage.getType() != MessageType.ROSTER_MESSAGE) {
+					throw new IOException("Server sent " + rosterMessage.getType() + " before the roster was complete");
+				}
+				rosterDetails = rosterMessage.getMessageDetails();
+				applyRoster(rosterDetails);
+			} while (rosterVersion != ackVersion || (Integer)rosterDetails[1] != 0);
+
+			//The client iterates through the roster to inform the user of the other users currently present
+			ArrayList<User> otherUsers = new ArrayList<User>();
+			for (User user : roster.values()) {
+				if (user.getId() != ourUserObject.getId()) {
+					otherUsers.add(user);
+				}
+			}
 
 
 			System.out.print("Welcome to the room! There are " + otherUsers.size() + " other users here");
@@ -141,7 +208,7 @@ public class Client implements Runnable
 				System.out.print(" (");
 				for(int i = otherUsers.size() - 1; i>=0; i--)
 				{
-					System.out.print(otherUsers.get(i).getUsername());
+					System.out.print(otherUsers.get(i).getUsername() + " #" + otherUsers.get(i).getId());
 					if (i == 1) {
 						System.out.print(" and ");
 					}
@@ -159,15 +226,55 @@ public class Client implements Runnable
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 			stop = true;
-		} catch (ClassNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			stop = true;
 		}
 		return null;
 
 	}
 
+	//Sends a connection request message for the given User to the server, along with every
+	//wire format this client can read (including compressed frames), and returns the server's acknowledgement. Its details
+	//hold the roster version, the User the server made for us, and the wire format it picked.
+	//The roster messages that follow are left for the caller to read.
+	//Also used by LoadGenerator, which has no user to prompt
+	static Message requestConnection(DataOutputStream toServer, DataInputStream fromServer, User user) throws IOException
+	{
+		return requestConnection(toServer, fromServer, user, 0);
+	}
+
+	//Like requestConnection above, telling the server the last roster version we saw
+	static Message requestConnection(DataOutputStream toServer, DataInputStream fromServer, User user, long knownRosterVersion) throws IOException
+	{
+		return requestConnection(toServer, fromServer, user, knownRosterVersion, false);
+	}
+
+	//Like requestConnection above, and if trace is true also asking for traced messages. If the
+	//server agrees, the wire format in the acknowledgement has MessageCodec.TRACING added, and
+	//MessageCodec.COMPRESSION if it will compress large messages
+	static Message requestConnection(DataOutputStream toServer, DataInputStream fromServer, User user, long knownRosterVersion,
+			boolean trace) throws IOException
+	{
+		return requestConnection(toServer, fromServer, user, knownRosterVersion, trace, false);
+	}
+
+	//Like requestConnection above, and if heartbeats is true also promising to answer every
+	//heartbeat message, in which case the server disconnects us once it has heard nothing from
+	//us for too long. If it agrees, the acknowledgement has MessageCodec.HEARTBEATS added
+	static Message requestConnection(DataOutputStream toServer, DataInputStream fromServer, User user, long knownRosterVersion,
+			boolean trace, boolean heartbeats) throws IOException
+	{
+		int formats = MessageCodec.SUPPORTED_FORMATS | MessageCodec.COMPRESSION | (trace ? MessageCodec.TRACING : 0)
+				| (heartbeats ? MessageCodec.HEARTBEATS : 0);
+		Object[] requestDetails = {formats, knownRosterVersion};
+		Message connRequest = new Message(MessageType.CONNECTION_REQUEST_MESSAGE, user, user.getUsername(), requestDetails);
+		MessageCodec.writeMessage(toServer, connRequest);
+		Message connAck = MessageCodec.readMessage(fromServer);
+		if (connAck.getType() != MessageType.CONNECTION_ACKNOWLEDGEMENT_MESSAGE)
+		{
+			throw new IOException("Server answered the connection request with " + connAck.getType());
+		}
+		return connAck;
+	}
+
 	public void run()
 	{
 		//The user thread
@@ -203,8 +310,14 @@ public class Client implements Runnable
 
 			if(text!=null)
 			{
+				//Input starting with "/" is a command (see command)
+				if(text.startsWith("/"))
+				{
+					command(self, text);
+				}
+
 				//If the input is not the string "." then the client sends a message
-				if(!text.contentEquals("."))
+				else if(!text.contentEquals("."))
 				{
 					sendMessage(self, text);
 				}
@@ -228,8 +341,8 @@ public class Client implements Runnable
 			Message received = null;
 
 			try {
-				received = (Message)fromServer.readObject();
-			} catch (ClassNotFoundException | IOException e1) {
+				received = MessageCodec.readMessage(fromServer);
+			} catch (IOException e1) {
 				// TODO Auto-generated catch block
 				e1.printStackTrace();
 				stop = true;
@@ -237,6 +350,10 @@ public class Client implements Runnable
 
 			if(received!=null)
 			{
+				if (received.getTrace() != null)
+				{
+					traceStages.record(received.getTrace());
+				}
 				Object[] details = received.getMessageDetails();
 				switch (received.getType()) {
 				case CHAT_MESSAGE:
@@ -256,6 +373,44 @@ public class Client implements Runnable
 				case USER_STATUS_CHANGE_MESSAGE:
 					this.statusChange(details);
 					break;
+				case ROOM_CHAT_MESSAGE:
+					System.out.print("[" + details[0] + "] ");
+					System.out.print(received.getOriginatingUser().getUsername());
+					System.out.print(" ("
+							+ received.getMessageTimestamp().getHour() + ":"
+							+ received.getMessageTimestamp().getMinute()
+							+ ")");
+					System.out.print(": ");
+					System.out.println(received.getMessageText());
+					break;
+				case DIRECT_MESSAGE:
+					System.out.print("(private) " + received.getOriginatingUser().getUsername()
+							+ " #" + received.getOriginatingUser().getId());
+					System.out.print(" ("
+							+ received.getMessageTimestamp().getHour() + ":"
+							+ received.getMessageTimestamp().getMinute()
+							+ ")");
+					System.out.print(": ");
+					System.out.println(received.getMessageText());
+					break;
+				case DELIVERY_FAILURE_MESSAGE:
+					System.out.println("Could not deliver \"" + details[1] + "\" to #" + details[0] + ": "
+							+ received.getMessageText());
+					break;
+				case ROOM_MEMBERSHIP_CHANGE_MESSAGE:
+					this.roomMembershipChange(received.getMessageText(), details);
+					break;
+				case ROSTER_MESSAGE:
+					this.rosterUpdate(details);
+					break;
+				case HEARTBEAT_MESSAGE:
+					//The server has not heard from us for a while; answering shows we are still here
+					try {
+						send(new Message(MessageType.HEARTBEAT_MESSAGE, self, null, null));
+					} catch (IOException e1) {
+						stop = true;
+					}
+					break;
 				default:
 					System.out.println("Ignoring Invalid Message Type '" + received.getType() + "'.");
 					break;
@@ -270,7 +425,7 @@ public class Client implements Runnable
 		//Creates a new instance of the Message objects and sends it to the server
 		Message message = new Message(MessageType.CHAT_MESSAGE, self, text, null);
 		try {
-			toServer.writeObject(message);
+			send(message);
 		} catch (IOException e1) {
 			// TODO Auto-generated catch block
 			e1.printStackTrace();
@@ -278,13 +433,82 @@ public class Client implements Runnable
 		}
 	}
 
+	//Handles the commands:
+	//  /join room         joins a room
+	//  /leave room        leaves a room
+	//  /room room text    sends text to everyone in a room
+	//  /msg id text       sends text to the user with that ID only, if they are connected to
+	//                     the same server (in a cluster, users of other servers cannot be reached)
+	//  /trace             prints how long traced messages spent in every stage
+	private void command(User self, String text)
+	{
+		String[] parts = text.split(" ", 3);
+		Message message = null;
+		if(parts[0].contentEquals("/trace"))
+		{
+			System.out.println(tracing ? "Traced messages (us): " + traceStages.describe()
+					: "Not tracing; start the client with --trace");
+			return;
+		}
+		if(parts[0].contentEquals("/join") && parts.length >= 2)
+		{
+			message = new Message(MessageType.ROOM_JOIN_REQUEST_MESSAGE, self, parts[1], null);
+		}
+		else if(parts[0].contentEquals("/leave") && parts.length >= 2)
+		{
+			message = new Message(MessageType.ROOM_LEAVE_REQUEST_MESSAGE, self, parts[1], null);
+		}
+		else if(parts[0].contentEquals("/room") && parts.length == 3)
+		{
+			message = new Message(MessageType.ROOM_CHAT_MESSAGE, self, parts[2], new Object[] {parts[1]});
+		}
+		else if(parts[0].contentEquals("/msg") && parts.length == 3 && parts[1].matches("-?\\d+"))
+		{
+			message = new Message(MessageType.DIRECT_MESSAGE, self, parts[2], new Object[] {Integer.parseInt(parts[1])});
+		}
+		if(message == null)
+		{
+			System.out.println("Commands: /join room, /leave room, /room room text, /msg id text"
+					+ " (users on this server only), /trace");
+			return;
+		}
+		try {
+			send(message);
+		} catch (IOException e1) {
+			e1.printStackTrace();
+			stop = true;
+		}
+	}
+
+	//Writes a message to the server, compressed if it is large and the server agreed to it,
+	//and stamped with the time it was sent if we are tracing. Both the user thread and the
+	//server thread (answering heartbeats) send, so only one of them writes at a time
+	private synchronized void send(Message message) throws IOException
+	{
+		long sent = System.nanoTime();
+		byte[] frame = MessageCodec.encode(message, wireFormat);
+		if (compressing)
+		{
+			frame = MessageCodec.compress(frame, MessageCodec.DEFAULT_COMPRESSION_THRESHOLD, Deflater.BEST_SPEED);
+		}
+		if (tracing)
+		{
+			MessageTrace trace = new MessageTrace();
+			trace.set(MessageTrace.CLIENT_SEND, sent);
+			frame = MessageCodec.withTrace(frame, trace);
+		}
+		toServer.write(frame);
+		toServer.flush();
+	}
+
 	//Sends a disconnect request to the server and upon acknowledgement terminates the threads
 	private void sendDisconnectRequest(User self)
 	{
 		//Creates a disconnect request message and sends to server
 		Message request = new Message(MessageType.DISCONNECT_REQUEST_MESSAGE, self, null, null);
 		try {
-			toServer.writeObject(request);
+			//Through send, so it cannot interleave with a heartbeat being answered
+			send(request);
 			//Upon receiving a message and verifying the disconnect acknowledgement
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
@@ -294,8 +518,82 @@ public class Client implements Runnable
 
 	}
 
-	//Prints a message reporting the change of a chat member's status
+	//Applies a roster message: a page of a snapshot (the first one empties the roster) or
+	//the users that joined and left since our version
+	@SuppressWarnings("unchecked")
+	private void applyRoster(Object[] details)
+	{
+		if ((Boolean)details[2])
+		{
+			roster.clear();
+		}
+		for (User user : (ArrayList<User>)details[3])
+		{
+			roster.put(user.getId(), user);
+		}
+		for (User user : (ArrayList<User>)details[4])
+		{
+			roster.remove(user.getId());
+		}
+		rosterVersion = (Long)details[0];
+		rosterPagesLeft = (Integer)details[1];
+		//Status changes the roster messages already included are of no use any more
+		pendingStatusChanges.headMap(rosterVersion, true).clear();
+	}
+
+	//Applies a roster message that arrived after connecting: a batch of joins and leaves, or
+	//a new snapshot. A batch may list users that joined and left before we connected, so
+	//only the changes to our own list are printed
+	@SuppressWarnings("unchecked")
+	private void rosterUpdate(Object[] details)
+	{
+		long version = (Long)details[0];
+		boolean first = (Boolean)details[2];
+		boolean nextPage = version == rosterVersion && rosterPagesLeft > 0 && !first;
+		if (version <= rosterVersion && !nextPage)
+		{
+			return;
+		}
+		if (!first && !nextPage)
+		{
+			for (User user : (ArrayList<User>)details[3])
+			{
+				if (!roster.containsKey(user.getId()) && user.getId() != self.getId())
+				{
+					System.out.println(user.getUsername()+" #"+user.getId()+" has joined the room");
+				}
+			}
+			for (User user : (ArrayList<User>)details[4])
+			{
+				if (roster.containsKey(user.getId()))
+				{
+					System.out.println(user.getUsername()+" has left the room");
+				}
+			}
+		}
+		applyRoster(details);
+	}
+
+	//Applies status changes in the order of their roster versions. They can arrive out of
+	//order, since every user's join and leave is sent out by its own thread on the server.
+	//Changes that the roster already includes are ignored
 	private void statusChange(Object[] details)
+	{
+		long version = (Long)details[2];
+		if (version <= rosterVersion)
+		{
+			return;
+		}
+		pendingStatusChanges.put(version, details);
+		while (!pendingStatusChanges.isEmpty() && pendingStatusChanges.firstKey() == rosterVersion + 1)
+		{
+			rosterVersion++;
+			printStatusChange(pendingStatusChanges.remove(rosterVersion));
+		}
+	}
+
+	//Prints a message reporting the change of a chat member's status
+	private void printStatusChange(Object[] details)
 	{
 		//Obtains the User object held in the message
 		//If true then the client tells the user that another person has joined
@@ -303,16 +601,49 @@ public class Client implements Runnable
 		User temp = (User)details[0];
 		if((boolean)details[1]==true)
 		{
-			System.out.println(temp.getUsername()+" has joined the room");
+			roster.put(temp.getId(), temp);
+			System.out.println(temp.getUsername()+" #"+temp.getId()+" has joined the room");
 		}
 		else
 		{
+			roster.remove(temp.getId());
 			System.out.println(temp.getUsername()+" has left the room");
 		}
 	}
 
+	//Prints a message reporting that a user joined or left a room
+	private void roomMembershipChange(String room, Object[] details)
+	{
+		User temp = (User)details[0];
+		if((boolean)details[1]==true)
+		{
+			System.out.println(temp.getUsername()+" has joined [" + room + "]");
+		}
+		else if(temp.getId() == self.getId())
+		{
+			System.out.println("You are not in [" + room + "]");
+		}
+		else
+		{
+			System.out.println(temp.getUsername()+" has left [" + room + "]");
+		}
+	}
+
+	//Passing "--threads=virtual" runs the user and server threads as virtual threads, and
+	//"--trace" asks the server to trace our messages (see the /trace command)
 	public static void main(String[] args)
 	{
+		for (String arg : args)
+		{
+			if (arg.startsWith("--threads="))
+			{
+				ChatThreads.setMode(arg.substring("--threads=".length()));
+			}
+			else if (arg.contentEquals("--trace"))
+			{
+				traceRequested = true;
+			}
+		}
 		Client client = new Client();
 	}
 }
@@ -0,0 +1,367 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * This class links a Server to the other Servers (nodes) of a cluster, so that users
+ * connected to different nodes chat in one lobby and see one list of users.
+ *
+ * Every node accepts links from the others on ServerConfig.clusterPort, and opens a PeerLink
+ * to every node in ServerConfig.peers, so every pair of nodes is linked both ways. A node
+ * sends what its own users do over its PeerLinks:
+ *
+ *     CHAT_MESSAGE               every lobby chat message of its users, from the same frame
+ *                                that is broadcast to them
+ *     USER_STATUS_CHANGE_MESSAGE every join and leave of its users, and every user that is
+ *                                connected when a PeerLink (re)connects
+ *
+ * A link is only taken from a node that knows ServerConfig.clusterSecret. The node that is
+ * linked to sends CHALLENGE_LENGTH random bytes, and the linking node answers with its number
+ * and proof: an HMAC-SHA256 of the challenge and its number, keyed with the secret. The secret
+ * itself is never sent, and an answer cannot be used again for another challenge. What is
+ * relayed afterwards is not encrypted, so the cluster ports belong on a private network.
+ *
+ * A node that receives a message over a link hands it to its own users only, and never sends
+ * it on to other nodes. Since every node is linked to every other node, one hop reaches the
+ * whole cluster and a message can never go round in a loop. A link that claims to come from
+ * this node itself (a node that lists itself as a peer) is refused, and a join or leave of one
+ * of this node's own users is ignored.
+ *
+ * Users of other nodes are added to this node's Roster, so the ROSTER_MESSAGEs after every
+ * CONNECTION_ACKNOWLEDGEMENT_MESSAGE list the users of the whole cluster. They are removed
+ * again when they leave, or when the link they were announced on breaks. Every node gives out
+ * its own block of user IDs (see firstUserId), so the node of a user can be told from its ID.
+ *
+ * Rooms and direct messages stay on the node of the user.
+ *
+ */
+public class Cluster {
+
+	/**
+	 * This field is the largest number of nodes in a cluster
+	 */
+	public static final int MAX_NODES = 128;
+
+	/**
+	 * This field is the number of bits of a user ID below the number of its node
+	 */
+	private static final int NODE_SHIFT = 24;
+
+	/**
+	 * This field is the number of random bytes a node challenges a link with
+	 */
+	static final int CHALLENGE_LENGTH = 32;
+
+	/**
+	 * This field is how long (in milliseconds) either end of a link waits for the other during the challenge
+	 */
+	static final int CHALLENGE_TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * This field makes the challenges
+	 */
+	private static final SecureRandom random = new SecureRandom();
+
+	/**
+	 * This field is the number of this node
+	 */
+	private final int nodeId;
+
+	/**
+	 * This ServerSocket accepts the links from the other nodes
+	 */
+	private final ServerSocket listener;
+
+	/**
+	 * This list holds the link to every other node
+	 */
+	private final ArrayList<PeerLink> links = new ArrayList<PeerLink>();
+
+	/**
+	 * This Map holds the link every user of another node was announced on, so that only the
+	 * link that announced a user can take it away again
+	 */
+	private final ConcurrentHashMap<User, Socket> remoteUsers = new ConcurrentHashMap<User, Socket>();
+
+	/**
+	 * Creates the cluster side of this node. Nothing is linked until start is called
+	 * @param nodeId - number of this node
+	 * @param port - port the other nodes link to
+	 * @param peers - host:port of every other node, separated by commas
+	 * @throws IOException if the port cannot be opened
+	 */
+	public Cluster(int nodeId, int port, String peers) throws IOException {
+		this.nodeId = nodeId;
+		this.listener = new ServerSocket(port);
+		for (String peer : peers.split(",")) {
+			peer = peer.trim();
+			if (peer.isEmpty()) {
+				continue;
+			}
+			int split = peer.lastIndexOf(':');
+			if (split < 0) {
+				throw new IllegalArgumentException("Peer '" + peer + "' must be written as host:port.");
+			}
+			links.add(new PeerLink(nodeId, peer.substring(0, split), Integer.parseInt(peer.substring(split + 1))));
+		}
+	}
+
+	/**
+	 * @param nodeId - number of a node
+	 * @return the first user ID that node gives out. Node 0 gives out the same IDs as a
+	 * Server on its own
+	 */
+	public static int firstUserId(int nodeId) {
+		return nodeId == 0 ? 1 : nodeId << NODE_SHIFT;
+	}
+
+	/**
+	 * @param userId - ID of a user
+	 * @return the number of the node the user connected to
+	 */
+	public static int nodeOf(int userId) {
+		return userId >>> NODE_SHIFT;
+	}
+
+	/**
+	 * @param userId - ID of a user
+	 * @return true if the user is connected to another node of the cluster. Direct messages
+	 * cannot reach such a user, since they stay on the node of the sender
+	 */
+	public boolean isRemote(int userId) {
+		return nodeOf(userId) != nodeId && Server.getRoster().contains(userId);
+	}
+
+	/**
+	 * Proves that a node knows ServerConfig.clusterSecret
+	 * @param challenge - random bytes sent by the node that is linked to
+	 * @param nodeId - number of the node that links
+	 * @return the HMAC-SHA256 of the challenge followed by the node number, keyed with the secret
+	 */
+	static byte[] proof(byte[] challenge, int nodeId) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(ServerConfig.clusterSecret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+			mac.update(challenge);
+			mac.update(ByteBuffer.allocate(4).putInt(nodeId).array());
+			return mac.doFinal();
+		} catch (GeneralSecurityException e) {
+			// Every Java platform has HmacSHA256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Starts accepting links from the other nodes, and linking to them
+	 */
+	public void start() {
+		Thread accept = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptLinks();
+			}
+		}, "cluster-accept");
+		accept.setDaemon(true);
+		accept.start();
+		for (PeerLink link : links) {
+			Thread thread = new Thread(link, "peer-" + link);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Sends a lobby chat message of one of this node's users to every other node
+	 * @param frame - frame that is broadcast to this node's users. The caller keeps its reference
+	 */
+	public void relay(OutboundFrame frame) {
+		for (PeerLink link : links) {
+			link.send(frame);
+		}
+	}
+
+	/**
+	 * Tells every other node that one of this node's users joined. Called while holding the
+	 * Roster's lock, so that a PeerLink that connects at the same time either lists the user
+	 * or is sent this
+	 * @param user - user that joined
+	 * @param rosterVersion - roster version of the join on this node
+	 */
+	public void userJoined(User user, long rosterVersion) {
+		sendStatus(user, true, rosterVersion);
+	}
+
+	/**
+	 * Tells every other node that one of this node's users left. Called while holding the
+	 * Roster's lock, like userJoined
+	 * @param user - user that left
+	 * @param rosterVersion - roster version of the leave on this node
+	 */
+	public void userLeft(User user, long rosterVersion) {
+		sendStatus(user, false, rosterVersion);
+	}
+
+	private void sendStatus(User user, boolean joined, long rosterVersion) {
+		OutboundFrame frame = statusFrame(user, joined, rosterVersion);
+		for (PeerLink link : links) {
+			link.send(frame);
+		}
+		frame.release();
+	}
+
+	/**
+	 * @return a USER_STATUS_CHANGE_MESSAGE frame, holding one reference for the caller
+	 */
+	static OutboundFrame statusFrame(User user, boolean joined, long rosterVersion) {
+		Object[] details = {user, joined, rosterVersion};
+		return new OutboundFrame(new Message(MessageType.USER_STATUS_CHANGE_MESSAGE, User.SERVER, null, details));
+	}
+
+	/**
+	 * Accepts links from the other nodes forever, and reads each of them on its own Thread
+	 */
+	private void acceptLinks() {
+		try {
+			while (true) {
+				final Socket socket = listener.accept();
+				Thread reader = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						receive(socket);
+					}
+				}, "peer-in-" + socket.getRemoteSocketAddress());
+				reader.setDaemon(true);
+				reader.start();
+			}
+		} catch (IOException e) {
+			System.out.println("Cluster stopped accepting links: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads a link from another node until it breaks, and then removes every user that was
+	 * announced on it. A link is sent a challenge, and starts with the number of the node and
+	 * its proof (see proof), followed by frames
+	 * @param socket - link from another node
+	 */
+	private void receive(Socket socket) {
+		int peerNode = -1;
+		try {
+			byte[] challenge = new byte[CHALLENGE_LENGTH];
+			random.nextBytes(challenge);
+			socket.getOutputStream().write(challenge);
+			socket.setSoTimeout(CHALLENGE_TIMEOUT_MILLIS);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			int claimedNode = in.readInt();
+			byte[] expected = proof(challenge, claimedNode);
+			byte[] answer = new byte[expected.length];
+			in.readFully(answer);
+			if (!MessageDigest.isEqual(answer, expected)) {
+				throw new IOException("Link from " + socket.getRemoteSocketAddress() + " does not know the cluster secret.");
+			}
+			socket.setSoTimeout(0);
+			peerNode = claimedNode;
+			if (peerNode < 0 || peerNode >= MAX_NODES || peerNode == nodeId) {
+				throw new IOException("Link claims to be from node " + peerNode + ".");
+			}
+			System.out.println("Cluster: node " + peerNode + " linked from " + socket.getRemoteSocketAddress());
+			while (true) {
+				handle(MessageCodec.readMessage(in), socket);
+			}
+		} catch (IOException e) {
+			System.out.println("Cluster: link from node " + peerNode + " closed: " + e.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Closed anyway
+			}
+			for (User user : remoteUsers.keySet()) {
+				if (remoteUsers.remove(user, socket)) {
+					announce(user, false, Server.getRoster().leave(user));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hands a message from another node to this node's users
+	 * @param message - message received over a link
+	 * @param link - link it arrived on
+	 */
+	private void handle(Message message, Socket link) {
+		ServerMetrics.clusterReceived.increment();
+		switch (message.getType()) {
+		case CHAT_MESSAGE:
+			OutboundFrame frame = new OutboundFrame(message);
+			Server.getHistory().add(frame);
+			MessageJournal journal = Server.getJournal();
+			if (journal != null) {
+				journal.append(frame);
+			}
+			broadcast(frame);
+			frame.release();
+			break;
+		case USER_STATUS_CHANGE_MESSAGE:
+			User user = (User) message.getMessageDetails()[0];
+			if (nodeOf(user.getId()) == nodeId) {
+				return;
+			}
+			if ((Boolean) message.getMessageDetails()[1]) {
+				remoteUsers.put(user, link);
+				announce(user, true, Server.getRoster().add(user));
+			} else if (remoteUsers.remove(user, link)) {
+				announce(user, false, Server.getRoster().leave(user));
+			}
+			break;
+		default:
+			System.out.println("Cluster: ignored " + message.getType() + " from another node.");
+		}
+	}
+
+	/**
+	 * Tells this node's users that a user of another node joined or left, the same way as for
+	 * one of their own
+	 * @param rosterVersion - roster version of the change on this node, or 0 if nothing changed
+	 */
+	private void announce(User user, boolean joined, long rosterVersion) {
+		if (rosterVersion == 0) {
+			return;
+		}
+		if (ServerConfig.presenceWindowMillis > 0) {
+			Server.getPresence().changed();
+			return;
+		}
+		OutboundFrame frame = statusFrame(user, joined, rosterVersion);
+		broadcast(frame);
+		frame.release();
+	}
+
+	/**
+	 * Queues a frame for every user of this node
+	 * @param frame - frame that is broadcast. The caller keeps its reference
+	 */
+	private void broadcast(OutboundFrame frame) {
+		boolean timed = ServerConfig.metrics;
+		long start = timed ? System.nanoTime() : 0;
+		for (UserHandler userHandler : Server.getCurrentUserHandlers()) {
+			userHandler.addToOutgoingMessages(frame);
+		}
+		if (timed) {
+			ServerMetrics.broadcastNanos.record(System.nanoTime() - start);
+		}
+	}
+
+}
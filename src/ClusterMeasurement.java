@@ -0,0 +1,222 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class measures how a cluster of Servers (see Cluster) scales with the number of nodes.
+ * For 1 node, then 2, and so on, it starts every node as its own process on loopback ports,
+ * connects the same number of receiving users and one sending user to every node, and checks
+ * that every node's roster lists the users of the whole cluster. Then every sender sends
+ * bursts of chat messages at the same time, and the time until every receiver on every node
+ * has all of them is measured.
+ *
+ * Every message is delivered to every receiver in the cluster, so with more nodes every node
+ * delivers more: the figure to compare is the deliveries per second of the whole cluster.
+ * Since every node only relays each message once to every other node, and does its own
+ * fan-out, this goes up with the number of nodes as long as they have cores of their own.
+ * Nodes that share cores can only share what those cores can deliver.
+ *
+ * Usage: java ClusterMeasurement [max nodes] [receivers per node] [burst] [rounds] [server settings...]
+ *
+ */
+public class ClusterMeasurement {
+
+	/**
+	 * The ports node i uses are BASE_PORT + i for Clients and BASE_PORT + 100 + i for the cluster
+	 */
+	private static final int BASE_PORT = 9700;
+
+	/**
+	 * This field counts the chat messages all receivers have received
+	 */
+	private static final AtomicLong delivered = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		int maxNodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int receivers = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int burst = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+		int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+		ArrayList<String> settings = new ArrayList<String>();
+		for (int i = 4; i < args.length; i++) {
+			settings.add(args[i]);
+		}
+
+		System.out.printf("%d receivers and 1 sender per node, bursts of %d messages per sender, %d rounds%n",
+				receivers, burst, rounds);
+		System.out.println("nodes  users  roster  messages/s  deliveries/s  per node/s");
+		for (int nodes = 1; nodes <= maxNodes; nodes++) {
+			ArrayList<Process> processes = startNodes(nodes, settings);
+			ArrayList<Socket> sockets = new ArrayList<Socket>();
+			try {
+				ArrayList<DataOutputStream> senders = new ArrayList<DataOutputStream>();
+				User[] senderUsers = new User[nodes];
+				for (int node = 0; node < nodes; node++) {
+					for (int i = 0; i < receivers; i++) {
+						Harness.connect(BASE_PORT + node, "receiver" + node + "-" + i, sockets, null, delivered);
+					}
+					senderUsers[node] = Harness.connect(BASE_PORT + node, "sender" + node, sockets, senders, null);
+				}
+				int users = nodes * (receivers + 1);
+				// Every node must list every user before anything is measured
+				boolean merged = true;
+				for (int node = 0; node < nodes; node++) {
+					merged &= waitForRoster(BASE_PORT + node, users);
+				}
+
+				byte[][] frames = new byte[nodes][];
+				for (int node = 0; node < nodes; node++) {
+					frames[node] = MessageCodec.encode(new Message(MessageType.CHAT_MESSAGE, senderUsers[node],
+							"cluster measurement message", null), MessageCodec.FORMAT_BINARY);
+				}
+				long perRound = (long) nodes * burst * nodes * receivers;
+				runRound(senders, frames, burst, perRound);
+				long nanos = 0;
+				for (int round = 0; round < rounds; round++) {
+					nanos += runRound(senders, frames, burst, perRound);
+				}
+				double seconds = nanos / 1e9;
+				System.out.printf("%5d %6d %7s %,11.0f %,13.0f %,11.0f%n", nodes, users, merged ? "merged" : "WRONG",
+						(double) nodes * burst * rounds / seconds, perRound * rounds / seconds,
+						perRound * rounds / seconds / nodes);
+			} finally {
+				for (Socket socket : sockets) {
+					socket.close();
+				}
+				for (Process process : processes) {
+					process.destroy();
+					process.waitFor();
+				}
+			}
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Starts a number of nodes, each linked to all the others, and waits until they are linked
+	 * @return the processes of the nodes
+	 */
+	private static ArrayList<Process> startNodes(int nodes, ArrayList<String> settings) throws Exception {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ArrayList<Process> processes = new ArrayList<Process>();
+		for (int node = 0; node < nodes; node++) {
+			StringBuilder peers = new StringBuilder();
+			for (int peer = 0; peer < nodes; peer++) {
+				if (peer != node) {
+					peers.append(peers.length() > 0 ? "," : "").append("localhost:").append(BASE_PORT + 100 + peer);
+				}
+			}
+			ArrayList<String> command = new ArrayList<String>();
+			command.add(java);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add("Server");
+			command.add("--mode=nio");
+			command.add("--logMessages=false");
+			command.add("--port=" + (BASE_PORT + node));
+			command.add("--nodeId=" + node);
+			command.add("--clusterPort=" + (BASE_PORT + 100 + node));
+			command.add("--peers=" + peers);
+			command.add("--clusterSecret=measurement");
+			command.addAll(settings);
+			processes.add(new ProcessBuilder(command).redirectErrorStream(true)
+					.redirectOutput(ProcessBuilder.Redirect.DISCARD).start());
+		}
+		// Every link retries once a second until the node it goes to is up
+		Thread.sleep(2500);
+		return processes;
+	}
+
+	/**
+	 * Connects to a node until the roster it sends lists the expected number of other users
+	 * @return true if it did within 30 seconds
+	 */
+	@SuppressWarnings("unchecked")
+	private static boolean waitForRoster(int port, int expected) throws Exception {
+		long deadline = System.currentTimeMillis() + 30000;
+		while (System.currentTimeMillis() < deadline) {
+			Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				User probe = new User("probe");
+				Object[] ack = Client.requestConnection(out, in, probe).getMessageDetails();
+				long version = (Long) ack[0];
+				HashSet<User> users = new HashSet<User>();
+				Object[] details;
+				do {
+					Message message = MessageCodec.readMessage(in);
+					details = message.getMessageDetails();
+					if (message.getType() != MessageType.ROSTER_MESSAGE) {
+						continue;
+					}
+					if ((Boolean) details[2]) {
+						users.clear();
+					}
+					users.addAll((ArrayList<User>) details[3]);
+					users.removeAll((ArrayList<User>) details[4]);
+				} while (details.length != 5 || (Long) details[0] != version || (Integer) details[1] != 0);
+				MessageCodec.writeMessage(out, new Message(MessageType.DISCONNECT_REQUEST_MESSAGE, (User) ack[1], null, null));
+				// The probe itself is in the roster too
+				if (users.size() - 1 == expected) {
+					return true;
+				}
+			} finally {
+				socket.close();
+			}
+			Thread.sleep(200);
+		}
+		return false;
+	}
+
+	/**
+	 * Has every sender send one burst at the same time, and waits until every receiver has got
+	 * all of them
+	 * @return the nanoseconds that took
+	 */
+	private static long runRound(final ArrayList<DataOutputStream> senders, final byte[][] frames, final int burst,
+			long perRound) throws Exception {
+		long expected = delivered.get() + perRound;
+		long start = System.nanoTime();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int node = 0; node < senders.size(); node++) {
+			final DataOutputStream out = senders.get(node);
+			final byte[] frame = frames[node];
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < burst; i++) {
+							out.write(frame);
+						}
+						out.flush();
+					} catch (IOException e) {
+						System.out.println("Sender failed: " + e.getMessage());
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long deadline = System.currentTimeMillis() + 120000;
+		while (delivered.get() < expected) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new IllegalStateException("Only " + (delivered.get() - expected + perRound) + " of " + perRound
+						+ " messages were delivered.");
+			}
+			Thread.sleep(0, 100000);
+		}
+		return System.nanoTime() - start;
+	}
+
+}
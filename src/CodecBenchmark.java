@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * This class compares the two wire formats of MessageCodec. For a few typical Messages it
+ * prints the frame size in each format, and then how many frames per second each format
+ * can encode and decode on one thread.
+ *
+ * Usage: java CodecBenchmark [iterations]
+ *
+ */
+public class CodecBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		User alice = new User("Alice");
+		ArrayList<User> users = new ArrayList<User>();
+		for (int i = 0; i < 50; i++) {
+			users.add(new User("user" + i));
+		}
+		Message[] messages = {
+				new Message(MessageType.CHAT_MESSAGE, alice, "Hello Bob!", null),
+				new Message(MessageType.USER_STATUS_CHANGE_MESSAGE, User.SERVER, null, new Object[] {alice, true, 1L}),
+				new Message(MessageType.ROSTER_MESSAGE, User.SERVER, null,
+						new Object[] {1L, 0, true, users, new ArrayList<User>()}),
+		};
+		String[] names = {"chat (10 chars)", "status change", "roster page (50 users)"};
+
+		int[] formats = {MessageCodec.FORMAT_JAVA, MessageCodec.FORMAT_BINARY};
+		for (int m = 0; m < messages.length; m++) {
+			System.out.println(names[m] + ":");
+			for (int format : formats) {
+				byte[] frame = MessageCodec.encode(messages[m], format);
+				double encodes = encodesPerSecond(messages[m], format, iterations);
+				double decodes = decodesPerSecond(frame, iterations);
+				System.out.printf("  %-6s %5d bytes  encode %,10.0f/s  decode %,10.0f/s%n",
+						MessageCodec.formatName(format), frame.length, encodes, decodes);
+			}
+		}
+	}
+
+	private static double encodesPerSecond(Message message, int format, int iterations) throws IOException {
+		long sink = 0;
+		// The first pass warms up the JIT and is not counted
+		for (int pass = 0; pass < 2; pass++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				sink += MessageCodec.encode(message, format).length;
+			}
+			if (pass == 1) {
+				blackhole(sink);
+				return iterations / ((System.nanoTime() - start) / 1e9);
+			}
+		}
+		return 0;
+	}
+
+	private static double decodesPerSecond(byte[] frame, int iterations) throws IOException {
+		long sink = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				sink += MessageCodec.readMessage(ByteBuffer.wrap(frame)).getType().ordinal();
+			}
+			if (pass == 1) {
+				blackhole(sink);
+				return iterations / ((System.nanoTime() - start) / 1e9);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Uses a result so the JIT cannot throw away the work that produced it
+	 */
+	private static void blackhole(long value) {
+		if (value == 42) {
+			System.out.println();
+		}
+	}
+
+}
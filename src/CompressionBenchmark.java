@@ -0,0 +1,178 @@
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * This class measures what compressing frames (see MessageCodec.COMPRESSION) saves in
+ * bandwidth and what it costs in CPU, on a mix of message sizes like the one users send:
+ *
+ *     70%  short chat lines, 10 to 120 characters
+ *     20%  paragraphs and snippets, 200 to 1500 characters
+ *      8%  pasted log excerpts, 2 to 20 KB
+ *      2%  pasted stack traces, 10 to 60 KB
+ *
+ * The mix is made from a fixed seed, so every run sends the same messages. For every
+ * compressionLevel and compressionThreshold the messages go through an OutboundFrame the way
+ * a broadcast does: the frame is asked for its compressed bytes once per recipient, and
+ * compressed once. The compression time is taken from ServerMetrics.compressionNanos, and
+ * every recipient has to decode (and inflate) its copy, which is timed on one of them.
+ *
+ * Usage: java CompressionBenchmark [messages] [recipients]
+ *
+ */
+public class CompressionBenchmark {
+
+	/**
+	 * Every setting that is measured: {compressionLevel, compressionThreshold}
+	 */
+	private static final int[][] SETTINGS = {
+		{0, 0},
+		{1, 256},
+		{1, 1024},
+		{1, 4096},
+		{6, 1024},
+		{9, 1024},
+	};
+
+	private static final String[] WORDS = {"the", "a", "is", "it", "to", "and", "deploy", "build", "test", "server",
+			"failing", "again", "why", "does", "this", "work", "on", "my", "machine", "lunch", "merged", "review",
+			"please", "thanks", "ok", "looks", "good", "ticket", "prod", "staging", "rollback", "cache", "latency"};
+
+	private static final String[] LEVELS = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+
+	private static final String[] CLASSES = {"com.example.orders.OrderService", "com.example.orders.OrderRepository",
+			"com.example.billing.InvoiceWorker", "com.example.http.RequestHandler", "com.example.cache.RedisClient",
+			"org.springframework.web.servlet.DispatcherServlet", "org.hibernate.engine.jdbc.spi.SqlExceptionHelper"};
+
+	private static final String[] EVENTS = {"Processed request in %d ms", "Cache miss for key order:%d",
+			"Retrying connection attempt %d of 5", "Committed transaction %d", "Slow query took %d ms",
+			"Connection pool exhausted, waiting %d ms", "Published event id=%d"};
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int recipients = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		User sender = new User("sender");
+		Random random = new Random(42);
+		ArrayList<Message> mix = new ArrayList<Message>();
+		long textBytes = 0;
+		for (int i = 0; i < messages; i++) {
+			String text = text(random);
+			textBytes += text.length();
+			mix.add(new Message(MessageType.CHAT_MESSAGE, sender, text, null));
+		}
+		boolean metrics = ServerConfig.metrics;
+		ServerConfig.metrics = true;
+
+		System.out.printf("%,d messages averaging %,d characters, broadcast to %d recipients%n", messages,
+				textBytes / messages, recipients);
+		// Warm up the encoder, Deflater and Inflater so the first setting is not measured cold
+		for (int[] setting : SETTINGS) {
+			run(mix, setting[0], setting[1], recipients);
+		}
+		System.out.println("level threshold compressed  bytes/msg  saved  compressUs/msg  inflateUs/msg"
+				+ "   wireMB  serverCpuMs");
+		for (int[] setting : SETTINGS) {
+			double[] result = run(mix, setting[0], setting[1], recipients);
+			double compressed = result[0];
+			double bytes = result[1];
+			double saved = 1 - bytes / result[2];
+			double inflateNanos = Math.max(0, result[4] - result[5]);
+			System.out.printf("%5d %9d %9.1f%% %10.0f %5.1f%% %15.2f %14.2f %8.1f %12.1f%n", setting[0], setting[1],
+					compressed * 100 / messages, bytes / messages, saved * 100, result[3] / 1000 / messages,
+					inflateNanos / 1000 / messages, bytes * recipients / 1e6, result[3] / 1e6);
+		}
+		System.out.println("wireMB is what the Server writes to send the whole mix to every recipient, serverCpuMs what"
+				+ " it spends compressing it. inflateUs is what decoding costs each recipient on top.");
+		ServerConfig.metrics = metrics;
+	}
+
+	/**
+	 * Broadcasts every message of the mix with one setting
+	 * @return {frames compressed, wire bytes, bytes without compression, compression nanoseconds,
+	 * decode nanoseconds of one recipient, decode nanoseconds of the same frames uncompressed}
+	 */
+	private static double[] run(ArrayList<Message> mix, int level, int threshold, int recipients) throws Exception {
+		ServerConfig.compressionLevel = level;
+		ServerConfig.compressionThreshold = threshold;
+		int format = MessageCodec.FORMAT_BINARY | (level > 0 ? MessageCodec.COMPRESSED : 0);
+		ServerMetrics.reset();
+		long wireBytes = 0;
+		long rawBytes = 0;
+		long compressed = 0;
+		long decodeNanos = 0;
+		long rawDecodeNanos = 0;
+		for (Message message : mix) {
+			OutboundFrame frame = new OutboundFrame(message);
+			byte[] bytes = null;
+			for (int r = 0; r < recipients; r++) {
+				bytes = frame.bytes(format);
+			}
+			byte[] raw = frame.bytes(MessageCodec.FORMAT_BINARY);
+			wireBytes += bytes.length;
+			rawBytes += raw.length;
+			if (bytes != raw) {
+				compressed++;
+			}
+			long start = System.nanoTime();
+			MessageCodec.decode(bytes[MessageCodec.LENGTH_FIELD_SIZE], bytes, MessageCodec.HEADER_SIZE,
+					bytes.length - MessageCodec.HEADER_SIZE);
+			long middle = System.nanoTime();
+			MessageCodec.decode(raw[MessageCodec.LENGTH_FIELD_SIZE], raw, MessageCodec.HEADER_SIZE,
+					raw.length - MessageCodec.HEADER_SIZE);
+			decodeNanos += middle - start;
+			rawDecodeNanos += System.nanoTime() - middle;
+			frame.release();
+		}
+		double compressNanos = ServerMetrics.compressionNanos.mean() * ServerMetrics.compressionNanos.count();
+		if (level > 0 && ServerMetrics.compressionNanos.count() > mix.size()) {
+			throw new IllegalStateException("A frame was compressed more than once.");
+		}
+		return new double[] {compressed, wireBytes, rawBytes, compressNanos, decodeNanos, rawDecodeNanos};
+	}
+
+	/**
+	 * @return the text of one message of the mix
+	 */
+	private static String text(Random random) {
+		int kind = random.nextInt(100);
+		StringBuilder text = new StringBuilder();
+		if (kind < 70) {
+			int length = 10 + random.nextInt(111);
+			while (text.length() < length) {
+				text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			}
+			text.setLength(length);
+		} else if (kind < 90) {
+			int length = 200 + random.nextInt(1301);
+			while (text.length() < length) {
+				text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(12) == 0 ? ".\n" : " ");
+			}
+			text.setLength(length);
+		} else if (kind < 98) {
+			int length = 2048 + random.nextInt(18 * 1024);
+			long time = 1700000000000L + random.nextInt(1000000);
+			while (text.length() < length) {
+				time += random.nextInt(50);
+				text.append(String.format("2026-10-17 %02d:%02d:%02d.%03d [pool-1-thread-%d] %-5s %s - ", time / 3600000 % 24,
+						time / 60000 % 60, time / 1000 % 60, time % 1000, 1 + random.nextInt(16),
+						LEVELS[random.nextInt(LEVELS.length)], CLASSES[random.nextInt(CLASSES.length)]));
+				text.append(String.format(EVENTS[random.nextInt(EVENTS.length)], random.nextInt(100000))).append('\n');
+			}
+		} else {
+			int length = 10 * 1024 + random.nextInt(50 * 1024);
+			while (text.length() < length) {
+				text.append("java.lang.IllegalStateException: Order ").append(random.nextInt(1000000))
+						.append(" could not be processed\n");
+				int frames = 20 + random.nextInt(60);
+				for (int f = 0; f < frames; f++) {
+					String className = CLASSES[random.nextInt(CLASSES.length)];
+					String simpleName = className.substring(className.lastIndexOf('.') + 1);
+					text.append("\tat ").append(className).append(".handle").append(random.nextInt(20)).append('(')
+							.append(simpleName).append(".java:").append(1 + random.nextInt(900)).append(")\n");
+				}
+				text.append("Caused by: java.sql.SQLTransientConnectionException: Connection is not available\n");
+			}
+		}
+		return text.toString();
+	}
+
+}
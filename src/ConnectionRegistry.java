@@ -0,0 +1,216 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class holds every UserHandler that is currently connected to the Server, keyed by
+ * the ID of its User. It can be changed by any number of threads at once: adding and removing
+ * a UserHandler takes constant time, and looping over the UserHandlers (for a broadcast)
+ * never blocks and never throws a ConcurrentModificationException, even while users are
+ * joining and leaving. The list of users that Clients are sent is kept by the Roster.
+ *
+ * A loop sees every UserHandler that was registered for the whole loop, and may or may not
+ * see UserHandlers that join or leave while it is running.
+ *
+ */
+public class ConnectionRegistry implements Iterable<UserHandler> {
+
+	/**
+	 * This Map holds every registered UserHandler, keyed by User ID
+	 */
+	private final ConcurrentHashMap<Integer, UserHandler> handlers = new ConcurrentHashMap<Integer, UserHandler>();
+
+	/**
+	 * Registers a UserHandler. A UserHandler that was registered with the same User ID is replaced
+	 * @param uh - new UserHandler
+	 */
+	public void add(UserHandler uh) {
+		handlers.put(uh.getUser().getId(), uh);
+	}
+
+	/**
+	 * Removes a UserHandler, if it is still the one registered for its User ID
+	 * @param uh - UserHandler that is leaving
+	 * @return true if it was registered
+	 */
+	public boolean remove(UserHandler uh) {
+		return handlers.remove(uh.getUser().getId(), uh);
+	}
+
+	/**
+	 * @param userId - ID of a User
+	 * @return the UserHandler of that User, or null if they are not connected
+	 */
+	public UserHandler get(int userId) {
+		return handlers.get(userId);
+	}
+
+	/**
+	 * @return the number of registered UserHandlers
+	 */
+	public int size() {
+		return handlers.size();
+	}
+
+	/**
+	 * @return a live view of every registered UserHandler, which is safe to loop over
+	 * while other threads change the registry
+	 */
+	public Collection<UserHandler> handlers() {
+		return handlers.values();
+	}
+
+	@Override
+	public Iterator<UserHandler> iterator() {
+		return handlers.values().iterator();
+	}
+
+	/**
+	 * Stress test: starts a Server in this process and has many threads connect and
+	 * disconnect over and over while a few users keep broadcasting chat messages. Half of
+	 * the churning users leave properly, the other half just drop their connection.
+	 * Afterwards only the broadcasting users may still be registered.
+	 *
+	 * Usage: java ConnectionRegistry [legacy|nio] [connections] [threads]
+	 */
+	public static void main(String[] args) throws Exception {
+		final String mode = args.length > 0 ? args[0] : "nio";
+		final int connections = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		final int broadcasters = 4;
+
+		final AtomicInteger uncaught = new AtomicInteger();
+		Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+			@Override
+			public void uncaughtException(Thread t, Throwable e) {
+				uncaught.incrementAndGet();
+				e.printStackTrace();
+			}
+		});
+		// The Server prints every message it receives, which would drown the results
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		Harness.startServer("--mode=" + mode, "--port=" + (Server.DEFAULT_PORT + 7));
+
+		final ArrayList<Socket> talkers = new ArrayList<Socket>();
+		final AtomicInteger broadcastsSent = new AtomicInteger();
+		for (int i = 0; i < broadcasters; i++) {
+			final Socket socket = new Socket(InetAddress.getLoopbackAddress(), ServerConfig.port);
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			final User user = Harness.handshake("talker" + i, in, out);
+			talkers.add(socket);
+			daemon(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							MessageCodec.readMessage(in);
+						}
+					} catch (IOException e) {
+						// Socket closed at the end of the test
+					}
+				}
+			});
+			daemon(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							MessageCodec.writeMessage(out, new Message(MessageType.CHAT_MESSAGE, user, "broadcast", null),
+									MessageCodec.FORMAT_BINARY);
+							broadcastsSent.incrementAndGet();
+							Thread.sleep(1);
+						}
+					} catch (IOException | InterruptedException e) {
+						// Socket closed at the end of the test
+					}
+				}
+			});
+		}
+
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		long start = System.nanoTime();
+		Thread[] churners = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			churners[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					int n;
+					while ((n = next.getAndIncrement()) < connections) {
+						try {
+							churn("churn" + n, n % 2 == 0);
+						} catch (IOException e) {
+							failures.incrementAndGet();
+						}
+					}
+				}
+			});
+			churners[t].start();
+		}
+		for (Thread churner : churners) {
+			churner.join();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		// Dropped connections are noticed by the Server a little after the socket closes
+		long deadline = System.currentTimeMillis() + 10000;
+		while (Server.getCurrentUserHandlers().size() != broadcasters && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		int registered = Server.getCurrentUserHandlers().size();
+
+		console.printf("%s mode: %d connects/disconnects on %d threads in %.2f s while %d broadcasts were sent%n",
+				mode, connections, threads, elapsed / 1e9, broadcastsSent.get());
+		console.println("Failed connections: " + failures.get());
+		console.println("Uncaught exceptions: " + uncaught.get());
+		console.println("Registered after the test: " + registered + " (expected " + broadcasters + ")");
+		boolean passed = failures.get() == 0 && uncaught.get() == 0 && registered == broadcasters;
+		console.println(passed ? "PASSED" : "FAILED");
+		for (Socket socket : talkers) {
+			socket.close();
+		}
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * Connects one user, and then either disconnects it properly or just closes the socket
+	 */
+	private static void churn(String username, boolean polite) throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), ServerConfig.port);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			User user = Harness.handshake(username, in, out);
+			if (polite) {
+				MessageCodec.writeMessage(out, new Message(MessageType.DISCONNECT_REQUEST_MESSAGE, user, null, null),
+						MessageCodec.FORMAT_BINARY);
+				while (MessageCodec.readMessage(in).getType() != MessageType.DISCONNECT_ACKNOWLEDGEMENT_MESSAGE) {
+					// Skip the broadcasts that arrived in the meantime
+				}
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static void daemon(Runnable task) {
+		Thread thread = new Thread(task);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+}
@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class represents an EventLoop. An EventLoop is a single thread with its own Selector,
+ * and it owns every NioConnection that is registered with it. All reading, writing and
+ * message handling for those connections happens on this one thread, so a handful of
+ * EventLoops can serve many thousands of Clients.
+ *
+ * Other threads are not allowed to touch the connections directly. Instead, they hand
+ * a task to the EventLoop with execute(), and the EventLoop runs it between selects.
+ * Tasks can also be delayed with schedule(), in which case select only waits until the
+ * first of them is due.
+ *
+ */
+public class EventLoop implements Runnable {
+
+	/**
+	 * This Selector tells the EventLoop which of its connections are ready to be read from
+	 * or written to
+	 */
+	private final Selector selector;
+
+	/**
+	 * This Queue holds tasks that other threads want to run on this EventLoop
+	 */
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * This Queue holds delayed tasks, the one that is due first at the front. It is only
+	 * touched by the thread of this EventLoop
+	 */
+	private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<ScheduledTask>();
+
+	/**
+	 * This field is the EventLoop that the calling thread runs, or null on any other thread
+	 */
+	private static final ThreadLocal<EventLoop> CURRENT = new ThreadLocal<EventLoop>();
+
+	/**
+	 * This Thread runs the loop
+	 */
+	private final Thread thread;
+
+	/**
+	 * This boolean is true until the EventLoop is shut down
+	 */
+	private volatile boolean bRun = true;
+
+	/**
+	 * This field counts the connections handed to this EventLoop that have not been closed yet,
+	 * so NioServer can hand new ones to the least loaded EventLoop
+	 */
+	private final AtomicInteger connections = new AtomicInteger();
+
+	/**
+	 * Constructor for a new EventLoop. The loop does not run until start() is called
+	 * @param name - name given to the thread of this loop
+	 * @throws IOException if the Selector could not be opened
+	 */
+	EventLoop(String name) throws IOException {
+		this.selector = Selector.open();
+		this.thread = new Thread(this, name);
+	}
+
+	/**
+	 * Starts the thread of this EventLoop
+	 */
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * Stops this EventLoop after the current select returns
+	 */
+	public void shutdown() {
+		bRun = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * @return true if the calling thread is the thread of this EventLoop
+	 */
+	public boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * @return true if the calling thread is the thread of any EventLoop, which must never block
+	 */
+	public static boolean isEventLoopThread() {
+		return CURRENT.get() != null;
+	}
+
+	/**
+	 * Queues a task to run on this EventLoop, and wakes the loop up if it is waiting
+	 * in select
+	 * @param task - task that will be run on this EventLoop
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (!inEventLoop()) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Queues a task to run on this EventLoop once a delay has passed
+	 * @param task - task that will be run on this EventLoop
+	 * @param delay - how long to wait before running it
+	 * @param unit - unit of the delay
+	 */
+	public void schedule(final Runnable task, long delay, TimeUnit unit) {
+		final long deadline = System.nanoTime() + unit.toNanos(delay);
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				scheduledTasks.add(new ScheduledTask(deadline, task));
+			}
+		});
+	}
+
+	/**
+	 * @return the number of connections of this EventLoop that have not been closed yet
+	 */
+	public int getConnectionCount() {
+		return connections.get();
+	}
+
+	/**
+	 * Called by a NioConnection of this EventLoop once it has been closed
+	 */
+	void connectionClosed() {
+		connections.decrementAndGet();
+	}
+
+	/**
+	 * Hands a newly accepted channel to this EventLoop. The channel is switched to
+	 * non-blocking mode and registered for reading on the loop's own thread
+	 * @param channel - channel of a newly accepted Client, whose handshake has begun
+	 * (see HandshakeStage.tryBegin)
+	 * @param acceptedNanos - System.nanoTime() when it was accepted
+	 */
+	public void register(final SocketChannel channel, final long acceptedNanos) {
+		// Counted at once, so a burst of connections sees it before they are registered
+		connections.incrementAndGet();
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					channel.configureBlocking(false);
+					NioConnection connection = new NioConnection(channel, EventLoop.this, acceptedNanos);
+					SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+					connection.setKey(key);
+					connection.awaitHandshake();
+				} catch (IOException e) {
+					System.out.println("Could not register a new connection: " + e.getMessage());
+					Server.getHandshakes().finished(HandshakeStage.Outcome.FAILED, acceptedNanos);
+					connections.decrementAndGet();
+					try {
+						channel.close();
+					} catch (IOException e1) {
+						// Nothing more can be done with this channel
+					}
+				}
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		CURRENT.set(this);
+		while (bRun) {
+			try {
+				// Tasks queued from this thread did not wake the selector up, so don't block on them
+				if (!tasks.isEmpty()) {
+					selector.selectNow();
+				} else if (scheduledTasks.isEmpty()) {
+					selector.select();
+				} else {
+					long waitNanos = scheduledTasks.peek().deadline - System.nanoTime();
+					if (waitNanos <= 0) {
+						selector.selectNow();
+					} else {
+						selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+					}
+				}
+			} catch (IOException e) {
+				System.out.println("EventLoop " + thread.getName() + " could not select: " + e.getMessage());
+				break;
+			}
+			runTasks();
+			runScheduledTasks();
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				NioConnection connection = (NioConnection) key.attachment();
+				try {
+					if (key.isValid() && key.isReadable()) {
+						connection.handleRead();
+					}
+					if (key.isValid() && key.isWritable()) {
+						connection.handleWrite();
+					}
+				} catch (ClosedChannelException e) {
+					connection.close();
+				} catch (IOException | RuntimeException e) {
+					System.out.println("Closing connection after error: " + e);
+					connection.close();
+				}
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Runs every delayed task that is due
+	 */
+	private void runScheduledTasks() {
+		long now = System.nanoTime();
+		while (!scheduledTasks.isEmpty() && scheduledTasks.peek().deadline - now <= 0) {
+			try {
+				scheduledTasks.poll().task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Runs every task that has been queued up by other threads
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * This class is a task that waits in scheduledTasks until its deadline
+	 */
+	private static class ScheduledTask implements Comparable<ScheduledTask> {
+
+		final long deadline;
+
+		final Runnable task;
+
+		ScheduledTask(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(ScheduledTask other) {
+			return Long.compare(deadline - other.deadline, 0);
+		}
+
+	}
+
+}
@@ -0,0 +1,85 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class measures how many socket writes the Server needs to deliver a burst of
+ * broadcast messages. It starts a Server in this process, connects a number of receiving
+ * users, has one more user send a burst of chat messages as fast as it can, and waits until
+ * every receiver has got all of them. It then prints the write counters of ServerMetrics.
+ *
+ * Usage: java FanOutMeasurement [receivers] [burst] [server settings...]
+ *
+ */
+public class FanOutMeasurement {
+
+	public static void main(String[] args) throws Exception {
+		int receivers = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		final int burst = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		final String[] serverArgs = new String[Math.max(0, args.length - 2)];
+		System.arraycopy(args, Math.min(2, args.length), serverArgs, 0, serverArgs.length);
+
+		// The Server prints every message it receives, which would drown the results
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		Harness.startServer(serverArgs);
+
+		final CountDownLatch delivered = new CountDownLatch(receivers);
+		for (int i = 0; i < receivers; i++) {
+			Socket socket = new Socket(InetAddress.getLoopbackAddress(), ServerConfig.port);
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			Harness.handshake("receiver" + i, in, out);
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						int chats = 0;
+						while (chats < burst) {
+							if (MessageCodec.readMessage(in).getType() == MessageType.CHAT_MESSAGE) {
+								chats++;
+							}
+						}
+						delivered.countDown();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), ServerConfig.port);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		User sender = Harness.handshake("sender", in, out);
+		Thread.sleep(1000);
+
+		ServerMetrics.reset();
+		long start = System.nanoTime();
+		Message chat = new Message(MessageType.CHAT_MESSAGE, sender, "burst message", null);
+		byte[] frame = MessageCodec.encode(chat, MessageCodec.FORMAT_BINARY);
+		for (int i = 0; i < burst; i++) {
+			out.write(frame);
+		}
+		out.flush();
+		boolean complete = delivered.await(120, TimeUnit.SECONDS);
+		long elapsed = System.nanoTime() - start;
+
+		console.println("Settings: " + ServerConfig.describe());
+		console.printf("%d messages to %d receivers %s in %.2f s%n", burst, receivers,
+				complete ? "delivered" : "NOT all delivered", elapsed / 1e9);
+		console.println(ServerMetrics.describe());
+		System.exit(complete ? 0 : 1);
+	}
+
+}
@@ -0,0 +1,192 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class checks that the inbound rate limits (see RateLimiter) keep one Client from
+ * flooding everybody else. It starts a Server in this process and connects:
+ *
+ *     a flooder    sends lobby chat messages as fast as its socket takes them
+ *     a compliant  user that sends one chat message every 100 ms, with the time it was sent
+ *     --receivers  users that read everything, and count the chat of the other two
+ *
+ * After --seconds it prints how many of the flooder's messages per second reached a receiver,
+ * which must be within --userMessageRate (plus one burst), how many of the compliant user's
+ * messages arrived and how late, and the rate limit counters. Run it with
+ * --rateLimitPolicy=drop, delay or disconnect to compare them, or with --userMessageRate=0
+ * to see the flood without a limit.
+ *
+ * Usage: java FloodMeasurement [--seconds=N] [--receivers=N] [server settings...]
+ *
+ * Every setting that is not one of the above is passed to the Server, after --mode=nio,
+ * --port=9630 and --userMessageRate=100, which it may override.
+ *
+ */
+public class FloodMeasurement {
+
+	private static int seconds = 3;
+	private static int receivers = 20;
+	private static final ArrayList<String> serverSettings = new ArrayList<String>();
+
+	/**
+	 * These fields count the chat messages of the flooder and of the compliant user that reached
+	 * the first receiver
+	 */
+	private static final AtomicInteger floodReceived = new AtomicInteger();
+	private static final AtomicInteger compliantReceived = new AtomicInteger();
+
+	/**
+	 * This Histogram holds the send-to-receive time of every compliant message at the first
+	 * receiver, guarded by itself
+	 */
+	private static final Histogram compliantNanos = new Histogram();
+
+	public static void main(String[] args) throws Exception {
+		parse(args);
+		PrintStream console = System.out;
+		// The Server prints every message it receives, which would drown the results
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		serverSettings.add(0, "--mode=nio");
+		serverSettings.add(1, "--port=9630");
+		serverSettings.add(2, "--userMessageRate=100");
+		serverSettings.add(3, "--logMessages=false");
+		Harness.startServer(serverSettings.toArray(new String[0]));
+
+		ArrayList<Socket> sockets = new ArrayList<Socket>();
+		ArrayList<DataOutputStream> outs = new ArrayList<DataOutputStream>();
+		final User flooder = Harness.connect(ServerConfig.port, "flooder", sockets, outs, null);
+		final User compliant = Harness.connect(ServerConfig.port, "compliant", sockets, outs, null);
+		final DataOutputStream floodOut = outs.get(0);
+		DataOutputStream compliantOut = outs.get(1);
+		for (int i = 0; i < receivers; i++) {
+			receive("receiver" + i, sockets, i == 0, flooder.getId(), compliant.getId());
+		}
+
+		final byte[] floodFrame = MessageCodec.encode(new Message(MessageType.CHAT_MESSAGE, flooder, "flood", null),
+				MessageCodec.FORMAT_BINARY);
+		final AtomicInteger floodSent = new AtomicInteger();
+		Thread flood = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						floodOut.write(floodFrame);
+						floodSent.incrementAndGet();
+					}
+				} catch (IOException e) {
+					// Disconnected, or the measurement is over
+				}
+			}
+		}, "flooder");
+		flood.setDaemon(true);
+		long start = System.nanoTime();
+		flood.start();
+		int compliantSent = 0;
+		long end = start + seconds * 1000000000L;
+		while (System.nanoTime() < end) {
+			MessageCodec.writeMessage(compliantOut, new Message(MessageType.CHAT_MESSAGE, compliant,
+					Long.toString(System.nanoTime()), null), MessageCodec.FORMAT_BINARY);
+			compliantSent++;
+			Thread.sleep(100);
+		}
+		int flooded = floodReceived.get();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		// The last compliant messages may still be behind the flood
+		Thread.sleep(1000);
+
+		long limit = ServerConfig.userMessageRate;
+		console.printf("%s Server, userMessageRate=%d rateLimitPolicy=%s, %d receivers%n", ServerConfig.mode, limit,
+				ServerConfig.rateLimitPolicy, receivers);
+		console.printf("flooder: %,d written, %,.0f per second delivered to each receiver%n", floodSent.get(),
+				flooded / elapsed);
+		synchronized (compliantNanos) {
+			console.printf("compliant: %d of %d delivered, send-to-receive (ms) %s%n", compliantReceived.get(),
+					compliantSent, compliantNanos.count() > 0 ? compliantNanos.describe(1000000) : "-");
+		}
+		console.printf("server: rateLimitDropped=%d rateLimitDelayed=%d rateLimitDisconnects=%d%n",
+				ServerMetrics.rateLimitDropped.sum(), ServerMetrics.rateLimitDelayed.sum(),
+				ServerMetrics.rateLimitDisconnects.sum());
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		boolean passed = compliantReceived.get() == compliantSent;
+		if (limit > 0) {
+			long allowed = limit * seconds + limit * ServerConfig.rateLimitBurstMillis / 1000;
+			passed &= flooded <= allowed * 1.1;
+		}
+		console.println(passed ? "PASSED" : "FAILED");
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * Connects a receiver, which reads everything on a Thread of its own
+	 * @param counts - true for the receiver that counts and times the chat
+	 */
+	private static void receive(String username, ArrayList<Socket> sockets, final boolean counts, final int flooderId,
+			final int compliantId) throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), ServerConfig.port);
+		sockets.add(socket);
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		Client.requestConnection(out, in, new User(username));
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Message message = MessageCodec.readMessage(in);
+						if (!counts || message.getType() != MessageType.CHAT_MESSAGE) {
+							continue;
+						}
+						int from = message.getOriginatingUser().getId();
+						if (from == flooderId) {
+							floodReceived.incrementAndGet();
+						} else if (from == compliantId) {
+							long sent = Long.parseLong(message.getMessageText());
+							synchronized (compliantNanos) {
+								compliantNanos.record(System.nanoTime() - sent);
+							}
+							compliantReceived.incrementAndGet();
+						}
+					}
+				} catch (IOException e) {
+					// The measurement is over
+				}
+			}
+		}, username);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Reads every "--name=value" argument. Settings that are not the measurement's own are kept
+	 * for the Server
+	 * @param args - arguments passed into main
+	 */
+	private static void parse(String[] args) {
+		serverSettings.addAll(Harness.parse(args, new Harness.Settings() {
+			@Override
+			public boolean set(String name, String value) {
+				switch (name) {
+				case "seconds":
+					seconds = Math.max(1, Integer.parseInt(value));
+					return true;
+				case "receivers":
+					receivers = Math.max(1, Integer.parseInt(value));
+					return true;
+				default:
+					return false;
+				}
+			}
+		}));
+	}
+
+}
@@ -0,0 +1,263 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class measures how fast a Server takes new users during a reconnect storm, while it is
+ * also being held up by connections that never finish their handshake (see HandshakeStage).
+ *
+ * First it opens --stalled connections that send nothing at all, --refused connections
+ * whose first message is a CHAT_MESSAGE instead of a connection request, and --malformed
+ * connections whose connection request has details missing or of the wrong type. Then --concurrency
+ * Threads connect, send a connection request, wait for the CONNECTION_ACKNOWLEDGEMENT_MESSAGE
+ * and disconnect again, until --connections users have been acknowledged. The time from
+ * opening the socket to reading the acknowledgement is recorded for every one of them.
+ *
+ * Afterwards it checks that every refused and malformed connection was told so, and waits for
+ * the Server to close the stalled connections, which it must do after its handshakeTimeoutMillis.
+ * With an embedded Server, no handshake may be left holding the budget by then.
+ *
+ * Usage: java HandshakeBenchmark [--connections=N] [--concurrency=N] [--stalled=N] [--refused=N]
+ *            [--malformed=N] [--port=N] [--embedded=legacy|nio] [server settings...]
+ *
+ * --embedded starts a Server in this process in the given mode, and passes it every setting
+ * that is not one of the above, like --handshakeTimeoutMillis=1000.
+ *
+ */
+public class HandshakeBenchmark {
+
+	private static int connections = 5000;
+	private static int concurrency = 50;
+	private static int stalled = 200;
+	private static int refused = 10;
+	private static int malformed = 10;
+	private static int port = Server.DEFAULT_PORT;
+	private static String embedded = null;
+	private static final ArrayList<String> serverSettings = new ArrayList<String>();
+
+	/**
+	 * This field is how long (in milliseconds) a socket of the benchmark waits for the Server
+	 */
+	private static final int READ_TIMEOUT_MILLIS = 30000;
+
+	public static void main(String[] args) throws Exception {
+		parse(args);
+		PrintStream console = System.out;
+		if (embedded != null) {
+			// The Server prints every connection it refuses, which would drown the results
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+			serverSettings.add(0, "--mode=" + embedded);
+			serverSettings.add(1, "--port=" + port);
+			serverSettings.add(2, "--logMessages=false");
+			Harness.startServer(serverSettings.toArray(new String[0]));
+		}
+
+		// Every stalled connection waits on a Thread of its own for the Server to close it
+		final Histogram stalledMillis = new Histogram();
+		final AtomicInteger leftOpen = new AtomicInteger();
+		ArrayList<Thread> watchers = new ArrayList<Thread>();
+		for (int i = 0; i < stalled; i++) {
+			final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			final long opened = System.nanoTime();
+			socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+			Thread watcher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					boolean closed;
+					try {
+						closed = socket.getInputStream().read() < 0;
+					} catch (SocketTimeoutException e) {
+						closed = false;
+					} catch (IOException e) {
+						// A reset is a close as well
+						closed = true;
+					}
+					if (closed) {
+						synchronized (stalledMillis) {
+							stalledMillis.record((System.nanoTime() - opened) / 1000000);
+						}
+					} else {
+						leftOpen.incrementAndGet();
+					}
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// Done with it anyway
+					}
+				}
+			}, "stalled-" + i);
+			watcher.setDaemon(true);
+			watcher.start();
+			watchers.add(watcher);
+		}
+		ArrayList<Socket> refusedSockets = new ArrayList<Socket>();
+		for (int i = 0; i < refused; i++) {
+			Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			User user = new User("refused" + i);
+			MessageCodec.writeMessage(out, new Message(MessageType.CHAT_MESSAGE, user, "not a connection request", null));
+			refusedSockets.add(socket);
+		}
+		for (int i = 0; i < malformed; i++) {
+			Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			User user = new User("malformed" + i);
+			// In turn: details in the wrong order, too few of them, and none at all
+			Object[] details = i % 3 == 0 ? new Object[] {0L, MessageCodec.SUPPORTED_FORMATS}
+					: i % 3 == 1 ? new Object[] {MessageCodec.SUPPORTED_FORMATS} : null;
+			MessageCodec.writeMessage(out, malformedRequest(user, details));
+			refusedSockets.add(socket);
+		}
+
+		final Histogram latency = new Histogram();
+		final AtomicInteger started = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		long start = System.nanoTime();
+		for (int t = 0; t < concurrency; t++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					int i;
+					while ((i = started.getAndIncrement()) < connections) {
+						long begin = System.nanoTime();
+						try {
+							connectOnce(port, "storm" + i);
+							synchronized (latency) {
+								latency.record(System.nanoTime() - begin);
+							}
+						} catch (IOException e) {
+							failed.incrementAndGet();
+						}
+					}
+				}
+			}, "storm-" + t);
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		int told = 0;
+		for (Socket socket : refusedSockets) {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				if (MessageCodec.readMessage(in).getType() == MessageType.DISCONNECT_ACKNOWLEDGEMENT_MESSAGE) {
+					told++;
+				}
+			} catch (IOException e) {
+				// Not told
+			}
+			socket.close();
+		}
+
+		for (Thread watcher : watchers) {
+			watcher.join();
+		}
+		int pending = embedded == null ? 0 : Server.getHandshakes().pending();
+
+		console.printf("%,d users acknowledged (%d failed) in %.2f s with %d connecting at once%s%n",
+				latency.count(), failed.get(), seconds, concurrency,
+				embedded == null ? "" : " (embedded " + embedded + " Server)");
+		console.printf("connects/s %,.0f%n", latency.count() / seconds);
+		console.println("connect-to-ack latency (us): " + latency.describe(1000));
+		console.printf("refused: %d of %d told (%d malformed requests)%n", told, refused + malformed, malformed);
+		console.printf("stalled: %d of %d closed by the Server, after (ms) %s%n", stalledMillis.count(), stalled,
+				stalledMillis.count() > 0 ? stalledMillis.describe(1) : "-");
+		if (embedded != null) {
+			console.printf("server: handshakeMicros=%s handshakesRejected=%d handshakesTimedOut=%d handshakesFailed=%d%n",
+					ServerMetrics.handshakeNanos.describe(1000), ServerMetrics.handshakesRejected.sum(),
+					ServerMetrics.handshakesTimedOut.sum(), ServerMetrics.handshakesFailed.sum());
+			console.printf("server: %d handshakes still pending%n", pending);
+		}
+		System.exit(leftOpen.get() == 0 && failed.get() == 0 && told == refused + malformed && pending == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Connects one user the way Client does, waits for its acknowledgement and disconnects
+	 * @param port - port of the Server on loopback
+	 * @param username - name of the user
+	 * @throws IOException if the Server did not acknowledge it
+	 */
+	static void connectOnce(int port, String username) throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		try {
+			socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			Message ack = Client.requestConnection(out, in, new User(username));
+			MessageCodec.writeMessage(out, new Message(MessageType.DISCONNECT_REQUEST_MESSAGE,
+					(User) ack.getMessageDetails()[1], null, null));
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Makes a CONNECTION_REQUEST_MESSAGE with details the Message constructor would not allow,
+	 * as a Client that is broken or hostile can still send them. The Server must refuse them when it decodes them
+	 * @param details - details the request is sent with
+	 */
+	private static Message malformedRequest(User user, Object[] details) throws ReflectiveOperationException {
+		Message request = new Message(MessageType.CONNECTION_REQUEST_MESSAGE, user, user.getUsername(),
+				new Object[] {MessageCodec.SUPPORTED_FORMATS, 0L});
+		Field field = Message.class.getDeclaredField("messageDetails");
+		field.setAccessible(true);
+		field.set(request, details);
+		return request;
+	}
+
+	/**
+	 * Reads every "--name=value" argument. Settings that are not the benchmark's own are kept
+	 * for the embedded Server
+	 * @param args - arguments passed into main
+	 */
+	private static void parse(String[] args) {
+		serverSettings.addAll(Harness.parse(args, new Harness.Settings() {
+			@Override
+			public boolean set(String name, String value) {
+				switch (name) {
+				case "connections":
+					connections = Integer.parseInt(value);
+					return true;
+				case "concurrency":
+					concurrency = Math.max(1, Integer.parseInt(value));
+					return true;
+				case "stalled":
+					stalled = Math.max(0, Integer.parseInt(value));
+					return true;
+				case "refused":
+					refused = Math.max(0, Integer.parseInt(value));
+					return true;
+				case "malformed":
+					malformed = Math.max(0, Integer.parseInt(value));
+					return true;
+				case "port":
+					port = Integer.parseInt(value);
+					return true;
+				case "embedded":
+					embedded = value;
+					return true;
+				default:
+					return false;
+				}
+			}
+		}));
+	}
+
+}
@@ -0,0 +1,260 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.net.Socket;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is the stage every new connection passes between being accepted and getting its
+ * UserHandler: waiting for its CONNECTION_REQUEST_MESSAGE. The Thread that accepts connections
+ * only hands them over, so a Client that connects and sends nothing, or sends its request one
+ * byte at a time, only holds up its own connection.
+ *
+ * Every handshake has ServerConfig.handshakeTimeoutMillis from the accept to finish, or its
+ * connection is closed. At most ServerConfig.maxPendingHandshakes can be waiting at once, and a
+ * connection accepted beyond that is closed right away, so a flood of connections that never
+ * send anything cannot use up Threads or memory. A request may be at most MAX_REQUEST_LENGTH bytes.
+ *
+ * A first message that is not a CONNECTION_REQUEST_MESSAGE, or a request without the details
+ * the Server reads from it (see isValidRequest), is answered with a
+ * DISCONNECT_ACKNOWLEDGEMENT_MESSAGE (in MessageCodec.FORMAT_JAVA, which every Client can read)
+ * and the connection is closed. The Server goes on accepting either way.
+ *
+ * In legacy mode the requests are read by handshake Threads (see ChatThreads), which are kept
+ * for a while once started, so a burst of reconnects does not start a Thread for every one. In
+ * NIO mode the EventLoops read the requests (see NioConnection), and only use the budget here.
+ *
+ */
+public class HandshakeStage {
+
+	/**
+	 * This field is the largest CONNECTION_REQUEST_MESSAGE frame (after the length field) read
+	 */
+	public static final int MAX_REQUEST_LENGTH = 64 * 1024;
+
+	/**
+	 * This field is how long (in seconds) a handshake Thread waits for another handshake before it ends
+	 */
+	private static final long IDLE_THREAD_SECONDS = 30;
+
+	/**
+	 * The ways a handshake can end
+	 */
+	public enum Outcome {
+		COMPLETED, TIMED_OUT, FAILED
+	}
+
+	/**
+	 * This field counts the handshakes that have begun and not ended yet
+	 */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/**
+	 * This field numbers the handshake Threads
+	 */
+	private final AtomicLong threadNumber = new AtomicLong();
+
+	/**
+	 * This executor reads the requests in legacy mode. Its Threads are only started by the first
+	 * handshake, and the budget keeps it from growing past ServerConfig.maxPendingHandshakes
+	 */
+	private final ThreadPoolExecutor readers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, IDLE_THREAD_SECONDS,
+			TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = ChatThreads.newThread(task, "handshake-" + threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * Begins a handshake if the budget allows it. Every handshake that began must be ended
+	 * exactly once with finished
+	 * @return true if it began, false if the connection must be closed right away
+	 */
+	public boolean tryBegin() {
+		while (true) {
+			int current = pending.get();
+			if (current >= ServerConfig.maxPendingHandshakes) {
+				ServerMetrics.handshakesRejected.increment();
+				return false;
+			}
+			if (pending.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Ends a handshake that began with tryBegin
+	 * @param outcome - how it ended
+	 * @param acceptedNanos - System.nanoTime() when its connection was accepted
+	 */
+	public void finished(Outcome outcome, long acceptedNanos) {
+		pending.decrementAndGet();
+		switch (outcome) {
+		case COMPLETED:
+			if (ServerConfig.metrics) {
+				ServerMetrics.handshakeNanos.record(System.nanoTime() - acceptedNanos);
+			}
+			break;
+		case TIMED_OUT:
+			ServerMetrics.handshakesTimedOut.increment();
+			break;
+		case FAILED:
+			ServerMetrics.handshakesFailed.increment();
+			break;
+		}
+	}
+
+	/**
+	 * @return the number of handshakes that have begun and not ended yet
+	 */
+	public int pending() {
+		return pending.get();
+	}
+
+	/**
+	 * @param acceptedNanos - System.nanoTime() when a connection was accepted
+	 * @return the milliseconds left until its handshake times out, at least 1
+	 */
+	public static long remainingMillis(long acceptedNanos) {
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - acceptedNanos);
+		return Math.max(1, ServerConfig.handshakeTimeoutMillis - elapsedMillis);
+	}
+
+	/**
+	 * Checks that a first message is a CONNECTION_REQUEST_MESSAGE with everything the Server
+	 * reads from it: the username as its text, and as its details the Integer of formats and
+	 * capabilities the Client offers followed by the Long roster version it knows
+	 * @param message - first message received on a connection, or null if it was not a valid Message
+	 * @return true if a UserHandler can be made from it
+	 */
+	public static boolean isValidRequest(Message message) {
+		if (message == null || message.getType() != MessageType.CONNECTION_REQUEST_MESSAGE || message.getMessageText() == null) {
+			return false;
+		}
+		Object[] details = message.getMessageDetails();
+		return details != null && details.length >= 2 && details[0] instanceof Integer && details[1] instanceof Long;
+	}
+
+	/**
+	 * @return the DISCONNECT_ACKNOWLEDGEMENT_MESSAGE a connection gets when its first message is
+	 * not a connection request. It is only printed with ServerConfig.logMessages, so a flood of
+	 * bad connections cannot flood the console as well
+	 */
+	public static Message refusal() {
+		if (ServerConfig.logMessages) {
+			System.out.println("Server received a first message that was not a valid CONNECTION_REQUEST_MESSAGE.");
+		}
+		return new Message(MessageType.DISCONNECT_ACKNOWLEDGEMENT_MESSAGE, User.SERVER, null, null);
+	}
+
+	/**
+	 * Hands a connection accepted in legacy mode to a handshake Thread, which reads its request
+	 * and gives it a UserHandler. Returns at once
+	 * @param socket - newly accepted connection
+	 * @param acceptedNanos - System.nanoTime() when it was accepted
+	 */
+	public void start(final Socket socket, final long acceptedNanos) {
+		if (!tryBegin()) {
+			closeQuietly(socket);
+			return;
+		}
+		// Whichever of the reader and the timeout sets this first ends the handshake
+		final AtomicBoolean ended = new AtomicBoolean(false);
+		final TimingWheel.Timeout timeout = Server.getTimeouts().schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (ended.compareAndSet(false, true)) {
+					finished(Outcome.TIMED_OUT, acceptedNanos);
+					closeQuietly(socket);
+				}
+			}
+		}, remainingMillis(acceptedNanos), TimeUnit.MILLISECONDS);
+		readers.execute(new Runnable() {
+			@Override
+			public void run() {
+				handshake(socket, acceptedNanos, ended, timeout);
+			}
+		});
+	}
+
+	/**
+	 * Reads the request of a connection accepted in legacy mode, on a handshake Thread
+	 */
+	private void handshake(Socket socket, long acceptedNanos, AtomicBoolean ended, TimingWheel.Timeout timeout) {
+		DataInputStream inFromClient;
+		Message message;
+		try {
+			inFromClient = new DataInputStream(new BufferedInputStream(ServerMetrics.countReads(socket.getInputStream())));
+			try {
+				message = MessageCodec.readMessage(inFromClient, MAX_REQUEST_LENGTH);
+			} catch (InvalidObjectException e) {
+				// A whole frame arrived, but not one a Message could be made of: refused below
+				message = null;
+			}
+		} catch (IOException | RuntimeException e) {
+			// If it timed out, closing the socket is what ended the read
+			if (ended.compareAndSet(false, true)) {
+				timeout.cancel();
+				finished(Outcome.FAILED, acceptedNanos);
+				closeQuietly(socket);
+			}
+			return;
+		}
+		if (!ended.compareAndSet(false, true)) {
+			return;
+		}
+		timeout.cancel();
+		if (ServerConfig.metrics) {
+			ServerMetrics.messagesReceived.increment();
+		}
+		if (!isValidRequest(message)) {
+			try {
+				MessageCodec.writeMessage(new DataOutputStream(socket.getOutputStream()), refusal());
+			} catch (IOException e) {
+				// It is closed below anyway
+			}
+			finished(Outcome.FAILED, acceptedNanos);
+			closeQuietly(socket);
+			return;
+		}
+		if (ServerConfig.logMessages) {
+			System.out.println("Connection message received: " + message);
+		}
+		try {
+			Server.addNewClient(message, socket, inFromClient);
+		} catch (IOException e) {
+			// The connection broke before its UserHandler was made
+			finished(Outcome.FAILED, acceptedNanos);
+			closeQuietly(socket);
+			return;
+		} catch (RuntimeException e) {
+			// The budget must be given back whatever went wrong, or it runs out for good
+			e.printStackTrace();
+			finished(Outcome.FAILED, acceptedNanos);
+			closeQuietly(socket);
+			return;
+		}
+		finished(Outcome.COMPLETED, acceptedNanos);
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// The connection is being thrown away anyway
+		}
+	}
+
+}
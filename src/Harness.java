@@ -0,0 +1,119 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class holds what the benchmarks and measurements have in common, so that each of them
+ * only has to say what it measures: reading their "--name=value" arguments, starting a Server
+ * in the same process, and connecting users to it.
+ *
+ */
+class Harness {
+
+	/**
+	 * This interface takes the arguments that belong to a benchmark or measurement itself
+	 */
+	interface Settings {
+
+		/**
+		 * @param name - name of the setting, without the "--"
+		 * @param value - everything after the '='
+		 * @return true if the setting was taken, false if it is left for the Server
+		 */
+		boolean set(String name, String value);
+	}
+
+	/**
+	 * Reads every "--name=value" argument, the same way ServerConfig.parse does
+	 * @param args - arguments passed into main
+	 * @param own - takes the settings of the benchmark or measurement itself
+	 * @return every argument own did not take, in order, to be passed to the Server
+	 * @throws IllegalArgumentException if an argument is not written as --name=value
+	 */
+	static ArrayList<String> parse(String[] args, Settings own) {
+		ArrayList<String> rest = new ArrayList<String>();
+		for (String arg : args) {
+			String[] setting = ServerConfig.split(arg);
+			if (!own.set(setting[0], setting[1])) {
+				rest.add(arg);
+			}
+		}
+		return rest;
+	}
+
+	/**
+	 * Runs Server.main on a daemon Thread of this process, and gives it a second to start
+	 * listening
+	 * @param settings - arguments passed into Server.main
+	 */
+	static void startServer(final String... settings) throws InterruptedException {
+		Thread server = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Server.main(settings);
+			}
+		}, "server");
+		server.setDaemon(true);
+		server.start();
+		Thread.sleep(1000);
+	}
+
+	/**
+	 * Sends a CONNECTION_REQUEST_MESSAGE that offers every format and nothing else (no
+	 * compression, tracing or heartbeats), and reads the acknowledgement
+	 * @param username - name of the user
+	 * @return the User the Server gave the user
+	 * @throws IOException if the Server could not be reached
+	 */
+	static User handshake(String username, DataInputStream in, DataOutputStream out) throws IOException {
+		Object[] details = {MessageCodec.SUPPORTED_FORMATS, 0L};
+		MessageCodec.writeMessage(out, new Message(MessageType.CONNECTION_REQUEST_MESSAGE, new User(username), username, details));
+		return (User) MessageCodec.readMessage(in).getMessageDetails()[1];
+	}
+
+	/**
+	 * Connects one user on loopback, and reads everything it is sent on a Thread of its own
+	 * @param port - port of the Server
+	 * @param username - name of the user
+	 * @param sockets - list the socket is added to, so it can be closed at the end
+	 * @param outs - list the stream to the Server is added to, or null for a user that only reads
+	 * @param chatReceived - counts every CHAT_MESSAGE the user is sent, or null
+	 * @return the User the Server gave the user
+	 * @throws IOException if the Server could not be reached
+	 */
+	static User connect(int port, String username, ArrayList<Socket> sockets, ArrayList<DataOutputStream> outs,
+			final AtomicLong chatReceived) throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		sockets.add(socket);
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		User user = handshake(username, in, out);
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						if (MessageCodec.readMessage(in).getType() == MessageType.CHAT_MESSAGE && chatReceived != null) {
+							chatReceived.incrementAndGet();
+						}
+					}
+				} catch (IOException e) {
+					// The measurement is over
+				}
+			}
+		}, username);
+		reader.setDaemon(true);
+		reader.start();
+		if (outs != null) {
+			outs.add(out);
+		}
+		return user;
+	}
+
+}
@@ -0,0 +1,148 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class records a distribution of values, like latencies in nanoseconds or queue depths,
+ * so that its percentiles can be read at any time. Any number of threads may record at once:
+ * recording a value is one atomic increment of a bucket, with no locks and no allocation.
+ *
+ * Values are counted in buckets rather than kept. Below 16 every value has its own bucket;
+ * above that every power of two is split into 8 buckets, so a percentile is never more than
+ * 12.5% above the value that was recorded, whatever its size.
+ *
+ */
+public class Histogram {
+
+	/**
+	 * This field is the number of bits of every value that pick its bucket within its power of two
+	 */
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * This array counts the values recorded in every bucket. It has room for every long
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+
+	/**
+	 * These fields hold the sum and the largest of the recorded values
+	 */
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Adds a value to the distribution. Negative values are recorded as 0
+	 * @param value - value to record
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucket(value));
+		sum.add(value);
+		long largest = max.get();
+		while (value > largest && !max.compareAndSet(largest, value)) {
+			largest = max.get();
+		}
+	}
+
+	/**
+	 * @return the bucket a value is counted in
+	 */
+	static int bucket(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return the largest value that is counted in a bucket
+	 */
+	static long highestValue(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+		return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	/**
+	 * @return the number of values recorded
+	 */
+	public long count() {
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the mean of the values recorded, or 0 if there are none
+	 */
+	public double mean() {
+		long count = count();
+		return count == 0 ? 0 : (double) sum.sum() / count;
+	}
+
+	/**
+	 * @return the largest value recorded
+	 */
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * Works out a percentile from the buckets. Values recorded while it runs may or may not be included
+	 * @param percentile - between 0 and 100
+	 * @return the value that percentile of the recorded values are at or below, or 0 if there are none
+	 */
+	public long percentile(double percentile) {
+		long[] snapshot = new long[counts.length()];
+		long count = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Forgets every recorded value
+	 */
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+		sum.reset();
+		max.set(0);
+	}
+
+	/**
+	 * @param unit - every value is divided by this before it is printed, like 1000 for
+	 * nanoseconds printed as microseconds
+	 * @return the count, mean, median, 99th and 99.9th percentile and largest value
+	 */
+	public String describe(long unit) {
+		return String.format("{count=%d mean=%.1f p50=%.1f p99=%.1f p999=%.1f max=%.1f}", count(), mean() / unit,
+				(double) percentile(50) / unit, (double) percentile(99) / unit, (double) percentile(99.9) / unit,
+				(double) max() / unit);
+	}
+
+}
@@ -0,0 +1,86 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * This class measures what the chat history costs. It starts a Server in this process, has
+ * one user fill the history with chat messages, and then connects a number of users one after
+ * another. For each of them it measures the time from opening the socket until the last
+ * replayed message has arrived. It prints those times, the memory the history takes up, and
+ * the time the Server spent queueing the replays (see ServerMetrics).
+ *
+ * Usage: java HistoryReplayMeasurement [messages] [text length] [connections] [server settings...]
+ *
+ */
+public class HistoryReplayMeasurement {
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int textLength = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int connections = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+		final String[] serverArgs = new String[Math.max(0, args.length - 3)];
+		System.arraycopy(args, Math.min(3, args.length), serverArgs, 0, serverArgs.length);
+
+		// The Server prints every message it receives, which would drown the results
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		Harness.startServer(serverArgs);
+
+		Socket senderSocket = new Socket(InetAddress.getLoopbackAddress(), ServerConfig.port);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(senderSocket.getOutputStream()));
+		DataInputStream in = new DataInputStream(new BufferedInputStream(senderSocket.getInputStream()));
+		User sender = (User) Client.requestConnection(out, in, new User("sender")).getMessageDetails()[1];
+		StringBuilder text = new StringBuilder();
+		while (text.length() < textLength) {
+			text.append('x');
+		}
+		for (int i = 0; i < messages; i++) {
+			MessageCodec.writeMessage(out, new Message(MessageType.CHAT_MESSAGE, sender, text.toString(), null),
+					MessageCodec.FORMAT_BINARY);
+		}
+		while (Server.getHistory().lastSequence() < messages) {
+			Thread.sleep(10);
+		}
+
+		int expected = Math.min(Math.min(messages, ServerConfig.historyReplay), Server.getHistory().size());
+		ServerMetrics.reset();
+		long[] replayNanos = new long[connections];
+		for (int i = 0; i < connections; i++) {
+			long start = System.nanoTime();
+			Socket socket = new Socket(InetAddress.getLoopbackAddress(), ServerConfig.port);
+			DataOutputStream userOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			DataInputStream userIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			User user = (User) Client.requestConnection(userOut, userIn, new User("reader" + i)).getMessageDetails()[1];
+			int replayed = 0;
+			while (replayed < expected) {
+				if (MessageCodec.readMessage(userIn).getType() == MessageType.CHAT_MESSAGE) {
+					replayed++;
+				}
+			}
+			replayNanos[i] = System.nanoTime() - start;
+			MessageCodec.writeMessage(userOut, new Message(MessageType.DISCONNECT_REQUEST_MESSAGE, user, null, null),
+					MessageCodec.FORMAT_BINARY);
+			socket.close();
+		}
+		Arrays.sort(replayNanos);
+
+		console.println("Settings: " + ServerConfig.describe());
+		console.printf("History holds %d of %d messages of %d characters in %,d bytes%n",
+				Server.getHistory().size(), messages, textLength, Server.getHistory().bytes());
+		console.printf("%d connections, each replayed %d messages. Connect to last replayed message (us): p50=%,d p99=%,d max=%,d%n",
+				connections, expected, replayNanos[connections / 2] / 1000,
+				replayNanos[(int) Math.ceil(connections * 0.99) - 1] / 1000, replayNanos[connections - 1] / 1000);
+		long replays = ServerMetrics.historyReplays.sum();
+		console.printf("Server time spent queueing each replay: %.1f us%n",
+				replays == 0 ? 0 : ServerMetrics.historyReplayNanos.sum() / 1000.0 / replays);
+		System.exit(0);
+	}
+
+}
@@ -0,0 +1,69 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+
+/**
+ * This class measures how much CPU the Server uses while its users are connected but
+ * not saying anything. It starts a Server in this process, connects a number of users
+ * to it, waits for things to settle and then samples the CPU time used by the process.
+ *
+ * The connected users only hold open sockets, so any CPU that is used is used by the Server.
+ *
+ * Usage: java IdleCpuMeasurement [users] [seconds] [server settings...]
+ *
+ */
+public class IdleCpuMeasurement {
+
+	public static void main(String[] args) throws Exception {
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		final String[] serverArgs = new String[Math.max(0, args.length - 2)];
+		System.arraycopy(args, Math.min(2, args.length), serverArgs, 0, serverArgs.length);
+
+		Harness.startServer(serverArgs);
+
+		ArrayList<Socket> sockets = new ArrayList<Socket>();
+		for (int i = 0; i < users; i++) {
+			sockets.add(connect("idle" + i));
+		}
+		System.out.println(users + " users connected, letting the Server settle.");
+		Thread.sleep(2000);
+
+		com.sun.management.OperatingSystemMXBean os =
+				(com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+		long cpuBefore = os.getProcessCpuTime();
+		long wallBefore = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		long cpu = os.getProcessCpuTime() - cpuBefore;
+		long wall = System.nanoTime() - wallBefore;
+
+		System.out.printf("Idle CPU with %d users: %.2f cores busy (%.1f ms CPU per second, %d threads)%n",
+				users, (double) cpu / wall, cpu / 1e6 / (wall / 1e9), Thread.activeCount());
+
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Connects one user and waits for its CONNECTION_ACKNOWLEDGEMENT_MESSAGE
+	 * @param username - name of the user
+	 * @return the open socket
+	 * @throws IOException if the Server could not be reached
+	 */
+	private static Socket connect(String username) throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), ServerConfig.port);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		Harness.handshake(username, in, out);
+		return socket;
+	}
+
+}
@@ -0,0 +1,216 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * This class checks that a Server finds Clients that have died without closing their
+ * connection. It starts a Server in this process and connects:
+ *
+ *     --dead       users that offer heartbeats (see MessageCodec.HEARTBEATS) and then never
+ *                  read or write again, like a Client whose machine lost power
+ *     --alive      users that offer heartbeats and answer every HEARTBEAT_MESSAGE, but send
+ *                  nothing else
+ *     an observer  a user that does not offer heartbeats, and only reads
+ *
+ * The observer notes when every user is announced as having left. Every dead user must be
+ * announced some time after the idle timeout, and no alive user nor the observer ever.
+ *
+ * Usage: java IdleReapMeasurement [--embedded=nio|legacy] [--port=N] [--dead=N] [--alive=N]
+ *            [server settings...]
+ *
+ * Every setting that is not one of the above is passed to the Server, after
+ * --heartbeatIntervalMillis=500 and --idleTimeoutMillis=2000, which it may override.
+ *
+ */
+public class IdleReapMeasurement {
+
+	private static String embedded = "nio";
+	private static int port = 9640;
+	private static int dead = 200;
+	private static int alive = 200;
+	private static final ArrayList<String> serverSettings = new ArrayList<String>();
+
+	/**
+	 * This map holds when (System.nanoTime) the observer was told each user left, by ID.
+	 * It is guarded by itself
+	 */
+	private static final HashMap<Integer, Long> leftNanos = new HashMap<Integer, Long>();
+
+	public static void main(String[] args) throws Exception {
+		parse(args);
+		PrintStream console = System.out;
+		// The Server prints every connection it reaps, which would drown the results
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		serverSettings.add(0, "--mode=" + embedded);
+		serverSettings.add(1, "--port=" + port);
+		serverSettings.add(2, "--logMessages=false");
+		serverSettings.add(3, "--heartbeatIntervalMillis=500");
+		serverSettings.add(4, "--idleTimeoutMillis=2000");
+		Harness.startServer(serverSettings.toArray(new String[0]));
+
+		observe();
+		ArrayList<Socket> sockets = new ArrayList<Socket>();
+		HashMap<Integer, Long> deadSince = new HashMap<Integer, Long>();
+		HashSet<Integer> aliveIds = new HashSet<Integer>();
+		boolean agreed = true;
+		for (int i = 0; i < dead; i++) {
+			Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			sockets.add(socket);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			Object[] details = Client.requestConnection(out, in, new User("dead" + i), 0, false, true).getMessageDetails();
+			agreed &= ((Integer) details[2] & MessageCodec.HEARTBEATS) != 0;
+			// From now on nothing is read or written, and the socket stays open
+			deadSince.put(((User) details[1]).getId(), System.nanoTime());
+		}
+		for (int i = 0; i < alive; i++) {
+			aliveIds.add(answerHeartbeats("alive" + i, sockets));
+		}
+
+		long idleTimeoutMillis = ServerConfig.idleTimeoutMillis;
+		Thread.sleep(idleTimeoutMillis + 2 * ServerConfig.heartbeatIntervalMillis + 1000);
+
+		Histogram reapMillis = new Histogram();
+		int aliveLeft = 0;
+		synchronized (leftNanos) {
+			for (Integer id : deadSince.keySet()) {
+				Long left = leftNanos.get(id);
+				if (left != null) {
+					reapMillis.record((left - deadSince.get(id)) / 1000000);
+				}
+			}
+			for (Integer id : aliveIds) {
+				if (leftNanos.containsKey(id)) {
+					aliveLeft++;
+				}
+			}
+		}
+		int connected = Server.getCurrentUserHandlers().size();
+
+		console.printf("%s Server, heartbeats every %d ms, idle timeout %d ms%n", embedded,
+				ServerConfig.heartbeatIntervalMillis, idleTimeoutMillis);
+		console.printf("dead: %d of %d announced as left, after (ms) %s%n", reapMillis.count(), dead,
+				reapMillis.count() > 0 ? reapMillis.describe(1) : "-");
+		console.printf("alive: %d of %d announced as left%n", aliveLeft, alive);
+		console.printf("server: connected=%d idleReaped=%d heartbeatsSent=%d%n", connected,
+				ServerMetrics.idleReaped.sum(), ServerMetrics.heartbeatsSent.sum());
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		boolean passed = agreed && reapMillis.count() == dead && aliveLeft == 0 && connected == alive + 1
+				&& reapMillis.percentile(0) >= idleTimeoutMillis;
+		console.println(passed ? "PASSED" : "FAILED");
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * Connects the observer, which notes every user that is announced as having left, whether in
+	 * a USER_STATUS_CHANGE_MESSAGE or in a batch of joins and leaves in a ROSTER_MESSAGE
+	 */
+	private static void observe() throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		Client.requestConnection(out, in, new User("observer"));
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public void run() {
+				try {
+					while (true) {
+						Message message = MessageCodec.readMessage(in);
+						Object[] details = message.getMessageDetails();
+						long now = System.nanoTime();
+						if (message.getType() == MessageType.USER_STATUS_CHANGE_MESSAGE && !(Boolean) details[1]) {
+							synchronized (leftNanos) {
+								leftNanos.put(((User) details[0]).getId(), now);
+							}
+						} else if (message.getType() == MessageType.ROSTER_MESSAGE) {
+							synchronized (leftNanos) {
+								for (User left : (ArrayList<User>) details[4]) {
+									leftNanos.put(left.getId(), now);
+								}
+							}
+						}
+					}
+				} catch (IOException e) {
+					// The measurement is over
+				}
+			}
+		}, "observer");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Connects a user that answers every HEARTBEAT_MESSAGE on a Thread of its own
+	 * @return the ID the Server gave the user
+	 */
+	private static int answerHeartbeats(String username, ArrayList<Socket> sockets) throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		sockets.add(socket);
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		Object[] details = Client.requestConnection(out, in, new User(username), 0, false, true).getMessageDetails();
+		final User user = (User) details[1];
+		final int wireFormat = (Integer) details[2] & ~(MessageCodec.TRACING | MessageCodec.COMPRESSION
+				| MessageCodec.HEARTBEATS);
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						if (MessageCodec.readMessage(in).getType() == MessageType.HEARTBEAT_MESSAGE) {
+							MessageCodec.writeMessage(out, new Message(MessageType.HEARTBEAT_MESSAGE, user, null, null),
+									wireFormat);
+						}
+					}
+				} catch (IOException e) {
+					// The measurement is over
+				}
+			}
+		}, username);
+		reader.setDaemon(true);
+		reader.start();
+		return user.getId();
+	}
+
+	/**
+	 * Reads every "--name=value" argument. Settings that are not the measurement's own are kept
+	 * for the Server
+	 * @param args - arguments passed into main
+	 */
+	private static void parse(String[] args) {
+		serverSettings.addAll(Harness.parse(args, new Harness.Settings() {
+			@Override
+			public boolean set(String name, String value) {
+				switch (name) {
+				case "embedded":
+					embedded = value;
+					return true;
+				case "port":
+					port = Integer.parseInt(value);
+					return true;
+				case "dead":
+					dead = Math.max(0, Integer.parseInt(value));
+					return true;
+				case "alive":
+					alive = Math.max(0, Integer.parseInt(value));
+					return true;
+				default:
+					return false;
+				}
+			}
+		}));
+	}
+
+}
@@ -0,0 +1,91 @@
+import java.io.File;
+
+/**
+ * This class measures how many messages per second the MessageJournal can write with
+ * different fsync settings. For every setting it opens a new journal, has one Thread append
+ * chat messages to it as fast as the writer takes them, and closes it, which writes and
+ * forces whatever is left. The time from the first append until the close is done is what
+ * is measured.
+ *
+ * The frames are encoded before they are appended, the way the Server encodes them for the
+ * broadcast before they reach the journal.
+ *
+ * Usage: java JournalBenchmark [messages] [text length] [directory]
+ *
+ * The directory defaults to one in java.io.tmpdir. Point it at the disk the Server will use,
+ * since a tmpfs makes every fsync free.
+ *
+ */
+public class JournalBenchmark {
+
+	/**
+	 * Every fsync setting that is measured: {journalFsyncMessages, journalFsyncMillis}
+	 */
+	private static final long[][] POLICIES = {
+		{0, 0},
+		{1, 0},
+		{100, 0},
+		{1000, 0},
+		{0, 10},
+		{0, 100},
+		{1000, 100},
+	};
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int textLength = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		File root = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"),
+				"journal-benchmark-" + System.nanoTime());
+		StringBuilder text = new StringBuilder();
+		while (text.length() < textLength) {
+			text.append('x');
+		}
+		User sender = new User("sender");
+
+		System.out.printf("%,d messages of %d characters in %s%n", messages, textLength, root);
+		// Warm up the writer and the encoder so the first setting is not measured cold
+		run(new File(root, "warmup"), messages / 10, text.toString(), sender);
+		System.out.println("fsyncMessages fsyncMillis   appends/s      MB/s   fsyncs");
+		for (int p = 0; p < POLICIES.length; p++) {
+			ServerConfig.journalFsyncMessages = (int) POLICIES[p][0];
+			ServerConfig.journalFsyncMillis = POLICIES[p][1];
+			ServerMetrics.reset();
+			long start = System.nanoTime();
+			long bytes = run(new File(root, "policy" + p), messages, text.toString(), sender);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf("%13d %11d %,11.0f %9.1f %8d%n", POLICIES[p][0], POLICIES[p][1],
+					messages / seconds, bytes / seconds / 1e6, ServerMetrics.journalSyncs.sum());
+		}
+		root.delete();
+	}
+
+	/**
+	 * Appends messages to a new journal in a directory, closes it and deletes the directory
+	 * @return the number of bytes of frames appended
+	 */
+	private static long run(File directory, int messages, String text, User sender) throws Exception {
+		MessageJournal journal = MessageJournal.open(directory, ServerConfig.journalSegmentBytes,
+				ServerConfig.journalQueueSize);
+		long bytes = 0;
+		for (int i = 0; i < messages; i++) {
+			OutboundFrame frame = new OutboundFrame(new Message(MessageType.CHAT_MESSAGE, sender, text, null));
+			bytes += frame.bytes(MessageCodec.FORMAT_BINARY).length;
+			journal.appendWaiting(frame);
+			frame.release();
+		}
+		journal.close();
+		deleteDirectory(directory);
+		return bytes;
+	}
+
+	private static void deleteDirectory(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+}
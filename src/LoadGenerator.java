@@ -0,0 +1,368 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class drives a Server with many simulated users at once, without anyone typing.
+ * Every simulated user connects the same way Client does, sends CHAT_MESSAGEs at a fixed
+ * rate, and reads everything the Server sends it.
+ *
+ * Every chat message starts with the System.nanoTime() at which it was due to be sent, so
+ * the receiving users (which run in the same process) can tell how long it took to arrive.
+ * Using the time it was due rather than the time it was actually written means that a
+ * sender that falls behind shows up as latency instead of hiding it.
+ *
+ * With --rooms, the users are spread evenly over that many rooms and post ROOM_CHAT_MESSAGEs
+ * to their own room instead of broadcasting CHAT_MESSAGEs to everybody.
+ *
+ * With --trace=true, every message is traced (see MessageTrace), and the time the measured
+ * messages spent in every stage on their way through the Server is printed as well.
+ *
+ * Nothing is measured during the warmup. Afterwards the send and delivery throughput and the
+ * latency percentiles of every delivery are printed.
+ *
+ * Usage: java LoadGenerator [--users=N] [--rate=messages per second, all users together]
+ *            [--size=characters per message] [--duration=seconds] [--warmup=seconds]
+ *            [--rooms=N] [--port=N] [--threads=platform|virtual] [--embedded=legacy|nio]
+ *            [--trace=true|false] [server settings...]
+ *
+ * --embedded starts a Server in this process in the given mode, so everything runs on one machine,
+ * and passes it every setting that is not one of the above, like --wireFormat=binary.
+ *
+ */
+public class LoadGenerator {
+
+	private static int users = 50;
+	private static double rate = 500;
+	private static int size = 64;
+	private static int durationSeconds = 10;
+	private static int warmupSeconds = 2;
+	private static int rooms = 0;
+	private static int port = Server.DEFAULT_PORT;
+	private static String embedded = null;
+	private static boolean trace = false;
+	private static final ArrayList<String> serverSettings = new ArrayList<String>();
+
+	/**
+	 * This field collects the stages of every measured traced message that was delivered
+	 */
+	private static final MessageTrace.Stages traceStages = new MessageTrace.Stages();
+
+	/**
+	 * This field is the System.nanoTime() at which measuring starts (after the warmup)
+	 */
+	private static long measureStart;
+
+	/**
+	 * This field is the System.nanoTime() after which no more messages are sent
+	 */
+	private static long measureEnd;
+
+	private static final AtomicLong sent = new AtomicLong();
+	private static final AtomicLong delivered = new AtomicLong();
+
+	/**
+	 * This class is one simulated user: a connection, a sending Thread and a receiving Thread
+	 */
+	private static class SimulatedUser {
+
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+		private final User user;
+		private final int wireFormat;
+
+		/**
+		 * This field is the room this user posts to, or null if it broadcasts to everybody
+		 */
+		private final String room;
+
+		/**
+		 * This field counts the measured messages this user sent
+		 */
+		private long measuredSent = 0;
+
+		/**
+		 * Latencies (in nanoseconds) of the measured messages this user received. Only
+		 * touched by its receiving Thread until the test is over
+		 */
+		private long[] latencies = new long[1024];
+		private int latencyCount = 0;
+
+		SimulatedUser(String username, String room) throws IOException {
+			socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			Object[] details = Client.requestConnection(out, in, new User(username), 0, trace).getMessageDetails();
+			user = (User) details[1];
+			wireFormat = (Integer) details[2] & ~(MessageCodec.TRACING | MessageCodec.COMPRESSION | MessageCodec.HEARTBEATS);
+			this.room = room;
+			if (room != null) {
+				MessageCodec.writeMessage(out, new Message(MessageType.ROOM_JOIN_REQUEST_MESSAGE, user, room, null), wireFormat);
+				// Wait until the Server has put us in the room, so no post is missed
+				while (true) {
+					Message message = MessageCodec.readMessage(in);
+					if (message.getType() == MessageType.ROOM_MEMBERSHIP_CHANGE_MESSAGE
+							&& ((User) message.getMessageDetails()[0]).getId() == user.getId()) {
+						break;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Sends one message every interval nanoseconds, starting at firstDue, until measureEnd
+		 */
+		void send(long firstDue, long interval, String padding) {
+			try {
+				for (long due = firstDue; due < measureEnd; due += interval) {
+					long wait = due - System.nanoTime();
+					if (wait > 0) {
+						LockSupport.parkNanos(wait);
+					}
+					Message chat;
+					if (room == null) {
+						chat = new Message(MessageType.CHAT_MESSAGE, user, due + "|" + padding, null);
+					} else {
+						chat = new Message(MessageType.ROOM_CHAT_MESSAGE, user, due + "|" + padding, new Object[] {room});
+					}
+					if (trace) {
+						MessageTrace stamps = new MessageTrace();
+						stamps.set(MessageTrace.CLIENT_SEND, System.nanoTime());
+						MessageCodec.writeMessage(out, chat, wireFormat, stamps);
+					} else {
+						MessageCodec.writeMessage(out, chat, wireFormat);
+					}
+					if (due >= measureStart) {
+						sent.incrementAndGet();
+						measuredSent++;
+					}
+				}
+			} catch (IOException e) {
+				System.err.println(user + " could not send: " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Reads every message until the socket is closed, and records the latency of each chat
+		 */
+		void receive() {
+			try {
+				while (true) {
+					Message message = MessageCodec.readMessage(in);
+					if (message.getType() == MessageType.DISCONNECT_ACKNOWLEDGEMENT_MESSAGE) {
+						return;
+					}
+					if (message.getType() != MessageType.CHAT_MESSAGE && message.getType() != MessageType.ROOM_CHAT_MESSAGE) {
+						continue;
+					}
+					long now = System.nanoTime();
+					String text = message.getMessageText();
+					long due = Long.parseLong(text.substring(0, text.indexOf('|')));
+					if (due >= measureStart && due < measureEnd) {
+						if (latencyCount == latencies.length) {
+							latencies = Arrays.copyOf(latencies, latencies.length * 2);
+						}
+						latencies[latencyCount++] = now - due;
+						delivered.incrementAndGet();
+						if (message.getTrace() != null) {
+							traceStages.record(message.getTrace());
+						}
+					}
+				}
+			} catch (IOException e) {
+				// The socket was closed at the end of the test
+			}
+		}
+
+		void disconnect() {
+			try {
+				MessageCodec.writeMessage(out, new Message(MessageType.DISCONNECT_REQUEST_MESSAGE, user, null, null), wireFormat);
+			} catch (IOException e) {
+				// The Server is gone already
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		parse(args);
+		PrintStream console = System.out;
+		if (embedded != null) {
+			// The Server prints every message it receives, which would drown the results
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+			serverSettings.add(0, "--mode=" + embedded);
+			serverSettings.add(1, "--port=" + port);
+			serverSettings.add(2, "--logMessages=false");
+			Harness.startServer(serverSettings.toArray(new String[0]));
+		}
+
+		final ArrayList<SimulatedUser> simulated = new ArrayList<SimulatedUser>(users);
+		for (int i = 0; i < users; i++) {
+			simulated.add(new SimulatedUser("load" + i, rooms > 0 ? "room" + (i % rooms) : null));
+		}
+		StringBuilder padding = new StringBuilder();
+		while (padding.length() < Math.max(0, size - 20)) {
+			padding.append('x');
+		}
+		final String text = padding.toString();
+
+		// Every user sends at rate / users, and the users take turns so the load is even
+		final long interval = (long) (1e9 * users / rate);
+		long start = System.nanoTime() + 100000000L;
+		measureStart = start + warmupSeconds * 1000000000L;
+		measureEnd = measureStart + durationSeconds * 1000000000L;
+		final CountDownLatch sendersDone = new CountDownLatch(users);
+		ArrayList<Thread> receivers = new ArrayList<Thread>(users);
+		for (int i = 0; i < users; i++) {
+			final SimulatedUser user = simulated.get(i);
+			final long firstDue = start + interval * i / users;
+			Thread receiver = ChatThreads.newThread(new Runnable() {
+				@Override
+				public void run() {
+					user.receive();
+				}
+			}, "receive-" + i);
+			receiver.start();
+			receivers.add(receiver);
+			ChatThreads.newThread(new Runnable() {
+				@Override
+				public void run() {
+					user.send(firstDue, interval, text);
+					sendersDone.countDown();
+				}
+			}, "send-" + i).start();
+		}
+		sendersDone.await();
+		long sendingStopped = System.nanoTime();
+
+		// Give the last messages time to arrive, then say goodbye
+		long expected = 0;
+		for (SimulatedUser user : simulated) {
+			expected += user.measuredSent * (audience(user) - 1);
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		while (delivered.get() < expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		for (SimulatedUser user : simulated) {
+			user.disconnect();
+		}
+		for (Thread receiver : receivers) {
+			receiver.join(5000);
+		}
+		for (SimulatedUser user : simulated) {
+			user.socket.close();
+		}
+
+		int total = 0;
+		for (SimulatedUser user : simulated) {
+			total += user.latencyCount;
+		}
+		long[] latencies = new long[total];
+		int next = 0;
+		for (SimulatedUser user : simulated) {
+			System.arraycopy(user.latencies, 0, latencies, next, user.latencyCount);
+			next += user.latencyCount;
+		}
+		Arrays.sort(latencies);
+
+		double seconds = durationSeconds;
+		console.printf("%d users%s, target %.0f messages/s of %d characters, %d s measured after %d s warmup%s%n",
+				users, rooms > 0 ? " in " + rooms + " rooms" : "", rate, size, durationSeconds, warmupSeconds,
+				embedded == null ? "" : " (embedded " + embedded + " Server)");
+		console.printf("Sent:      %,d messages (%,.0f/s)%n", sent.get(), sent.get() / seconds);
+		console.printf("Delivered: %,d of %,d expected (%,.0f/s)%n", delivered.get(), expected, delivered.get() / seconds);
+		if (sendingStopped - measureEnd > 1000000000L) {
+			console.printf("Senders finished %.1f s late, the target rate was not reached%n", (sendingStopped - measureEnd) / 1e9);
+		}
+		if (total > 0) {
+			console.printf("Latency (us): p50=%,d p90=%,d p99=%,d p99.9=%,d max=%,d%n",
+					percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+					percentile(latencies, 99.9), latencies[total - 1] / 1000);
+		}
+		if (traceStages.count() > 0) {
+			console.println("Stages (us):");
+			console.println("  " + traceStages.describe(System.lineSeparator() + "  "));
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * @return the number of users that see the messages of a user, including itself
+	 */
+	private static int audience(SimulatedUser user) {
+		if (user.room == null) {
+			return users;
+		}
+		int index = Integer.parseInt(user.room.substring("room".length()));
+		return users / rooms + (index < users % rooms ? 1 : 0);
+	}
+
+	/**
+	 * @return the given percentile of sorted latencies, in microseconds
+	 */
+	private static long percentile(long[] sorted, double percentile) {
+		int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1000;
+	}
+
+	/**
+	 * Reads every "--name=value" argument. Settings that are not the generator's own are kept
+	 * for the embedded Server
+	 * @param args - arguments passed into main
+	 */
+	private static void parse(String[] args) {
+		serverSettings.addAll(Harness.parse(args, new Harness.Settings() {
+			@Override
+			public boolean set(String name, String value) {
+				switch (name) {
+				case "users":
+					users = Math.max(2, Integer.parseInt(value));
+					return true;
+				case "rate":
+					rate = Double.parseDouble(value);
+					return true;
+				case "size":
+					size = Integer.parseInt(value);
+					return true;
+				case "duration":
+					durationSeconds = Integer.parseInt(value);
+					return true;
+				case "warmup":
+					warmupSeconds = Integer.parseInt(value);
+					return true;
+				case "rooms":
+					rooms = Math.max(0, Integer.parseInt(value));
+					return true;
+				case "port":
+					port = Integer.parseInt(value);
+					return true;
+				case "threads":
+					ChatThreads.setMode(value);
+					return true;
+				case "embedded":
+					embedded = value;
+					return true;
+				case "trace":
+					trace = Boolean.parseBoolean(value);
+					return true;
+				default:
+					return false;
+				}
+			}
+		}));
+	}
+
+}
@@ -5,9 +5,9 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.time.LocalDateTime;
-import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * This class represents a single message passed between server and client.
@@ -24,12 +24,19 @@ public class Message implements java.io.Serializable {
 	 * 
 	 * Every time this class is modified, the UID should be incremented.
 	 */
-	private static final long serialVersionUID = 2L;
+	private static final long serialVersionUID = 4L;
+
+	/**
+	 * This array is the messageDetails of every message whose type has no details. It is
+	 * empty, so sharing it cannot change anything
+	 */
+	private static final Object[] NO_DETAILS = new Object[0];
 	
 	/**
-	 * This field should contain the time (in UTC) that the message was created
+	 * This field should contain the time that the message was created, in milliseconds
+	 * since the epoch (UTC). It is only turned into a LocalDateTime when someone asks for one
 	 */
-	private LocalDateTime messageTimestamp;
+	private long messageTimestamp;
 	
 	/**
 	 * This field should contain the User of the client or server that created this message.
@@ -53,47 +60,41 @@ public class Message implements java.io.Serializable {
 	 * This field contains what type of message this is.
 	 */
 	private MessageType type;
+
+	/**
+	 * This field holds the trace stamps that arrived with this message, or null if it is not
+	 * traced. It is set by whoever decodes the message, and is never serialized (the stamps
+	 * travel in the frame's trailer, see MessageTrace)
+	 */
+	private transient MessageTrace trace;
 	
 	public Message(MessageType t, User originatingUser, String messageText, Object[] messageDetails) {
+		this(t, originatingUser, messageText, messageDetails, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Constructor used when a Message is decoded, so that it keeps the timestamp it was
+	 * created with instead of getting a new one
+	 * @param messageTimestamp - milliseconds since the epoch (UTC)
+	 */
+	Message(MessageType t, User originatingUser, String messageText, Object[] messageDetails, long messageTimestamp) {
 		
-		// TODO: Make sure this is the correct date format
-		messageTimestamp = LocalDateTime.now(ZoneId.ofOffset("UTC", ZoneOffset.UTC));
+		this.messageTimestamp = messageTimestamp;
 		
 		this.type = t;
 		
-		// Check to make sure that this message is being sent by a user (client or server) who
-		// is allowed to send this kind of message
-		if (!t.canBeSentByClient && !originatingUser.isServer()) {
-			throw new IllegalArgumentException("Cannot create messages with client as originator when the message type cannot be sent from client!");
-		}
-		if (!t.canBeSentByServer && originatingUser.isServer()) {
-			throw new IllegalArgumentException("Cannot create messages with server as originator when the message type cannot be sent from server!");
+		if (messageDetails == null) {
+			messageDetails = NO_DETAILS;
 		}
 		
-		this.originatingUser = originatingUser;
+		// Make sure that this message is being sent by a user (client or server) who is allowed
+		// to send this kind of message, that there is only messageText if the type supports it,
+		// and that the details are what the type needs
+		t.validate(originatingUser, messageText, messageDetails);
 		
-		// Check to makes sure that there is only messageText if the type of message supports messageText
-		if (!t.includesMessageTextString && messageText != null) {
-			throw new IllegalArgumentException("Message type " + t + "does not support the messageText parameter.");
-		}
+		this.originatingUser = originatingUser;
 		this.messageText = messageText;
-		
-		if (messageDetails == null) {
-			messageDetails = new Object[0];
-		}
-		if (messageDetails.length != t.messageDetailTypes.length) {
-			throw new IllegalArgumentException("Message type " + t + " must be supplied with " + t.messageDetailTypes.length + " details in the messageDetail array.");
-		}
-		// Make sure that everything we put in this list is of the right class.
-		for (int i = 0; i < messageDetails.length; i++) {
-			if (!(t.messageDetailTypes[i].isInstance(messageDetails[i]))) {
-				throw new IllegalArgumentException("Message type " + t + " was supplied with"
-						+ " detail #" + i + " as " + messageDetails[i].toString() + " when it was expecting an object of type " + t.messageDetailTypes[i] + ".");
-			}
-		}
 		this.messageDetails = messageDetails;
-		
-		
 	}
 	
 	@Override
@@ -110,11 +111,19 @@ public class Message implements java.io.Serializable {
 		
 		Message[] inp = new Message[] {
 				new Message(MessageType.CHAT_MESSAGE, u1, "Hello world!", null),
-				new Message(MessageType.CONNECTION_ACKNOWLEDGEMENT_MESSAGE, User.SERVER, null, new Object[] {new ArrayList<User>(), u1}),
-				new Message(MessageType.USER_STATUS_CHANGE_MESSAGE, User.SERVER, null, new Object[] {u1, true}),
-				new Message(MessageType.USER_STATUS_CHANGE_MESSAGE, User.SERVER, null, new Object[] {u1, false}),
+				new Message(MessageType.CONNECTION_REQUEST_MESSAGE, u1, "Alice", new Object[] {MessageCodec.SUPPORTED_FORMATS, 0L}),
+				new Message(MessageType.CONNECTION_ACKNOWLEDGEMENT_MESSAGE, User.SERVER, null, new Object[] {1L, u1, MessageCodec.FORMAT_BINARY}),
+				new Message(MessageType.USER_STATUS_CHANGE_MESSAGE, User.SERVER, null, new Object[] {u1, true, 2L}),
+				new Message(MessageType.USER_STATUS_CHANGE_MESSAGE, User.SERVER, null, new Object[] {u1, false, 3L}),
 				new Message(MessageType.DISCONNECT_REQUEST_MESSAGE, u1, null, null),
 				new Message(MessageType.DISCONNECT_ACKNOWLEDGEMENT_MESSAGE, User.SERVER, null, null),
+				new Message(MessageType.ROOM_JOIN_REQUEST_MESSAGE, u1, "general", null),
+				new Message(MessageType.ROOM_CHAT_MESSAGE, u1, "Hello room!", new Object[] {"general"}),
+				new Message(MessageType.ROOM_MEMBERSHIP_CHANGE_MESSAGE, User.SERVER, "general", new Object[] {u1, true}),
+				new Message(MessageType.ROOM_LEAVE_REQUEST_MESSAGE, u1, "general", null),
+				new Message(MessageType.DIRECT_MESSAGE, u1, "Just for you", new Object[] {2}),
+				new Message(MessageType.DELIVERY_FAILURE_MESSAGE, User.SERVER, "User #2 is not connected.", new Object[] {2, "Just for you"}),
+				new Message(MessageType.ROSTER_MESSAGE, User.SERVER, null, new Object[] {4L, 0, true, new ArrayList<User>(Arrays.asList(u1)), new ArrayList<User>()}),
 				
 		};
 		
@@ -138,8 +147,26 @@ public class Message implements java.io.Serializable {
 			
 			//Test to make sure the user wasn't mangled in any way.
 			System.out.println(m1 + " --> "  + m1_serial);
+			
+			// Same again with the binary wire format
+			byte[] frame = MessageCodec.encode(m1, MessageCodec.FORMAT_BINARY);
+			Message m1_binary = MessageCodec.readMessage(java.nio.ByteBuffer.wrap(frame));
+			System.out.println(m1 + " --> " + m1_binary + " (" + userAsBytes.length + " bytes serialized, "
+					+ frame.length + " bytes binary)");
 		}
 		
+		// A long message goes over the wire compressed
+		StringBuilder log = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			log.append("\tat OrderService.process(OrderService.java:").append(i).append(")\n");
+		}
+		Message m2 = new Message(MessageType.CHAT_MESSAGE, u1, log.toString(), null);
+		byte[] frame = MessageCodec.encode(m2, MessageCodec.FORMAT_BINARY);
+		byte[] compressed = MessageCodec.compress(frame, MessageCodec.DEFAULT_COMPRESSION_THRESHOLD, 1);
+		Message m2_compressed = MessageCodec.readMessage(java.nio.ByteBuffer.wrap(compressed));
+		System.out.println("Compression test: " + (m2.getMessageText().equals(m2_compressed.getMessageText()) ? "same text" : "TEXT CHANGED")
+				+ " (" + frame.length + " bytes binary, " + compressed.length + " bytes compressed)");
+		
 		
 	}
 	
@@ -159,9 +186,17 @@ public class Message implements java.io.Serializable {
 	}
 
 	/**
-	 * @return the messageTimestamp
+	 * @return the messageTimestamp, in UTC
 	 */
 	public LocalDateTime getMessageTimestamp() {
+		return LocalDateTime.ofEpochSecond(Math.floorDiv(messageTimestamp, 1000L),
+				(int) Math.floorMod(messageTimestamp, 1000L) * 1000000, ZoneOffset.UTC);
+	}
+
+	/**
+	 * @return the messageTimestamp, in milliseconds since the epoch (UTC)
+	 */
+	public long getMessageTimestampMillis() {
 		return messageTimestamp;
 	}
 
@@ -179,5 +214,20 @@ public class Message implements java.io.Serializable {
 		return messageDetails;
 	}
 
+	/**
+	 * @return the trace stamps of this message, or null if it is not traced
+	 */
+	public MessageTrace getTrace() {
+		return trace;
+	}
+
+	/**
+	 * Attaches trace stamps to a message that has just been decoded, before anyone else sees it
+	 * @param trace - the stamps
+	 */
+	void setTrace(MessageTrace trace) {
+		this.trace = trace;
+	}
+
 }
 
@@ -0,0 +1,511 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class turns Messages into frames that can be sent over a socket, and turns frames
+ * back into Messages. A frame is a 4 byte length, followed by a 1 byte wire format,
+ * followed by the payload. The length counts the format byte and the payload, and lets
+ * the non-blocking NioServer find where one Message ends and the next one begins without
+ * having to block on a half received object.
+ *
+ * There are two wire formats:
+ * FORMAT_JAVA is a Message serialized on its own with Java serialization. Every Client and
+ * Server can read it, so it is used for the CONNECTION_REQUEST_MESSAGE and as the fallback.
+ * FORMAT_BINARY is the compact encoding of BinaryMessageCodec.
+ *
+ * The Client lists the formats it can read in its CONNECTION_REQUEST_MESSAGE, and the
+ * Server answers with the one it picked in the CONNECTION_ACKNOWLEDGEMENT_MESSAGE. Since
+ * every frame says which format it is in, either side can always decode what it receives.
+ *
+ * A frame whose format byte also has TRACED set carries a MessageTrace trailer after its
+ * payload. Those are only sent to a side that offered TRACING (see MessageTrace).
+ *
+ * A frame whose format byte also has COMPRESSED set has its payload deflated. Those are only
+ * sent to a side that offered COMPRESSION, and only for frames of at least a threshold size,
+ * since small frames hardly shrink. The trace trailer of a frame is never compressed.
+ *
+ */
+public class MessageCodec {
+
+	/**
+	 * This field is the number of bytes used in front of every frame to store its length
+	 */
+	public static final int LENGTH_FIELD_SIZE = 4;
+
+	/**
+	 * This field is the number of bytes in front of every payload (the length and the format)
+	 */
+	public static final int HEADER_SIZE = LENGTH_FIELD_SIZE + 1;
+
+	/**
+	 * This field is the largest frame length that will be accepted. Anything larger is treated
+	 * as a broken connection instead of being allocated.
+	 */
+	public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+	/**
+	 * The wire formats a payload can be encoded in
+	 */
+	public static final int FORMAT_JAVA = 0;
+	public static final int FORMAT_BINARY = 1;
+
+	/**
+	 * This field is a bit mask (1 << format) of every format this version can read and write
+	 */
+	public static final int SUPPORTED_FORMATS = (1 << FORMAT_JAVA) | (1 << FORMAT_BINARY);
+
+	/**
+	 * This bit is added to the offered formats by a Client that wants traced frames, and to
+	 * the format in the CONNECTION_ACKNOWLEDGEMENT_MESSAGE by a Server that will send them.
+	 * It is never part of a format itself
+	 */
+	public static final int TRACING = 1 << 16;
+
+	/**
+	 * This bit is set in the format byte of a frame that ends with a MessageTrace trailer
+	 */
+	public static final int TRACED = 0x80;
+
+	/**
+	 * This bit is added to the offered formats by a Client that can read compressed frames,
+	 * and to the format in the CONNECTION_ACKNOWLEDGEMENT_MESSAGE by a Server that will send
+	 * them. Either side only sends compressed frames once both have agreed to it
+	 */
+	public static final int COMPRESSION = 1 << 17;
+
+	/**
+	 * This bit is set in the format byte of a frame whose payload is compressed. A compressed
+	 * payload is the 4 byte length of the payload before compression, followed by the deflated
+	 * payload
+	 */
+	public static final int COMPRESSED = 0x40;
+
+	/**
+	 * This bit is added to the offered formats by a Client that answers every HEARTBEAT_MESSAGE,
+	 * and to the format in the CONNECTION_ACKNOWLEDGEMENT_MESSAGE by a Server that will send
+	 * them. Only such a Client is disconnected when it has been quiet for too long, since any
+	 * other Client may well be idle and alive (see UserHandler)
+	 */
+	public static final int HEARTBEATS = 1 << 18;
+
+	/**
+	 * This field is the smallest frame (in bytes) that is compressed when no other threshold
+	 * is given
+	 */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+	/**
+	 * Picks the format to use with a Client
+	 * @param offeredFormats - bit mask of the formats the Client can use
+	 * @param preferredFormat - format the Server would like to use
+	 * @return preferredFormat if both sides support it, otherwise FORMAT_JAVA
+	 */
+	public static int chooseFormat(int offeredFormats, int preferredFormat) {
+		int common = offeredFormats & SUPPORTED_FORMATS;
+		if ((common & (1 << preferredFormat)) != 0) {
+			return preferredFormat;
+		}
+		return FORMAT_JAVA;
+	}
+
+	/**
+	 * Picks the format to use with a Client, using the formats listed in its request
+	 * @param request - CONNECTION_REQUEST_MESSAGE sent by the Client
+	 * @param preferredFormat - format the Server would like to use
+	 * @return the format both sides will use
+	 */
+	public static int chooseFormat(Message request, int preferredFormat) {
+		return chooseFormat((Integer) request.getMessageDetails()[0], preferredFormat);
+	}
+
+	/**
+	 * Decides whether frames are compressed for a Client
+	 * @param request - CONNECTION_REQUEST_MESSAGE sent by the Client
+	 * @param level - Deflater level the Server compresses with, or 0 if it does not
+	 * @return true if the Client offered COMPRESSION and the Server compresses
+	 */
+	public static boolean chooseCompression(Message request, int level) {
+		return level > 0 && ((Integer) request.getMessageDetails()[0] & COMPRESSION) != 0;
+	}
+
+	/**
+	 * Decides whether a Client is sent heartbeats and disconnected when it goes quiet
+	 * @param request - CONNECTION_REQUEST_MESSAGE sent by the Client
+	 * @param intervalMillis - heartbeat interval of the Server, or 0 if it sends none
+	 * @return true if the Client offered HEARTBEATS and the Server sends them
+	 */
+	public static boolean chooseHeartbeats(Message request, long intervalMillis) {
+		return intervalMillis > 0 && ((Integer) request.getMessageDetails()[0] & HEARTBEATS) != 0;
+	}
+
+	/**
+	 * Serializes a Message into a complete FORMAT_JAVA frame
+	 * @param message - message that is being encoded
+	 * @return the frame, ready to be written to a socket
+	 * @throws IOException if the message could not be serialized
+	 */
+	public static byte[] encode(Message message) throws IOException {
+		return encode(message, FORMAT_JAVA);
+	}
+
+	/**
+	 * Encodes a Message into a complete frame (length, format and payload)
+	 * @param message - message that is being encoded
+	 * @param format - FORMAT_JAVA or FORMAT_BINARY
+	 * @return the frame, ready to be written to a socket
+	 * @throws IOException if the message could not be encoded
+	 */
+	public static byte[] encode(Message message, int format) throws IOException {
+		byte[] frame;
+		int frameLength;
+		if (format == FORMAT_BINARY) {
+			BinaryMessageCodec.Writer out = BinaryMessageCodec.encode(message);
+			frame = out.bytes;
+			frameLength = out.position;
+		} else if (format == FORMAT_JAVA) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			bytes.write(new byte[HEADER_SIZE]);
+			ObjectOutputStream os = new ObjectOutputStream(bytes);
+			os.writeObject(message);
+			os.close();
+			frame = bytes.toByteArray();
+			frameLength = frame.length;
+		} else {
+			throw new IOException("Unknown wire format " + format);
+		}
+		ByteBuffer header = ByteBuffer.wrap(frame);
+		header.putInt(frameLength - LENGTH_FIELD_SIZE);
+		header.put((byte) format);
+		if (frameLength != frame.length) {
+			byte[] exact = new byte[frameLength];
+			System.arraycopy(frame, 0, exact, 0, frameLength);
+			frame = exact;
+		}
+		return frame;
+	}
+
+	/**
+	 * Encodes a Message into a complete frame that ends with a trace trailer
+	 * @param message - message that is being encoded
+	 * @param format - FORMAT_JAVA or FORMAT_BINARY
+	 * @param trace - stamps to send with it
+	 * @return the frame, ready to be written to a socket
+	 * @throws IOException if the message could not be encoded
+	 */
+	public static byte[] encode(Message message, int format, MessageTrace trace) throws IOException {
+		return withTrace(encode(message, format), trace);
+	}
+
+	/**
+	 * Copies an encoded frame and adds a trace trailer to it
+	 * @param frame - complete frame without a trailer
+	 * @param trace - stamps to send with it
+	 * @return a new frame with the trailer
+	 */
+	static byte[] withTrace(byte[] frame, MessageTrace trace) {
+		byte[] traced = new byte[frame.length + MessageTrace.TRAILER_SIZE];
+		System.arraycopy(frame, 0, traced, 0, frame.length);
+		ByteBuffer header = ByteBuffer.wrap(traced);
+		header.putInt(traced.length - LENGTH_FIELD_SIZE);
+		header.put((byte) (frame[LENGTH_FIELD_SIZE] | TRACED));
+		trace.writeTo(traced, frame.length);
+		return traced;
+	}
+
+	/**
+	 * Compresses an encoded frame, if it is large enough and compressing it makes it smaller
+	 * @param frame - complete frame without a trailer or COMPRESSED
+	 * @param threshold - smallest frame size that is compressed
+	 * @param level - Deflater level, from 1 (fastest) to 9 (smallest)
+	 * @return a new compressed frame, or frame itself if it is left as it is
+	 */
+	public static byte[] compress(byte[] frame, int threshold, int level) {
+		if (frame.length < threshold) {
+			return frame;
+		}
+		int payloadLength = frame.length - HEADER_SIZE;
+		// Anything that does not fit in here is not worth sending compressed
+		byte[] compressed = new byte[frame.length];
+		Deflater deflater = new Deflater(level);
+		try {
+			deflater.setInput(frame, HEADER_SIZE, payloadLength);
+			deflater.finish();
+			int start = HEADER_SIZE + 4;
+			int length = deflater.deflate(compressed, start, compressed.length - start);
+			if (!deflater.finished()) {
+				return frame;
+			}
+			ByteBuffer header = ByteBuffer.wrap(compressed);
+			header.putInt(start + length - LENGTH_FIELD_SIZE);
+			header.put((byte) (frame[LENGTH_FIELD_SIZE] | COMPRESSED));
+			header.putInt(payloadLength);
+			byte[] exact = new byte[start + length];
+			System.arraycopy(compressed, 0, exact, 0, exact.length);
+			return exact;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Inflates a compressed payload written by compress
+	 * @param payload - array holding the payload
+	 * @param offset - where the payload starts in the array
+	 * @param length - length of the payload
+	 * @return the payload as it was before it was compressed
+	 * @throws IOException if the payload is not valid or would be larger than MAX_FRAME_LENGTH
+	 */
+	private static byte[] decompress(byte[] payload, int offset, int length) throws IOException {
+		if (length < 4) {
+			throw new IOException("Compressed frame is too short for its length.");
+		}
+		int rawLength = ByteBuffer.wrap(payload, offset, 4).getInt();
+		if (rawLength < 0 || rawLength > MAX_FRAME_LENGTH) {
+			throw new IOException("Invalid compressed frame length: " + rawLength);
+		}
+		byte[] raw = new byte[rawLength];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(payload, offset + 4, length - 4);
+			int inflated = inflater.inflate(raw);
+			if (inflated != rawLength || !inflater.finished()) {
+				throw new IOException("Compressed frame did not hold " + rawLength + " bytes.");
+			}
+			return raw;
+		} catch (DataFormatException e) {
+			throw new IOException("Compressed frame could not be inflated.", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Decodes the payload of a frame back into a Message
+	 * @param format - format byte of the frame
+	 * @param payload - array holding the payload
+	 * @param offset - where the payload starts in the array
+	 * @param length - length of the payload
+	 * @return the decoded message
+	 * @throws IOException if the payload is not a valid Message, an InvalidObjectException if it
+	 * holds one its constructor would not allow
+	 */
+	public static Message decode(int format, byte[] payload, int offset, int length) throws IOException {
+		if ((format & TRACED) != 0) {
+			if (length < MessageTrace.TRAILER_SIZE) {
+				throw new IOException("Traced frame is too short for its trailer.");
+			}
+			length -= MessageTrace.TRAILER_SIZE;
+			MessageTrace trace = MessageTrace.readFrom(payload, offset + length);
+			Message message = decode(format & ~TRACED, payload, offset, length);
+			trace.received(System.nanoTime());
+			message.setTrace(trace);
+			return message;
+		}
+		if ((format & COMPRESSED) != 0) {
+			byte[] raw = decompress(payload, offset, length);
+			return decode(format & ~COMPRESSED, raw, 0, raw.length);
+		}
+		if (format == FORMAT_BINARY) {
+			return BinaryMessageCodec.decode(payload, offset, length);
+		}
+		if (format != FORMAT_JAVA) {
+			throw new IOException("Unknown wire format " + format);
+		}
+		ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(payload, offset, length));
+		Message message;
+		try {
+			message = (Message) is.readObject();
+		} catch (ClassNotFoundException | ClassCastException e) {
+			throw new IOException("Frame did not contain a Message.", e);
+		} finally {
+			is.close();
+		}
+		validate(message);
+		return message;
+	}
+
+	/**
+	 * Checks a deserialized Message the way its constructor checks a new one (see
+	 * MessageType.validate), since deserializing does not run the constructor. Only then can
+	 * the rest of the Server trust its type, User and details
+	 * @param message - message read in FORMAT_JAVA
+	 * @throws InvalidObjectException if it could not have been constructed
+	 */
+	private static void validate(Message message) throws InvalidObjectException {
+		if (message == null || message.getType() == null || message.getOriginatingUser() == null) {
+			throw new InvalidObjectException("Frame did not contain a valid Message.");
+		}
+		Object[] details = message.getMessageDetails();
+		try {
+			message.getType().validate(message.getOriginatingUser(), message.getMessageText(),
+					details == null ? new Object[0] : details);
+		} catch (IllegalArgumentException e) {
+			InvalidObjectException invalid = new InvalidObjectException("Frame did not contain a valid Message.");
+			invalid.initCause(e);
+			throw invalid;
+		}
+	}
+
+	/**
+	 * Writes one Message to a blocking stream in FORMAT_JAVA and flushes it
+	 * @param out - stream connected to the other side
+	 * @param message - message that is being sent
+	 * @throws IOException if the stream is broken
+	 */
+	public static void writeMessage(DataOutputStream out, Message message) throws IOException {
+		writeMessage(out, message, FORMAT_JAVA);
+	}
+
+	/**
+	 * Writes one Message to a blocking stream and flushes it
+	 * @param out - stream connected to the other side
+	 * @param message - message that is being sent
+	 * @param format - FORMAT_JAVA or FORMAT_BINARY
+	 * @throws IOException if the stream is broken
+	 */
+	public static void writeMessage(DataOutputStream out, Message message, int format) throws IOException {
+		out.write(encode(message, format));
+		out.flush();
+	}
+
+	/**
+	 * Writes one Message with a trace trailer to a blocking stream and flushes it
+	 * @param out - stream connected to the other side
+	 * @param message - message that is being sent
+	 * @param format - FORMAT_JAVA or FORMAT_BINARY
+	 * @param trace - stamps to send with it
+	 * @throws IOException if the stream is broken
+	 */
+	public static void writeMessage(DataOutputStream out, Message message, int format, MessageTrace trace) throws IOException {
+		out.write(encode(message, format, trace));
+		out.flush();
+	}
+
+	/**
+	 * Blocks until one complete Message has been read from the stream
+	 * @param in - stream connected to the other side
+	 * @return the next message
+	 * @throws IOException if the stream is broken or the frame is invalid
+	 */
+	public static Message readMessage(DataInputStream in) throws IOException {
+		return readMessage(in, MAX_FRAME_LENGTH);
+	}
+
+	/**
+	 * Like readMessage, but refuses frames longer than a limit before reading them, like a
+	 * CONNECTION_REQUEST_MESSAGE from a connection that has not been accepted yet
+	 * @param in - stream the frame is read from
+	 * @param maxLength - largest frame length (after the length field) that is read
+	 * @return the message
+	 * @throws IOException if the stream breaks or the frame is invalid or too long
+	 */
+	public static Message readMessage(DataInputStream in, int maxLength) throws IOException {
+		return readFrame(in, readFrameLength(in, maxLength));
+	}
+
+	/**
+	 * Blocks until the length field of the next frame has been read. Together with readFrame
+	 * this is readMessage, for a reader that needs to know how large every frame is
+	 * @param in - stream the frame is read from
+	 * @param maxLength - largest frame length (after the length field) that is read
+	 * @return the frame length after the length field
+	 * @throws IOException if the stream breaks or the length is invalid or too long
+	 */
+	public static int readFrameLength(DataInputStream in, int maxLength) throws IOException {
+		return readLength(in.readInt(), maxLength);
+	}
+
+	/**
+	 * Blocks until the rest of a frame has been read, after readFrameLength
+	 * @param in - stream the frame is read from
+	 * @param length - frame length returned by readFrameLength
+	 * @return the message
+	 * @throws IOException if the stream breaks or the frame is invalid
+	 */
+	public static Message readFrame(DataInputStream in, int length) throws IOException {
+		int format = in.readUnsignedByte();
+		byte[] payload = new byte[length - 1];
+		in.readFully(payload);
+		return decode(format, payload, 0, payload.length);
+	}
+
+	/**
+	 * Reads one Message out of a buffer in read mode, if a complete frame is available.
+	 * If the frame is incomplete, the buffer is left untouched so that more bytes
+	 * can be appended to it.
+	 * @param buffer - buffer holding received bytes
+	 * @return the next message, or null if a complete frame has not arrived yet
+	 * @throws IOException if the frame is invalid
+	 */
+	public static Message readMessage(ByteBuffer buffer) throws IOException {
+		int frameSize = peekFrameSize(buffer);
+		if (frameSize < 0 || buffer.remaining() < frameSize) {
+			return null;
+		}
+		int start = buffer.position();
+		int format = buffer.get(start + LENGTH_FIELD_SIZE) & 0xFF;
+		Message message = decode(format, buffer.array(), buffer.arrayOffset() + start + HEADER_SIZE, frameSize - HEADER_SIZE);
+		buffer.position(start + frameSize);
+		return message;
+	}
+
+	/**
+	 * Returns the size of the whole frame at the start of the buffer, or -1 if not even
+	 * the length has arrived yet. This is used to grow receive buffers before they fill up.
+	 * @param buffer - buffer holding received bytes, in read mode
+	 * @return the frame size including the length field
+	 * @throws IOException if the length is invalid
+	 */
+	public static int peekFrameSize(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < LENGTH_FIELD_SIZE) {
+			return -1;
+		}
+		return LENGTH_FIELD_SIZE + readLength(buffer.getInt(buffer.position()));
+	}
+
+	/**
+	 * Parses a wire format setting
+	 * @param value - "java" or "binary"
+	 * @return the matching format
+	 * @throws IllegalArgumentException if the value is neither
+	 */
+	public static int parseFormat(String value) {
+		if (value.equalsIgnoreCase("java")) {
+			return FORMAT_JAVA;
+		} else if (value.equalsIgnoreCase("binary")) {
+			return FORMAT_BINARY;
+		}
+		throw new IllegalArgumentException("Wire format must be 'java' or 'binary', not '" + value + "'.");
+	}
+
+	/**
+	 * @param format - FORMAT_JAVA or FORMAT_BINARY
+	 * @return the name of the format
+	 */
+	public static String formatName(int format) {
+		return format == FORMAT_BINARY ? "binary" : "java";
+	}
+
+	private static int readLength(int length) throws IOException {
+		return readLength(length, MAX_FRAME_LENGTH);
+	}
+
+	private static int readLength(int length, int maxLength) throws IOException {
+		// A frame always contains at least the format byte
+		if (length < 1 || length > maxLength) {
+			throw new IOException("Invalid frame length: " + length);
+		}
+		return length;
+	}
+
+}
@@ -0,0 +1,124 @@
+import java.io.IOException;
+
+/**
+ * This class remembers the most recent CHAT_MESSAGEs sent to the lobby, so that a user who
+ * connects can be shown what was said before they joined.
+ *
+ * The messages are kept as the same OutboundFrames that were broadcast, holding one reference
+ * each, so their encoded bytes are kept too and replaying them costs no encoding at all. The
+ * frames sit in a fixed array that is used as a ring: adding a message when the history is
+ * full lets go of the oldest one, and nothing else is allocated. The history is bounded both
+ * by ServerConfig.historySize messages and by ServerConfig.historyMaxBytes bytes (counted in
+ * the Server's preferred wire format, which the frame is encoded in when it is added).
+ *
+ * Every frame added gets the next sequence number, so a UserHandler that was shown the
+ * history can tell which live broadcasts it has already seen.
+ *
+ */
+public class MessageHistory {
+
+	/**
+	 * This array holds the frames. The oldest one is at head, and count frames follow it
+	 */
+	private final OutboundFrame[] frames;
+
+	private int head = 0;
+
+	private int count = 0;
+
+	/**
+	 * This field is the number of bytes the frames take up in ServerConfig.wireFormat
+	 */
+	private long bytes = 0;
+
+	/**
+	 * This field is the sequence number of the last frame that was added
+	 */
+	private long lastSequence = 0;
+
+	/**
+	 * Creates an empty history
+	 * @param capacity - largest number of messages that are remembered (0 remembers nothing)
+	 */
+	public MessageHistory(int capacity) {
+		this.frames = new OutboundFrame[capacity];
+	}
+
+	/**
+	 * Adds a frame, letting go of the oldest frames if the history would go over its limits.
+	 * The history takes its own reference to the frame
+	 * @param frame - frame of a CHAT_MESSAGE that is being broadcast
+	 */
+	public synchronized void add(OutboundFrame frame) {
+		if (frames.length == 0) {
+			return;
+		}
+		int size;
+		try {
+			size = frame.bytes(ServerConfig.wireFormat).length;
+		} catch (IOException e) {
+			return;
+		}
+		if (size > ServerConfig.historyMaxBytes) {
+			return;
+		}
+		while (count == frames.length || bytes + size > ServerConfig.historyMaxBytes) {
+			removeOldest();
+		}
+		frame.setHistorySequence(++lastSequence);
+		frames[(head + count) % frames.length] = frame.retain();
+		count++;
+		bytes += size;
+	}
+
+	/**
+	 * Returns the most recent frames, oldest first, with a reference taken on each of them for
+	 * the caller. Holding this history's lock while calling it and doing something else makes
+	 * that something else happen at a single point between two adds
+	 * @param max - largest number of frames to return
+	 * @return the frames
+	 */
+	public synchronized OutboundFrame[] latest(int max) {
+		int n = Math.max(0, Math.min(max, count));
+		OutboundFrame[] latest = new OutboundFrame[n];
+		for (int i = 0; i < n; i++) {
+			latest[i] = frames[(head + count - n + i) % frames.length].retain();
+		}
+		return latest;
+	}
+
+	/**
+	 * @return the sequence number of the last frame that was added (0 if there was none)
+	 */
+	public synchronized long lastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * @return the number of messages remembered
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * @return the number of bytes the remembered messages take up
+	 */
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+	private void removeOldest() {
+		OutboundFrame oldest = frames[head];
+		frames[head] = null;
+		head = (head + 1) % frames.length;
+		count--;
+		try {
+			bytes -= oldest.bytes(ServerConfig.wireFormat).length;
+		} catch (IOException e) {
+			// It was encoded when it was added, so this cannot happen
+		}
+		oldest.release();
+	}
+
+}
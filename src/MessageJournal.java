@@ -0,0 +1,571 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * This class is an append-only log of every message the Server relays, kept on disk so that
+ * it survives a restart. The log is split into segment files of a fixed size, which are
+ * memory-mapped, so appending a message is a copy into memory rather than a system call.
+ *
+ * Appending never blocks the thread that relays the message: the frame (already encoded for
+ * the broadcast) is handed to a queue, and a single writer Thread copies it into the current
+ * segment. If the writer falls so far behind that the queue is full, the message is not logged
+ * and ServerMetrics.journalDropped is counted, rather than slowing the chat down.
+ *
+ * How often the segment is forced to disk (fsync) is set by ServerConfig.journalFsyncMessages
+ * and ServerConfig.journalFsyncMillis: after that many messages, or that long after the first
+ * message that is not on disk yet, whichever comes first. The writer forces the segment only
+ * between batches, so the messages that queue up during one fsync share the next one. With both at 0 the operating system
+ * decides when to write, and a crash of the machine (not just the Server) can lose messages.
+ *
+ * Every record in a segment is:
+ *
+ *     length     int, the length of the frame
+ *     checksum   int, CRC32 of everything after it
+ *     sequence   long, 1 for the first message ever logged and one more for every message after
+ *     timestamp  long, milliseconds since the epoch when it was logged, never going backwards
+ *     frame      the Message as a FORMAT_BINARY frame (see MessageCodec)
+ *
+ * A length of 0 marks the end of the segment. When the journal is opened, every segment is
+ * read through and checked, and the log is cut off at the first record that is torn or
+ * damaged, which is where the last crash happened.
+ *
+ * Every INDEX_INTERVAL records the timestamp and position are kept in memory, so reading the
+ * messages between two times only reads the records around those times.
+ *
+ */
+public class MessageJournal {
+
+	private static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + 8;
+
+	/**
+	 * This field is how many records are between two entries of the timestamp index
+	 */
+	private static final int INDEX_INTERVAL = 64;
+
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/**
+	 * This class is one segment file and its mapping
+	 */
+	private static class Segment {
+
+		final File file;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+
+		/**
+		 * This field is the position after the last complete record. The writer Thread sets it
+		 * after a record is complete, so readers never see half a record
+		 */
+		volatile int limit;
+
+		Segment(File file, int size) throws IOException {
+			this.file = file;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			this.channel = raf.getChannel();
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	/**
+	 * This class is one entry of the timestamp index
+	 */
+	private static class IndexEntry {
+
+		final long sequence;
+		final long timestamp;
+		final Segment segment;
+		final int position;
+
+		IndexEntry(long sequence, long timestamp, Segment segment, int position) {
+			this.sequence = sequence;
+			this.timestamp = timestamp;
+			this.segment = segment;
+			this.position = position;
+		}
+	}
+
+	private final File directory;
+
+	private final int segmentBytes;
+
+	/**
+	 * These lists hold every segment, oldest first, and the timestamp index. They are changed
+	 * by the writer Thread and read by any Thread, always while holding this journal's lock
+	 */
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+	private final ArrayList<IndexEntry> index = new ArrayList<IndexEntry>();
+
+	/**
+	 * This Queue holds the frames waiting for the writer Thread, with a reference held on each
+	 */
+	private final ArrayBlockingQueue<OutboundFrame> pending;
+
+	private final Thread writer;
+
+	private volatile boolean bRun = true;
+
+	/**
+	 * These fields are only used by the writer Thread (and by open, before it starts)
+	 */
+	private long nextSequence = 1;
+	private long lastTimestamp = 0;
+	private int unsynced = 0;
+	private long firstUnsyncedAt = 0;
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * This field counts the messages that were found in the segments when the journal was opened
+	 */
+	private long recovered = 0;
+
+	private MessageJournal(File directory, int segmentBytes, int queueSize) {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.pending = new ArrayBlockingQueue<OutboundFrame>(queueSize);
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "journal-writer");
+		this.writer.setDaemon(true);
+	}
+
+	/**
+	 * Opens the journal in a directory, creating the directory if it is new. Every segment is
+	 * checked, and anything after the last complete record is thrown away
+	 * @param directory - directory holding the segment files
+	 * @param segmentBytes - size of every new segment file
+	 * @param queueSize - largest number of messages that may wait for the writer Thread
+	 * @return the journal, ready to be appended to
+	 * @throws IOException if the directory or a segment cannot be opened
+	 */
+	public static MessageJournal open(File directory, int segmentBytes, int queueSize) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create journal directory " + directory);
+		}
+		MessageJournal journal = new MessageJournal(directory, segmentBytes, queueSize);
+		journal.recover();
+		journal.writer.start();
+		return journal;
+	}
+
+	/**
+	 * Hands a frame to the writer Thread. Never blocks: if the writer is too far behind, the
+	 * frame is not logged. The journal takes its own reference to the frame
+	 * @param frame - frame of a message that is being relayed
+	 * @return true if the frame will be logged
+	 */
+	public boolean append(OutboundFrame frame) {
+		frame.retain();
+		if (!bRun || !pending.offer(frame)) {
+			frame.release();
+			ServerMetrics.journalDropped.increment();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Like append, but waits for room in the queue instead of dropping the frame. Only for
+	 * benchmarks and tests, which want to measure how fast the writer can go
+	 */
+	void appendWaiting(OutboundFrame frame) throws InterruptedException {
+		frame.retain();
+		pending.put(frame);
+	}
+
+	/**
+	 * Writes everything that is queued, forces it to disk and closes every segment
+	 * @throws InterruptedException if interrupted while waiting for the writer Thread
+	 */
+	public void close() throws InterruptedException {
+		bRun = false;
+		writer.interrupt();
+		writer.join();
+	}
+
+	/**
+	 * @return the number of messages that were in the journal when it was opened
+	 */
+	public long getRecovered() {
+		return recovered;
+	}
+
+	/**
+	 * @return the number of segment files
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Reads the logged messages with a timestamp between two times
+	 * @param fromMillis - earliest timestamp (inclusive), in milliseconds since the epoch
+	 * @param toMillis - latest timestamp (inclusive)
+	 * @param max - largest number of messages to return
+	 * @return the messages, oldest first
+	 * @throws IOException if a record could not be decoded
+	 */
+	public ArrayList<Message> read(long fromMillis, long toMillis, int max) throws IOException {
+		ArrayList<Message> messages = new ArrayList<Message>();
+		ArrayList<Segment> segmentList;
+		IndexEntry start = null;
+		synchronized (this) {
+			segmentList = new ArrayList<Segment>(segments);
+			// The last index entry before fromMillis; timestamps never go backwards
+			int low = 0;
+			int high = index.size() - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (index.get(middle).timestamp < fromMillis) {
+					start = index.get(middle);
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+		}
+		int first = start == null ? 0 : segmentList.indexOf(start.segment);
+		int position = start == null ? 0 : start.position;
+		for (int s = Math.max(0, first); s < segmentList.size() && messages.size() < max; s++) {
+			Segment segment = segmentList.get(s);
+			ByteBuffer buffer = segment.buffer.duplicate();
+			int limit = segment.limit;
+			while (position < limit && messages.size() < max) {
+				int length = buffer.getInt(position);
+				long timestamp = buffer.getLong(position + 16);
+				if (timestamp > toMillis) {
+					return messages;
+				}
+				if (timestamp >= fromMillis) {
+					messages.add(decode(buffer, position, length));
+				}
+				position += RECORD_HEADER_SIZE + length;
+			}
+			position = 0;
+		}
+		return messages;
+	}
+
+	/**
+	 * Reads the most recently logged messages
+	 * @param max - largest number of messages to return
+	 * @return the messages, oldest first
+	 * @throws IOException if a record could not be decoded
+	 */
+	public ArrayList<Message> readLatest(int max) throws IOException {
+		ArrayList<Segment> segmentList;
+		IndexEntry start = null;
+		synchronized (this) {
+			segmentList = new ArrayList<Segment>(segments);
+			long lastSequence = nextSequence - 1;
+			for (int i = index.size() - 1; i >= 0; i--) {
+				start = index.get(i);
+				if (start.sequence <= lastSequence - max) {
+					break;
+				}
+			}
+		}
+		ArrayDeque<Message> latest = new ArrayDeque<Message>();
+		if (max <= 0 || segmentList.isEmpty()) {
+			return new ArrayList<Message>(latest);
+		}
+		int first = start == null ? 0 : segmentList.indexOf(start.segment);
+		int position = start == null ? 0 : start.position;
+		for (int s = Math.max(0, first); s < segmentList.size(); s++) {
+			Segment segment = segmentList.get(s);
+			ByteBuffer buffer = segment.buffer.duplicate();
+			int limit = segment.limit;
+			while (position < limit) {
+				int length = buffer.getInt(position);
+				latest.add(decode(buffer, position, length));
+				if (latest.size() > max) {
+					latest.poll();
+				}
+				position += RECORD_HEADER_SIZE + length;
+			}
+			position = 0;
+		}
+		return new ArrayList<Message>(latest);
+	}
+
+	private static Message decode(ByteBuffer buffer, int position, int length) throws IOException {
+		// Mapped buffers have no backing array, which MessageCodec reads from
+		byte[] frame = new byte[length];
+		ByteBuffer record = buffer.duplicate();
+		record.position(position + RECORD_HEADER_SIZE);
+		record.get(frame);
+		return MessageCodec.readMessage(ByteBuffer.wrap(frame));
+	}
+
+	/**
+	 * Opens every segment, oldest first, and checks every record in it. The log ends at the
+	 * first record that is not complete and correct. Anything after it is cleared, and any
+	 * later segment is renamed so it is kept for inspection but not used
+	 */
+	private void recover() throws IOException {
+		File[] files = directory.listFiles();
+		ArrayList<File> segmentFiles = new ArrayList<File>();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX)) {
+					segmentFiles.add(file);
+				}
+			}
+		}
+		File[] sorted = segmentFiles.toArray(new File[0]);
+		Arrays.sort(sorted);
+		boolean damaged = false;
+		for (File file : sorted) {
+			if (damaged) {
+				File aside = new File(file.getPath() + ".damaged");
+				System.out.println("Journal: setting aside " + file.getName() + ", which comes after a damaged record");
+				file.renameTo(aside);
+				continue;
+			}
+			Segment segment = new Segment(file, (int) file.length());
+			segments.add(segment);
+			int end = scan(segment);
+			segment.limit = end;
+			if (end + RECORD_HEADER_SIZE <= segment.buffer.capacity() && segment.buffer.getInt(end) != 0) {
+				damaged = true;
+				System.out.println("Journal: " + file.getName() + " ends in a damaged record at " + end + ", cutting it off");
+			}
+			// Clear whatever is after the last record, so a later scan cannot mistake it for records
+			ByteBuffer rest = segment.buffer.duplicate();
+			rest.position(end);
+			while (rest.remaining() >= 8) {
+				rest.putLong(0L);
+			}
+			while (rest.hasRemaining()) {
+				rest.put((byte) 0);
+			}
+		}
+	}
+
+	/**
+	 * Reads through a segment, indexing every record that is complete and correct
+	 * @return the position after the last such record
+	 */
+	private int scan(Segment segment) {
+		ByteBuffer buffer = segment.buffer;
+		int position = 0;
+		while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length <= 0 || length > buffer.capacity() - position - RECORD_HEADER_SIZE) {
+				break;
+			}
+			long sequence = buffer.getLong(position + 8);
+			if (recovered > 0 && sequence != nextSequence) {
+				break;
+			}
+			if (checksum(buffer, position + 8, length + RECORD_HEADER_SIZE - 8) != buffer.getInt(position + 4)) {
+				break;
+			}
+			long timestamp = buffer.getLong(position + 16);
+			if (position == 0 || sequence % INDEX_INTERVAL == 0) {
+				index.add(new IndexEntry(sequence, timestamp, segment, position));
+			}
+			nextSequence = sequence + 1;
+			lastTimestamp = Math.max(lastTimestamp, timestamp);
+			recovered++;
+			position += RECORD_HEADER_SIZE + length;
+		}
+		return position;
+	}
+
+	private int checksum(ByteBuffer buffer, int position, int length) {
+		ByteBuffer range = buffer.duplicate();
+		range.limit(position + length);
+		range.position(position);
+		crc.reset();
+		crc.update(range);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * The writer Thread: takes frames off the queue in batches, writes them, and forces the
+	 * current segment to disk whenever the fsync settings say so
+	 */
+	private void writeLoop() {
+		ArrayList<OutboundFrame> batch = new ArrayList<OutboundFrame>();
+		while (bRun || !pending.isEmpty()) {
+			try {
+				OutboundFrame first = pending.poll(syncWait(), TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					pending.drainTo(batch);
+				}
+			} catch (InterruptedException e) {
+				// close() interrupts this Thread; whatever is queued is still written
+				pending.drainTo(batch);
+			}
+			for (OutboundFrame frame : batch) {
+				try {
+					write(frame);
+				} catch (IOException e) {
+					System.out.println("Journal: could not log " + frame + ": " + e.getMessage());
+					ServerMetrics.journalDropped.increment();
+				} finally {
+					frame.release();
+				}
+			}
+			batch.clear();
+			if (unsynced > 0 && syncDue()) {
+				sync();
+			}
+		}
+		if (unsynced > 0) {
+			sync();
+		}
+		synchronized (this) {
+			for (Segment segment : segments) {
+				try {
+					segment.channel.close();
+				} catch (IOException e) {
+					// The data was forced already
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return how long the writer may wait for a frame before the next time-based fsync is due
+	 */
+	private long syncWait() {
+		if (unsynced == 0 || ServerConfig.journalFsyncMillis == 0) {
+			return 100;
+		}
+		return Math.max(0, firstUnsyncedAt + ServerConfig.journalFsyncMillis - System.currentTimeMillis());
+	}
+
+	private boolean syncDue() {
+		if (ServerConfig.journalFsyncMessages > 0 && unsynced >= ServerConfig.journalFsyncMessages) {
+			return true;
+		}
+		return ServerConfig.journalFsyncMillis > 0
+				&& System.currentTimeMillis() - firstUnsyncedAt >= ServerConfig.journalFsyncMillis;
+	}
+
+	private void sync() {
+		Segment current = segments.get(segments.size() - 1);
+		current.buffer.force();
+		ServerMetrics.journalSyncs.increment();
+		unsynced = 0;
+	}
+
+	/**
+	 * Copies one frame into the current segment as a record, starting a new segment if it does not fit
+	 */
+	private void write(OutboundFrame frame) throws IOException {
+		byte[] bytes = frame.bytes(MessageCodec.FORMAT_BINARY);
+		int recordSize = RECORD_HEADER_SIZE + bytes.length;
+		if (recordSize > segmentBytes) {
+			throw new IOException("Message is larger than a journal segment");
+		}
+		Segment current = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (current == null || current.limit + recordSize > current.buffer.capacity()) {
+			current = newSegment(current);
+		}
+		int position = current.limit;
+		long sequence = nextSequence++;
+		long timestamp = Math.max(lastTimestamp, System.currentTimeMillis());
+		lastTimestamp = timestamp;
+
+		ByteBuffer buffer = current.buffer.duplicate();
+		buffer.position(position + 8);
+		buffer.putLong(sequence);
+		buffer.putLong(timestamp);
+		buffer.put(bytes);
+		buffer.putInt(position + 4, checksum(current.buffer, position + 8, recordSize - 8));
+		buffer.putInt(position, bytes.length);
+		current.limit = position + recordSize;
+
+		if (position == 0 || sequence % INDEX_INTERVAL == 0) {
+			synchronized (this) {
+				index.add(new IndexEntry(sequence, timestamp, current, position));
+			}
+		}
+		if (unsynced == 0) {
+			firstUnsyncedAt = System.currentTimeMillis();
+		}
+		unsynced++;
+		ServerMetrics.journalAppends.increment();
+	}
+
+	/**
+	 * Forces the full segment to disk and starts the next one, named after its first sequence number
+	 */
+	private Segment newSegment(Segment full) throws IOException {
+		if (full != null && unsynced > 0) {
+			sync();
+		}
+		File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, nextSequence, SEGMENT_SUFFIX));
+		Segment segment = new Segment(file, segmentBytes);
+		synchronized (this) {
+			segments.add(segment);
+		}
+		return segment;
+	}
+
+	/**
+	 * Recovery test: logs messages, damages the end of the last record the way a crash in the
+	 * middle of a write would, and checks that opening the journal again keeps every complete
+	 * record, cuts off the damaged one, and carries on from there
+	 */
+	public static void main(String[] args) throws Exception {
+		File directory = new File(System.getProperty("java.io.tmpdir"), "journal-test-" + System.nanoTime());
+		User alice = new User("Alice");
+		MessageJournal journal = MessageJournal.open(directory, 64 * 1024, 1024);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 2000; i++) {
+			OutboundFrame frame = new OutboundFrame(new Message(MessageType.CHAT_MESSAGE, alice, "message " + i, null));
+			journal.appendWaiting(frame);
+			frame.release();
+		}
+		journal.close();
+		System.out.println("Wrote 2000 messages in " + journal.getSegmentCount() + " segments");
+
+		// Damage the last record's frame, so its checksum no longer matches
+		Segment last = journal.segments.get(journal.segments.size() - 1);
+		RandomAccessFile file = new RandomAccessFile(last.file, "rw");
+		file.seek(last.limit - 3);
+		file.write(new byte[] {1, 2, 3});
+		file.close();
+
+		journal = MessageJournal.open(directory, 64 * 1024, 1024);
+		System.out.println("Recovered " + journal.getRecovered() + " messages (expected 1999)");
+		ArrayList<Message> latest = journal.readLatest(3);
+		System.out.println("Latest: " + latest);
+		ArrayList<Message> range = journal.read(start, Long.MAX_VALUE, 5);
+		System.out.println("First 5 since the start: " + range);
+
+		OutboundFrame frame = new OutboundFrame(new Message(MessageType.CHAT_MESSAGE, alice, "after the crash", null));
+		journal.appendWaiting(frame);
+		frame.release();
+		journal.close();
+		journal = MessageJournal.open(directory, 64 * 1024, 1024);
+		latest = journal.readLatest(2);
+		System.out.println("After appending again: " + journal.getRecovered() + " messages, latest " + latest);
+		boolean passed = journal.getRecovered() == 2000 && latest.size() == 2
+				&& latest.get(0).getMessageText().equals("message 1998")
+				&& latest.get(1).getMessageText().equals("after the crash")
+				&& range.size() == 5 && range.get(0).getMessageText().equals("message 0");
+		journal.close();
+		System.out.println(passed ? "PASSED" : "FAILED");
+	}
+
+}
@@ -0,0 +1,437 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * This class benchmarks every step a chat message goes through on the Server: building and
+ * validating the Message, encoding and decoding it, queueing it for a UserHandler, timing a
+ * step with ServerMetrics, and broadcasting it to 10, 1000 and 10000 UserHandlers.
+ *
+ * Each benchmark is run for a number of warmup rounds, which are thrown away, and then for a
+ * number of measured rounds. The result is the mean number of operations per second with the
+ * 99.9% confidence interval around it, in the same form JMH prints, and the bytes allocated
+ * per operation (like JMH's -prof gc) if the JVM can count them. The results can be written
+ * to a CSV file, and compared against a CSV file from an earlier run, so that a build can fail
+ * when a change makes the message path slower.
+ *
+ * The same operations run under JMH in the benchmarks module (see benchmarks/MessagePathJmh),
+ * in forked JVMs. With --jmh=file nothing is measured here: the results are read from the CSV
+ * JMH wrote (-rf csv, with B/op if it ran with -prof gc), and written and compared the same way.
+ *
+ * Usage: java MessagePathBenchmark [--filter=text] [--warmup=rounds] [--rounds=rounds]
+ *            [--roundMillis=ms] [--jmh=file] [--csv=file] [--baseline=file] [--tolerance=fraction]
+ *
+ * With --baseline, the exit code is 1 if any benchmark is more than tolerance (default 0.10)
+ * slower than in the baseline file.
+ *
+ */
+public class MessagePathBenchmark {
+
+	/**
+	 * One operation that is measured. It returns a value that depends on its work, so the
+	 * JIT cannot throw the work away
+	 */
+	private interface Operation {
+		long run() throws Exception;
+	}
+
+	/**
+	 * Results are added to this field so they are never unused
+	 */
+	private static volatile long sink;
+
+	/**
+	 * This field counts the bytes allocated by a thread, or is null if the JVM cannot
+	 */
+	private static final com.sun.management.ThreadMXBean allocations = allocationCounter();
+
+	private static int warmupRounds = 3;
+	private static int measuredRounds = 5;
+	private static long roundMillis = 500;
+
+	public static void main(String[] args) throws Exception {
+		String filter = "";
+		String csvFile = null;
+		String baselineFile = null;
+		String jmhFile = null;
+		double tolerance = 0.10;
+		for (String arg : args) {
+			String setting = arg.startsWith("--") ? arg.substring(2) : arg;
+			int split = setting.indexOf('=');
+			String name = split < 0 ? setting : setting.substring(0, split);
+			String value = split < 0 ? "" : setting.substring(split + 1);
+			switch (name) {
+			case "filter":
+				filter = value;
+				break;
+			case "warmup":
+				warmupRounds = Integer.parseInt(value);
+				break;
+			case "rounds":
+				measuredRounds = Math.max(2, Integer.parseInt(value));
+				break;
+			case "roundMillis":
+				roundMillis = Long.parseLong(value);
+				break;
+			case "csv":
+				csvFile = value;
+				break;
+			case "baseline":
+				baselineFile = value;
+				break;
+			case "jmh":
+				jmhFile = value;
+				break;
+			case "tolerance":
+				tolerance = Double.parseDouble(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown setting '" + name + "'.");
+			}
+		}
+		LinkedHashMap<String, double[]> results = new LinkedHashMap<String, double[]>();
+		System.out.printf("%-34s %16s %12s %12s %10s%n", "Benchmark", "ops/s", "error", "ns/op", "B/op");
+		if (jmhFile != null) {
+			for (Map.Entry<String, double[]> result : readJmh(jmhFile).entrySet()) {
+				if (result.getKey().contains(filter)) {
+					results.put(result.getKey(), result.getValue());
+					print(result.getKey(), result.getValue());
+				}
+			}
+		} else {
+			for (Map.Entry<String, Operation> benchmark : benchmarks().entrySet()) {
+				if (!benchmark.getKey().contains(filter)) {
+					continue;
+				}
+				double[] result = measure(benchmark.getValue());
+				results.put(benchmark.getKey(), result);
+				print(benchmark.getKey(), result);
+			}
+		}
+
+		if (csvFile != null) {
+			PrintWriter csv = new PrintWriter(new FileWriter(csvFile));
+			csv.println("benchmark,score,error,unit");
+			for (Map.Entry<String, double[]> result : results.entrySet()) {
+				csv.printf("%s,%.1f,%.1f,ops/s%n", result.getKey(), result.getValue()[0], result.getValue()[1]);
+			}
+			csv.close();
+		}
+		if (baselineFile != null && !compare(results, baselineFile, tolerance)) {
+			System.exit(1);
+		}
+	}
+
+	private static void print(String name, double[] result) {
+		System.out.printf("%-34s %,16.0f %,12.0f %,12.1f %10s%n", name, result[0], result[1], 1e9 / result[0],
+				result[2] < 0 ? "-" : String.format("%.1f", result[2]));
+	}
+
+	/**
+	 * Reads the results of the JMH benchmarks from the CSV file JMH wrote. Every benchmark is a
+	 * row of MessagePathJmh.run with its name as the parameter, and has another row with its
+	 * bytes per operation if JMH ran with -prof gc
+	 * @return the operations per second, the error JMH gave (0 if it gave none) and the bytes
+	 * allocated per operation (-1 if not measured) of every benchmark, keyed by name
+	 */
+	private static LinkedHashMap<String, double[]> readJmh(String jmhFile) throws IOException {
+		LinkedHashMap<String, double[]> results = new LinkedHashMap<String, double[]>();
+		HashMap<String, Double> bytes = new HashMap<String, Double>();
+		BufferedReader reader = new BufferedReader(new FileReader(jmhFile));
+		String line = reader.readLine();
+		while ((line = reader.readLine()) != null) {
+			// Benchmark, Mode, Threads, Samples, Score, Score Error (99.9%), Unit, Param: name
+			String[] fields = line.replace("\"", "").split(",");
+			String name = fields[7];
+			double score = Double.parseDouble(fields[4]);
+			if (fields[0].endsWith(".run")) {
+				double error = Double.parseDouble(fields[5]);
+				results.put(name, new double[] {score, Double.isNaN(error) ? 0 : error, -1});
+			} else if (fields[0].endsWith(":gc.alloc.rate.norm")) {
+				bytes.put(name, score);
+			}
+		}
+		reader.close();
+		for (Map.Entry<String, double[]> result : results.entrySet()) {
+			Double perOperation = bytes.get(result.getKey());
+			if (perOperation != null) {
+				result.getValue()[2] = perOperation;
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @return every benchmark, keyed by name
+	 */
+	private static LinkedHashMap<String, Operation> benchmarks() throws IOException {
+		LinkedHashMap<String, Operation> benchmarks = new LinkedHashMap<String, Operation>();
+		final User alice = new User("Alice");
+		final Object[] statusDetails = {alice, true, 1L};
+		final Object[] directDetails = {2};
+		final Message chat = new Message(MessageType.CHAT_MESSAGE, alice, "Hello everyone, how are you doing today?", null);
+		final byte[] binaryChat = MessageCodec.encode(chat, MessageCodec.FORMAT_BINARY);
+
+		benchmarks.put("message.construct.chat", new Operation() {
+			@Override
+			public long run() {
+				return new Message(MessageType.CHAT_MESSAGE, alice, "Hello everyone, how are you doing today?", null).hashCode();
+			}
+		});
+		benchmarks.put("message.construct.status", new Operation() {
+			@Override
+			public long run() {
+				return new Message(MessageType.USER_STATUS_CHANGE_MESSAGE, User.SERVER, null, statusDetails).hashCode();
+			}
+		});
+		benchmarks.put("message.construct.direct", new Operation() {
+			@Override
+			public long run() {
+				return new Message(MessageType.DIRECT_MESSAGE, alice, "Just for you", directDetails).hashCode();
+			}
+		});
+		benchmarks.put("message.decode.binary", new Operation() {
+			@Override
+			public long run() throws IOException {
+				return MessageCodec.readMessage(ByteBuffer.wrap(binaryChat)).getType().ordinal();
+			}
+		});
+		benchmarks.put("message.roundtrip.java", roundTrip(chat, MessageCodec.FORMAT_JAVA));
+		benchmarks.put("message.roundtrip.binary", roundTrip(chat, MessageCodec.FORMAT_BINARY));
+		benchmarks.put("user.roundtrip.java", new Operation() {
+			@Override
+			public long run() throws Exception {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+				ObjectOutputStream out = new ObjectOutputStream(bytes);
+				out.writeObject(alice);
+				out.close();
+				ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+				return ((User) in.readObject()).getId();
+			}
+		});
+
+		// The same steps as UserHandler.addToOutgoingMessages and the sending Thread
+		final OutboundQueue queue = new OutboundQueue(MessageCodec.FORMAT_BINARY);
+		benchmarks.put("handler.enqueueDequeue", new Operation() {
+			@Override
+			public long run() throws Exception {
+				OutboundFrame frame = new OutboundFrame(chat);
+				queue.offer(frame.retain());
+				frame.release();
+				OutboundFrame sent = queue.poll();
+				long size = sent.bytes(MessageCodec.FORMAT_BINARY).length;
+				sent.release();
+				return size;
+			}
+		});
+
+		// What ServerMetrics adds to every timed step: two clock reads and a Histogram record
+		final Histogram histogram = new Histogram();
+		benchmarks.put("metrics.histogram.record", new Operation() {
+			@Override
+			public long run() {
+				long start = System.nanoTime();
+				histogram.record(System.nanoTime() - start);
+				return start;
+			}
+		});
+
+		for (int handlers : new int[] {10, 1000, 10000}) {
+			benchmarks.put("broadcast.fanout." + handlers, fanOut(chat, handlers));
+		}
+		return benchmarks;
+	}
+
+	/**
+	 * Gets one benchmark for the JMH benchmarks (see benchmarks/MessagePathJmh), which run the
+	 * same operations in forked JVMs
+	 * @param name - name of the benchmark, as printed by this class
+	 * @return the operation, which throws any exception it gets as a RuntimeException
+	 * @throws IllegalArgumentException if there is no benchmark of that name
+	 */
+	public static LongSupplier operation(String name) throws IOException {
+		final Operation operation = benchmarks().get(name);
+		if (operation == null) {
+			throw new IllegalArgumentException("Unknown benchmark '" + name + "'.");
+		}
+		return new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				try {
+					return operation.run();
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return an operation that encodes a Message into a frame and decodes it again
+	 */
+	private static Operation roundTrip(final Message message, final int format) {
+		return new Operation() {
+			@Override
+			public long run() throws IOException {
+				byte[] frame = MessageCodec.encode(message, format);
+				return MessageCodec.readMessage(ByteBuffer.wrap(frame)).getType().ordinal();
+			}
+		};
+	}
+
+	/**
+	 * Returns an operation that broadcasts a chat message the way UserHandler does: one frame
+	 * is queued for every simulated UserHandler, and then every queue is emptied the way its
+	 * sending Thread would. Half of the handlers use each wire format
+	 */
+	private static Operation fanOut(final Message message, int handlers) {
+		final ArrayList<OutboundQueue> queues = new ArrayList<OutboundQueue>(handlers);
+		for (int i = 0; i < handlers; i++) {
+			queues.add(new OutboundQueue(i % 2 == 0 ? MessageCodec.FORMAT_BINARY : MessageCodec.FORMAT_JAVA));
+		}
+		final int[] formats = new int[handlers];
+		for (int i = 0; i < handlers; i++) {
+			formats[i] = i % 2 == 0 ? MessageCodec.FORMAT_BINARY : MessageCodec.FORMAT_JAVA;
+		}
+		return new Operation() {
+			@Override
+			public long run() throws IOException {
+				OutboundFrame frame = new OutboundFrame(message);
+				for (OutboundQueue queue : queues) {
+					queue.offer(frame.retain());
+				}
+				frame.release();
+				long bytes = 0;
+				for (int i = 0; i < queues.size(); i++) {
+					OutboundFrame sent = queues.get(i).poll();
+					bytes += sent.buffer(formats[i]).remaining();
+					sent.release();
+				}
+				return bytes;
+			}
+		};
+	}
+
+	/**
+	 * @return the JVM's counter of bytes allocated per thread, or null if it has none
+	 */
+	private static com.sun.management.ThreadMXBean allocationCounter() {
+		if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+				return threads;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the bytes this thread has allocated so far, or 0 if that cannot be counted
+	 */
+	private static long allocatedBytes() {
+		return allocations == null ? 0 : allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Runs an operation for the warmup rounds and then for the measured rounds
+	 * @return the mean operations per second, the 99.9% confidence interval around it, and
+	 * the bytes allocated per operation (-1 if they cannot be counted)
+	 */
+	private static double[] measure(Operation operation) throws Exception {
+		for (int round = 0; round < warmupRounds; round++) {
+			runRound(operation, null);
+		}
+		double[] scores = new double[measuredRounds];
+		long[] counted = new long[2];
+		for (int round = 0; round < measuredRounds; round++) {
+			scores[round] = runRound(operation, counted);
+		}
+		double mean = 0;
+		for (double score : scores) {
+			mean += score;
+		}
+		mean /= scores.length;
+		double variance = 0;
+		for (double score : scores) {
+			variance += (score - mean) * (score - mean);
+		}
+		variance /= scores.length - 1;
+		// 3.29 standard errors cover 99.9% of a normal distribution
+		double error = 3.29 * Math.sqrt(variance / scores.length);
+		double bytesPerOperation = allocations == null ? -1 : (double) counted[1] / counted[0];
+		return new double[] {mean, error, bytesPerOperation};
+	}
+
+	/**
+	 * Runs an operation over and over for roundMillis, checking the clock every so often
+	 * @param counted - if not null, the operations and the bytes they allocated are added to it
+	 * @return operations per second in this round
+	 */
+	private static double runRound(Operation operation, long[] counted) throws Exception {
+		long allocatedBefore = allocatedBytes();
+		long deadline = System.nanoTime() + roundMillis * 1000000;
+		long start = System.nanoTime();
+		long operations = 0;
+		long result = 0;
+		long now;
+		do {
+			for (int i = 0; i < 16; i++) {
+				result += operation.run();
+			}
+			operations += 16;
+		} while ((now = System.nanoTime()) < deadline);
+		if (counted != null) {
+			counted[0] += operations;
+			counted[1] += allocatedBytes() - allocatedBefore;
+		}
+		sink += result;
+		return operations / ((now - start) / 1e9);
+	}
+
+	/**
+	 * Compares results against a CSV file written by an earlier run
+	 * @return false if any benchmark got slower by more than tolerance
+	 */
+	private static boolean compare(Map<String, double[]> results, String baselineFile, double tolerance) throws IOException {
+		HashMap<String, Double> baseline = new HashMap<String, Double>();
+		BufferedReader reader = new BufferedReader(new FileReader(baselineFile));
+		String line = reader.readLine();
+		while ((line = reader.readLine()) != null) {
+			String[] fields = line.split(",");
+			baseline.put(fields[0], Double.parseDouble(fields[1]));
+		}
+		reader.close();
+
+		boolean passed = true;
+		System.out.println();
+		for (Map.Entry<String, double[]> result : results.entrySet()) {
+			Double before = baseline.get(result.getKey());
+			if (before == null) {
+				continue;
+			}
+			double change = result.getValue()[0] / before - 1;
+			boolean regressed = change < -tolerance;
+			passed &= !regressed;
+			System.out.printf("%-34s %+7.1f%%%s%n", result.getKey(), change * 100, regressed ? "  REGRESSION" : "");
+		}
+		System.out.println(passed ? "No benchmark is more than " + Math.round(tolerance * 100) + "% slower than the baseline"
+				: "Some benchmarks are slower than the baseline");
+		return passed;
+	}
+
+}
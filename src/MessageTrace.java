@@ -0,0 +1,216 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class holds the trace stamps of one message on its way from the Client that sent it,
+ * through the Server, to a Client that receives it. Every stamp is a System.nanoTime():
+ *
+ *     CLIENT_SEND     the sending Client wrote the message
+ *     SERVER_DECODE   the Server decoded it
+ *     ENQUEUE         the Server put it in the outbound queue of one recipient
+ *     DEQUEUE         that recipient's sending Thread (or EventLoop) took it out of the queue
+ *     ENCODE          the bytes for that recipient were ready to be written
+ *     CLIENT_RECEIVE  the recipient decoded it
+ *
+ * Stamps that are not known are 0, like CLIENT_SEND for a message the Server chose to trace
+ * itself (see ServerConfig.traceEvery). Stamps taken in different processes can only be
+ * compared if they run on the same machine, where System.nanoTime() uses the same clock;
+ * the stages between Server stamps are always right.
+ *
+ * A traced message carries the first five stamps in a trailer after its payload, and its frame
+ * has MessageCodec.TRACED set in the format byte. The Server only sends such frames to
+ * Clients that asked for them (MessageCodec.TRACING in the connection request).
+ *
+ */
+public class MessageTrace {
+
+	/**
+	 * The stamps, in the order the message passes them
+	 */
+	public static final int CLIENT_SEND = 0;
+	public static final int SERVER_DECODE = 1;
+	public static final int ENQUEUE = 2;
+	public static final int DEQUEUE = 3;
+	public static final int ENCODE = 4;
+	public static final int CLIENT_RECEIVE = 5;
+
+	/**
+	 * This field is the number of stamps sent in the trailer (all but CLIENT_RECEIVE)
+	 */
+	public static final int WIRE_STAMPS = 5;
+
+	/**
+	 * This field is the size of the trailer in bytes
+	 */
+	public static final int TRAILER_SIZE = WIRE_STAMPS * 8;
+
+	/**
+	 * The names of the stages between one stamp and the next
+	 */
+	public static final String[] STAGES = {"send-decode", "decode-enqueue", "enqueue-dequeue", "dequeue-encode",
+			"encode-receive"};
+
+	/**
+	 * This field counts the messages that arrived without a trace, for ServerConfig.traceEvery
+	 */
+	private static final AtomicLong untraced = new AtomicLong();
+
+	private final long[] stamps = new long[CLIENT_RECEIVE + 1];
+
+	/**
+	 * Traces every ServerConfig.traceEvery-th message that arrives at the Server without a trace,
+	 * starting at SERVER_DECODE. Called for every message received from a Client
+	 * @param message - message that has just been decoded
+	 */
+	static void sample(Message message) {
+		int every = ServerConfig.traceEvery;
+		if (every > 0 && message.getTrace() == null && untraced.incrementAndGet() % every == 0) {
+			MessageTrace trace = new MessageTrace();
+			trace.set(SERVER_DECODE, System.nanoTime());
+			message.setTrace(trace);
+		}
+	}
+
+	/**
+	 * @param stamp - one of the stamps, like ENQUEUE
+	 * @return its System.nanoTime(), or 0 if it is not known
+	 */
+	public long get(int stamp) {
+		return stamps[stamp];
+	}
+
+	/**
+	 * @param stamp - one of the stamps, like ENQUEUE
+	 * @param nanos - its System.nanoTime()
+	 */
+	public void set(int stamp, long nanos) {
+		stamps[stamp] = nanos;
+	}
+
+	/**
+	 * @return a trace with the same stamps, which can be stamped on its own (one per recipient)
+	 */
+	public MessageTrace copy() {
+		MessageTrace copy = new MessageTrace();
+		System.arraycopy(stamps, 0, copy.stamps, 0, stamps.length);
+		return copy;
+	}
+
+	/**
+	 * Stamps the moment a traced frame was decoded: SERVER_DECODE if it came from a Client,
+	 * CLIENT_RECEIVE if the Server had already stamped it
+	 * @param nanos - System.nanoTime() when it was decoded
+	 */
+	void received(long nanos) {
+		stamps[stamps[ENCODE] != 0 ? CLIENT_RECEIVE : SERVER_DECODE] = nanos;
+	}
+
+	/**
+	 * Writes the wire stamps into a trailer
+	 * @param frame - array the trailer is written into
+	 * @param offset - where the trailer starts
+	 */
+	void writeTo(byte[] frame, int offset) {
+		for (int i = 0; i < WIRE_STAMPS; i++) {
+			long stamp = stamps[i];
+			for (int b = 7; b >= 0; b--) {
+				frame[offset++] = (byte) (stamp >>> (b * 8));
+			}
+		}
+	}
+
+	/**
+	 * Reads the wire stamps from a trailer written by writeTo
+	 * @param frame - array holding the trailer
+	 * @param offset - where the trailer starts
+	 * @return the trace
+	 */
+	static MessageTrace readFrom(byte[] frame, int offset) {
+		MessageTrace trace = new MessageTrace();
+		for (int i = 0; i < WIRE_STAMPS; i++) {
+			long stamp = 0;
+			for (int b = 0; b < 8; b++) {
+				stamp = (stamp << 8) | (frame[offset++] & 0xFF);
+			}
+			trace.stamps[i] = stamp;
+		}
+		return trace;
+	}
+
+	/**
+	 * This class collects the time spent in every stage of many traces, as one Histogram per
+	 * stage plus one for the whole way from the first known stamp to the last
+	 */
+	public static class Stages {
+
+		private final Histogram[] stages = new Histogram[STAGES.length];
+
+		private final Histogram total = new Histogram();
+
+		public Stages() {
+			for (int i = 0; i < stages.length; i++) {
+				stages[i] = new Histogram();
+			}
+		}
+
+		/**
+		 * Adds every stage of a trace whose start and end are both known
+		 * @param trace - trace of one message to one recipient
+		 */
+		public void record(MessageTrace trace) {
+			long[] stamps = trace.stamps;
+			long first = 0;
+			long last = 0;
+			for (int i = 0; i < stamps.length; i++) {
+				if (stamps[i] == 0) {
+					continue;
+				}
+				if (first == 0) {
+					first = stamps[i];
+				}
+				last = stamps[i];
+				if (i > 0 && stamps[i - 1] != 0) {
+					stages[i - 1].record(stamps[i] - stamps[i - 1]);
+				}
+			}
+			if (first != last) {
+				total.record(last - first);
+			}
+		}
+
+		/**
+		 * @return the number of traces recorded
+		 */
+		public long count() {
+			return total.count();
+		}
+
+		public void reset() {
+			for (Histogram stage : stages) {
+				stage.reset();
+			}
+			total.reset();
+		}
+
+		/**
+		 * @return every stage that has been recorded, in microseconds, on one line
+		 */
+		public String describe() {
+			return describe(" ");
+		}
+
+		/**
+		 * @param separator - text put between two stages
+		 * @return every stage that has been recorded, in microseconds
+		 */
+		public String describe(String separator) {
+			StringBuilder description = new StringBuilder();
+			for (int i = 0; i < stages.length; i++) {
+				if (stages[i].count() > 0) {
+					description.append(STAGES[i]).append('=').append(stages[i].describe(1000)).append(separator);
+				}
+			}
+			return description.append("total=").append(total.describe(1000)).toString();
+		}
+	}
+
+}
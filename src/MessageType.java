@@ -1,27 +1,35 @@
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 
 public enum MessageType {
 
 	/**
 	 * Sent by the client to the server when the client wants to connect with the server
+	 * This message is always sent in the FORMAT_JAVA wire format, because the wire format
+	 * has not been agreed on yet
 	 * Data: messageText contains Name of the user
+	 * Data: [0] An Integer: the wire formats the client can use (see MessageCodec.SUPPORTED_FORMATS)
+	 * Data: [1] A Long: the last roster version the client saw, or 0 if it has none (see Roster)
 	 */
-	CONNECTION_REQUEST_MESSAGE(true, false, new Class[0], true),
+	CONNECTION_REQUEST_MESSAGE(true, false, new Class[]{Integer.class, Long.class}, true),
 	
 	/**
-	 * Sent by the server to the client when the server accepts the connection
-	 * Data: [0] A list of all currently connected users
+	 * Sent by the server to the client when the server accepts the connection. It is followed
+	 * by the ROSTER_MESSAGEs that bring the client's list of users to the roster version in it
+	 * Data: [0] A Long: the roster version, which includes the client joining
 	 * Data: [1] The client's User object
+	 * Data: [2] An Integer: the wire format both sides will use from now on
 	 */
-	CONNECTION_ACKNOWLEDGEMENT_MESSAGE(false, true, new Class[]{ArrayList.class, User.class}, false),
+	CONNECTION_ACKNOWLEDGEMENT_MESSAGE(false, true, new Class[]{Long.class, User.class, Integer.class}, false),
 	
 	/**
 	 * Whenever a user connects or disconnects, this message is sent to all of the
 	 * other users.
 	 * Data: [0] The User Object of the user
 	 * Data: [1] A Boolean: True if they joined the server, false otherwise
+	 * Data: [2] A Long: the roster version this change made
 	 */
-	USER_STATUS_CHANGE_MESSAGE(true, true, new Class[]{User.class, Boolean.class}, false),
+	USER_STATUS_CHANGE_MESSAGE(true, true, new Class[]{User.class, Boolean.class, Long.class}, false),
 	
 	/**
 	 * This message is sent for every message typed in the chat.
@@ -39,7 +47,76 @@ public enum MessageType {
 	/**
 	 * Sent by the server to the client when the server accepts the user's disconnection
 	 */
-	DISCONNECT_ACKNOWLEDGEMENT_MESSAGE(false, true);
+	DISCONNECT_ACKNOWLEDGEMENT_MESSAGE(false, true),
+	
+	/**
+	 * Sent by the client to the server when the user wants to join a room (see RoomRegistry)
+	 * Data: messageText contains the name of the room
+	 */
+	ROOM_JOIN_REQUEST_MESSAGE(true, false, new Class[0], true),
+	
+	/**
+	 * Sent by the client to the server when the user wants to leave a room
+	 * Data: messageText contains the name of the room
+	 */
+	ROOM_LEAVE_REQUEST_MESSAGE(true, false, new Class[0], true),
+	
+	/**
+	 * This message is sent for every message typed in a room. It originates from the client
+	 * who sent it, and is forwarded only to the other members of the room
+	 * Data: messageText contains the content of the message
+	 * Data: [0] A String: the name of the room
+	 */
+	ROOM_CHAT_MESSAGE(true, false, new Class[]{String.class}, true),
+	
+	/**
+	 * Whenever a user joins or leaves a room, this message is sent to every member of the
+	 * room, including the user. A user that posts to a room it is not in gets this message
+	 * with false as well
+	 * Data: messageText contains the name of the room
+	 * Data: [0] The User Object of the user
+	 * Data: [1] A Boolean: True if they joined the room, false otherwise
+	 */
+	ROOM_MEMBERSHIP_CHANGE_MESSAGE(false, true, new Class[]{User.class, Boolean.class}, true),
+	
+	/**
+	 * This message is sent by a client to exactly one other user. The server looks the user
+	 * up by ID and forwards the message to them unchanged
+	 * Data: messageText contains the content of the message
+	 * Data: [0] An Integer: the ID of the User the message is for
+	 */
+	DIRECT_MESSAGE(true, false, new Class[]{Integer.class}, true),
+	
+	/**
+	 * Sent by the server to the client when a DIRECT_MESSAGE could not be delivered, for
+	 * example because the user it was for is not connected
+	 * Data: messageText contains the reason
+	 * Data: [0] An Integer: the ID of the User the message was for
+	 * Data: [1] A String: the content of the message that was not delivered
+	 */
+	DELIVERY_FAILURE_MESSAGE(false, true, new Class[]{Integer.class, String.class}, true),
+	
+	/**
+	 * Sent by the server right after the CONNECTION_ACKNOWLEDGEMENT_MESSAGE, to bring the
+	 * client's list of users up to date (see Roster). Either a page of a snapshot of every
+	 * user, or the users that joined and left since an earlier version. When joins and leaves
+	 * are batched (see PresenceBatcher), it is also sent to every client once per batch
+	 * Data: [0] A Long: the roster version the client's list is at after this message
+	 * Data: [1] An Integer: the number of ROSTER_MESSAGEs of the same snapshot still to come
+	 * Data: [2] A Boolean: True if this is the first page of a snapshot, so the client's list
+	 *           must be emptied first
+	 * Data: [3] A list of the users that joined (or, in a snapshot, that are connected)
+	 * Data: [4] A list of the users that left
+	 */
+	ROSTER_MESSAGE(false, true, new Class[]{Long.class, Integer.class, Boolean.class, ArrayList.class, ArrayList.class}, false),
+	
+	/**
+	 * Sent by the server to a client that has been quiet for ServerConfig.heartbeatIntervalMillis,
+	 * if the client offered MessageCodec.HEARTBEATS. The client answers with a HEARTBEAT_MESSAGE
+	 * of its own, which the server does not answer, so a connection that still works is never
+	 * mistaken for a dead one (see UserHandler)
+	 */
+	HEARTBEAT_MESSAGE(true, true);
 
 	/**
 	 * These booleans control who is allowed to be the originator of this kind of message
@@ -61,6 +138,13 @@ public enum MessageType {
 	@SuppressWarnings("rawtypes")
 	public Class[] messageDetailTypes;
 	
+	/**
+	 * This array is worked out once from messageDetailTypes. It is true for every detail whose
+	 * class is final, which a detail can only be an instance of by having exactly that class,
+	 * so it can be checked without Class.isInstance
+	 */
+	private final boolean[] exactDetailTypes;
+	
 	MessageType(boolean cC, boolean cS) {
 		this(cC, cS, new Class[0], false);
 	}
@@ -69,6 +153,44 @@ public enum MessageType {
 		this.canBeSentByClient = canBeSentByClient;
 		this.canBeSentByServer = canBeSentByServer;
 		this.includesMessageTextString = includesMessageTextString;
+		this.exactDetailTypes = new boolean[messageDetailTypes.length];
+		for (int i = 0; i < messageDetailTypes.length; i++) {
+			exactDetailTypes[i] = Modifier.isFinal(messageDetailTypes[i].getModifiers());
+		}
+	}
+	
+	/**
+	 * Checks that a message of this type may be created with these values, as the Message
+	 * constructor needs
+	 * @param originatingUser - user (client or server) sending the message
+	 * @param messageText - messageText of the message, or null
+	 * @param messageDetails - details of the message, never null
+	 * @throws IllegalArgumentException if any of them is not allowed for this type
+	 */
+	void validate(User originatingUser, String messageText, Object[] messageDetails) {
+		if (!canBeSentByClient && !originatingUser.isServer()) {
+			throw new IllegalArgumentException("Cannot create messages with client as originator when the message type cannot be sent from client!");
+		}
+		if (!canBeSentByServer && originatingUser.isServer()) {
+			throw new IllegalArgumentException("Cannot create messages with server as originator when the message type cannot be sent from server!");
+		}
+		if (!includesMessageTextString && messageText != null) {
+			throw new IllegalArgumentException("Message type " + this + "does not support the messageText parameter.");
+		}
+		if (messageDetails.length != messageDetailTypes.length) {
+			throw new IllegalArgumentException("Message type " + this + " must be supplied with " + messageDetailTypes.length + " details in the messageDetail array.");
+		}
+		// Make sure that everything in the list is of the right class.
+		for (int i = 0; i < messageDetails.length; i++) {
+			Object detail = messageDetails[i];
+			boolean matches = exactDetailTypes[i]
+					? detail != null && detail.getClass() == messageDetailTypes[i]
+					: messageDetailTypes[i].isInstance(detail);
+			if (!matches) {
+				throw new IllegalArgumentException("Message type " + this + " was supplied with"
+						+ " detail #" + i + " as " + detail + " when it was expecting an object of type " + messageDetailTypes[i] + ".");
+			}
+		}
 	}
 	
 	
@@ -0,0 +1,138 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class measures what ServerMetrics costs. It starts a Server in this process, connects
+ * a number of receiving users and has one more user send bursts of chat messages, waiting
+ * each time until every receiver has got the whole burst. The bursts are sent with
+ * ServerConfig.metrics switched on and off in turn, so that both see the same warmed up
+ * Server, and the delivery rates of the two are compared.
+ *
+ * Messages are not printed (--logMessages=false) unless the server settings say otherwise.
+ *
+ * Usage: java MetricsOverheadMeasurement [receivers] [burst] [rounds] [server settings...]
+ *
+ */
+public class MetricsOverheadMeasurement {
+
+	/**
+	 * This field counts the chat messages all receivers have received
+	 */
+	private static final AtomicLong delivered = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		int receivers = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int burst = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		final String[] serverArgs = new String[Math.max(0, args.length - 3) + 2];
+		serverArgs[0] = "--mode=nio";
+		serverArgs[1] = "--logMessages=false";
+		System.arraycopy(args, Math.min(3, args.length), serverArgs, 2, serverArgs.length - 2);
+
+		// Anything the Server still prints would be measured too
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		Harness.startServer(serverArgs);
+
+		for (int i = 0; i < receivers; i++) {
+			Socket socket = new Socket(InetAddress.getLoopbackAddress(), ServerConfig.port);
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			Harness.handshake("receiver" + i, in, new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())));
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							if (MessageCodec.readMessage(in).getType() == MessageType.CHAT_MESSAGE) {
+								delivered.incrementAndGet();
+							}
+						}
+					} catch (IOException e) {
+						// The measurement is over
+					}
+				}
+			});
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), ServerConfig.port);
+		final DataInputStream senderIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		User sender = Harness.handshake("sender", senderIn, out);
+		Thread drain = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						MessageCodec.readMessage(senderIn);
+					}
+				} catch (IOException e) {
+					// The measurement is over
+				}
+			}
+		});
+		drain.setDaemon(true);
+		drain.start();
+		Thread.sleep(1000);
+
+		byte[] frame = MessageCodec.encode(new Message(MessageType.CHAT_MESSAGE, sender, "overhead measurement message", null),
+				MessageCodec.FORMAT_BINARY);
+		// Warm up with metrics on and off before anything is measured
+		for (int round = 0; round < 4; round++) {
+			ServerConfig.metrics = round % 2 == 0;
+			runBurst(out, frame, burst, receivers);
+		}
+
+		// on, off, off, on, on, off, ... so that neither always runs first
+		double[] rate = new double[2];
+		for (int round = 0; round < rounds * 2; round++) {
+			boolean on = (round % 4 == 0 || round % 4 == 3);
+			ServerConfig.metrics = on;
+			long nanos = runBurst(out, frame, burst, receivers);
+			rate[on ? 1 : 0] += (double) burst * receivers / (nanos / 1e9);
+		}
+		ServerConfig.metrics = true;
+		double off = rate[0] / rounds;
+		double on = rate[1] / rounds;
+
+		console.println("Settings: " + ServerConfig.describe());
+		console.printf("%d receivers, bursts of %d messages, %d rounds each%n", receivers, burst, rounds);
+		console.printf("metrics off: %,14.0f deliveries/s%n", off);
+		console.printf("metrics on:  %,14.0f deliveries/s%n", on);
+		console.printf("overhead:    %14.1f%%%n", (1 - on / off) * 100);
+		console.println(ServerMetrics.describe());
+		System.exit(0);
+	}
+
+	/**
+	 * Sends one burst and waits until every receiver has got all of it
+	 * @return the nanoseconds that took
+	 */
+	private static long runBurst(DataOutputStream out, byte[] frame, int burst, int receivers) throws Exception {
+		long expected = delivered.get() + (long) burst * receivers;
+		long start = System.nanoTime();
+		for (int i = 0; i < burst; i++) {
+			out.write(frame);
+		}
+		out.flush();
+		long deadline = System.currentTimeMillis() + 120000;
+		while (delivered.get() < expected) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new IllegalStateException("Only " + (delivered.get() - expected + (long) burst * receivers)
+						+ " of " + (long) burst * receivers + " messages were delivered.");
+			}
+			Thread.sleep(0, 100000);
+		}
+		return System.nanoTime() - start;
+	}
+
+}
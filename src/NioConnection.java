@@ -0,0 +1,527 @@
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class represents one Client connection in NIO mode. It belongs to exactly one
+ * EventLoop, and it takes the place of the listening and sending Threads of a legacy
+ * UserHandler: bytes are read and written only when the Selector says the channel is ready.
+ *
+ * Until the Client has sent its CONNECTION_REQUEST_MESSAGE the connection has no
+ * UserHandler. Once it has, every Message is passed to the UserHandler, exactly like
+ * the legacy processing Thread does.
+ *
+ */
+public class NioConnection {
+
+	/**
+	 * This field is the size of the receive buffer every connection starts with
+	 */
+	private static final int INITIAL_READ_BUFFER_SIZE = 4096;
+
+	/**
+	 * This field is how long (in milliseconds) closeAfterFlush waits for the Client to read
+	 * what is left before closing anyway, so a Client that stopped reading is not kept forever
+	 */
+	private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * This channel directly connects to the Client
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * This EventLoop owns this connection, and is the only thread that reads or writes it
+	 */
+	private final EventLoop eventLoop;
+
+	/**
+	 * This key is the registration of the channel with the EventLoop's Selector
+	 */
+	private SelectionKey key;
+
+	/**
+	 * This buffer holds bytes that have been received but not yet decoded into Messages
+	 */
+	private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+
+	/**
+	 * This Queue holds frames that have not been written yet. Any thread may add to it,
+	 * but only the EventLoop removes from it. It is bounded, see OutboundQueue
+	 */
+	private final OutboundQueue outgoingFrames = new OutboundQueue(MessageCodec.FORMAT_JAVA);
+
+	/**
+	 * These frames have been taken off outgoingFrames to be written together in one gather
+	 * write, but the channel has not accepted all of them yet. writingBuffers holds this
+	 * connection's own view of each frame's bytes, positioned where writing stopped
+	 */
+	private final ArrayDeque<OutboundFrame> writingFrames = new ArrayDeque<OutboundFrame>();
+	private final ArrayDeque<ByteBuffer> writingBuffers = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * This array is reused to pass writingBuffers to the gather write
+	 */
+	private ByteBuffer[] gather = new ByteBuffer[0];
+
+	/**
+	 * This boolean is true while a flush task is waiting to run on the EventLoop, so that
+	 * a burst of messages only wakes the EventLoop up once
+	 */
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+	/**
+	 * This UserHandler holds the User and the chat logic for this connection. It is null
+	 * until the CONNECTION_REQUEST_MESSAGE has been received
+	 */
+	private UserHandler userHandler;
+
+	/**
+	 * This field is the wire format agreed on with the Client, with MessageCodec.COMPRESSED added
+	 * if frames are compressed for it. Until the handshake is done it is MessageCodec.FORMAT_JAVA,
+	 * which every Client can read
+	 */
+	private volatile int wireFormat = MessageCodec.FORMAT_JAVA;
+
+	/**
+	 * This boolean is true once the connection should be closed as soon as everything
+	 * queued has been written
+	 */
+	private volatile boolean closeAfterFlush = false;
+
+	/**
+	 * This boolean is true once the channel has been closed
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * This field is when (System.nanoTime) the connection was accepted, so the handshake can
+	 * be timed and timed out
+	 */
+	private final long acceptedNanos;
+
+	/**
+	 * This boolean is true until the handshake has ended, however it ended (see HandshakeStage)
+	 */
+	private boolean handshaking = true;
+
+	/**
+	 * This Message is over a rate limit and waiting to be handled (see RateLimiter.Policy.DELAY).
+	 * While it waits nothing more is read or decoded. delayedBytes is the size of its frame
+	 */
+	private Message delayed;
+	private int delayedBytes;
+
+	NioConnection(SocketChannel channel, EventLoop eventLoop, long acceptedNanos) {
+		this.channel = channel;
+		this.eventLoop = eventLoop;
+		this.acceptedNanos = acceptedNanos;
+	}
+
+	/**
+	 * Closes the connection if it has not sent its CONNECTION_REQUEST_MESSAGE within
+	 * ServerConfig.handshakeTimeoutMillis of being accepted
+	 */
+	void awaitHandshake() {
+		final Runnable timeout = new Runnable() {
+			@Override
+			public void run() {
+				if (handshaking) {
+					endHandshake(HandshakeStage.Outcome.TIMED_OUT);
+					close();
+				}
+			}
+		};
+		// The Server's TimingWheel keeps the timeout, so a storm of connections does not fill the
+		// EventLoop's scheduled tasks. It only hands the timeout back to the EventLoop
+		Server.getTimeouts().schedule(new Runnable() {
+			@Override
+			public void run() {
+				eventLoop.execute(timeout);
+			}
+		}, HandshakeStage.remainingMillis(acceptedNanos), TimeUnit.MILLISECONDS);
+	}
+
+	private void endHandshake(HandshakeStage.Outcome outcome) {
+		if (handshaking) {
+			handshaking = false;
+			Server.getHandshakes().finished(outcome, acceptedNanos);
+		}
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * @return the EventLoop that owns this connection
+	 */
+	public EventLoop getEventLoop() {
+		return eventLoop;
+	}
+
+	/**
+	 * @return the queue of frames waiting to be written to the Client
+	 */
+	public OutboundQueue getOutboundQueue() {
+		return outgoingFrames;
+	}
+
+	/**
+	 * Asks the EventLoop to write a frame. The connection takes over the caller's reference
+	 * to the frame and releases it once it has been written
+	 * @param frame - frame that is being sent to the Client
+	 * @return what the outbound queue did with the frame
+	 */
+	public OutboundQueue.Result send(OutboundFrame frame) {
+		if (closed) {
+			frame.release();
+			return OutboundQueue.Result.DROPPED;
+		}
+		OutboundQueue.Result result = outgoingFrames.offer(frame);
+		if (result == OutboundQueue.Result.ACCEPTED) {
+			scheduleFlush();
+		}
+		return result;
+	}
+
+	/**
+	 * Like send, but the frame is queued even if the outbound queue is full. Only used for
+	 * the last frame before the connection is closed
+	 * @param frame - frame that is being sent to the Client
+	 */
+	public void sendLast(OutboundFrame frame) {
+		if (closed) {
+			frame.release();
+			return;
+		}
+		outgoingFrames.forceOffer(frame);
+		scheduleFlush();
+	}
+
+	/**
+	 * Closes the connection once every frame queued so far has been written, or after
+	 * CLOSE_TIMEOUT_MILLIS if the Client does not read them
+	 */
+	public void closeAfterFlush() {
+		if (closed) {
+			return;
+		}
+		closeAfterFlush = true;
+		scheduleFlush();
+		// Tasks run in order, so this runs after the flush queued above, which closes the
+		// connection itself if everything could be written. Only a connection that is still open
+		// then gets a timeout, so a stream of disconnects does not fill the scheduled tasks
+		eventLoop.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (closed) {
+					return;
+				}
+				eventLoop.schedule(new Runnable() {
+					@Override
+					public void run() {
+						close();
+					}
+				}, CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		});
+	}
+
+	/**
+	 * Makes sure a flush will run on the EventLoop. Everything that is queued by the time
+	 * it runs is written together, so with a flush delay more messages can join the batch
+	 */
+	private void scheduleFlush() {
+		if (flushScheduled.compareAndSet(false, true)) {
+			Runnable flushTask = new Runnable() {
+				@Override
+				public void run() {
+					flushScheduled.set(false);
+					try {
+						flush();
+					} catch (IOException e) {
+						close();
+					}
+				}
+			};
+			if (ServerConfig.flushDelayMicros > 0 && !closeAfterFlush) {
+				eventLoop.schedule(flushTask, ServerConfig.flushDelayMicros, TimeUnit.MICROSECONDS);
+			} else {
+				eventLoop.execute(flushTask);
+			}
+		}
+	}
+
+	/**
+	 * Called by the EventLoop when the channel has bytes to read. Every complete frame
+	 * is decoded and handled before returning, unless one has to wait for a rate limit
+	 * @throws IOException if the channel is broken or a frame is invalid
+	 */
+	void handleRead() throws IOException {
+		int read = channel.read(readBuffer);
+		if (read < 0) {
+			close();
+			return;
+		}
+		if (ServerConfig.metrics) {
+			ServerMetrics.bytesReceived.add(read);
+		}
+		decodeBuffered();
+	}
+
+	/**
+	 * Decodes and handles every complete frame in the receive buffer, unless a message has to
+	 * wait for a rate limit, and makes room in the buffer for the rest
+	 * @throws IOException if a frame is invalid
+	 */
+	private void decodeBuffered() throws IOException {
+		readBuffer.flip();
+		while (!closed && delayed == null) {
+			int start = readBuffer.position();
+			Message message;
+			try {
+				message = MessageCodec.readMessage(readBuffer);
+			} catch (InvalidObjectException e) {
+				if (!handshaking) {
+					throw e;
+				}
+				// A connection request that is not a valid Message is skipped and refused
+				readBuffer.position(start + MessageCodec.peekFrameSize(readBuffer));
+				refuse();
+				break;
+			}
+			if (message == null) {
+				break;
+			}
+			onMessage(message, readBuffer.position() - start);
+		}
+		if (closed) {
+			return;
+		}
+		int frameSize = MessageCodec.peekFrameSize(readBuffer);
+		if (handshaking && frameSize > MessageCodec.LENGTH_FIELD_SIZE + HandshakeStage.MAX_REQUEST_LENGTH) {
+			throw new IOException("Connection request of " + frameSize + " bytes is too large.");
+		}
+		if (frameSize > readBuffer.capacity()) {
+			ByteBuffer bigger = ByteBuffer.allocate(frameSize);
+			bigger.put(readBuffer);
+			readBuffer = bigger;
+		} else {
+			readBuffer.compact();
+		}
+	}
+
+	/**
+	 * Called by the EventLoop when the channel can accept more bytes
+	 * @throws IOException if the channel is broken
+	 */
+	void handleWrite() throws IOException {
+		flush();
+	}
+
+	/**
+	 * Writes as many queued frames as the channel will take, up to maxWriteBatch frames
+	 * per gather write. If the channel fills up, the EventLoop is asked to call handleWrite
+	 * once there is room again
+	 * @throws IOException if the channel is broken
+	 */
+	private void flush() throws IOException {
+		if (closed || key == null) {
+			return;
+		}
+		int maxBatch = ServerConfig.maxWriteBatch;
+		while (true) {
+			OutboundFrame frame;
+			while (writingFrames.size() < maxBatch && (frame = outgoingFrames.poll()) != null) {
+				try {
+					writingBuffers.add(frame.buffer(wireFormat));
+					writingFrames.add(frame);
+				} catch (IOException e) {
+					System.out.println("Could not encode " + frame + ": " + e.getMessage());
+					frame.release();
+				}
+			}
+			if (writingFrames.isEmpty()) {
+				break;
+			}
+			if (gather.length < writingBuffers.size()) {
+				gather = new ByteBuffer[Math.max(maxBatch, writingBuffers.size())];
+			}
+			int count = writingBuffers.size();
+			writingBuffers.toArray(gather);
+			long written = channel.write(gather, 0, count);
+			ServerMetrics.socketWrites.increment();
+			ServerMetrics.bytesWritten.add(written);
+			while (!writingBuffers.isEmpty() && !writingBuffers.peek().hasRemaining()) {
+				writingBuffers.poll();
+				writingFrames.poll().release();
+				ServerMetrics.messagesWritten.increment();
+			}
+			if (!writingBuffers.isEmpty()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		if (closeAfterFlush) {
+			close();
+		}
+	}
+
+	/**
+	 * The first Message must be a CONNECTION_REQUEST_MESSAGE, which creates the UserHandler.
+	 * Every Message after that is handled by the UserHandler. Any other first Message, or a
+	 * request without the details it needs, is refused (see HandshakeStage.isValidRequest)
+	 * @param message - message received from the Client
+	 * @param frameBytes - size of its frame
+	 */
+	private void onMessage(Message message, int frameBytes) {
+		if (ServerConfig.metrics) {
+			ServerMetrics.messagesReceived.increment();
+		}
+		if (userHandler == null) {
+			if (!handshaking) {
+				// Refused, and closing once the refusal is written
+				return;
+			}
+			if (HandshakeStage.isValidRequest(message)) {
+				if (ServerConfig.logMessages) {
+					System.out.println("Connection message received: " + message);
+				}
+				int chosenFormat = MessageCodec.chooseFormat(message, ServerConfig.wireFormat);
+				boolean compress = MessageCodec.chooseCompression(message, ServerConfig.compressionLevel);
+				wireFormat = chosenFormat | (compress ? MessageCodec.COMPRESSED : 0);
+				outgoingFrames.setWireFormat(wireFormat);
+				long knownRosterVersion = (Long) message.getMessageDetails()[1];
+				boolean sendTraces = ((Integer) message.getMessageDetails()[0] & MessageCodec.TRACING) != 0;
+				boolean heartbeats = MessageCodec.chooseHeartbeats(message, ServerConfig.heartbeatIntervalMillis);
+				userHandler = new UserHandler(this, new User(message.getMessageText()), chosenFormat, compress, sendTraces,
+						heartbeats, knownRosterVersion);
+				endHandshake(HandshakeStage.Outcome.COMPLETED);
+			} else {
+				refuse();
+			}
+			return;
+		}
+		if (ServerConfig.logMessages) {
+			System.out.println("Message received: " + message);
+		}
+		MessageTrace.sample(message);
+		userHandler.messageReceived();
+		long wait = userHandler.admit(message, frameBytes);
+		if (wait > 0) {
+			delay(message, frameBytes, wait);
+		} else if (wait == 0) {
+			userHandler.handleMessage(message);
+		}
+	}
+
+	/**
+	 * Ends the handshake as FAILED, and closes the connection once the Client has been sent
+	 * the refusal (see HandshakeStage.refusal)
+	 */
+	private void refuse() {
+		endHandshake(HandshakeStage.Outcome.FAILED);
+		sendLast(new OutboundFrame(HandshakeStage.refusal()));
+		closeAfterFlush();
+	}
+
+	/**
+	 * Holds a message that is over a rate limit, and stops reading from the Client until it
+	 * has been handled, so the Client is slowed down by its own socket buffers filling up
+	 * @param message - message over the limit
+	 * @param frameBytes - size of its frame
+	 * @param waitNanos - how long until it may be handled
+	 */
+	private void delay(Message message, int frameBytes, long waitNanos) {
+		delayed = message;
+		delayedBytes = frameBytes;
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		scheduleResume(waitNanos);
+	}
+
+	private void scheduleResume(long waitNanos) {
+		eventLoop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				resume();
+			}
+		}, waitNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Handles the delayed message once it is within the rate limits, and then goes on with
+	 * whatever had been received after it
+	 */
+	private void resume() {
+		if (closed) {
+			return;
+		}
+		// This runs as a scheduled task, where the EventLoop only prints what is thrown, so it
+		// has to close the connection itself the way the read path would
+		try {
+			long wait = userHandler.admit(delayed, delayedBytes);
+			if (wait > 0) {
+				scheduleResume(wait);
+				return;
+			}
+			Message message = delayed;
+			delayed = null;
+			if (wait == 0) {
+				userHandler.handleMessage(message);
+			}
+		} catch (RuntimeException e) {
+			System.out.println("Closing connection after error: " + e);
+			close();
+		} finally {
+			if (!closed && delayed == null) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			}
+		}
+		if (closed) {
+			return;
+		}
+		try {
+			decodeBuffered();
+		} catch (IOException | RuntimeException e) {
+			System.out.println("Closing connection after error: " + e);
+			close();
+		}
+	}
+
+	/**
+	 * Closes the channel. If the Client never said goodbye, the UserHandler is stopped
+	 * so the other users are told that this user left
+	 */
+	void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		eventLoop.connectionClosed();
+		endHandshake(HandshakeStage.Outcome.FAILED);
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// The channel is being thrown away anyway
+		}
+		writingBuffers.clear();
+		while (!writingFrames.isEmpty()) {
+			writingFrames.poll().release();
+		}
+		outgoingFrames.clear();
+		if (userHandler != null) {
+			userHandler.connectionLost();
+		}
+	}
+
+}
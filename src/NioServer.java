@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class represents the non-blocking version of Server. Instead of giving every
+ * Client its own UserHandler threads, it accepts connections on one or more acceptor
+ * threads and hands them out to a small fixed pool of EventLoops (the workers). The
+ * acceptors do nothing else: the connection requests are read by the EventLoops, within
+ * the budget and time limit of the HandshakeStage.
+ *
+ * With more than one acceptor, every acceptor listens on a ServerSocketChannel of its own,
+ * bound to the same port with SO_REUSEPORT, so the operating system spreads new connections
+ * over them. Where SO_REUSEPORT is not available the acceptors share one channel.
+ *
+ * Messages are handled with the same UserHandler logic as the legacy mode, so Clients
+ * cannot tell which mode the Server is running in.
+ *
+ */
+public class NioServer {
+
+	/**
+	 * The ways an EventLoop is picked for a new connection
+	 */
+	public enum Balance {
+		/**
+		 * Every EventLoop in turn
+		 */
+		ROUND_ROBIN,
+
+		/**
+		 * The EventLoop with the fewest open connections, so long-lived connections stay spread
+		 * out after others have disconnected
+		 */
+		LEAST_LOADED
+	}
+
+	/**
+	 * This field is the port the NioServer listens on
+	 */
+	private final int port;
+
+	/**
+	 * This array holds every EventLoop that connections are handed to
+	 */
+	private final EventLoop[] eventLoops;
+
+	/**
+	 * This field is the number of Threads accepting connections
+	 */
+	private final int acceptorCount;
+
+	/**
+	 * This field is how an EventLoop is picked for a new connection
+	 */
+	private final Balance balance;
+
+	/**
+	 * This field counts the connections handed out, to pick the next EventLoop in turn. It is
+	 * shared by every acceptor
+	 */
+	private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+	/**
+	 * Constructor for a new NioServer. Nothing is opened until run() is called
+	 * @param port - port to listen on
+	 * @param eventLoopCount - number of EventLoops to share connections between
+	 * @param acceptorCount - number of Threads accepting connections
+	 * @param balance - how an EventLoop is picked for a new connection
+	 * @throws IOException if the EventLoops could not be created
+	 */
+	public NioServer(int port, int eventLoopCount, int acceptorCount, Balance balance) throws IOException {
+		this.port = port;
+		this.eventLoops = new EventLoop[eventLoopCount];
+		for (int i = 0; i < eventLoopCount; i++) {
+			eventLoops[i] = new EventLoop("event-loop-" + i);
+		}
+		this.acceptorCount = acceptorCount;
+		this.balance = balance;
+	}
+
+	/**
+	 * Starts the EventLoops and the acceptors, and then accepts connections on the calling
+	 * thread (the first acceptor) forever
+	 * @throws IOException if the port could not be opened
+	 */
+	public void run() throws IOException {
+		for (EventLoop eventLoop : eventLoops) {
+			eventLoop.start();
+		}
+		ArrayList<ServerSocketChannel> welcomeChannels = new ArrayList<ServerSocketChannel>();
+		try {
+			welcomeChannels.add(ServerSocketChannel.open());
+			boolean reusePort = acceptorCount > 1
+					&& welcomeChannels.get(0).supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+			while (reusePort && welcomeChannels.size() < acceptorCount) {
+				welcomeChannels.add(ServerSocketChannel.open());
+			}
+			for (ServerSocketChannel welcomeChannel : welcomeChannels) {
+				if (reusePort) {
+					welcomeChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				welcomeChannel.bind(new InetSocketAddress(port), Server.ACCEPT_BACKLOG);
+			}
+			if (acceptorCount > 1 && !reusePort) {
+				System.out.println("SO_REUSEPORT is not available, so the " + acceptorCount
+						+ " acceptors share one listening socket.");
+			}
+			for (int i = 1; i < acceptorCount; i++) {
+				final ServerSocketChannel welcomeChannel = welcomeChannels.get(i % welcomeChannels.size());
+				Thread acceptor = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						accept(welcomeChannel);
+					}
+				}, "acceptor-" + i);
+				acceptor.setDaemon(true);
+				acceptor.start();
+			}
+			accept(welcomeChannels.get(0));
+		} finally {
+			for (ServerSocketChannel welcomeChannel : welcomeChannels) {
+				welcomeChannel.close();
+			}
+			for (EventLoop eventLoop : eventLoops) {
+				eventLoop.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Accepts connections on one channel until it is closed, and hands each of them to an EventLoop.
+	 * A failed accept, like running out of file descriptors, is counted and tried again after
+	 * Server.ACCEPT_RETRY_MILLIS (see Server.acceptFailed)
+	 * @param welcomeChannel - blocking channel to accept on
+	 */
+	private void accept(ServerSocketChannel welcomeChannel) {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = welcomeChannel.accept();
+			} catch (ClosedChannelException e) {
+				// The Server is shutting down
+				return;
+			} catch (IOException e) {
+				Server.acceptFailed(e);
+				continue;
+			}
+			long accepted = System.nanoTime();
+			ServerMetrics.connectionsAccepted.increment();
+			if (Server.getHandshakes().tryBegin()) {
+				nextEventLoop().register(channel, accepted);
+			} else {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// It was being turned away anyway
+				}
+			}
+		}
+	}
+
+	private EventLoop nextEventLoop() {
+		int turn = Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length);
+		if (balance == Balance.ROUND_ROBIN) {
+			return eventLoops[turn];
+		}
+		// Starting at the EventLoop whose turn it is spreads connections out when loads are equal
+		EventLoop leastLoaded = eventLoops[turn];
+		for (int i = 1; i < eventLoops.length; i++) {
+			EventLoop eventLoop = eventLoops[(turn + i) % eventLoops.length];
+			if (eventLoop.getConnectionCount() < leastLoaded.getConnectionCount()) {
+				leastLoaded = eventLoop;
+			}
+		}
+		return leastLoaded;
+	}
+
+}
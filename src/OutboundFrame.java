@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class represents a Message that is waiting to be sent to one or more Clients.
+ * The Message is encoded at most once for each wire format, no matter how many
+ * UserHandlers it is broadcast to, and every connection writes from the same bytes.
+ * The same goes for compression: a format with MessageCodec.COMPRESSED added asks for the
+ * compressed frame, which is made once from the encoded one (see ServerConfig.compressionLevel).
+ * NIO connections get their own read-only view of the bytes, so nothing is copied
+ * per recipient.
+ *
+ * The frame is reference counted: whoever creates it holds one reference, every queue
+ * it is added to takes another one, and each holder releases its reference when it is
+ * done. Once the last reference is released the encoded bytes are let go.
+ *
+ * A traced message is queued for each recipient as its own TracedFrame, which shares this
+ * frame's bytes but has its own stamps.
+ *
+ */
+public class OutboundFrame {
+
+	/**
+	 * This field is the Message this frame was made from
+	 */
+	private final Message message;
+
+	/**
+	 * This array holds the encoded frame for each wire format, compressed and not (see
+	 * variant), or null where nobody has needed that one yet. A compressed frame that was
+	 * too small to compress is the same array as the one that is not
+	 */
+	private final AtomicReferenceArray<byte[]> variants = new AtomicReferenceArray<byte[]>(4);
+
+	/**
+	 * This field is the sequence number the MessageHistory gave this frame, or 0 if it is
+	 * not in the history. It is set before the frame is broadcast
+	 */
+	private long historySequence = 0;
+
+	/**
+	 * This field counts the holders of this frame
+	 */
+	private final AtomicInteger refCount = new AtomicInteger(1);
+
+	/**
+	 * Creates a frame holding one reference, which belongs to the caller
+	 * @param message - message that will be sent
+	 */
+	public OutboundFrame(Message message) {
+		this.message = message;
+	}
+
+	/**
+	 * @return the Message this frame was made from
+	 */
+	public Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return the sequence number the MessageHistory gave this frame, or 0 if it is not in the history
+	 */
+	public long getHistorySequence() {
+		return historySequence;
+	}
+
+	void setHistorySequence(long historySequence) {
+		this.historySequence = historySequence;
+	}
+
+	/**
+	 * Adds a holder to this frame
+	 * @return this frame
+	 */
+	public OutboundFrame retain() {
+		refCount.incrementAndGet();
+		return this;
+	}
+
+	/**
+	 * Removes a holder from this frame. The last holder lets go of the encoded bytes
+	 */
+	public void release() {
+		if (refCount.decrementAndGet() == 0) {
+			freed();
+		}
+	}
+
+	/**
+	 * Called when the last holder has released this frame
+	 */
+	protected void freed() {
+		for (int i = 0; i < variants.length(); i++) {
+			variants.set(i, null);
+		}
+	}
+
+	/**
+	 * Called by the OutboundQueue when this frame is taken out to be written. Only a
+	 * TracedFrame does anything with it
+	 */
+	void dequeued() {
+	}
+
+	/**
+	 * @param format - FORMAT_JAVA or FORMAT_BINARY
+	 * @return the number of bytes this frame takes up on the wire
+	 * @throws IOException if the message could not be encoded
+	 */
+	public int size(int format) throws IOException {
+		return bytes(format).length;
+	}
+
+	/**
+	 * @return the number of holders of this frame
+	 */
+	public int refCount() {
+		return refCount.get();
+	}
+
+	/**
+	 * Returns the encoded frame in a wire format, encoding it if this is the first time
+	 * that format is needed. The array is shared and must not be changed
+	 * @param format - FORMAT_JAVA or FORMAT_BINARY, with MessageCodec.COMPRESSED added for
+	 * the compressed frame
+	 * @return the complete frame
+	 * @throws IOException if the message could not be encoded
+	 */
+	public byte[] bytes(int format) throws IOException {
+		int variant = variant(format);
+		byte[] frame = variants.get(variant);
+		if (frame != null) {
+			return frame;
+		}
+		// The compressed frame is made from the encoded one, outside of the lock below
+		byte[] raw = null;
+		if ((format & MessageCodec.COMPRESSED) != 0) {
+			raw = bytes(format & ~MessageCodec.COMPRESSED);
+		}
+		// Only the first caller for each format encodes, everyone else waits for its result
+		synchronized (this) {
+			frame = variants.get(variant);
+			if (frame == null) {
+				frame = raw == null ? encode(format) : compress(raw);
+				variants.set(variant, frame);
+			}
+			return frame;
+		}
+	}
+
+	/**
+	 * @param format - FORMAT_JAVA or FORMAT_BINARY, maybe with MessageCodec.COMPRESSED added
+	 * @return the index of that format in variants
+	 * @throws IOException if the format is not known
+	 */
+	private static int variant(int format) throws IOException {
+		int wireFormat = format & ~MessageCodec.COMPRESSED;
+		if (wireFormat != MessageCodec.FORMAT_JAVA && wireFormat != MessageCodec.FORMAT_BINARY) {
+			throw new IOException("Unknown wire format " + format);
+		}
+		return wireFormat * 2 + ((format & MessageCodec.COMPRESSED) != 0 ? 1 : 0);
+	}
+
+	/**
+	 * Encodes the message, timing it in ServerMetrics.serializationNanos
+	 * @param format - FORMAT_JAVA or FORMAT_BINARY
+	 * @return the complete frame
+	 * @throws IOException if the message could not be encoded
+	 */
+	private byte[] encode(int format) throws IOException {
+		if (!ServerConfig.metrics) {
+			return MessageCodec.encode(message, format);
+		}
+		long start = System.nanoTime();
+		byte[] frame = MessageCodec.encode(message, format);
+		ServerMetrics.serializationNanos.record(System.nanoTime() - start);
+		return frame;
+	}
+
+	/**
+	 * Compresses the encoded frame if it is at least ServerConfig.compressionThreshold bytes,
+	 * timing it in ServerMetrics.compressionNanos
+	 * @param raw - encoded frame
+	 * @return the compressed frame, or raw if it is left as it is
+	 */
+	private static byte[] compress(byte[] raw) {
+		if (raw.length < ServerConfig.compressionThreshold) {
+			return raw;
+		}
+		if (!ServerConfig.metrics) {
+			return MessageCodec.compress(raw, ServerConfig.compressionThreshold, ServerConfig.compressionLevel);
+		}
+		long start = System.nanoTime();
+		byte[] frame = MessageCodec.compress(raw, ServerConfig.compressionThreshold, ServerConfig.compressionLevel);
+		ServerMetrics.compressionNanos.record(System.nanoTime() - start);
+		ServerMetrics.bytesBeforeCompression.add(raw.length);
+		ServerMetrics.bytesAfterCompression.add(frame.length);
+		return frame;
+	}
+
+	/**
+	 * Returns a read-only view of the encoded frame with its own position, so that any
+	 * number of connections can write the same bytes at their own pace
+	 * @param format - FORMAT_JAVA or FORMAT_BINARY
+	 * @return a new view of the complete frame
+	 * @throws IOException if the message could not be encoded
+	 */
+	public ByteBuffer buffer(int format) throws IOException {
+		return ByteBuffer.wrap(bytes(format)).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Writes the encoded frame to a blocking stream
+	 * @param out - stream connected to the Client
+	 * @param format - FORMAT_JAVA or FORMAT_BINARY
+	 * @throws IOException if the stream is broken
+	 */
+	public void writeTo(OutputStream out, int format) throws IOException {
+		out.write(bytes(format));
+	}
+
+	@Override
+	public String toString() {
+		return message.toString();
+	}
+
+}
@@ -0,0 +1,371 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class is the queue of frames waiting to be sent to one Client. It is bounded both by
+ * the number of frames and by the number of bytes they take up in the Client's wire format,
+ * so that a Client on a bad link can never make the Server run out of memory.
+ *
+ * What happens when a frame does not fit is decided by the SlowConsumerPolicy:
+ * BLOCK makes the sender wait a little for room, and disconnects the Client if none is made.
+ * Only frames from a user wait: a frame from the Server (a heartbeat, a join or leave, an
+ * acknowledgement) is sent by Threads that must never be held up, like the TimingWheel's or
+ * one stopping a UserHandler, so it disconnects the Client at once if it does not fit.
+ * DROP_OLDEST_CHAT throws away the oldest chat messages (CHAT_MESSAGEs and ROOM_CHAT_MESSAGEs)
+ * to make room, but never any other kind of message, since presence and control messages
+ * keep the Client's view correct.
+ * DISCONNECT disconnects the Client straight away.
+ *
+ * Any thread may add frames. The frames are taken out by the one thread that writes them
+ * to the Client. The queue holds one reference to every frame in it.
+ *
+ */
+public class OutboundQueue {
+
+	/**
+	 * What to do with a Client whose queue is full
+	 */
+	public enum SlowConsumerPolicy {
+		BLOCK,
+		DROP_OLDEST_CHAT,
+		DISCONNECT
+	}
+
+	/**
+	 * What happened to a frame that was offered to the queue
+	 *
+	 * ACCEPTED means it is in the queue
+	 * DROPPED means it was thrown away, but the Client can stay connected
+	 * OVERFLOW means it was thrown away and the Client should be disconnected
+	 */
+	public enum Result {
+		ACCEPTED,
+		DROPPED,
+		OVERFLOW
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notEmpty = lock.newCondition();
+
+	private final Condition notFull = lock.newCondition();
+
+	/**
+	 * This Deque holds the frames, oldest first
+	 */
+	private final ArrayDeque<OutboundFrame> frames = new ArrayDeque<OutboundFrame>();
+
+	/**
+	 * This field is the number of bytes the queued frames take up in wireFormat
+	 */
+	private long bytes = 0;
+
+	/**
+	 * This field is the wire format the frames will be written in, which decides their size
+	 */
+	private volatile int wireFormat;
+
+	/**
+	 * Creates an empty queue
+	 * @param wireFormat - wire format the frames will be written in
+	 */
+	public OutboundQueue(int wireFormat) {
+		this.wireFormat = wireFormat;
+	}
+
+	/**
+	 * Changes the wire format the frames will be written in. Only allowed while the queue is empty
+	 * @param wireFormat - the wire format agreed on with the Client
+	 */
+	public void setWireFormat(int wireFormat) {
+		this.wireFormat = wireFormat;
+	}
+
+	/**
+	 * Adds a frame if it fits within the limits, following ServerConfig.slowConsumerPolicy if it does not.
+	 * The queue takes over the caller's reference to the frame, and releases it if the frame is thrown away
+	 * @param frame - frame that is being sent
+	 * @return what happened to the frame
+	 */
+	public Result offer(OutboundFrame frame) {
+		int size = sizeOf(frame);
+		if (size < 0) {
+			frame.release();
+			return Result.DROPPED;
+		}
+		SlowConsumerPolicy policy = ServerConfig.slowConsumerPolicy;
+		lock.lock();
+		try {
+			if (!fits(size)) {
+				if (policy == SlowConsumerPolicy.BLOCK && !EventLoop.isEventLoopThread()
+						&& !frame.getMessage().getOriginatingUser().isServer()) {
+					// Never block an EventLoop, it is sending to many other Clients too
+					long wait = TimeUnit.MILLISECONDS.toNanos(ServerConfig.slowConsumerBlockMillis);
+					while (!fits(size) && wait > 0) {
+						wait = notFull.awaitNanos(wait);
+					}
+				} else if (policy == SlowConsumerPolicy.DROP_OLDEST_CHAT) {
+					dropOldestChat(size);
+					if (!fits(size) && isChat(frame)) {
+						ServerMetrics.droppedMessages.increment();
+						frame.release();
+						return Result.DROPPED;
+					}
+				}
+				if (!fits(size)) {
+					ServerMetrics.droppedMessages.increment();
+					frame.release();
+					return Result.OVERFLOW;
+				}
+			}
+			add(frame, size);
+			return Result.ACCEPTED;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			frame.release();
+			return Result.DROPPED;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a frame even if the queue is full. This is only used for the last message a Client
+	 * gets before being disconnected, which goes over the limits by at most one frame, and for
+	 * the users a PeerLink lists when it connects, at most one frame for every user
+	 * @param frame - frame that is being sent, whose reference the queue takes over
+	 */
+	public void forceOffer(OutboundFrame frame) {
+		int size = sizeOf(frame);
+		if (size < 0) {
+			frame.release();
+			return;
+		}
+		lock.lock();
+		try {
+			add(frame, size);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until there is a frame, and takes it out. The caller becomes the holder of its reference
+	 * @return the oldest frame
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public OutboundFrame take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (frames.isEmpty()) {
+				notEmpty.await();
+			}
+			return remove();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes out the oldest frame, waiting up to the given time for one to arrive
+	 * @return the oldest frame, or null if there was none in time
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public OutboundFrame poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long wait = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (frames.isEmpty()) {
+				if (wait <= 0) {
+					return null;
+				}
+				wait = notEmpty.awaitNanos(wait);
+			}
+			return remove();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes out the oldest frame without waiting
+	 * @return the oldest frame, or null if the queue is empty
+	 */
+	public OutboundFrame poll() {
+		lock.lock();
+		try {
+			return frames.isEmpty() ? null : remove();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes out up to maxFrames frames, oldest first, without waiting
+	 * @param target - collection the frames are added to
+	 * @param maxFrames - largest number of frames to take
+	 * @return the number of frames taken
+	 */
+	public int drainTo(Collection<OutboundFrame> target, int maxFrames) {
+		lock.lock();
+		try {
+			int count = 0;
+			while (count < maxFrames && !frames.isEmpty()) {
+				target.add(remove());
+				count++;
+			}
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Throws away every queued frame
+	 */
+	public void clear() {
+		lock.lock();
+		try {
+			while (!frames.isEmpty()) {
+				remove().release();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of queued frames
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return frames.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of bytes the queued frames take up
+	 */
+	public long bytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return a copy of the queued frames, oldest first (for tests and debugging)
+	 */
+	public OutboundFrame[] toArray() {
+		lock.lock();
+		try {
+			return frames.toArray(new OutboundFrame[0]);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean fits(int size) {
+		return frames.size() < ServerConfig.outboundMaxMessages
+				&& bytes + size <= ServerConfig.outboundMaxBytes;
+	}
+
+	private void add(OutboundFrame frame, int size) {
+		frames.add(frame);
+		bytes += size;
+		ServerMetrics.queuedMessages.increment();
+		ServerMetrics.queuedBytes.add(size);
+		notEmpty.signal();
+	}
+
+	private OutboundFrame remove() {
+		OutboundFrame frame = frames.poll();
+		frame.dequeued();
+		forget(frame);
+		notFull.signalAll();
+		return frame;
+	}
+
+	private void forget(OutboundFrame frame) {
+		int size = Math.max(0, sizeOf(frame));
+		bytes -= size;
+		ServerMetrics.queuedMessages.decrement();
+		ServerMetrics.queuedBytes.add(-size);
+	}
+
+	/**
+	 * Throws away chat messages, oldest first, until a frame of the given size fits
+	 */
+	private void dropOldestChat(int size) {
+		Iterator<OutboundFrame> it = frames.iterator();
+		while (!fits(size) && it.hasNext()) {
+			OutboundFrame frame = it.next();
+			if (isChat(frame)) {
+				it.remove();
+				forget(frame);
+				frame.release();
+				ServerMetrics.droppedMessages.increment();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the frame holds a chat message, which may be dropped by DROP_OLDEST_CHAT
+	 */
+	private static boolean isChat(OutboundFrame frame) {
+		MessageType type = frame.getMessage().getType();
+		return type == MessageType.CHAT_MESSAGE || type == MessageType.ROOM_CHAT_MESSAGE;
+	}
+
+	/**
+	 * @return the size of the frame in this queue's wire format, or -1 if it cannot be encoded
+	 */
+	private int sizeOf(OutboundFrame frame) {
+		try {
+			return frame.size(wireFormat);
+		} catch (IOException e) {
+			System.out.println("Could not encode " + frame + ": " + e.getMessage());
+			return -1;
+		}
+	}
+
+	// Test method to make sure the slow consumer policies keep the queue within its limits
+	public static void main(String[] args) {
+		ServerConfig.outboundMaxMessages = 5;
+		ServerConfig.outboundMaxBytes = 1 << 20;
+		User alice = new User("Alice");
+
+		for (SlowConsumerPolicy policy : SlowConsumerPolicy.values()) {
+			ServerConfig.slowConsumerPolicy = policy;
+			ServerConfig.slowConsumerBlockMillis = 50;
+			OutboundQueue queue = new OutboundQueue(MessageCodec.FORMAT_BINARY);
+			queue.offer(new OutboundFrame(new Message(MessageType.USER_STATUS_CHANGE_MESSAGE, User.SERVER, null, new Object[] {alice, true, 1L})));
+			for (int i = 0; i < 4; i++) {
+				queue.offer(new OutboundFrame(new Message(MessageType.CHAT_MESSAGE, alice, "chat " + i, null)));
+			}
+			long start = System.nanoTime();
+			Result chat = queue.offer(new OutboundFrame(new Message(MessageType.CHAT_MESSAGE, alice, "one too many", null)));
+			long chatWaited = (System.nanoTime() - start) / 1000000;
+			start = System.nanoTime();
+			Result status = queue.offer(new OutboundFrame(new Message(MessageType.USER_STATUS_CHANGE_MESSAGE, User.SERVER, null, new Object[] {alice, false, 2L})));
+			long statusWaited = (System.nanoTime() - start) / 1000000;
+			// Only the chat may have waited: a frame from the Server never does
+			System.out.println(policy + ": extra chat " + chat + " after " + chatWaited + " ms, extra status " + status
+					+ " after " + statusWaited + " ms. Queue holds " + queue.size() + " frames (" + queue.bytes() + " bytes):");
+			for (OutboundFrame frame : queue.toArray()) {
+				System.out.println("  " + frame);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,182 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class is the link from this node to one other node of the cluster (see Cluster). It
+ * connects to the other node's cluster port, says which node it is and answers its challenge
+ * with the cluster secret, tells it every user of this node, and then writes whatever this node relays, in the order it was relayed.
+ *
+ * Frames wait in an OutboundQueue, like those of a Client, and are written in batches by the
+ * link's own Thread. They are written in MessageCodec.FORMAT_BINARY, compressed if they are
+ * large and ServerConfig.compressionLevel is set, from the same bytes as every Client gets.
+ *
+ * While the other node cannot be reached, nothing is queued for it. The link tries again
+ * every RETRY_MILLIS, and starts over with every user of this node once it is back. If its
+ * queue overflows, the link is closed and started over the same way, since a join or leave
+ * that was thrown away would leave the other node with the wrong users.
+ *
+ */
+class PeerLink implements Runnable {
+
+	/**
+	 * This field is how long (in milliseconds) the link waits before connecting again
+	 */
+	private static final long RETRY_MILLIS = 1000;
+
+	/**
+	 * This field is the number of this node, which the link starts with
+	 */
+	private final int nodeId;
+
+	/**
+	 * These fields are the cluster port of the other node
+	 */
+	private final String host;
+	private final int port;
+
+	/**
+	 * This field is the format every frame is written in
+	 */
+	private final int format;
+
+	/**
+	 * This field holds the frames waiting to be written, or is null while the link is not connected
+	 */
+	private volatile OutboundQueue queue;
+
+	/**
+	 * This field is the connected socket, or null while the link is not connected
+	 */
+	private volatile Socket socket;
+
+	PeerLink(int nodeId, String host, int port) {
+		this.nodeId = nodeId;
+		this.host = host;
+		this.port = port;
+		this.format = MessageCodec.FORMAT_BINARY | (ServerConfig.compressionLevel > 0 ? MessageCodec.COMPRESSED : 0);
+	}
+
+	/**
+	 * Queues a frame for the other node, if it is connected. If it does not fit, the link is
+	 * closed and starts over, so the queue never grows past its limits. Joins and leaves come
+	 * from the Server, so they never wait for room (see OutboundQueue) and the Roster's lock,
+	 * which they are sent under, is never held while waiting
+	 * @param frame - frame that is relayed. The caller keeps its reference
+	 */
+	void send(OutboundFrame frame) {
+		OutboundQueue live = queue;
+		if (live == null) {
+			return;
+		}
+		if (live.offer(frame.retain()) != OutboundQueue.Result.ACCEPTED) {
+			ServerMetrics.clusterDropped.increment();
+			close();
+			return;
+		}
+		ServerMetrics.clusterRelayed.increment();
+	}
+
+	/**
+	 * Keeps the link connected, and writes every queued frame to it
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				connectAndWrite();
+			} catch (IOException e) {
+				if (socket != null) {
+					System.out.println("Cluster: link to " + this + " closed: " + e.getMessage());
+				}
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				close();
+			}
+			try {
+				Thread.sleep(RETRY_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void connectAndWrite() throws IOException, InterruptedException {
+		Socket connected = new Socket(host, port);
+		connected.setTcpNoDelay(true);
+		socket = connected;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connected.getOutputStream(), Server.SEND_BUFFER_SIZE));
+		byte[] challenge = new byte[Cluster.CHALLENGE_LENGTH];
+		connected.setSoTimeout(Cluster.CHALLENGE_TIMEOUT_MILLIS);
+		new DataInputStream(connected.getInputStream()).readFully(challenge);
+		connected.setSoTimeout(0);
+		out.writeInt(nodeId);
+		out.write(Cluster.proof(challenge, nodeId));
+		out.flush();
+		OutboundQueue connectedQueue = new OutboundQueue(format);
+		// Nobody can join or leave while the users are listed and the queue goes live, so every
+		// change after this is sent on the queue, and every change before it is in the list.
+		// The list goes over the queue's limits if it must, since it is at most one frame per user
+		Roster roster = Server.getRoster();
+		synchronized (roster) {
+			for (UserHandler userHandler : Server.getCurrentUserHandlers()) {
+				User user = userHandler.getUser();
+				if (roster.contains(user.getId())) {
+					connectedQueue.forceOffer(Cluster.statusFrame(user, true, roster.getVersion()));
+				}
+			}
+			queue = connectedQueue;
+		}
+		System.out.println("Cluster: linked to " + this);
+		int maxBatch = ServerConfig.maxWriteBatch;
+		while (true) {
+			OutboundFrame frame = connectedQueue.poll(RETRY_MILLIS, TimeUnit.MILLISECONDS);
+			if (frame == null) {
+				if (queue != connectedQueue) {
+					throw new IOException("Link was reset.");
+				}
+				continue;
+			}
+			int written = 0;
+			do {
+				try {
+					frame.writeTo(out, format);
+				} finally {
+					frame.release();
+				}
+				written++;
+			} while (written < maxBatch && (frame = connectedQueue.poll()) != null);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Stops queueing frames and closes the socket, which makes the link connect again
+	 */
+	private void close() {
+		OutboundQueue closedQueue = queue;
+		queue = null;
+		if (closedQueue != null) {
+			closedQueue.clear();
+		}
+		Socket closedSocket = socket;
+		socket = null;
+		if (closedSocket != null) {
+			try {
+				closedSocket.close();
+			} catch (IOException e) {
+				// Closed anyway
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return host + ":" + port;
+	}
+
+}
@@ -0,0 +1,83 @@
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class sends joins and leaves to the Clients in batches, instead of one
+ * USER_STATUS_CHANGE_MESSAGE to every other Client for every join and every leave. When
+ * thousands of Clients reconnect at once, that is millions of messages, most of them about
+ * users that have already left again by the time they arrive.
+ *
+ * The first change after a quiet period starts a window of ServerConfig.presenceWindowMillis.
+ * When it ends, the Roster publishes everything that changed during it as one ROSTER_MESSAGE,
+ * which is encoded once and queued once for every Client. However many users joined and left,
+ * every Client gets one message per window.
+ *
+ */
+public class PresenceBatcher {
+
+	/**
+	 * This boolean is true while a window is open and its publish is scheduled
+	 */
+	private final AtomicBoolean publishScheduled = new AtomicBoolean(false);
+
+	/**
+	 * This executor runs the publishes. Its Thread is only started by the first change
+	 */
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "presence");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Called after every join and leave. Opens a window if none is open
+	 */
+	public void changed() {
+		if (publishScheduled.compareAndSet(false, true)) {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					publish();
+				}
+			}, ServerConfig.presenceWindowMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Closes the window and sends what changed during it to every Client. Any change after the
+	 * window is closed opens the next one, even if it is included in this publish already
+	 */
+	private void publish() {
+		publishScheduled.set(false);
+		ArrayList<OutboundFrame> batch = new ArrayList<OutboundFrame>();
+		Server.getRoster().publish(batch);
+		if (batch.isEmpty()) {
+			return;
+		}
+		boolean timed = ServerConfig.metrics;
+		long start = timed ? System.nanoTime() : 0;
+		long queued = 0;
+		for (UserHandler userHandler : Server.getCurrentUserHandlers()) {
+			for (OutboundFrame frame : batch) {
+				userHandler.addToOutgoingMessages(frame);
+				queued++;
+			}
+		}
+		if (timed) {
+			ServerMetrics.broadcastNanos.record(System.nanoTime() - start);
+		}
+		for (OutboundFrame frame : batch) {
+			frame.release();
+		}
+		ServerMetrics.presenceBatches.increment();
+		ServerMetrics.presenceMessages.add(queued);
+	}
+
+}
@@ -0,0 +1,227 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class measures a reconnect storm: it starts a Server in this process and connects a
+ * number of users, then drops every connection at once (as a network blip would) and has
+ * every user connect again straight away. Every user keeps its own list of users from the
+ * ROSTER_MESSAGEs and USER_STATUS_CHANGE_MESSAGEs it is sent, the way Client does.
+ *
+ * It prints the number of presence messages the users received during the storm and the
+ * time from the blip until every reconnected user's list held exactly the reconnected users.
+ * Run it with --presenceWindowMillis=0 to compare with sending every join and leave on its own.
+ *
+ * Usage: java PresenceStormMeasurement [users] [server settings...]
+ *
+ */
+public class PresenceStormMeasurement {
+
+	private static final AtomicLong presenceMessages = new AtomicLong();
+
+	/**
+	 * This class is one connection of a user and the list of users it has been told about
+	 */
+	private static class StormUser {
+
+		private final Socket socket;
+		private final DataInputStream in;
+		private final User user;
+
+		/**
+		 * These fields are the user's list, guarded by this StormUser
+		 */
+		private final HashSet<Integer> roster = new HashSet<Integer>();
+		private long rosterVersion;
+		private int rosterPagesLeft;
+		private final TreeMap<Long, Object[]> pendingStatusChanges = new TreeMap<Long, Object[]>();
+
+		StormUser(String username) throws IOException {
+			socket = new Socket(InetAddress.getLoopbackAddress(), ServerConfig.port);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			Object[] details = Client.requestConnection(out, in, new User(username)).getMessageDetails();
+			user = (User) details[1];
+			long ackVersion = (Long) details[0];
+			Object[] rosterDetails;
+			do {
+				rosterDetails = MessageCodec.readMessage(in).getMessageDetails();
+				apply(rosterDetails);
+			} while (rosterVersion != ackVersion || (Integer) rosterDetails[1] != 0);
+		}
+
+		/**
+		 * Reads every message until the connection is dropped
+		 */
+		void receive() {
+			try {
+				while (true) {
+					Message message = MessageCodec.readMessage(in);
+					Object[] details = message.getMessageDetails();
+					if (message.getType() == MessageType.ROSTER_MESSAGE) {
+						presenceMessages.incrementAndGet();
+						long version = (Long) details[0];
+						synchronized (this) {
+							boolean nextPage = version == rosterVersion && rosterPagesLeft > 0 && !(Boolean) details[2];
+							if (version > rosterVersion || nextPage) {
+								apply(details);
+							}
+						}
+					} else if (message.getType() == MessageType.USER_STATUS_CHANGE_MESSAGE) {
+						presenceMessages.incrementAndGet();
+						statusChange(details);
+					}
+				}
+			} catch (IOException e) {
+				// The connection was dropped
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private synchronized void apply(Object[] details) {
+			if ((Boolean) details[2]) {
+				roster.clear();
+			}
+			for (User joined : (ArrayList<User>) details[3]) {
+				roster.add(joined.getId());
+			}
+			for (User left : (ArrayList<User>) details[4]) {
+				roster.remove(left.getId());
+			}
+			rosterVersion = (Long) details[0];
+			rosterPagesLeft = (Integer) details[1];
+			pendingStatusChanges.headMap(rosterVersion, true).clear();
+		}
+
+		private synchronized void statusChange(Object[] details) {
+			long version = (Long) details[2];
+			if (version <= rosterVersion) {
+				return;
+			}
+			pendingStatusChanges.put(version, details);
+			while (!pendingStatusChanges.isEmpty() && pendingStatusChanges.firstKey() == rosterVersion + 1) {
+				rosterVersion++;
+				Object[] change = pendingStatusChanges.remove(rosterVersion);
+				int id = ((User) change[0]).getId();
+				if ((Boolean) change[1]) {
+					roster.add(id);
+				} else {
+					roster.remove(id);
+				}
+			}
+		}
+
+		synchronized boolean knowsExactly(HashSet<Integer> ids) {
+			return roster.equals(ids);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int users = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		final String[] serverArgs = new String[Math.max(0, args.length - 1) + 1];
+		serverArgs[0] = "--mode=nio";
+		System.arraycopy(args, Math.min(1, args.length), serverArgs, 1, serverArgs.length - 1);
+
+		// The Server prints every message it receives, which would drown the results
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		Harness.startServer(serverArgs);
+
+		ArrayList<StormUser> before = connectAll(users, "before");
+		while (Server.getRoster().size() < users) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(500);
+
+		// The blip: every connection drops, and every user connects again at once
+		presenceMessages.set(0);
+		ServerMetrics.reset();
+		long start = System.nanoTime();
+		for (StormUser user : before) {
+			user.socket.close();
+		}
+		ArrayList<StormUser> after = connectAll(users, "after");
+		long connected = System.nanoTime();
+
+		HashSet<Integer> ids = new HashSet<Integer>();
+		for (StormUser user : after) {
+			ids.add(user.user.getId());
+		}
+		long deadline = System.currentTimeMillis() + 120000;
+		int recovered = 0;
+		while (System.currentTimeMillis() < deadline) {
+			recovered = 0;
+			for (StormUser user : after) {
+				if (user.knowsExactly(ids)) {
+					recovered++;
+				}
+			}
+			if (recovered == users) {
+				break;
+			}
+			Thread.sleep(5);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		console.println("Settings: " + ServerConfig.describe());
+		console.printf("%d users dropped and reconnected; all reconnected in %.2f s%n", users, (connected - start) / 1e9);
+		console.printf("%d of %d users had exactly the right users %.2f s after the drop%n", recovered, users, elapsed / 1e9);
+		console.printf("Presence messages received during the storm: %,d (%.1f per user)%n",
+				presenceMessages.get(), (double) presenceMessages.get() / users);
+		console.println(ServerMetrics.describe());
+		System.exit(recovered == users ? 0 : 1);
+	}
+
+	/**
+	 * Connects users from a few Threads at once, and starts a receiving Thread for each
+	 */
+	private static ArrayList<StormUser> connectAll(final int users, final String prefix) throws InterruptedException {
+		final StormUser[] connected = new StormUser[users];
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(8);
+		for (int t = 0; t < 8; t++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					int i;
+					while ((i = next.getAndIncrement()) < users) {
+						try {
+							final StormUser user = new StormUser(prefix + i);
+							connected[i] = user;
+							Thread receiver = new Thread(new Runnable() {
+								@Override
+								public void run() {
+									user.receive();
+								}
+							}, "receive-" + prefix + i);
+							receiver.setDaemon(true);
+							receiver.start();
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		done.await();
+		ArrayList<StormUser> list = new ArrayList<StormUser>(users);
+		for (StormUser user : connected) {
+			list.add(user);
+		}
+		return list;
+	}
+
+}
@@ -0,0 +1,250 @@
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class limits how many messages and bytes per second are taken in, with a token bucket
+ * for each: a bucket fills up at the rate, holds at most the burst, and every message takes
+ * one token from the message bucket and a token per byte from the byte bucket. A message that
+ * finds either bucket short has to wait, is dropped, or gets its Client disconnected, as
+ * ServerConfig.rateLimitPolicy says (see UserHandler.admit).
+ *
+ * Every UserHandler has a RateLimiter of its own if ServerConfig.userMessageRate or userByteRate
+ * is set, and the Server has one that every message goes through if globalMessageRate or
+ * globalByteRate is set. Without any of them there is no RateLimiter at all.
+ *
+ * The buckets never lock: a bucket is a single AtomicLong holding the time at which it would be
+ * empty, so taking tokens is one System.nanoTime() and one compareAndSet, which only has to be
+ * tried again when another Thread took tokens from the same bucket at the same moment.
+ *
+ */
+public class RateLimiter {
+
+	/**
+	 * What happens to a message that is over the limit
+	 */
+	public enum Policy {
+		/**
+		 * It is thrown away, and the Client stays connected
+		 */
+		DROP,
+
+		/**
+		 * It waits until there are tokens for it, and so does everything the Client sends after
+		 * it: in legacy mode the listening Thread sleeps, and in NIO mode the connection is not
+		 * read. The Client's own socket buffers fill up, and it is slowed down by TCP
+		 */
+		DELAY,
+
+		/**
+		 * The Client is disconnected
+		 */
+		DISCONNECT
+	}
+
+	/**
+	 * These buckets are null when there is no limit on messages or on bytes
+	 */
+	private final TokenBucket messages;
+	private final TokenBucket bytes;
+
+	private RateLimiter(TokenBucket messages, TokenBucket bytes) {
+		this.messages = messages;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Makes a RateLimiter, if there is anything to limit
+	 * @param messagesPerSecond - rate of messages, or 0 for no limit
+	 * @param bytesPerSecond - rate of bytes (whole frames), or 0 for no limit
+	 * @param burstMillis - how many milliseconds of the rate a full bucket holds
+	 * @return the RateLimiter, or null if both rates are 0
+	 */
+	public static RateLimiter create(long messagesPerSecond, long bytesPerSecond, long burstMillis) {
+		if (messagesPerSecond <= 0 && bytesPerSecond <= 0) {
+			return null;
+		}
+		return new RateLimiter(messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond, burstMillis) : null,
+				bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, burstMillis) : null);
+	}
+
+	/**
+	 * Takes the tokens for one message, if both buckets have them. Nothing is taken otherwise
+	 * @param frameBytes - size of the message's frame
+	 * @return 0 if the tokens were taken, or else how many nanoseconds until they would be there
+	 */
+	public long tryAcquire(int frameBytes) {
+		if (messages != null) {
+			long wait = messages.tryTake(1);
+			if (wait > 0) {
+				return wait;
+			}
+		}
+		if (bytes != null) {
+			long wait = bytes.tryTake(frameBytes);
+			if (wait > 0) {
+				if (messages != null) {
+					messages.giveBack(1);
+				}
+				return wait;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Puts back the tokens of a message whose tokens were taken, but which was held up by
+	 * another RateLimiter after all
+	 * @param frameBytes - size of the message's frame
+	 */
+	public void giveBack(int frameBytes) {
+		if (messages != null) {
+			messages.giveBack(1);
+		}
+		if (bytes != null) {
+			bytes.giveBack(frameBytes);
+		}
+	}
+
+	/**
+	 * This class is one token bucket, kept as the time (System.nanoTime) at which it would be
+	 * empty if nothing were taken from it, which is the same as how full it is now: it is full
+	 * when that time is burstNanos or more in the past, and taking a token moves that time on
+	 * by the time it takes to add one token
+	 */
+	private static class TokenBucket {
+
+		private final long ratePerSecond;
+
+		/**
+		 * This field is how long the bucket takes to fill up from empty
+		 */
+		private final long burstNanos;
+
+		/**
+		 * This field is when the bucket would be empty. Only ever changed with compareAndSet
+		 */
+		private final AtomicLong emptyAt;
+
+		TokenBucket(long ratePerSecond, long burstMillis) {
+			this.ratePerSecond = ratePerSecond;
+			this.burstNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, burstMillis));
+			// Full from the start
+			this.emptyAt = new AtomicLong(System.nanoTime() - burstNanos);
+		}
+
+		private long nanosFor(long tokens) {
+			return tokens * TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+		}
+
+		/**
+		 * Takes tokens if the bucket has them. A bucket that is full lets any number of tokens be
+		 * taken, and is in debt afterwards, so a single message larger than the burst can go
+		 * through once the bucket has filled up, instead of never
+		 * @param tokens - how many tokens to take
+		 * @return 0 if they were taken, or how many nanoseconds until the bucket would have them
+		 */
+		long tryTake(long tokens) {
+			long cost = nanosFor(tokens);
+			while (true) {
+				long now = System.nanoTime();
+				long current = emptyAt.get();
+				// An empty time in the past means the bucket holds that much (up to burstNanos)
+				long from = Math.max(current - now, -burstNanos);
+				long next = now + from + cost;
+				long wait = next - now;
+				if (wait > 0 && from > -burstNanos) {
+					return wait;
+				}
+				if (emptyAt.compareAndSet(current, next)) {
+					return 0;
+				}
+			}
+		}
+
+		/**
+		 * Puts back tokens taken with tryTake
+		 * @param tokens - how many tokens to put back
+		 */
+		void giveBack(long tokens) {
+			emptyAt.addAndGet(-nanosFor(tokens));
+		}
+	}
+
+	/**
+	 * Tests the buckets and measures what they cost:
+	 *
+	 *     one Thread takes messages as fast as it can for two seconds from a bucket of 1000 per
+	 *     second, and must get two seconds of the rate plus one burst
+	 *     four Threads do the same at once on a shared bucket of 20000 per second
+	 *     the time one message takes to go through a RateLimiter it is well within, which is what
+	 *     every message of a compliant Client pays
+	 */
+	public static void main(String[] args) throws Exception {
+		boolean passed = true;
+
+		RateLimiter single = create(1000, 0, 100);
+		long admitted = 0;
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+		while (System.nanoTime() < end) {
+			if (single.tryAcquire(100) == 0) {
+				admitted++;
+			}
+		}
+		passed &= report("1 Thread, 1000/s, burst 100 ms, 2 s", admitted, 2000 + 100);
+
+		final RateLimiter shared = create(20000, 0, 100);
+		final LongAdder sharedAdmitted = new LongAdder();
+		final long sharedEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (System.nanoTime() < sharedEnd) {
+						if (shared.tryAcquire(100) == 0) {
+							sharedAdmitted.increment();
+						}
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		passed &= report("4 Threads, 20000/s, burst 100 ms, 2 s", sharedAdmitted.sum(), 40000 + 2000);
+
+		// Bytes: frames of 1000 bytes at 100000 bytes per second are 100 messages per second, and a
+		// frame larger than the whole burst still goes through once the bucket is full
+		RateLimiter byteLimited = create(0, 100000, 100);
+		passed &= byteLimited.tryAcquire(50000) == 0;
+		long wait = byteLimited.tryAcquire(1000);
+		passed &= wait > TimeUnit.MILLISECONDS.toNanos(390);
+		System.out.printf("a 50000 byte frame at 100000 bytes/s leaves a wait of %.0f ms for the next one%n", wait / 1e6);
+
+		RateLimiter compliant = create(Long.MAX_VALUE / TimeUnit.SECONDS.toNanos(1), 0, 1000);
+		int rounds = 20000000;
+		long sink = 0;
+		for (int warmup = 0; warmup < 2; warmup++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				sink += compliant.tryAcquire(100);
+			}
+			if (warmup == 1) {
+				System.out.printf("compliant message: %.1f ns per tryAcquire%n", (System.nanoTime() - start) / (double) rounds);
+			}
+		}
+		passed &= sink == 0;
+		System.out.println(passed ? "PASSED" : "FAILED");
+	}
+
+	private static boolean report(String name, long admitted, long expected) {
+		boolean ok = Math.abs(admitted - expected) <= expected / 20;
+		System.out.printf("%s: %,d admitted (expected about %,d)%n", name, admitted, expected);
+		return ok;
+	}
+
+}
@@ -0,0 +1,95 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class holds every chat room and the UserHandlers that are in it. A message posted
+ * to a room is only sent to the members of that room, so posting costs time in proportion
+ * to the size of the room rather than to the number of users on the Server.
+ *
+ * A room exists while it has at least one member: it is created by the first join and
+ * removed by the last leave. Joining and leaving are rare, so they take a lock; looking up
+ * the members of a room, which happens for every post, never does. Like ConnectionRegistry,
+ * the members of a room can be looped over while users join and leave.
+ *
+ */
+public class RoomRegistry {
+
+	/**
+	 * This field is the longest room name that can be joined
+	 */
+	public static final int MAX_ROOM_NAME_LENGTH = 64;
+
+	/**
+	 * This Map holds the members of every room, keyed by room name
+	 */
+	private final ConcurrentHashMap<String, Set<UserHandler>> rooms = new ConcurrentHashMap<String, Set<UserHandler>>();
+
+	/**
+	 * @param room - name of a room
+	 * @return true if the name can be used for a room
+	 */
+	public static boolean isValidName(String room) {
+		return room != null && !room.trim().isEmpty() && room.length() <= MAX_ROOM_NAME_LENGTH;
+	}
+
+	/**
+	 * Adds a UserHandler to a room, creating the room if it is new
+	 * @param room - name of the room
+	 * @param uh - UserHandler that is joining
+	 * @return true if it was not in the room already
+	 */
+	public synchronized boolean join(String room, UserHandler uh) {
+		Set<UserHandler> members = rooms.get(room);
+		if (members == null) {
+			members = ConcurrentHashMap.newKeySet();
+			rooms.put(room, members);
+		}
+		return members.add(uh);
+	}
+
+	/**
+	 * Removes a UserHandler from a room, removing the room if it is now empty
+	 * @param room - name of the room
+	 * @param uh - UserHandler that is leaving
+	 * @return true if it was in the room
+	 */
+	public synchronized boolean leave(String room, UserHandler uh) {
+		Set<UserHandler> members = rooms.get(room);
+		if (members == null || !members.remove(uh)) {
+			return false;
+		}
+		if (members.isEmpty()) {
+			rooms.remove(room);
+		}
+		return true;
+	}
+
+	/**
+	 * @param room - name of the room
+	 * @return a live view of the members of the room (empty if there is no such room),
+	 * which is safe to loop over while other threads change it
+	 */
+	public Collection<UserHandler> members(String room) {
+		Set<UserHandler> members = rooms.get(room);
+		return members == null ? Collections.<UserHandler>emptySet() : members;
+	}
+
+	/**
+	 * @param room - name of the room
+	 * @param uh - a UserHandler
+	 * @return true if the UserHandler is in the room
+	 */
+	public boolean isMember(String room, UserHandler uh) {
+		return members(room).contains(uh);
+	}
+
+	/**
+	 * @return the number of rooms that have members
+	 */
+	public int size() {
+		return rooms.size();
+	}
+
+}
@@ -0,0 +1,410 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * This class is the list of users connected to the Server, kept with a version number so
+ * that Clients can be brought up to date without being sent every user every time.
+ *
+ * Every join and every leave makes the version one higher, and the last
+ * ServerConfig.rosterDeltas of these changes are remembered. A Client that connects is told
+ * the version in its CONNECTION_ACKNOWLEDGEMENT_MESSAGE and is sent ROSTER_MESSAGEs that bring
+ * it to that version:
+ *
+ * A Client that presents the version it last saw (when reconnecting) and has not missed more
+ * changes than there are users gets a single ROSTER_MESSAGE with just the users that joined
+ * and left since then.
+ *
+ * Every other Client gets a snapshot: the users split into pages of ServerConfig.rosterPageSize,
+ * one ROSTER_MESSAGE each. The snapshot is made once and its pages are shared (already encoded)
+ * by every Client that needs them; it is only made again once enough has changed since, and
+ * whatever changed since is sent as one more ROSTER_MESSAGE after the pages. This saves the
+ * Server from building and encoding the whole list for every Client, but not the bytes: a
+ * Client without a version lacks every user, so it is still sent every user. Only a Client
+ * that reconnects with a version it saw is sent less than the whole list.
+ *
+ * Every USER_STATUS_CHANGE_MESSAGE carries the version of its change, so a Client can apply
+ * the changes in order and ignore those its ROSTER_MESSAGEs already included.
+ *
+ * With ServerConfig.presenceWindowMillis set, changes are not sent one by one. Instead the
+ * PresenceBatcher publishes them once per window: one ROSTER_MESSAGE with every user that
+ * changed since the last one, which every Client is sent. A user that joined and left within
+ * the window is never announced as joining; it is only listed among the users that left, so
+ * that Clients that connected while it was there drop it too.
+ *
+ * Versions start at the time the Server started, in milliseconds, times 1000, so a version
+ * from an earlier run of the Server is never mistaken for one of this run.
+ *
+ */
+public class Roster {
+
+	/**
+	 * This field is how many times the square root of the number of users may change after
+	 * the snapshot before it is made again (see rebuildAfter)
+	 */
+	private static final int REBUILD_FACTOR = 4;
+
+	/**
+	 * This Map holds every user in the roster, in the order they joined, keyed by User ID
+	 */
+	private final LinkedHashMap<Integer, User> users = new LinkedHashMap<Integer, User>();
+
+	/**
+	 * This field is the version the roster started at, before anyone joined
+	 */
+	private final long firstVersion;
+
+	private long version;
+
+	/**
+	 * These arrays are a ring holding the most recent changes. The change that made
+	 * version v is at index v % length
+	 */
+	private final User[] changedUsers;
+	private final boolean[] changedJoined;
+
+	/**
+	 * These fields are the pages of the current snapshot (each holding one reference) and
+	 * the version it was made at
+	 */
+	private OutboundFrame[] snapshot = new OutboundFrame[0];
+	private long snapshotVersion = -1;
+
+	/**
+	 * This field is the version the last publish brought every Client to
+	 */
+	private long publishedVersion;
+
+	/**
+	 * Creates an empty roster
+	 * @param firstVersion - version before the first change
+	 * @param deltas - number of changes that are remembered
+	 */
+	public Roster(long firstVersion, int deltas) {
+		this.firstVersion = firstVersion;
+		this.version = firstVersion;
+		this.publishedVersion = firstVersion;
+		this.changedUsers = new User[Math.max(1, deltas)];
+		this.changedJoined = new boolean[changedUsers.length];
+	}
+
+	/**
+	 * Adds a user to the roster, and collects the ROSTER_MESSAGEs that bring a Client from
+	 * the version it knows to the version after this join. Holding this roster's lock while
+	 * calling it and registering the user makes sure the user is sent every change after it
+	 * @param user - user that is joining
+	 * @param knownVersion - last version the Client saw, or 0 if it has never seen one
+	 * @param sync - list the frames are added to, with a reference taken on each for the caller
+	 * @return the version after this join
+	 */
+	public synchronized long join(User user, long knownVersion, ArrayList<OutboundFrame> sync) {
+		users.put(user.getId(), user);
+		record(user, true);
+		if (knownVersion > firstVersion && knownVersion <= version && canSendChanges(knownVersion)
+				&& version - knownVersion <= users.size()) {
+			sync.add(changes(knownVersion, false));
+			ServerMetrics.rosterDeltasSent.increment();
+			return version;
+		}
+		if (!canSendChanges(snapshotVersion) || version - snapshotVersion > rebuildAfter()) {
+			makeSnapshot();
+		}
+		for (OutboundFrame page : snapshot) {
+			sync.add(page.retain());
+		}
+		if (snapshotVersion < version) {
+			sync.add(changes(snapshotVersion, false));
+		}
+		ServerMetrics.rosterSnapshotsSent.increment();
+		return version;
+	}
+
+	/**
+	 * Adds a user that is connected to another node of the cluster (see Cluster). Unlike join,
+	 * no ROSTER_MESSAGEs are collected, since the user's own node brings its Client up to date
+	 * @param user - user that joined another node
+	 * @return the version after this join, or 0 if the user was already in the roster
+	 */
+	public synchronized long add(User user) {
+		if (users.containsKey(user.getId())) {
+			return 0;
+		}
+		users.put(user.getId(), user);
+		record(user, true);
+		return version;
+	}
+
+	/**
+	 * @param userId - ID of a user
+	 * @return true if the user is in the roster
+	 */
+	public synchronized boolean contains(int userId) {
+		return users.containsKey(userId);
+	}
+
+	/**
+	 * Removes a user from the roster
+	 * @param user - user that is leaving
+	 * @return the version after this leave, or 0 if the user was not in the roster
+	 */
+	public synchronized long leave(User user) {
+		if (users.remove(user.getId()) == null) {
+			return 0;
+		}
+		record(user, false);
+		return version;
+	}
+
+	/**
+	 * Collects the ROSTER_MESSAGEs that bring every Client from the last published version
+	 * to the current one: one message with the final state of every user that changed, or
+	 * a new snapshot if so much changed that the changes are not all remembered any more
+	 * @param batch - list the frames are added to, with a reference taken on each for the caller
+	 */
+	public synchronized void publish(ArrayList<OutboundFrame> batch) {
+		if (version == publishedVersion) {
+			return;
+		}
+		if (canSendChanges(publishedVersion)) {
+			batch.add(changes(publishedVersion, true));
+		} else {
+			makeSnapshot();
+			for (OutboundFrame page : snapshot) {
+				batch.add(page.retain());
+			}
+		}
+		publishedVersion = version;
+	}
+
+	/**
+	 * @return the current version
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the number of users in the roster
+	 */
+	public synchronized int size() {
+		return users.size();
+	}
+
+	private void record(User user, boolean joined) {
+		version++;
+		int index = (int) (version % changedUsers.length);
+		changedUsers[index] = user;
+		changedJoined[index] = joined;
+	}
+
+	/**
+	 * @return true if every change after the given version is still remembered
+	 */
+	private boolean canSendChanges(long since) {
+		return since >= firstVersion && since >= version - changedUsers.length;
+	}
+
+	/**
+	 * @return how many changes may pile up after the snapshot before it is made again. Making
+	 * it costs as much as every user, and every new Client costs as much as the changes since,
+	 * so REBUILD_FACTOR times the square root of the number of users keeps the sum of both small
+	 */
+	private int rebuildAfter() {
+		return Math.max(64, (int) (REBUILD_FACTOR * Math.sqrt(users.size())));
+	}
+
+	/**
+	 * @param since - version the changes start after
+	 * @param forEveryone - false if the frame is for a Client whose list is exactly at since, in
+	 * which case a user that joined and left is left out as if nothing happened. true if Clients
+	 * may be at a later version, which might include the user, so it is listed as left
+	 * @return a ROSTER_MESSAGE frame with the users that joined and left after a version
+	 */
+	private OutboundFrame changes(long since, boolean forEveryone) {
+		LinkedHashMap<Integer, User> joined = new LinkedHashMap<Integer, User>();
+		LinkedHashMap<Integer, User> left = new LinkedHashMap<Integer, User>();
+		for (long v = since + 1; v <= version; v++) {
+			int index = (int) (v % changedUsers.length);
+			User user = changedUsers[index];
+			if (changedJoined[index]) {
+				left.remove(user.getId());
+				joined.put(user.getId(), user);
+			} else if (joined.remove(user.getId()) == null || forEveryone) {
+				left.put(user.getId(), user);
+			}
+		}
+		return rosterFrame(version, 0, false, new ArrayList<User>(joined.values()), new ArrayList<User>(left.values()));
+	}
+
+	/**
+	 * Lets go of the old snapshot and splits the current users into new pages
+	 */
+	private void makeSnapshot() {
+		for (OutboundFrame page : snapshot) {
+			page.release();
+		}
+		int pageSize = ServerConfig.rosterPageSize;
+		int pages = Math.max(1, (users.size() + pageSize - 1) / pageSize);
+		snapshot = new OutboundFrame[pages];
+		ArrayList<User> page = new ArrayList<User>(Math.min(pageSize, users.size()));
+		int p = 0;
+		for (User user : users.values()) {
+			page.add(user);
+			if (page.size() == pageSize) {
+				snapshot[p] = rosterFrame(version, pages - p - 1, p == 0, page, new ArrayList<User>());
+				p++;
+				page = new ArrayList<User>(Math.min(pageSize, users.size() - p * pageSize));
+			}
+		}
+		if (p < pages) {
+			snapshot[p] = rosterFrame(version, 0, p == 0, page, new ArrayList<User>());
+		}
+		snapshotVersion = version;
+		ServerMetrics.rosterSnapshotsMade.increment();
+	}
+
+	private static OutboundFrame rosterFrame(long version, int pagesLeft, boolean first, ArrayList<User> joined, ArrayList<User> left) {
+		Object[] details = {version, pagesLeft, first, joined, left};
+		return new OutboundFrame(new Message(MessageType.ROSTER_MESSAGE, User.SERVER, null, details));
+	}
+
+	/**
+	 * Measures what it costs a Client to connect to a Server that already has many users,
+	 * compared to sending every user in the CONNECTION_ACKNOWLEDGEMENT_MESSAGE, and checks
+	 * that the ROSTER_MESSAGEs bring a Client to exactly the right users
+	 *
+	 * Usage: java Roster [users] [joins]
+	 */
+	@SuppressWarnings("unchecked")
+	public static void main(String[] args) throws Exception {
+		int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int joins = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		int format = MessageCodec.FORMAT_BINARY;
+		Roster roster = new Roster(System.currentTimeMillis() * 1000, ServerConfig.rosterDeltas);
+		ArrayList<OutboundFrame> sync = new ArrayList<OutboundFrame>();
+		for (int i = 0; i < userCount; i++) {
+			roster.join(new User("user" + i), 0, sync);
+			releaseAll(sync);
+		}
+
+		// Every user in one list, built and encoded for every Client (what the
+		// CONNECTION_ACKNOWLEDGEMENT_MESSAGE used to hold)
+		long start = System.nanoTime();
+		long bytes = 0;
+		for (int i = 0; i < joins; i++) {
+			ArrayList<User> list = new ArrayList<User>(roster.users.values());
+			bytes += rosterFrame(roster.version, 0, true, list, new ArrayList<User>()).bytes(format).length;
+		}
+		report("Full list per join", joins, System.nanoTime() - start, bytes);
+
+		// New Clients: shared snapshot pages plus the changes since the snapshot. Everybody
+		// who joins also leaves again, so the roster keeps its size, as in a reconnect storm.
+		// The pages are only encoded once, but each new Client is still sent every user, so
+		// the bytes are those of the full list
+		start = System.nanoTime();
+		bytes = 0;
+		for (int i = 0; i < joins; i++) {
+			User user = new User("new" + i);
+			roster.join(user, 0, sync);
+			bytes += encodeAll(sync, format);
+			roster.leave(user);
+		}
+		report("Snapshot per join", joins, System.nanoTime() - start, bytes);
+
+		// Reconnecting Clients that missed a few changes
+		start = System.nanoTime();
+		bytes = 0;
+		for (int i = 0; i < joins; i++) {
+			long known = roster.getVersion() - 10;
+			User user = new User("back" + i);
+			roster.join(user, known, sync);
+			bytes += encodeAll(sync, format);
+			roster.leave(user);
+		}
+		report("Changes per rejoin", joins, System.nanoTime() - start, bytes);
+
+		// Check that applying the ROSTER_MESSAGEs gives exactly the users in the roster, both
+		// for a new Client and for one that comes back after a few users joined and left
+		User checker = new User("check");
+		long known = roster.join(checker, 0, sync);
+		LinkedHashMap<Integer, User> seen = new LinkedHashMap<Integer, User>();
+		applyAll(seen, sync);
+		boolean passed = seen.equals(roster.users);
+		roster.leave(checker);
+		User later = new User("later");
+		roster.join(later, 0, sync);
+		releaseAll(sync);
+		roster.leave(roster.users.values().iterator().next());
+		User returning = new User("check again");
+		roster.join(returning, known, sync);
+		passed &= sync.size() == 1;
+		applyAll(seen, sync);
+		passed &= seen.equals(roster.users);
+
+		// A published batch must be right both for a Client that was there before the window
+		// and for one that connected during it and saw a user that left again
+		roster.publish(sync);
+		releaseAll(sync);
+		LinkedHashMap<Integer, User> early = new LinkedHashMap<Integer, User>(roster.users);
+		User flapping = new User("flapping");
+		roster.join(flapping, 0, sync);
+		LinkedHashMap<Integer, User> middle = new LinkedHashMap<Integer, User>();
+		applyAll(middle, sync);
+		roster.leave(flapping);
+		roster.join(new User("stays"), 0, sync);
+		releaseAll(sync);
+		roster.publish(sync);
+		passed &= sync.size() == 1;
+		for (User user : (ArrayList<User>) sync.get(0).getMessage().getMessageDetails()[3]) {
+			passed &= user != flapping;
+		}
+		for (OutboundFrame frame : sync) {
+			apply(early, frame.getMessage());
+			apply(middle, frame.getMessage());
+		}
+		releaseAll(sync);
+		passed &= early.equals(roster.users) && middle.equals(roster.users);
+		System.out.println(passed ? "PASSED" : "FAILED");
+	}
+
+	private static void applyAll(LinkedHashMap<Integer, User> roster, ArrayList<OutboundFrame> frames) {
+		for (OutboundFrame frame : frames) {
+			apply(roster, frame.getMessage());
+		}
+		releaseAll(frames);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void apply(LinkedHashMap<Integer, User> roster, Message message) {
+		Object[] details = message.getMessageDetails();
+		if ((Boolean) details[2]) {
+			roster.clear();
+		}
+		for (User user : (ArrayList<User>) details[3]) {
+			roster.put(user.getId(), user);
+		}
+		for (User user : (ArrayList<User>) details[4]) {
+			roster.remove(user.getId());
+		}
+	}
+
+	private static long encodeAll(ArrayList<OutboundFrame> frames, int format) throws Exception {
+		long bytes = 0;
+		for (OutboundFrame frame : frames) {
+			bytes += frame.bytes(format).length;
+		}
+		releaseAll(frames);
+		return bytes;
+	}
+
+	private static void releaseAll(ArrayList<OutboundFrame> frames) {
+		for (OutboundFrame frame : frames) {
+			frame.release();
+		}
+		frames.clear();
+	}
+
+	private static void report(String name, int joins, long nanos, long bytes) {
+		System.out.printf("%-20s %,10.1f us and %,10d bytes per join%n", name, nanos / 1000.0 / joins, bytes / joins);
+	}
+
+}
@@ -1,9 +1,13 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.Queue;
@@ -42,23 +46,194 @@ public class Server {
 	public static int DEFAULT_PORT = 1234;
 
 	/**
-	 * This field is the ServerSocket which will listen for new connections.
-	 * It will be instantiated using the listeningPort
+	 * This field is the size of the buffer in front of every Client socket. A whole batch
+	 * of outgoing messages is collected in it and written with one socket write
 	 */
-	private static ServerSocket welcomeSocket;
+	public static final int SEND_BUFFER_SIZE = 64 * 1024;
 
 	/**
-	 * This field is an ArrayList that contains all of the current UserHandlers
+	 * This field is how many connections the operating system may hold for the Server before
+	 * they are accepted. The default of 50 is too few for a burst of reconnects, whose
+	 * connections would then have to try again after a second
 	 */
-	private static ArrayList<UserHandler> currentUserHandlers = new ArrayList<UserHandler>();
+	public static final int ACCEPT_BACKLOG = 1024;
+
+	/**
+	 * This field is how long (in milliseconds) an acceptor waits after accepting failed. Accepting
+	 * mostly fails because the process is out of file descriptors, which only closing connections
+	 * gives back, so trying again at once would only spin
+	 */
+	public static final long ACCEPT_RETRY_MILLIS = 100;
+
+	/**
+	 * These fields are the ServerSockets which listen for new connections: one for every
+	 * acceptor if SO_REUSEPORT is available, otherwise one that every acceptor shares.
+	 * They will be instantiated using the listeningPort
+	 */
+	private static final ArrayList<ServerSocket> welcomeSockets = new ArrayList<ServerSocket>();
+
+	/**
+	 * This field is a ConnectionRegistry that contains all of the current UserHandlers.
+	 * It is changed by every UserHandler thread (or EventLoop) at once, so it must never be
+	 * replaced with a plain list
+	 */
+	private static final ConnectionRegistry currentUserHandlers = new ConnectionRegistry();
 	
 	/**
-	 * @return the list of current user handlers
+	 * @return the registry of current user handlers
 	 */
-	public static ArrayList<UserHandler> getCurrentUserHandlers() {
+	public static ConnectionRegistry getCurrentUserHandlers() {
 		return currentUserHandlers;
 	}
 	
+	/**
+	 * This field holds every chat room and its members
+	 */
+	private static final RoomRegistry rooms = new RoomRegistry();
+	
+	/**
+	 * @return the registry of chat rooms
+	 */
+	public static RoomRegistry getRooms() {
+		return rooms;
+	}
+	
+	/**
+	 * This field is the versioned list of connected users. It is made again once the settings
+	 * have been read, before anyone can connect
+	 */
+	private static volatile Roster roster = new Roster(System.currentTimeMillis() * 1000, ServerConfig.rosterDeltas);
+	
+	/**
+	 * @return the roster of connected users
+	 */
+	public static Roster getRoster() {
+		return roster;
+	}
+	
+	/**
+	 * This field sends joins and leaves to every Client in batches, if presenceWindowMillis is set
+	 */
+	private static final PresenceBatcher presence = new PresenceBatcher();
+	
+	/**
+	 * @return the batcher of joins and leaves
+	 */
+	public static PresenceBatcher getPresence() {
+		return presence;
+	}
+	
+	/**
+	 * This field remembers the most recent lobby CHAT_MESSAGEs. It is made again once the
+	 * settings have been read, so that it has the configured size
+	 */
+	private static volatile MessageHistory history = new MessageHistory(ServerConfig.historySize);
+	
+	/**
+	 * @return the history of recent lobby chat
+	 */
+	public static MessageHistory getHistory() {
+		return history;
+	}
+	
+	/**
+	 * This field is the journal every relayed message is written to, or null if
+	 * ServerConfig.journalDir is not set
+	 */
+	private static volatile MessageJournal journal = null;
+	
+	/**
+	 * @return the journal of relayed messages, or null if there is none
+	 */
+	public static MessageJournal getJournal() {
+		return journal;
+	}
+	
+	/**
+	 * This field links this Server to the other nodes of its cluster, or is null if
+	 * ServerConfig.clusterPort is not set
+	 */
+	private static volatile Cluster cluster = null;
+	
+	/**
+	 * @return the cluster this Server is a node of, or null if it runs on its own
+	 */
+	public static Cluster getCluster() {
+		return cluster;
+	}
+	
+	/**
+	 * This HandshakeStage reads the connection request of every new connection, so that
+	 * accepting connections never waits for a Client
+	 */
+	private static final HandshakeStage handshakes = new HandshakeStage();
+	
+	/**
+	 * @return the HandshakeStage that new connections are handed to
+	 */
+	public static HandshakeStage getHandshakes() {
+		return handshakes;
+	}
+
+	/**
+	 * This TimingWheel holds the timeouts every connection has: its handshake timeout, and
+	 * then its heartbeat and idle timeout (see UserHandler). Ticks of 100 ms are precise enough
+	 * for timeouts of seconds, and 512 of them cover the default idle timeout without rounds
+	 */
+	private static final TimingWheel timeouts = new TimingWheel("timeouts", 100, 512);
+
+	/**
+	 * @return the TimingWheel of connection timeouts
+	 */
+	public static TimingWheel getTimeouts() {
+		return timeouts;
+	}
+
+	/**
+	 * This field limits what all Clients together may send, or is null if there is no such
+	 * limit. It is made once the settings have been read
+	 */
+	private static volatile RateLimiter rateLimiter = null;
+
+	/**
+	 * @return the limit on what all Clients together may send, or null if there is none
+	 */
+	public static RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+	
+	/**
+	 * Opens the journal in ServerConfig.journalDir, which recovers whatever was logged before
+	 * the Server last stopped, and fills the history with the lobby chat found at its end.
+	 * The journal is closed (and forced to disk) when the Server shuts down
+	 * @throws IOException if the journal cannot be opened
+	 */
+	private static void openJournal() throws IOException {
+		long start = System.nanoTime();
+		final MessageJournal opened = MessageJournal.open(new File(ServerConfig.journalDir),
+				ServerConfig.journalSegmentBytes, ServerConfig.journalQueueSize);
+		System.out.printf("Journal: recovered %d messages in %d segments in %d ms%n", opened.getRecovered(),
+				opened.getSegmentCount(), (System.nanoTime() - start) / 1000000);
+		for (Message message : opened.readLatest(ServerConfig.historySize)) {
+			if (message.getType() == MessageType.CHAT_MESSAGE) {
+				OutboundFrame frame = new OutboundFrame(message);
+				history.add(frame);
+				frame.release();
+			}
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					opened.close();
+				} catch (InterruptedException e) {
+					// Shutting down anyway
+				}
+			}
+		}, "journal-close"));
+		journal = opened;
+	}
+	
 	/**
 	 * Accepts a new UserHandler and adds it to the list of currentUserHandlers in Server
 	 * @param uh - new UserHandler
@@ -78,20 +253,23 @@ public class Server {
 	/**
 	 * This function will take received connection request messages and the socket it was sent on,
 	 * and assign the connection with a User, which will be passed as an argument into a new
-	 * UserHandler. The new UserHandler is then added to the currentUserHandlers array list
+	 * UserHandler. The new UserHandler adds itself to the currentUserHandlers registry.
+	 * Called by the HandshakeStage once the request has been read
 	 * @param message
 	 * @param cSocket
+	 * @throws IOException if the connection broke, in which case the caller must close it
 	 */
-	private static void addNewClient(Message message, Socket cSocket, ObjectInputStream inFromClient) {
+	static void addNewClient(Message message, Socket cSocket, DataInputStream inFromClient) throws IOException {
 		User newUser = new User(message.getMessageText());
-		UserHandler newUH;
-		try {
-			ObjectOutputStream outToClient = new ObjectOutputStream(cSocket.getOutputStream());
-			newUH = new UserHandler(inFromClient, outToClient, newUser);
-			addToCurrentUserHandlers(newUH);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		DataOutputStream outToClient = new DataOutputStream(new BufferedOutputStream(
+				ServerMetrics.countWrites(cSocket.getOutputStream()), SEND_BUFFER_SIZE));
+		int wireFormat = MessageCodec.chooseFormat(message, ServerConfig.wireFormat);
+		boolean compress = MessageCodec.chooseCompression(message, ServerConfig.compressionLevel);
+		boolean sendTraces = ((Integer) message.getMessageDetails()[0] & MessageCodec.TRACING) != 0;
+		boolean heartbeats = MessageCodec.chooseHeartbeats(message, ServerConfig.heartbeatIntervalMillis);
+		long knownRosterVersion = (Long) message.getMessageDetails()[1];
+		new UserHandler(inFromClient, outToClient, newUser, wireFormat, compress, sendTraces, heartbeats,
+				knownRosterVersion);
 	}
 	
 	private static void test() {
@@ -100,17 +278,17 @@ public class Server {
 		User testOneUser = new User("testOne");
 		User testTwoUser = new User("testTwo");
 		User testThreeUser = new User("testThree");
-		Message testOne = new Message(MessageType.CONNECTION_REQUEST_MESSAGE, testOneUser, "testOne", null);
-		Message testTwo = new Message(MessageType.CONNECTION_REQUEST_MESSAGE, testTwoUser, "testTwo", null);
-		Message testThree = new Message(MessageType.CONNECTION_REQUEST_MESSAGE, testThreeUser, "testThree", null);
+		Message testOne = new Message(MessageType.CONNECTION_REQUEST_MESSAGE, testOneUser, "testOne", new Object[] {MessageCodec.SUPPORTED_FORMATS, 0L});
+		Message testTwo = new Message(MessageType.CONNECTION_REQUEST_MESSAGE, testTwoUser, "testTwo", new Object[] {MessageCodec.SUPPORTED_FORMATS, 0L});
+		Message testThree = new Message(MessageType.CONNECTION_REQUEST_MESSAGE, testThreeUser, "testThree", new Object[] {MessageCodec.SUPPORTED_FORMATS, 0L});
 		Queue<Message> incomingConnectionRequests = new LinkedList<Message>();
 		incomingConnectionRequests.add(testOne);
 		incomingConnectionRequests.add(testTwo);
 		incomingConnectionRequests.add(testThree);
 		for (Message message : incomingConnectionRequests) {
-			ObjectInputStream inFromClient;
+			DataInputStream inFromClient;
 			try {
-				inFromClient = new ObjectInputStream(socket.getInputStream());
+				inFromClient = new DataInputStream(socket.getInputStream());
 				addNewClient(message, socket, inFromClient); 
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -124,7 +302,9 @@ public class Server {
 	}
 
 	/**
-	 * The main method will listen for any incoming messages/connections on the ServerSocket
+	 * The main method will listen for any incoming messages/connections on the ServerSocket.
+	 * Passing "--mode=nio" runs the NioServer instead of giving every Client its own Threads
+	 * (see ServerConfig for every setting)
 	 * @param args
 	 */
 	public static void main(String[] args) {
@@ -132,25 +312,47 @@ public class Server {
 			test();
 		} else {
 			try {
+				ServerConfig.parse(args);
+				history = new MessageHistory(ServerConfig.historySize);
+				roster = new Roster(System.currentTimeMillis() * 1000, ServerConfig.rosterDeltas);
+				rateLimiter = RateLimiter.create(ServerConfig.globalMessageRate, ServerConfig.globalByteRate,
+						ServerConfig.rateLimitBurstMillis);
+				ServerMetrics.registerMBean();
+				if (ServerConfig.metricsIntervalSeconds > 0) {
+					ServerMetrics.startReporting(ServerConfig.metricsIntervalSeconds);
+				}
+				if (ServerConfig.journalDir != null) {
+					openJournal();
+				}
+				if (ServerConfig.clusterPort > 0) {
+					User.startIDsAt(Cluster.firstUserId(ServerConfig.nodeId));
+					cluster = new Cluster(ServerConfig.nodeId, ServerConfig.clusterPort, ServerConfig.peers);
+					cluster.start();
+				}
 				InetAddress IP = InetAddress. getLocalHost();
-				System.out.println("Waiting on port: " + DEFAULT_PORT + " with IP address: " + IP.getHostAddress());
-				welcomeSocket = new ServerSocket(DEFAULT_PORT);
-				while (true) {
-					Socket cSocket = welcomeSocket.accept();
-					ObjectInputStream inFromClient = new ObjectInputStream(cSocket.getInputStream());
-					Message message;
-					message = (Message) inFromClient.readObject();
-					if (message.getType() == MessageType.CONNECTION_REQUEST_MESSAGE) {
-						System.out.println("Connection message received: " + message);
-						addNewClient(message, cSocket, inFromClient);
-					}else {
-						// TODO don't crash the server because a client messed up, tell the client and go on
-						throw new IllegalArgumentException("Server received a message that was not of type CONNECTION_REQUEST_MESSAGE.");
-					}
+				System.out.println("Waiting on port: " + ServerConfig.port + " with IP address: " + IP.getHostAddress());
+				System.out.println("Settings: " + ServerConfig.describe());
+				if (ServerConfig.mode == ServerConfig.Mode.NIO) {
+					new NioServer(ServerConfig.port, ServerConfig.eventLoops, ServerConfig.acceptors, ServerConfig.balance).run();
+					return;
+				}
+				openWelcomeSockets(ServerConfig.acceptors);
+				// The accept loops run on ChatThreads Threads so that they are virtual in virtual mode
+				ArrayList<Thread> acceptThreads = new ArrayList<Thread>();
+				for (int i = 0; i < ServerConfig.acceptors; i++) {
+					final ServerSocket welcomeSocket = welcomeSockets.get(i % welcomeSockets.size());
+					Thread acceptThread = ChatThreads.newThread(new Runnable() {
+						@Override
+						public void run() {
+							acceptClients(welcomeSocket);
+						}
+					}, "accept-" + i);
+					acceptThread.start();
+					acceptThreads.add(acceptThread);
+				}
+				for (Thread acceptThread : acceptThreads) {
+					acceptThread.join();
 				}
-			}catch (IllegalArgumentException e) {
-				System.out.println(e.getMessage());
-				e.printStackTrace();
 			} catch (Exception e) {
 				System.out.println("There was an issue setting up the server.");
 				System.out.println(e.getMessage());
@@ -159,4 +361,68 @@ public class Server {
 		}
 	}
 
+	/**
+	 * Opens a ServerSocket on ServerConfig.port for every acceptor, all bound with SO_REUSEPORT
+	 * so the operating system spreads new connections over them. Opens only one if there is
+	 * one acceptor, or if SO_REUSEPORT is not available
+	 * @param acceptors - number of accept loops
+	 * @throws IOException if the port cannot be opened
+	 */
+	private static void openWelcomeSockets(int acceptors) throws IOException {
+		welcomeSockets.add(new ServerSocket());
+		boolean reusePort = acceptors > 1
+				&& welcomeSockets.get(0).supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		while (reusePort && welcomeSockets.size() < acceptors) {
+			welcomeSockets.add(new ServerSocket());
+		}
+		for (ServerSocket welcomeSocket : welcomeSockets) {
+			if (reusePort) {
+				welcomeSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			welcomeSocket.bind(new InetSocketAddress(ServerConfig.port), ACCEPT_BACKLOG);
+		}
+		if (acceptors > 1 && !reusePort) {
+			System.out.println("SO_REUSEPORT is not available, so the " + acceptors + " acceptors share one listening socket.");
+		}
+	}
+
+	/**
+	 * Counts and prints an error accepting a connection, and waits ACCEPT_RETRY_MILLIS before the
+	 * acceptor tries again. The listening socket is still open, so the Server goes on accepting
+	 * @param e - what accepting threw
+	 */
+	static void acceptFailed(IOException e) {
+		ServerMetrics.acceptErrors.increment();
+		System.out.println("There was an issue accepting a client: " + e.getMessage());
+		try {
+			Thread.sleep(ACCEPT_RETRY_MILLIS);
+		} catch (InterruptedException e1) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Accepts new connections on a welcomeSocket forever, and hands each of them to the
+	 * HandshakeStage, which reads its connection request and gives it a new UserHandler. A failed
+	 * accept is counted and tried again after ACCEPT_RETRY_MILLIS (see acceptFailed)
+	 * @param welcomeSocket - socket to accept on
+	 */
+	private static void acceptClients(ServerSocket welcomeSocket) {
+		while (true) {
+			Socket cSocket;
+			try {
+				cSocket = welcomeSocket.accept();
+			} catch (IOException e) {
+				if (welcomeSocket.isClosed()) {
+					// The Server is shutting down
+					return;
+				}
+				acceptFailed(e);
+				continue;
+			}
+			ServerMetrics.connectionsAccepted.increment();
+			handshakes.start(cSocket, System.nanoTime());
+		}
+	}
+
 }
@@ -0,0 +1,483 @@
+/**
+ * This class holds the settings that Server is started with. Every setting has a default,
+ * and can be changed by passing "--name=value" to Server.main, for example:
+ *
+ *     java Server --mode=nio --eventLoops=4
+ *     java Server --threads=virtual
+ *
+ */
+public class ServerConfig {
+
+	/**
+	 * The ways that Server can handle its connections
+	 *
+	 * LEGACY gives every connection its own UserHandler threads
+	 * NIO shares a small number of EventLoops between all of the connections
+	 */
+	public enum Mode {
+		LEGACY,
+		NIO
+	}
+
+	/**
+	 * This field is the way Server will handle its connections
+	 */
+	public static Mode mode = Mode.LEGACY;
+
+	/**
+	 * This field is the port Server will listen on
+	 */
+	public static int port = Server.DEFAULT_PORT;
+
+	/**
+	 * This field is the number of EventLoops that are started in NIO mode
+	 */
+	public static int eventLoops = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * This field is the number of Threads that accept new connections. With more than one,
+	 * each listens on a socket of its own where SO_REUSEPORT is available (see NioServer)
+	 */
+	public static int acceptors = 1;
+
+	/**
+	 * This field is how NIO mode picks the EventLoop of a new connection
+	 */
+	public static NioServer.Balance balance = NioServer.Balance.ROUND_ROBIN;
+
+	/**
+	 * This field is the wire format the Server uses with every Client that supports it
+	 * (see MessageCodec). Clients that don't are served in MessageCodec.FORMAT_JAVA
+	 */
+	public static int wireFormat = MessageCodec.FORMAT_BINARY;
+
+	/**
+	 * This field is the largest number of queued messages that are written to a Client
+	 * in one socket write
+	 */
+	public static int maxWriteBatch = 64;
+
+	/**
+	 * This field is how long (in microseconds) a connection waits for more messages to
+	 * join a batch before writing it. 0 writes whatever is queued straight away
+	 */
+	public static long flushDelayMicros = 0;
+
+	/**
+	 * This field is the largest number of messages that may wait to be sent to one Client
+	 */
+	public static int outboundMaxMessages = 10000;
+
+	/**
+	 * This field is the largest number of bytes that the messages waiting to be sent to one
+	 * Client may take up
+	 */
+	public static long outboundMaxBytes = 4L * 1024 * 1024;
+
+	/**
+	 * This field is what happens to a Client that is too slow to keep its outbound queue
+	 * within outboundMaxMessages and outboundMaxBytes (see OutboundQueue)
+	 */
+	public static OutboundQueue.SlowConsumerPolicy slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.DROP_OLDEST_CHAT;
+
+	/**
+	 * This field is how long (in milliseconds) the BLOCK policy makes a sender wait for room
+	 * before the Client is disconnected
+	 */
+	public static long slowConsumerBlockMillis = 100;
+
+	/**
+	 * This field is the largest number of lobby chat messages the Server remembers (see
+	 * MessageHistory). 0 turns the history off
+	 */
+	public static int historySize = 100;
+
+	/**
+	 * This field is the largest number of bytes the remembered chat messages may take up
+	 */
+	public static long historyMaxBytes = 1024 * 1024;
+
+	/**
+	 * This field is how many of the remembered chat messages a Client is sent right after
+	 * it connects
+	 */
+	public static int historyReplay = 20;
+
+	/**
+	 * This field is the largest number of users in one ROSTER_MESSAGE of a roster snapshot
+	 */
+	public static int rosterPageSize = 1000;
+
+	/**
+	 * This field is the number of joins and leaves the Roster remembers, so that a Client that
+	 * reconnects after missing fewer changes than that is only sent the changes
+	 */
+	public static int rosterDeltas = 100000;
+
+	/**
+	 * This field is how long (in milliseconds) joins and leaves are collected before they are
+	 * sent to every Client as one ROSTER_MESSAGE (see PresenceBatcher). 0 sends every join
+	 * and leave straight away as its own USER_STATUS_CHANGE_MESSAGE
+	 */
+	public static long presenceWindowMillis = 100;
+
+	/**
+	 * This field is the directory the MessageJournal keeps its segment files in. null (the
+	 * default) turns the journal off
+	 */
+	public static String journalDir = null;
+
+	/**
+	 * This field is the size of every journal segment file
+	 */
+	public static int journalSegmentBytes = 64 * 1024 * 1024;
+
+	/**
+	 * These fields say how often the journal is forced to disk: after this many messages,
+	 * or this many milliseconds after the first message that is not on disk yet. The journal
+	 * writes whatever is queued as one batch and only forces it after the batch, so 1 forces
+	 * every batch (all the messages that arrived during the previous force) rather than every
+	 * single message. 0 turns either of them off, and with both off the operating system decides
+	 */
+	public static int journalFsyncMessages = 1000;
+	public static long journalFsyncMillis = 100;
+
+	/**
+	 * This field is the largest number of messages that may wait for the journal's writer
+	 * before more messages are left out of the journal
+	 */
+	public static int journalQueueSize = 64 * 1024;
+
+	/**
+	 * This field turns the ServerMetrics that need a clock or are updated for every message
+	 * on or off. They cost a few percent at most (see MetricsOverheadMeasurement)
+	 */
+	public static volatile boolean metrics = true;
+
+	/**
+	 * This field is how often (in seconds) ServerMetrics.describe() is printed. 0 never prints it
+	 */
+	public static long metricsIntervalSeconds = 0;
+
+	/**
+	 * This field turns printing every message the Server receives on or off. Printing is
+	 * slow enough to limit how many messages the Server can take in
+	 */
+	public static boolean logMessages = true;
+
+	/**
+	 * This field makes the Server trace every Nth message it receives that the Client did not
+	 * trace already, so that ServerMetrics shows how long messages spend in every stage (see
+	 * MessageTrace). 0 only traces what Clients trace
+	 */
+	public static int traceEvery = 0;
+
+	/**
+	 * This field is the Deflater level frames are compressed with for Clients that can read
+	 * compressed frames (see MessageCodec.COMPRESSION), from 1 (fastest) to 9 (smallest).
+	 * 0 never compresses
+	 */
+	public static int compressionLevel = 1;
+
+	/**
+	 * This field is the smallest frame (in bytes) that is compressed. Smaller frames are sent
+	 * as they are, since they hardly shrink
+	 */
+	public static int compressionThreshold = MessageCodec.DEFAULT_COMPRESSION_THRESHOLD;
+
+	/**
+	 * This field is the number of this node in a cluster of Servers, from 0 to Cluster.MAX_NODES - 1.
+	 * Every node of a cluster needs a different one
+	 */
+	public static int nodeId = 0;
+
+	/**
+	 * This field is the port this node accepts links from the other nodes of its cluster on.
+	 * 0 (the default) runs the Server on its own
+	 */
+	public static int clusterPort = 0;
+
+	/**
+	 * This field lists the cluster ports of every other node, as host:port separated by commas.
+	 * Every node links to every node in its list, so every node must list all the others
+	 */
+	public static String peers = "";
+
+	/**
+	 * This field is the secret every node of a cluster shares. A node only takes a link from a
+	 * node that proves it knows the secret (see Cluster), so that nobody else who can reach the
+	 * cluster port can make up users or chat messages. It must be set whenever clusterPort is
+	 */
+	public static String clusterSecret = "";
+
+	/**
+	 * This field is how long (in milliseconds) a new connection has to send its
+	 * CONNECTION_REQUEST_MESSAGE, counted from the moment it was accepted. A connection that
+	 * takes longer is closed (see HandshakeStage)
+	 */
+	public static long handshakeTimeoutMillis = 5000;
+
+	/**
+	 * This field is the largest number of connections that can be waiting for their
+	 * CONNECTION_REQUEST_MESSAGE at once. A connection accepted beyond it is closed right away
+	 */
+	public static int maxPendingHandshakes = 1000;
+
+	/**
+	 * This field is how long (in milliseconds) a Client that answers heartbeats may be quiet
+	 * before it is sent a HEARTBEAT_MESSAGE. 0 turns heartbeats and idle timeouts off
+	 */
+	public static long heartbeatIntervalMillis = 10000;
+
+	/**
+	 * This field is how long (in milliseconds) a Client that answers heartbeats may send
+	 * nothing at all before its connection is closed and it is announced as having left.
+	 * While heartbeats are on it must be at least MIN_IDLE_HEARTBEATS heartbeat intervals,
+	 * so a Client is sent a heartbeat, and has time to answer it, before it is thought dead
+	 */
+	public static long idleTimeoutMillis = 30000;
+
+	/**
+	 * This field is the smallest number of heartbeat intervals idleTimeoutMillis may be
+	 */
+	public static final int MIN_IDLE_HEARTBEATS = 2;
+
+	/**
+	 * These fields are how many messages, and how many bytes of frames, one Client may send per
+	 * second before ServerConfig.rateLimitPolicy is applied to what it sends. 0 is no limit
+	 * (see RateLimiter)
+	 */
+	public static long userMessageRate = 0;
+	public static long userByteRate = 0;
+
+	/**
+	 * These fields are how many messages, and how many bytes of frames, all Clients together may
+	 * send per second. 0 is no limit
+	 */
+	public static long globalMessageRate = 0;
+	public static long globalByteRate = 0;
+
+	/**
+	 * This field is how many milliseconds' worth of its rate a limit lets through at once,
+	 * after a quiet spell
+	 */
+	public static long rateLimitBurstMillis = 1000;
+
+	/**
+	 * This field decides what happens to a message that is over a rate limit. Leaving a room and
+	 * disconnecting are never limited, and neither are HEARTBEAT_MESSAGEs
+	 */
+	public static RateLimiter.Policy rateLimitPolicy = RateLimiter.Policy.DELAY;
+
+	/**
+	 * Reads every "--name=value" argument and changes the matching setting
+	 * @param args - arguments passed into Server.main
+	 * @throws IllegalArgumentException if an argument is not a known setting, or the settings
+	 * do not go together
+	 */
+	public static void parse(String[] args) {
+		for (String arg : args) {
+			String[] setting = split(arg);
+			String name = setting[0];
+			String value = setting[1];
+			switch (name) {
+			case "mode":
+				mode = Mode.valueOf(value.toUpperCase());
+				break;
+			case "port":
+				port = Integer.parseInt(value);
+				break;
+			case "eventLoops":
+				eventLoops = Math.max(1, Integer.parseInt(value));
+				break;
+			case "acceptors":
+				acceptors = Math.max(1, Integer.parseInt(value));
+				break;
+			case "balance":
+				balance = NioServer.Balance.valueOf(value.toUpperCase());
+				break;
+			case "wireFormat":
+				wireFormat = MessageCodec.parseFormat(value);
+				break;
+			case "maxWriteBatch":
+				maxWriteBatch = Math.max(1, Integer.parseInt(value));
+				break;
+			case "flushDelayMicros":
+				flushDelayMicros = Math.max(0, Long.parseLong(value));
+				break;
+			case "outboundMaxMessages":
+				outboundMaxMessages = Math.max(1, Integer.parseInt(value));
+				break;
+			case "outboundMaxBytes":
+				outboundMaxBytes = Math.max(1, Long.parseLong(value));
+				break;
+			case "slowConsumerPolicy":
+				slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.valueOf(value.toUpperCase());
+				break;
+			case "slowConsumerBlockMillis":
+				slowConsumerBlockMillis = Math.max(0, Long.parseLong(value));
+				break;
+			case "historySize":
+				historySize = Math.max(0, Integer.parseInt(value));
+				break;
+			case "historyMaxBytes":
+				historyMaxBytes = Math.max(0, Long.parseLong(value));
+				break;
+			case "historyReplay":
+				historyReplay = Math.max(0, Integer.parseInt(value));
+				break;
+			case "rosterPageSize":
+				rosterPageSize = Math.max(1, Integer.parseInt(value));
+				break;
+			case "rosterDeltas":
+				rosterDeltas = Math.max(1, Integer.parseInt(value));
+				break;
+			case "presenceWindowMillis":
+				presenceWindowMillis = Math.max(0, Long.parseLong(value));
+				break;
+			case "journalDir":
+				journalDir = value.isEmpty() ? null : value;
+				break;
+			case "journalSegmentBytes":
+				journalSegmentBytes = Math.max(64 * 1024, Integer.parseInt(value));
+				break;
+			case "journalFsyncMessages":
+				journalFsyncMessages = Math.max(0, Integer.parseInt(value));
+				break;
+			case "journalFsyncMillis":
+				journalFsyncMillis = Math.max(0, Long.parseLong(value));
+				break;
+			case "journalQueueSize":
+				journalQueueSize = Math.max(1, Integer.parseInt(value));
+				break;
+			case "metrics":
+				metrics = Boolean.parseBoolean(value);
+				break;
+			case "metricsIntervalSeconds":
+				metricsIntervalSeconds = Math.max(0, Long.parseLong(value));
+				break;
+			case "logMessages":
+				logMessages = Boolean.parseBoolean(value);
+				break;
+			case "traceEvery":
+				traceEvery = Math.max(0, Integer.parseInt(value));
+				break;
+			case "compressionLevel":
+				compressionLevel = Integer.parseInt(value);
+				if (compressionLevel < 0 || compressionLevel > 9) {
+					throw new IllegalArgumentException("compressionLevel must be between 0 and 9, not " + value + ".");
+				}
+				break;
+			case "compressionThreshold":
+				compressionThreshold = Math.max(0, Integer.parseInt(value));
+				break;
+			case "nodeId":
+				nodeId = Integer.parseInt(value);
+				if (nodeId < 0 || nodeId >= Cluster.MAX_NODES) {
+					throw new IllegalArgumentException("nodeId must be between 0 and " + (Cluster.MAX_NODES - 1) + ", not " + value + ".");
+				}
+				break;
+			case "clusterPort":
+				clusterPort = Integer.parseInt(value);
+				break;
+			case "peers":
+				peers = value;
+				break;
+			case "clusterSecret":
+				clusterSecret = value;
+				break;
+			case "handshakeTimeoutMillis":
+				handshakeTimeoutMillis = Math.max(1, Long.parseLong(value));
+				break;
+			case "maxPendingHandshakes":
+				maxPendingHandshakes = Math.max(1, Integer.parseInt(value));
+				break;
+			case "heartbeatIntervalMillis":
+				heartbeatIntervalMillis = Math.max(0, Long.parseLong(value));
+				break;
+			case "idleTimeoutMillis":
+				idleTimeoutMillis = Math.max(1, Long.parseLong(value));
+				break;
+			case "userMessageRate":
+				userMessageRate = Math.max(0, Long.parseLong(value));
+				break;
+			case "userByteRate":
+				userByteRate = Math.max(0, Long.parseLong(value));
+				break;
+			case "globalMessageRate":
+				globalMessageRate = Math.max(0, Long.parseLong(value));
+				break;
+			case "globalByteRate":
+				globalByteRate = Math.max(0, Long.parseLong(value));
+				break;
+			case "rateLimitBurstMillis":
+				rateLimitBurstMillis = Math.max(1, Long.parseLong(value));
+				break;
+			case "rateLimitPolicy":
+				rateLimitPolicy = RateLimiter.Policy.valueOf(value.toUpperCase());
+				break;
+			case "threads":
+				ChatThreads.setMode(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown setting '" + name + "'.");
+			}
+		}
+		// Checked once every argument has been read, since either one may come first
+		if (heartbeatIntervalMillis > 0 && idleTimeoutMillis < MIN_IDLE_HEARTBEATS * heartbeatIntervalMillis) {
+			throw new IllegalArgumentException("idleTimeoutMillis (" + idleTimeoutMillis + ") must be at least "
+					+ MIN_IDLE_HEARTBEATS + " times heartbeatIntervalMillis (" + heartbeatIntervalMillis
+					+ "), or every quiet Client is disconnected before it is sent a heartbeat.");
+		}
+		if (clusterPort > 0 && clusterSecret.isEmpty()) {
+			throw new IllegalArgumentException("clusterSecret must be set with clusterPort, or anyone who can reach"
+					+ " the cluster port can link to this node.");
+		}
+	}
+
+	/**
+	 * Splits one "--name=value" argument. The "--" may be left out. The benchmarks and
+	 * measurements read their own arguments with it too (see Harness)
+	 * @param arg - the argument
+	 * @return the name and the value
+	 * @throws IllegalArgumentException if the argument has no '='
+	 */
+	static String[] split(String arg) {
+		String setting = arg.startsWith("--") ? arg.substring(2) : arg;
+		int split = setting.indexOf('=');
+		if (split < 0) {
+			throw new IllegalArgumentException("Setting '" + arg + "' must be written as --name=value.");
+		}
+		return new String[] {setting.substring(0, split), setting.substring(split + 1)};
+	}
+
+	/**
+	 * @return a description of every current setting
+	 */
+	public static String describe() {
+		return "mode=" + mode + " port=" + port + " eventLoops=" + eventLoops
+				+ " acceptors=" + acceptors + " balance=" + balance
+				+ " threads=" + (ChatThreads.isVirtual() ? "virtual" : "platform")
+				+ " wireFormat=" + MessageCodec.formatName(wireFormat)
+				+ " maxWriteBatch=" + maxWriteBatch + " flushDelayMicros=" + flushDelayMicros
+				+ " outboundMaxMessages=" + outboundMaxMessages + " outboundMaxBytes=" + outboundMaxBytes
+				+ " slowConsumerPolicy=" + slowConsumerPolicy + " slowConsumerBlockMillis=" + slowConsumerBlockMillis
+				+ " historySize=" + historySize + " historyMaxBytes=" + historyMaxBytes + " historyReplay=" + historyReplay
+				+ " rosterPageSize=" + rosterPageSize + " rosterDeltas=" + rosterDeltas
+				+ " presenceWindowMillis=" + presenceWindowMillis
+				+ " journalDir=" + journalDir + " journalSegmentBytes=" + journalSegmentBytes
+				+ " journalFsyncMessages=" + journalFsyncMessages + " journalFsyncMillis=" + journalFsyncMillis
+				+ " journalQueueSize=" + journalQueueSize
+				+ " metrics=" + metrics + " metricsIntervalSeconds=" + metricsIntervalSeconds + " logMessages=" + logMessages
+				+ " traceEvery=" + traceEvery
+				+ " compressionLevel=" + compressionLevel + " compressionThreshold=" + compressionThreshold
+				+ " nodeId=" + nodeId + " clusterPort=" + clusterPort + " peers=" + peers
+				+ " clusterSecret=" + (clusterSecret.isEmpty() ? "none" : "set")
+				+ " handshakeTimeoutMillis=" + handshakeTimeoutMillis + " maxPendingHandshakes=" + maxPendingHandshakes
+				+ " heartbeatIntervalMillis=" + heartbeatIntervalMillis + " idleTimeoutMillis=" + idleTimeoutMillis
+				+ " userMessageRate=" + userMessageRate + " userByteRate=" + userByteRate
+				+ " globalMessageRate=" + globalMessageRate + " globalByteRate=" + globalByteRate
+				+ " rateLimitBurstMillis=" + rateLimitBurstMillis + " rateLimitPolicy=" + rateLimitPolicy;
+	}
+
+}
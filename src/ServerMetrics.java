@@ -0,0 +1,487 @@
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * This class holds counters and Histograms that describe what the Server is doing. Every one
+ * of them can be updated by any number of threads at once without them getting in each
+ * other's way.
+ *
+ * The same numbers are published over JMX (see ServerMetricsMXBean), so jconsole or any other
+ * JMX client can watch a running Server, and can be printed every
+ * ServerConfig.metricsIntervalSeconds. The counters and Histograms that need a clock or are on
+ * the path of every message are only updated while ServerConfig.metrics is true.
+ *
+ */
+public class ServerMetrics {
+
+	/**
+	 * This field counts the write calls made on Client sockets. Each of them is one system call
+	 * (a gather write in NIO mode writes many frames in one call)
+	 */
+	public static final LongAdder socketWrites = new LongAdder();
+
+	/**
+	 * This field counts the frames that have been completely written to Clients
+	 */
+	public static final LongAdder messagesWritten = new LongAdder();
+
+	/**
+	 * This field counts the bytes that have been written to Clients
+	 */
+	public static final LongAdder bytesWritten = new LongAdder();
+
+	/**
+	 * These fields count the messages and bytes waiting in the outbound queues of every Client
+	 * right now. They go down again as messages are written or thrown away
+	 */
+	public static final LongAdder queuedMessages = new LongAdder();
+	public static final LongAdder queuedBytes = new LongAdder();
+
+	/**
+	 * This field counts the messages that were thrown away because a Client's outbound queue was full
+	 */
+	public static final LongAdder droppedMessages = new LongAdder();
+
+	/**
+	 * This field counts the Clients that were disconnected for being too slow
+	 */
+	public static final LongAdder slowConsumerDisconnects = new LongAdder();
+
+	/**
+	 * These fields count the history replays sent to newly connected Clients, the messages
+	 * in them, and the total time spent queueing them
+	 */
+	public static final LongAdder historyReplays = new LongAdder();
+	public static final LongAdder historyMessagesReplayed = new LongAdder();
+	public static final LongAdder historyReplayNanos = new LongAdder();
+
+	/**
+	 * These fields count the roster snapshots that were made, the Clients that were sent one,
+	 * and the Clients that were only sent the changes since the version they knew (see Roster)
+	 */
+	public static final LongAdder rosterSnapshotsMade = new LongAdder();
+	public static final LongAdder rosterSnapshotsSent = new LongAdder();
+	public static final LongAdder rosterDeltasSent = new LongAdder();
+
+	/**
+	 * These fields count the windows of joins and leaves the PresenceBatcher published, and
+	 * the ROSTER_MESSAGEs it queued for Clients to announce them
+	 */
+	public static final LongAdder presenceBatches = new LongAdder();
+	public static final LongAdder presenceMessages = new LongAdder();
+
+	/**
+	 * These fields count the messages written to the MessageJournal, the messages that could
+	 * not be (because its writer was too far behind), and the times it was forced to disk
+	 */
+	public static final LongAdder journalAppends = new LongAdder();
+	public static final LongAdder journalDropped = new LongAdder();
+	public static final LongAdder journalSyncs = new LongAdder();
+
+	/**
+	 * This field counts the connections the Server has accepted
+	 */
+	public static final LongAdder connectionsAccepted = new LongAdder();
+
+	/**
+	 * This field counts the times accepting a connection failed while the Server went on listening
+	 */
+	public static final LongAdder acceptErrors = new LongAdder();
+
+	/**
+	 * These fields count the connections closed before they sent a connection request (see
+	 * HandshakeStage): rejected because too many were pending, timed out, or failed because
+	 * they broke or sent something else
+	 */
+	public static final LongAdder handshakesRejected = new LongAdder();
+	public static final LongAdder handshakesTimedOut = new LongAdder();
+	public static final LongAdder handshakesFailed = new LongAdder();
+
+	/**
+	 * These fields count the HEARTBEAT_MESSAGEs sent to quiet Clients, and the connections
+	 * closed because their Client sent nothing for ServerConfig.idleTimeoutMillis (see UserHandler)
+	 */
+	public static final LongAdder heartbeatsSent = new LongAdder();
+	public static final LongAdder idleReaped = new LongAdder();
+
+	/**
+	 * These fields count what happened to messages over a rate limit (see RateLimiter): dropped,
+	 * held back (once every time a message has to wait), or their Client disconnected
+	 */
+	public static final LongAdder rateLimitDropped = new LongAdder();
+	public static final LongAdder rateLimitDelayed = new LongAdder();
+	public static final LongAdder rateLimitDisconnects = new LongAdder();
+
+	/**
+	 * These fields count the messages and bytes received from Clients, the connection
+	 * requests included
+	 */
+	public static final LongAdder messagesReceived = new LongAdder();
+	public static final LongAdder bytesReceived = new LongAdder();
+
+	/**
+	 * This Histogram records the nanoseconds from accepting a connection until the user has
+	 * joined: the connection request is read, the ack, roster and history are queued, and
+	 * every other user has been told
+	 */
+	public static final Histogram handshakeNanos = new Histogram();
+
+	/**
+	 * This Histogram records the nanoseconds it takes to queue one broadcast for every
+	 * recipient, whether to the lobby or to a room
+	 */
+	public static final Histogram broadcastNanos = new Histogram();
+
+	/**
+	 * This Histogram records the nanoseconds it takes to encode an OutboundFrame in one wire format
+	 */
+	public static final Histogram serializationNanos = new Histogram();
+
+	/**
+	 * This Histogram records the nanoseconds it takes to compress an OutboundFrame, which
+	 * happens once per frame however many Clients it is sent to
+	 */
+	public static final Histogram compressionNanos = new Histogram();
+
+	/**
+	 * These fields count the bytes of every frame that was compressed, before and after
+	 */
+	public static final LongAdder bytesBeforeCompression = new LongAdder();
+	public static final LongAdder bytesAfterCompression = new LongAdder();
+
+	/**
+	 * These fields count the frames queued for other nodes of the cluster, the messages
+	 * received from them, and the frames that did not fit in a link's queue (see Cluster)
+	 */
+	public static final LongAdder clusterRelayed = new LongAdder();
+	public static final LongAdder clusterReceived = new LongAdder();
+	public static final LongAdder clusterDropped = new LongAdder();
+
+	/**
+	 * This field records how long traced messages spend in every stage on their way through
+	 * the Server, once for every recipient (see MessageTrace)
+	 */
+	public static final MessageTrace.Stages traceStages = new MessageTrace.Stages();
+
+	/**
+	 * @return the average number of socket writes needed to deliver one message. Less than 1
+	 * means that writes are being coalesced
+	 */
+	public static double writesPerMessage() {
+		long messages = messagesWritten.sum();
+		return messages == 0 ? 0 : (double) socketWrites.sum() / messages;
+	}
+
+	/**
+	 * Sets every counter back to zero. The queue gauges are left alone, since they describe
+	 * messages that are still queued
+	 */
+	public static void reset() {
+		socketWrites.reset();
+		messagesWritten.reset();
+		bytesWritten.reset();
+		droppedMessages.reset();
+		slowConsumerDisconnects.reset();
+		historyReplays.reset();
+		historyMessagesReplayed.reset();
+		historyReplayNanos.reset();
+		rosterSnapshotsMade.reset();
+		rosterSnapshotsSent.reset();
+		rosterDeltasSent.reset();
+		presenceBatches.reset();
+		presenceMessages.reset();
+		journalAppends.reset();
+		journalDropped.reset();
+		journalSyncs.reset();
+		connectionsAccepted.reset();
+		acceptErrors.reset();
+		handshakesRejected.reset();
+		handshakesTimedOut.reset();
+		handshakesFailed.reset();
+		heartbeatsSent.reset();
+		idleReaped.reset();
+		rateLimitDropped.reset();
+		rateLimitDelayed.reset();
+		rateLimitDisconnects.reset();
+		messagesReceived.reset();
+		bytesReceived.reset();
+		handshakeNanos.reset();
+		broadcastNanos.reset();
+		serializationNanos.reset();
+		compressionNanos.reset();
+		bytesBeforeCompression.reset();
+		bytesAfterCompression.reset();
+		clusterRelayed.reset();
+		clusterReceived.reset();
+		clusterDropped.reset();
+		traceStages.reset();
+	}
+
+	/**
+	 * Records the number of messages waiting for every connected Client right now
+	 * @return a Histogram of the outbound queue depths
+	 */
+	public static Histogram queueDepths() {
+		Histogram depths = new Histogram();
+		for (UserHandler userHandler : Server.getCurrentUserHandlers()) {
+			depths.record(userHandler.getQueuedMessages());
+		}
+		return depths;
+	}
+
+	/**
+	 * @return a one line description of every counter
+	 */
+	public static String describe() {
+		return String.format("socketWrites=%d messagesWritten=%d bytesWritten=%d writesPerMessage=%.3f"
+				+ " queuedMessages=%d queuedBytes=%d droppedMessages=%d slowConsumerDisconnects=%d"
+				+ " historyReplays=%d historyMessagesReplayed=%d historyReplayMicros=%d"
+				+ " rosterSnapshotsMade=%d rosterSnapshotsSent=%d rosterDeltasSent=%d"
+				+ " presenceBatches=%d presenceMessages=%d"
+				+ " journalAppends=%d journalDropped=%d journalSyncs=%d"
+				+ " connectionsAccepted=%d acceptErrors=%d pendingHandshakes=%d handshakesRejected=%d handshakesTimedOut=%d"
+				+ " handshakesFailed=%d heartbeatsSent=%d idleReaped=%d"
+				+ " rateLimitDropped=%d rateLimitDelayed=%d rateLimitDisconnects=%d messagesReceived=%d bytesReceived=%d queueDepth=%s"
+				+ " handshakeMicros=%s broadcastMicros=%s serializationMicros=%s",
+				socketWrites.sum(), messagesWritten.sum(), bytesWritten.sum(), writesPerMessage(),
+				queuedMessages.sum(), queuedBytes.sum(), droppedMessages.sum(), slowConsumerDisconnects.sum(),
+				historyReplays.sum(), historyMessagesReplayed.sum(), historyReplayNanos.sum() / 1000,
+				rosterSnapshotsMade.sum(), rosterSnapshotsSent.sum(), rosterDeltasSent.sum(),
+				presenceBatches.sum(), presenceMessages.sum(),
+				journalAppends.sum(), journalDropped.sum(), journalSyncs.sum(),
+				connectionsAccepted.sum(), acceptErrors.sum(), Server.getHandshakes().pending(), handshakesRejected.sum(),
+				handshakesTimedOut.sum(), handshakesFailed.sum(), heartbeatsSent.sum(), idleReaped.sum(),
+				rateLimitDropped.sum(), rateLimitDelayed.sum(), rateLimitDisconnects.sum(), messagesReceived.sum(), bytesReceived.sum(), queueDepths().describe(1),
+				handshakeNanos.describe(1000), broadcastNanos.describe(1000), serializationNanos.describe(1000))
+				+ (compressionNanos.count() > 0 ? " compressionMicros=" + compressionNanos.describe(1000)
+						+ " bytesBeforeCompression=" + bytesBeforeCompression.sum()
+						+ " bytesAfterCompression=" + bytesAfterCompression.sum() : "")
+				+ (ServerConfig.clusterPort > 0 ? " clusterRelayed=" + clusterRelayed.sum() + " clusterReceived="
+						+ clusterReceived.sum() + " clusterDropped=" + clusterDropped.sum() : "")
+				+ (traceStages.count() > 0 ? " traceMicros={" + traceStages.describe() + "}" : "");
+	}
+
+	/**
+	 * Registers the ServerMetricsMXBean with the platform MBeanServer, as tcpchat:type=ServerMetrics.
+	 * Does nothing if it is registered already, like when a test starts the Server twice
+	 */
+	public static void registerMBean() {
+		try {
+			ObjectName name = new ObjectName("tcpchat:type=ServerMetrics");
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new MXBean(), name);
+			}
+		} catch (JMException e) {
+			System.out.println("Could not register the metrics MBean: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Prints describe() every so often on a daemon Thread, for as long as the Server runs
+	 * @param intervalSeconds - seconds between two snapshots
+	 */
+	public static void startReporting(long intervalSeconds) {
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "metrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		reporter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				System.out.println("Metrics: " + describe());
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Wraps the input stream of a socket so that every byte read from it is counted
+	 * @param in - input stream of a Client socket
+	 * @return a stream that counts what is read and passes it on
+	 */
+	public static InputStream countReads(InputStream in) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = in.read(b, off, len);
+				if (read > 0 && ServerConfig.metrics) {
+					bytesReceived.add(read);
+				}
+				return read;
+			}
+
+			@Override
+			public int read() throws IOException {
+				int read = in.read();
+				if (read >= 0 && ServerConfig.metrics) {
+					bytesReceived.increment();
+				}
+				return read;
+			}
+		};
+	}
+
+	/**
+	 * Wraps the output stream of a socket so that every write call on it is counted
+	 * @param out - output stream of a Client socket
+	 * @return a stream that counts its writes and passes them on
+	 */
+	public static OutputStream countWrites(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				socketWrites.increment();
+				bytesWritten.add(len);
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				socketWrites.increment();
+				bytesWritten.increment();
+				out.write(b);
+			}
+		};
+	}
+
+	/**
+	 * This class publishes the metrics over JMX. Every attribute is read when it is asked for
+	 */
+	private static class MXBean implements ServerMetricsMXBean {
+
+		@Override
+		public long getConnectionsAccepted() {
+			return connectionsAccepted.sum();
+		}
+
+		@Override
+		public long getPendingHandshakes() {
+			return Server.getHandshakes().pending();
+		}
+
+		@Override
+		public long getHandshakesRejected() {
+			return handshakesRejected.sum();
+		}
+
+		@Override
+		public long getHandshakesTimedOut() {
+			return handshakesTimedOut.sum();
+		}
+
+		@Override
+		public long getIdleReaped() {
+			return idleReaped.sum();
+		}
+
+		@Override
+		public long getRateLimited() {
+			return rateLimitDropped.sum() + rateLimitDelayed.sum() + rateLimitDisconnects.sum();
+		}
+
+		@Override
+		public long getConnectedUsers() {
+			return Server.getCurrentUserHandlers().size();
+		}
+
+		@Override
+		public long getMessagesReceived() {
+			return messagesReceived.sum();
+		}
+
+		@Override
+		public long getBytesReceived() {
+			return bytesReceived.sum();
+		}
+
+		@Override
+		public long getMessagesWritten() {
+			return messagesWritten.sum();
+		}
+
+		@Override
+		public long getBytesWritten() {
+			return bytesWritten.sum();
+		}
+
+		@Override
+		public long getSocketWrites() {
+			return socketWrites.sum();
+		}
+
+		@Override
+		public long getQueuedMessages() {
+			return queuedMessages.sum();
+		}
+
+		@Override
+		public long getLargestQueueDepth() {
+			return queueDepths().max();
+		}
+
+		@Override
+		public long getDroppedMessages() {
+			return droppedMessages.sum();
+		}
+
+		@Override
+		public long getSlowConsumerDisconnects() {
+			return slowConsumerDisconnects.sum();
+		}
+
+		@Override
+		public double getHandshakeMicrosP50() {
+			return handshakeNanos.percentile(50) / 1000.0;
+		}
+
+		@Override
+		public double getHandshakeMicrosP99() {
+			return handshakeNanos.percentile(99) / 1000.0;
+		}
+
+		@Override
+		public double getBroadcastMicrosP50() {
+			return broadcastNanos.percentile(50) / 1000.0;
+		}
+
+		@Override
+		public double getBroadcastMicrosP99() {
+			return broadcastNanos.percentile(99) / 1000.0;
+		}
+
+		@Override
+		public double getSerializationMicrosP50() {
+			return serializationNanos.percentile(50) / 1000.0;
+		}
+
+		@Override
+		public double getSerializationMicrosP99() {
+			return serializationNanos.percentile(99) / 1000.0;
+		}
+
+		@Override
+		public String getSnapshot() {
+			return describe();
+		}
+
+		@Override
+		public void reset() {
+			ServerMetrics.reset();
+		}
+	}
+
+}
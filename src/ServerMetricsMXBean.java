@@ -0,0 +1,57 @@
+/**
+ * This interface lists what ServerMetrics publishes over JMX, as the MBean
+ * tcpchat:type=ServerMetrics. Latencies are in microseconds.
+ *
+ */
+public interface ServerMetricsMXBean {
+
+	long getConnectionsAccepted();
+	long getPendingHandshakes();
+	long getHandshakesRejected();
+	long getHandshakesTimedOut();
+	long getIdleReaped();
+	long getRateLimited();
+
+	long getConnectedUsers();
+
+	long getMessagesReceived();
+
+	long getBytesReceived();
+
+	long getMessagesWritten();
+
+	long getBytesWritten();
+
+	long getSocketWrites();
+
+	long getQueuedMessages();
+
+	long getLargestQueueDepth();
+
+	long getDroppedMessages();
+
+	long getSlowConsumerDisconnects();
+
+	double getHandshakeMicrosP50();
+
+	double getHandshakeMicrosP99();
+
+	double getBroadcastMicrosP50();
+
+	double getBroadcastMicrosP99();
+
+	double getSerializationMicrosP50();
+
+	double getSerializationMicrosP99();
+
+	/**
+	 * @return every counter in one line, as ServerMetrics.describe() prints it
+	 */
+	String getSnapshot();
+
+	/**
+	 * Sets every counter back to zero
+	 */
+	void reset();
+
+}
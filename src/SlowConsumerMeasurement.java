@@ -0,0 +1,130 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class checks that a Client which stops reading cannot make the Server's memory grow.
+ * It starts a Server in this process, connects one user that never reads its socket and one
+ * user that reads everything, and has a third user send a flood of chat messages. While the
+ * flood is running it keeps track of the largest outbound queue of the stalled user, and at the
+ * end prints that together with what happened to the stalled user and the ServerMetrics.
+ *
+ * Usage: java SlowConsumerMeasurement [messages] [text length] [server settings...]
+ *
+ */
+public class SlowConsumerMeasurement {
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int textLength = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		final String[] serverArgs = new String[Math.max(0, args.length - 2)];
+		System.arraycopy(args, Math.min(2, args.length), serverArgs, 0, serverArgs.length);
+
+		// The Server prints every message it receives, which would drown the results
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		Harness.startServer(serverArgs);
+
+		// The stalled user shrinks its receive buffer so the Server's queue fills up quickly
+		Socket stalledSocket = new Socket();
+		stalledSocket.setReceiveBufferSize(4096);
+		stalledSocket.connect(new java.net.InetSocketAddress(InetAddress.getLoopbackAddress(), ServerConfig.port));
+		User stalled = Harness.handshake("stalled", new DataInputStream(stalledSocket.getInputStream()),
+				new DataOutputStream(stalledSocket.getOutputStream()));
+
+		Socket healthySocket = new Socket(InetAddress.getLoopbackAddress(), ServerConfig.port);
+		final DataInputStream healthyIn = new DataInputStream(new BufferedInputStream(healthySocket.getInputStream()));
+		Harness.handshake("healthy", healthyIn, new DataOutputStream(healthySocket.getOutputStream()));
+		final AtomicInteger healthyChats = new AtomicInteger();
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						if (MessageCodec.readMessage(healthyIn).getType() == MessageType.CHAT_MESSAGE) {
+							healthyChats.incrementAndGet();
+						}
+					}
+				} catch (IOException e) {
+					// Socket closed at the end of the test
+				}
+			}
+		});
+		reader.setDaemon(true);
+		reader.start();
+
+		Socket senderSocket = new Socket(InetAddress.getLoopbackAddress(), ServerConfig.port);
+		final DataInputStream senderIn = new DataInputStream(new BufferedInputStream(senderSocket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(senderSocket.getOutputStream()));
+		User sender = Harness.handshake("sender", senderIn, out);
+		Thread drain = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						MessageCodec.readMessage(senderIn);
+					}
+				} catch (IOException e) {
+					// Socket closed at the end of the test
+				}
+			}
+		});
+		drain.setDaemon(true);
+		drain.start();
+
+		final UserHandler stalledHandler = Server.getCurrentUserHandlers().get(stalled.getId());
+		final long[] largestQueue = new long[2];
+		Thread watcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					largestQueue[0] = Math.max(largestQueue[0], stalledHandler.getQueuedMessages());
+					largestQueue[1] = Math.max(largestQueue[1], stalledHandler.getQueuedBytes());
+					try {
+						Thread.sleep(1);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		});
+		watcher.setDaemon(true);
+		watcher.start();
+
+		ServerMetrics.reset();
+		long start = System.nanoTime();
+		StringBuilder text = new StringBuilder();
+		while (text.length() < textLength) {
+			text.append('x');
+		}
+		byte[] frame = MessageCodec.encode(new Message(MessageType.CHAT_MESSAGE, sender, text.toString(), null),
+				MessageCodec.FORMAT_BINARY);
+		for (int i = 0; i < messages; i++) {
+			out.write(frame);
+		}
+		out.flush();
+		long deadline = System.currentTimeMillis() + 60000;
+		while (healthyChats.get() < messages && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		long elapsed = System.nanoTime() - start;
+		watcher.interrupt();
+
+		console.println("Settings: " + ServerConfig.describe());
+		console.printf("%d messages of %d characters sent in %.2f s, healthy user received %d%n",
+				messages, textLength, elapsed / 1e9, healthyChats.get());
+		console.println("Largest outbound queue of the stalled user: " + largestQueue[0] + " messages, "
+				+ largestQueue[1] + " bytes");
+		console.println("Stalled user still connected: " + (Server.getCurrentUserHandlers().get(stalled.getId()) != null));
+		console.println(ServerMetrics.describe());
+		System.exit(0);
+	}
+
+}
@@ -0,0 +1,243 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class runs tasks after a delay, like a ScheduledExecutorService, but made for a very
+ * large number of timeouts that are mostly cancelled or moved before they are due, like one
+ * idle timeout per connection (see UserHandler) or handshake (see HandshakeStage).
+ *
+ * It is a hashed timing wheel: a ring of buckets, one per tick. A timeout goes into the bucket
+ * of the tick it is due in, counting how many times round the ring that is. Every tick, the
+ * wheel's Thread visits one bucket, runs the timeouts that are due and counts down the rest.
+ * Adding or cancelling a timeout takes the same time however many there are, and the wheel
+ * only ever has one Thread, where a ScheduledExecutorService keeps every task in a heap that
+ * is reordered for every add and cancel.
+ *
+ * The price is precision: a task runs up to one tick after it is due. Tasks run on the
+ * wheel's Thread, so they must be short, and hand anything slow to another Thread. A cancelled
+ * timeout stays in its bucket until the wheel passes it, and is dropped then.
+ *
+ */
+public class TimingWheel {
+
+	/**
+	 * This field is the length of one tick in nanoseconds
+	 */
+	private final long tickNanos;
+
+	/**
+	 * This array is the ring. Every bucket is a linked list of timeouts, only touched by the
+	 * wheel's Thread. The length is a power of two, so a tick is turned into a bucket with a mask
+	 */
+	private final Timeout[] buckets;
+	private final int mask;
+
+	/**
+	 * This Queue holds the timeouts added since the last tick. Any Thread may add to it, and
+	 * the wheel's Thread moves them into their buckets
+	 */
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+
+	/**
+	 * This field is when (System.nanoTime) tick 0 started. Every deadline counts from it
+	 */
+	private final long startNanos = System.nanoTime();
+
+	/**
+	 * This Thread turns the wheel. It is only started by the first timeout
+	 */
+	private final Thread thread;
+	private final AtomicBoolean started = new AtomicBoolean(false);
+
+	/**
+	 * This field is the number of the tick the wheel's Thread is working on. Only read and
+	 * written by the wheel's Thread
+	 */
+	private long tick = 0;
+
+	/**
+	 * Constructor for a new TimingWheel. Its Thread is not started until a timeout is added
+	 * @param name - name of the wheel's Thread
+	 * @param tickMillis - length of one tick, which is how late a task can run
+	 * @param bucketCount - number of buckets in the ring, rounded up to a power of two. A
+	 * delay shorter than bucketCount ticks is never counted down
+	 */
+	public TimingWheel(String name, long tickMillis, int bucketCount) {
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+		int size = Integer.highestOneBit(Math.max(1, bucketCount - 1)) << 1;
+		this.buckets = new Timeout[size];
+		this.mask = size - 1;
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				turn();
+			}
+		}, name);
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Runs a task once a delay has passed
+	 * @param task - task to run on the wheel's Thread
+	 * @param delay - how long to wait before running it
+	 * @param unit - unit of the delay
+	 * @return the timeout, which can be cancelled
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		if (started.compareAndSet(false, true)) {
+			thread.start();
+		}
+		Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + unit.toNanos(Math.max(0, delay)));
+		added.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Ticks forever
+	 */
+	private void turn() {
+		while (true) {
+			long sleepNanos = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+			if (sleepNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			addTimeouts();
+			expireBucket(buckets[(int) (tick & mask)]);
+			tick++;
+		}
+	}
+
+	/**
+	 * Moves every timeout added since the last tick into its bucket
+	 */
+	private void addTimeouts() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.cancelled.get()) {
+				continue;
+			}
+			// A timeout that is due already goes into the bucket of this tick
+			long dueTick = Math.max(tick, timeout.deadlineNanos / tickNanos);
+			timeout.remainingRounds = (dueTick - tick) / buckets.length;
+			int index = (int) (dueTick & mask);
+			timeout.next = buckets[index];
+			buckets[index] = timeout;
+		}
+	}
+
+	/**
+	 * Runs every timeout of a bucket that is due, drops the cancelled ones, and counts down the
+	 * rest. The bucket is handed over as its first timeout
+	 */
+	private void expireBucket(Timeout first) {
+		int index = (int) (tick & mask);
+		buckets[index] = null;
+		Timeout timeout = first;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			timeout.next = null;
+			if (timeout.cancelled.get()) {
+				// Dropped
+			} else if (timeout.remainingRounds <= 0) {
+				if (timeout.cancelled.compareAndSet(false, true)) {
+					try {
+						timeout.task.run();
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+			} else {
+				timeout.remainingRounds--;
+				timeout.next = buckets[index];
+				buckets[index] = timeout;
+			}
+			timeout = next;
+		}
+	}
+
+	/**
+	 * This class is one task waiting in a TimingWheel
+	 */
+	public static class Timeout {
+
+		private final Runnable task;
+
+		/**
+		 * This field is when the task is due, in nanoseconds since the wheel's startNanos
+		 */
+		private final long deadlineNanos;
+
+		/**
+		 * This boolean becomes true once the task has run or been cancelled
+		 */
+		private final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+		/**
+		 * These fields are only touched by the wheel's Thread
+		 */
+		private long remainingRounds;
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadlineNanos) {
+			this.task = task;
+			this.deadlineNanos = deadlineNanos;
+		}
+
+		/**
+		 * Makes sure the task does not run, if it has not run yet
+		 * @return true if it was cancelled, false if it has run or was cancelled already
+		 */
+		public boolean cancel() {
+			return cancelled.compareAndSet(false, true);
+		}
+	}
+
+	/**
+	 * Tests the wheel: many timeouts with different delays, half of them cancelled, must run
+	 * exactly once if they were not cancelled, never early, and at most a few ticks late
+	 */
+	public static void main(String[] args) throws Exception {
+		TimingWheel wheel = new TimingWheel("timing-wheel-test", 10, 64);
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		final java.util.concurrent.atomic.AtomicLong ran = new java.util.concurrent.atomic.AtomicLong();
+		final java.util.concurrent.atomic.AtomicLong early = new java.util.concurrent.atomic.AtomicLong();
+		final java.util.concurrent.atomic.AtomicLong maxLateNanos = new java.util.concurrent.atomic.AtomicLong();
+		java.util.Random random = new java.util.Random(1);
+		long longest = 0;
+		for (int i = 0; i < count; i++) {
+			// Up to 2 seconds, so many timeouts go round the 640 ms ring more than once
+			final long delayMillis = random.nextInt(2000);
+			longest = Math.max(longest, delayMillis);
+			final long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+			Timeout timeout = wheel.schedule(new Runnable() {
+				@Override
+				public void run() {
+					long late = System.nanoTime() - due;
+					if (late < 0) {
+						early.incrementAndGet();
+					}
+					long max;
+					while (late > (max = maxLateNanos.get()) && !maxLateNanos.compareAndSet(max, late)) {
+						// Try again
+					}
+					ran.incrementAndGet();
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+			if (i % 2 == 1 && !timeout.cancel()) {
+				throw new IllegalStateException("A timeout could not be cancelled.");
+			}
+		}
+		Thread.sleep(longest + 200);
+		long expected = count / 2 + count % 2;
+		System.out.printf("%,d timeouts, %,d ran (expected %,d), %d early, latest %.1f ms late%n", count, ran.get(),
+				expected, early.get(), maxLateNanos.get() / 1e6);
+		System.out.println(ran.get() == expected && early.get() == 0 ? "PASSED" : "FAILED");
+	}
+
+}
@@ -0,0 +1,84 @@
+import java.io.IOException;
+
+/**
+ * This class is a traced message on its way to one recipient. It shares the encoded bytes of
+ * the OutboundFrame that is broadcast, and adds that recipient's own ENQUEUE, DEQUEUE and
+ * ENCODE stamps (see MessageTrace). Once it has been taken out of the queue, its stages are
+ * recorded in ServerMetrics.traceStages, and if the recipient asked for traced frames the
+ * stamps are sent along in a trailer.
+ *
+ * It holds a reference to the shared frame until it is released itself.
+ *
+ */
+class TracedFrame extends OutboundFrame {
+
+	/**
+	 * This field is the frame that is broadcast to every recipient
+	 */
+	private final OutboundFrame shared;
+
+	/**
+	 * This field holds the stamps of this recipient
+	 */
+	private final MessageTrace trace;
+
+	/**
+	 * This boolean is true if the stamps are sent to the recipient
+	 */
+	private final boolean sendTrace;
+
+	/**
+	 * This field holds the bytes written to the recipient, once they have been asked for
+	 */
+	private byte[] frameBytes;
+
+	/**
+	 * Creates the frame for one recipient and stamps ENQUEUE. The caller holds its one reference
+	 * @param shared - frame of a traced message
+	 * @param sendTrace - true if the recipient asked for traced frames
+	 */
+	TracedFrame(OutboundFrame shared, boolean sendTrace) {
+		super(shared.getMessage());
+		this.shared = shared.retain();
+		this.trace = shared.getMessage().getTrace().copy();
+		this.sendTrace = sendTrace;
+		trace.set(MessageTrace.ENQUEUE, System.nanoTime());
+	}
+
+	@Override
+	public long getHistorySequence() {
+		return shared.getHistorySequence();
+	}
+
+	@Override
+	void dequeued() {
+		trace.set(MessageTrace.DEQUEUE, System.nanoTime());
+	}
+
+	@Override
+	public int size(int format) throws IOException {
+		return shared.size(format) + (sendTrace ? MessageTrace.TRAILER_SIZE : 0);
+	}
+
+	/**
+	 * Returns the bytes for this recipient, stamping ENCODE and recording the stages the first
+	 * time. Only called once the frame has been taken out of the queue
+	 */
+	@Override
+	public synchronized byte[] bytes(int format) throws IOException {
+		if (frameBytes == null) {
+			byte[] sharedBytes = shared.bytes(format);
+			trace.set(MessageTrace.ENCODE, System.nanoTime());
+			ServerMetrics.traceStages.record(trace);
+			frameBytes = sendTrace ? MessageCodec.withTrace(sharedBytes, trace) : sharedBytes;
+		}
+		return frameBytes;
+	}
+
+	@Override
+	protected void freed() {
+		frameBytes = null;
+		shared.release();
+	}
+
+}
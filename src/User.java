@@ -3,6 +3,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class is a container for the data associated with the users of this program.
@@ -23,13 +24,14 @@ public class User implements java.io.Serializable {
 	 * 
 	 * Every time this class is modified, the UID should be incremented.
 	 */
-	private static final long serialVersionUID = 0L;
+	private static final long serialVersionUID = 1L;
 	
 	/**
 	 * This field contains a hidden counter that is incremented each time a new user object is constructed.
 	 * The pre-increment value is assigned to the new user, thus ensuring that each user gets their own unique ID.
+	 * It is atomic because users are created by many threads at once (for example by the EventLoops).
 	 */
-	private static int nextUserID = -1;
+	private static final AtomicInteger nextUserID = new AtomicInteger(-1);
 	
 	/**
 	 * This is the user that represents having no User.
@@ -61,10 +63,31 @@ public class User implements java.io.Serializable {
 	public User(String username) {
 		
 		this.username = username;
-		this.userID = nextUserID++;
+		this.userID = nextUserID.getAndIncrement();
 		
 	}
 	
+	/**
+	 * This constructor recreates a user that was created somewhere else, keeping its ID.
+	 * It is used when a user is decoded from the binary wire format
+	 * @param userID The ID the user was given when it was first created
+	 * @param username The username of the user
+	 */
+	User(int userID, String username) {
+		this.username = username;
+		this.userID = userID;
+	}
+	
+	/**
+	 * Makes the users created from now on get IDs starting at a given ID. In cluster mode every
+	 * node gives out its own block of IDs (see Cluster), so that an ID is unique in the whole
+	 * cluster. Must be called before any user connects
+	 * @param firstID The ID the next user will get
+	 */
+	static void startIDsAt(int firstID) {
+		nextUserID.set(firstID);
+	}
+	
 	/**
 	 * Returns the user's username
 	 * @return The client-facing username of this user
@@ -90,6 +113,21 @@ public class User implements java.io.Serializable {
 		return (this == User.SERVER);
 	}
 	
+	/**
+	 * Makes a deserialized SERVER or NO_USER the constant itself again, as the binary wire
+	 * format does, so that isServer works on messages received in FORMAT_JAVA
+	 * @return the user to use instead of the one that was deserialized
+	 */
+	private Object readResolve() {
+		if (this.userID == SERVER.userID) {
+			return SERVER;
+		}
+		if (this.userID == NO_USER.userID) {
+			return NO_USER;
+		}
+		return this;
+	}
+	
 	@Override
 	public boolean equals(Object other) {
 		if (this == other) return true;
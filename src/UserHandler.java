@@ -1,10 +1,13 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
 import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class represents a UserHandler. This class primarily interacts with the Clients,
@@ -12,6 +15,9 @@ import java.util.Queue;
  * from the Client and forwarding them to the other UserHandlers, as well as sending any
  * messages to the Client that it receives
  * 
+ * A UserHandler either owns its own listening, sending and processing Threads (legacy mode),
+ * or is driven by an NioConnection on one of the NioServer's EventLoops (NIO mode)
+ * 
  * @author Sebastian Hernandez and Nowndale Sale
  *
  */
@@ -40,9 +46,56 @@ public class UserHandler {
 	 */
 //	private Socket userSocket;
 	
-	private ObjectInputStream inFromClient;
+	private DataInputStream inFromClient;
 	
-	private ObjectOutputStream outToClient;
+	private DataOutputStream outToClient;
+
+	/**
+	 * This connection is used instead of the streams and Threads when the Server is
+	 * running in NIO mode. It is null in legacy mode
+	 */
+	private NioConnection nioConnection;
+
+	/**
+	 * This field is the wire format that was agreed on with the Client (see MessageCodec)
+	 */
+	private int wireFormat;
+
+	/**
+	 * This boolean is true if frames are sent to the Client compressed, when they are large
+	 * enough (see ServerConfig.compressionThreshold)
+	 */
+	private final boolean compress;
+
+	/**
+	 * This boolean is true if the Client asked for traced frames (see MessageTrace)
+	 */
+	private final boolean sendTraces;
+
+	/**
+	 * This boolean is true if the Client answers heartbeats (see MessageCodec.HEARTBEATS), so it
+	 * is sent a HEARTBEAT_MESSAGE whenever it has been quiet for ServerConfig.heartbeatIntervalMillis,
+	 * and disconnected once it has been quiet for ServerConfig.idleTimeoutMillis
+	 */
+	private final boolean heartbeats;
+
+	/**
+	 * This field is when (System.nanoTime) the last message was received from the Client
+	 */
+	private volatile long lastReceivedNanos = System.nanoTime();
+
+	/**
+	 * This timeout checks whether the Client has gone quiet. It is in the Server's TimingWheel,
+	 * so every connection costs one entry there and no Thread or scheduled task of its own
+	 */
+	private volatile TimingWheel.Timeout idleCheck;
+
+	/**
+	 * This RateLimiter limits what the Client may send, or is null if ServerConfig.userMessageRate
+	 * and userByteRate are both 0. It is only used by the listening Thread (or EventLoop)
+	 */
+	private final RateLimiter rateLimiter = RateLimiter.create(ServerConfig.userMessageRate, ServerConfig.userByteRate,
+			ServerConfig.rateLimitBurstMillis);
 
 	/**
 	 * This User represents the Client, and holds the Client's user name and userID
@@ -70,115 +123,459 @@ public class UserHandler {
 	 * This boolean is true when the Client is connected to the chat, and becomes false when
 	 * the Client disconnects
 	 */
-	private boolean bRun = true;
+	private volatile boolean bRun = true;
 
 	/**
 	 * This Queue holds all outgoing messages that have not yet been sent. When a message
 	 * is sent, it will be removed from the front of the Queue
+	 * 
+	 * Any UserHandler may add to this Queue at the same time. The sending Thread sleeps
+	 * while it is empty and is woken up when a message is added
+	 * 
+	 * Messages are held as OutboundFrames, so that a broadcast is only encoded once
+	 * no matter how many queues it is in
+	 * 
+	 * The Queue is bounded by ServerConfig.outboundMaxMessages and outboundMaxBytes. In NIO mode
+	 * it belongs to the NioConnection
 	 */
-	private Queue<Message> outgoingMessages = new LinkedList<Message>();
+	private final OutboundQueue outgoingMessages;
+	
+	/**
+	 * This boolean becomes true once this Client has been found too slow to keep up, so that
+	 * it is only disconnected once
+	 */
+	private final AtomicBoolean slowConsumer = new AtomicBoolean(false);
+	
+	/**
+	 * This list holds the frames the sending Thread is about to write in one go.
+	 * It is only touched by the sending Thread
+	 */
+	private final ArrayList<OutboundFrame> sendingBatch = new ArrayList<OutboundFrame>();
+	
+	/**
+	 * This field is the sequence number of the last MessageHistory frame this Client was sent
+	 * when it connected. Broadcasts of frames up to that number are not sent again
+	 */
+	private long replayedUpTo = 0;
+	
+	/**
+	 * This Set holds the names of the rooms this user is in, so they can be left when the
+	 * user disconnects
+	 */
+	private final Set<String> rooms = ConcurrentHashMap.newKeySet();
 	
 	/**
 	 * This Queue holds all incoming messages that have been received. When a message
 	 * is received and handled, it will be removed from the front of the Queue
+	 * 
+	 * The processing Thread sleeps while it is empty and is woken up when a message is added
 	 */
-	private Queue<Message> incomingMessages = new LinkedList<Message>();
+	private BlockingQueue<Message> incomingMessages = new LinkedBlockingQueue<Message>();
 
 	/**
 	 * Constructor for a new UserHandler. Accepts the following parameters, and then initializes 
-	 * the listening and sending Threads. After, it will send the ConnectionAck back to the 
-	 * Client, and will let all other UserHandlers know that it has joined the chat
-	 * @param connectionSocket becomes userSocket
+	 * the listening and sending Threads (platform or virtual, see ChatThreads). Before they are started, it will send
+	 * the ConnectionAck back to the Client, register itself with the Server and will let all other UserHandlers know
+	 * that it has joined the chat
+	 * @param in - stream from the Client
+	 * @param out - stream to the Client
 	 * @param user becomes user
-	 * @param currentUsers becomes currentUserHandlers
+	 * @param wireFormat - wire format agreed on with the Client
+	 * @param compress - true if the Client can read compressed frames and the Server compresses
+	 * @param sendTraces - true if the Client asked for traced frames
+	 * @param heartbeats - true if the Client answers heartbeats and the Server sends them
+	 * @param knownRosterVersion - last roster version the Client saw, or 0
 	 */
-	UserHandler(ObjectInputStream in, ObjectOutputStream out, User user){
+	UserHandler(DataInputStream in, DataOutputStream out, User user, int wireFormat, boolean compress, boolean sendTraces,
+			boolean heartbeats, long knownRosterVersion){
 		this.inFromClient = in;
 		this.outToClient = out;
 		this.user = user;
+		this.wireFormat = wireFormat;
+		this.compress = compress;
+		this.sendTraces = sendTraces;
+		this.heartbeats = heartbeats;
+		this.outgoingMessages = new OutboundQueue(frameFormat());
 
 		if(!TEST) {
-			listeningThread = new Thread(new Runnable()
+			listeningThread = ChatThreads.newThread(new Runnable()
 			{
 				@Override
 				public void run() {
 					Message message;
 					try {
-						while ((message = (Message) inFromClient.readObject()) != null && bRun!=false) {
-							System.out.println("Message received: " + message);
-							addToIncomingMessages(message);
+						while (true) {
+							int length = MessageCodec.readFrameLength(inFromClient, MessageCodec.MAX_FRAME_LENGTH);
+							message = MessageCodec.readFrame(inFromClient, length);
+							if (bRun == false) {
+								break;
+							}
+							if (ServerConfig.metrics) {
+								ServerMetrics.messagesReceived.increment();
+							}
+							if (ServerConfig.logMessages) {
+								System.out.println("Message received: " + message);
+							}
+							MessageTrace.sample(message);
+							messageReceived();
+							// Over a rate limit with the DELAY policy, nothing more is read until it may go
+							long wait;
+							while ((wait = admit(message, MessageCodec.LENGTH_FIELD_SIZE + length)) > 0) {
+								TimeUnit.NANOSECONDS.sleep(wait);
+							}
+							if (wait == 0) {
+								addToIncomingMessages(message);
+							}
 						}
 						inFromClient.close();
-					} catch (ClassNotFoundException | IOException e) {
+					} catch (IOException | InterruptedException e) {
 						stop();
 					}
 				}
-			});
+			}, "listening-" + user.getId());
 			
-			sendingThread = new Thread(new Runnable()
+			sendingThread = ChatThreads.newThread(new Runnable()
 			{
 				@Override
 				public void run() {
 					try {
-						while(bRun != false) {
-							Message sendingMessage = outgoingMessages.poll();
-							if (sendingMessage != null) {
-								outToClient.writeObject(sendingMessage);
+						try {
+							while(bRun != false) {
+								sendBatch(outgoingMessages.take());
 							}
+						} catch (InterruptedException e) {
+							// stop() interrupts this Thread once bRun is false
+						}
+						// Send whatever stop() queued up, like the DISCONNECT_ACKNOWLEDGEMENT_MESSAGE
+						OutboundFrame sendingFrame;
+						while ((sendingFrame = outgoingMessages.poll()) != null) {
+							sendBatch(sendingFrame);
 						}
 						outToClient.close();
 					} catch (IOException e) {
 						stop();
 					}	
 				}
-			});
-			
-			listeningThread.start(); //start the thread
-			sendingThread.start();
+			}, "sending-" + user.getId());
 		}
-		processingThread = new Thread(new Runnable()
+		processingThread = ChatThreads.newThread(new Runnable()
 		{
 			@Override
 			public void run() {
-				while(bRun != false) {
-					Message incomingMessage = incomingMessages.poll();
-					if (incomingMessage != null) {
-						handleMessage(incomingMessage);
+				try {
+					while(bRun != false) {
+						handleMessage(incomingMessages.take());
 					}
-				}	
+				} catch (InterruptedException e) {
+					// stop() interrupts this Thread once bRun is false
+				} catch (RuntimeException e) {
+					// Like a message the NIO EventLoop cannot handle, it ends the connection
+					System.out.println("Closing connection after error: " + e);
+					stop();
+				}
 			}
-		});
+		}, "processing-" + user.getId());
+		
+		// Join before any Thread runs, so that stop() can never happen before the join
+		join(knownRosterVersion);
+		
+		if(!TEST) {
+			listeningThread.start(); //start the thread
+			sendingThread.start();
+		}
 		processingThread.start();
+		scheduleIdleCheck(ServerConfig.heartbeatIntervalMillis);
+	}
+
+	/**
+	 * Constructor for a new UserHandler in NIO mode. No Threads are started: the
+	 * NioConnection passes every received message to handleMessage on its EventLoop,
+	 * and outgoing messages are written by the NioConnection
+	 * @param connection - connection to the Client
+	 * @param user becomes user
+	 * @param wireFormat - wire format agreed on with the Client
+	 * @param compress - true if the Client can read compressed frames and the Server compresses
+	 * @param sendTraces - true if the Client asked for traced frames
+	 * @param heartbeats - true if the Client answers heartbeats and the Server sends them
+	 * @param knownRosterVersion - last roster version the Client saw, or 0
+	 */
+	UserHandler(NioConnection connection, User user, int wireFormat, boolean compress, boolean sendTraces,
+			boolean heartbeats, long knownRosterVersion) {
+		this.nioConnection = connection;
+		this.user = user;
+		this.wireFormat = wireFormat;
+		this.compress = compress;
+		this.sendTraces = sendTraces;
+		this.heartbeats = heartbeats;
+		this.outgoingMessages = connection.getOutboundQueue();
 		
-		sendConnectionAck();
-		sendConnUserStatus();
+		join(knownRosterVersion);
+		scheduleIdleCheck(ServerConfig.heartbeatIntervalMillis);
 	}
 
 	/**
-	 * This function will create a new ConnectionAck message and send it to the Client
-	 * by adding it to the outgoingMessages queue
+	 * Notes that a message was received from the Client, so it is not idle. Called by the
+	 * listening Thread, or by the NioConnection
 	 */
-	private void sendConnectionAck() {
-		Object[] details = {getUserList(Server.getCurrentUserHandlers()), user};
-		Message ackMessage = new Message(MessageType.CONNECTION_ACKNOWLEDGEMENT_MESSAGE, User.SERVER, null, details);
-		addToOutgoingMessages(ackMessage);
+	void messageReceived() {
+		if (heartbeats) {
+			lastReceivedNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Checks a message from the Client against its own rate limit and the Server's, before it
+	 * is handled and sent on to anyone. Without limits this costs next to nothing, and within
+	 * them only taking the tokens (see RateLimiter). A message over a limit is dealt with as
+	 * ServerConfig.rateLimitPolicy says. Called by the listening Thread, or by the NioConnection
+	 * @param message - message from the Client
+	 * @param frameBytes - size of its frame
+	 * @return 0 if it may be handled now, more than 0 if it has to wait that many nanoseconds
+	 * and then be checked again, or less than 0 if it has been dropped or the Client disconnected
+	 */
+	long admit(Message message, int frameBytes) {
+		RateLimiter global = Server.getRateLimiter();
+		if (rateLimiter == null && global == null) {
+			return 0;
+		}
+		switch (message.getType()) {
+		case DISCONNECT_REQUEST_MESSAGE:
+		case ROOM_LEAVE_REQUEST_MESSAGE:
+		case HEARTBEAT_MESSAGE:
+			// Never held back, since they only ever make less work
+			return 0;
+		default:
+			break;
+		}
+		long wait = rateLimiter == null ? 0 : rateLimiter.tryAcquire(frameBytes);
+		if (wait == 0 && global != null) {
+			wait = global.tryAcquire(frameBytes);
+			if (wait > 0 && rateLimiter != null) {
+				rateLimiter.giveBack(frameBytes);
+			}
+		}
+		if (wait == 0) {
+			return 0;
+		}
+		switch (ServerConfig.rateLimitPolicy) {
+		case DELAY:
+			ServerMetrics.rateLimitDelayed.increment();
+			return wait;
+		case DROP:
+			ServerMetrics.rateLimitDropped.increment();
+			return -1;
+		default:
+			if (bRun) {
+				ServerMetrics.rateLimitDisconnects.increment();
+				System.out.println("Disconnecting " + user + ", who is sending faster than the rate limit.");
+				stop();
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Checks again in a while whether the Client has gone quiet, if it answers heartbeats
+	 * @param delayMillis - how long from now to check
+	 */
+	private void scheduleIdleCheck(long delayMillis) {
+		if (!heartbeats || !bRun) {
+			return;
+		}
+		idleCheck = Server.getTimeouts().schedule(new Runnable() {
+			@Override
+			public void run() {
+				checkIdle();
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs on the TimingWheel's Thread. A Client that has sent nothing for idleTimeoutMillis is
+	 * taken to be dead, and its connection is closed: the UserHandler then stops as if the Client
+	 * had gone away, so the other users are told it left. A Client that has only been quiet for
+	 * heartbeatIntervalMillis is sent a HEARTBEAT_MESSAGE, which it answers if it is still there
+	 */
+	private void checkIdle() {
+		if (!bRun) {
+			return;
+		}
+		long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReceivedNanos);
+		if (idleMillis >= ServerConfig.idleTimeoutMillis) {
+			reapIdle(idleMillis);
+			return;
+		}
+		long interval = ServerConfig.heartbeatIntervalMillis;
+		if (idleMillis >= interval) {
+			addToOutgoingMessages(new Message(MessageType.HEARTBEAT_MESSAGE, User.SERVER, null, null));
+			ServerMetrics.heartbeatsSent.increment();
+			// Again every interval until the Client answers, but never past the idle timeout
+			scheduleIdleCheck(Math.min(interval, ServerConfig.idleTimeoutMillis - idleMillis));
+		} else {
+			scheduleIdleCheck(interval - idleMillis);
+		}
+	}
+
+	/**
+	 * Closes the connection of a Client that has gone quiet. Nothing is written to it, since a
+	 * dead Client would never read it. In legacy mode closing the stream ends the listening
+	 * Thread's read, and in NIO mode the EventLoop closes the channel, and either way the
+	 * UserHandler is stopped like for any broken connection
+	 * @param idleMillis - how long the Client has been quiet
+	 */
+	private void reapIdle(long idleMillis) {
+		ServerMetrics.idleReaped.increment();
+		System.out.println("Disconnecting " + user + ", who has sent nothing for " + idleMillis + " ms.");
+		if (nioConnection != null) {
+			final NioConnection connection = nioConnection;
+			connection.getEventLoop().execute(new Runnable() {
+				@Override
+				public void run() {
+					connection.close();
+				}
+			});
+		} else {
+			try {
+				inFromClient.close();
+			} catch (IOException e) {
+				// Closed already
+			}
+		}
+	}
+
+	/**
+	 * Adds the user to the Server's Roster, sends the ConnectionAck and the ROSTER_MESSAGEs that
+	 * bring the Client's list of users up to date, replays the recent chat history, registers
+	 * this UserHandler with the Server and lets all other UserHandlers know that it has joined the chat
+	 * @param knownRosterVersion - last roster version the Client saw, or 0
+	 */
+	private void join(long knownRosterVersion) {
+		MessageHistory history = Server.getHistory();
+		Roster roster = Server.getRoster();
+		long rosterVersion;
+		// Nothing can be added to the history while this UserHandler picks up the history and
+		// registers, so every chat message is either in the replay or broadcast to it afterwards.
+		// In the same way, nobody can join or leave until it has registered, so every change
+		// after its roster version is broadcast to it
+		synchronized (history) {
+			synchronized (roster) {
+				ArrayList<OutboundFrame> rosterSync = new ArrayList<OutboundFrame>();
+				rosterVersion = roster.join(user, knownRosterVersion, rosterSync);
+				Cluster cluster = Server.getCluster();
+				if (cluster != null) {
+					cluster.userJoined(user, rosterVersion);
+				}
+				sendConnectionAck(rosterVersion);
+				for (OutboundFrame frame : rosterSync) {
+					addToOutgoingMessages(frame);
+					frame.release();
+				}
+				replayHistory(history);
+				Server.addToCurrentUserHandlers(this);
+			}
+		}
+		sendConnUserStatus(rosterVersion);
 	}
 	
-	private ArrayList<User> getUserList(ArrayList<UserHandler> list){
-		ArrayList<User> userList = new ArrayList<User>();
-		for (UserHandler userHandler : list) {
-			userList.add(userHandler.getUser());
+	/**
+	 * Queues the last ServerConfig.historyReplay lobby chat messages for the Client, from the
+	 * frames the history already holds encoded
+	 * @param history - the Server's history
+	 */
+	private void replayHistory(MessageHistory history) {
+		if (ServerConfig.historyReplay == 0) {
+			return;
+		}
+		long start = System.nanoTime();
+		OutboundFrame[] replay = history.latest(ServerConfig.historyReplay);
+		for (OutboundFrame frame : replay) {
+			// Queued as they are, since the trace of an old message says nothing about this Client
+			queue(frame);
 		}
-		return userList;
+		replayedUpTo = history.lastSequence();
+		ServerMetrics.historyReplays.increment();
+		ServerMetrics.historyMessagesReplayed.add(replay.length);
+		ServerMetrics.historyReplayNanos.add(System.nanoTime() - start);
 	}
 
+	/**
+	 * @return the format frames are written to the Client in: the wire format, with
+	 * MessageCodec.COMPRESSED added if they are compressed
+	 */
+	int frameFormat() {
+		return wireFormat | (compress ? MessageCodec.COMPRESSED : 0);
+	}
+
+	/**
+	 * This function will create a new ConnectionAck message and send it to the Client
+	 * by adding it to the outgoingMessages queue. The format in it has MessageCodec.COMPRESSION
+	 * added if frames will be compressed, MessageCodec.TRACING if the Client asked for
+	 * traced frames, and MessageCodec.HEARTBEATS if it will be sent heartbeats
+	 * @param rosterVersion - roster version the ROSTER_MESSAGEs that follow bring the Client to
+	 */
+	private void sendConnectionAck(long rosterVersion) {
+		Object[] details = {rosterVersion, user, wireFormat | (compress ? MessageCodec.COMPRESSION : 0)
+				| (sendTraces ? MessageCodec.TRACING : 0) | (heartbeats ? MessageCodec.HEARTBEATS : 0)};
+		Message ackMessage = new Message(MessageType.CONNECTION_ACKNOWLEDGEMENT_MESSAGE, User.SERVER, null, details);
+		addToOutgoingMessages(ackMessage);
+	}
+	
 	/**
 	 * This function will create a new DisconnectionAck message and send it to the Client
-	 * by adding it to the outgoingMessages queue 
+	 * by adding it to the outgoingMessages queue. It is the last message the Client gets,
+	 * so it is added even if the queue is full
 	 */
 	private void sendDisconnAck(){
 		Message ackMessage = new Message(MessageType.DISCONNECT_ACKNOWLEDGEMENT_MESSAGE, User.SERVER, null, null);
-		addToOutgoingMessages(ackMessage);
+		OutboundFrame frame = new OutboundFrame(ackMessage);
+		if (nioConnection != null) {
+			nioConnection.sendLast(frame);
+		} else {
+			outgoingMessages.forceOffer(frame);
+		}
+	}
+	
+	/**
+	 * Writes a frame to the Client together with whatever else is queued (up to maxWriteBatch
+	 * frames), so that the whole batch goes out in a single socket write. If flushDelayMicros
+	 * is set, it first waits that long for more frames to join the batch.
+	 * Only called by the sending Thread
+	 * @param first - frame taken from the outgoingMessages queue
+	 * @throws IOException if the stream is broken
+	 */
+	private void sendBatch(OutboundFrame first) throws IOException {
+		int maxBatch = ServerConfig.maxWriteBatch;
+		sendingBatch.add(first);
+		outgoingMessages.drainTo(sendingBatch, maxBatch - sendingBatch.size());
+		if (ServerConfig.flushDelayMicros > 0 && sendingBatch.size() < maxBatch) {
+			long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(ServerConfig.flushDelayMicros);
+			try {
+				long wait;
+				while (sendingBatch.size() < maxBatch && (wait = deadline - System.nanoTime()) > 0) {
+					OutboundFrame next = outgoingMessages.poll(wait, TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					sendingBatch.add(next);
+					outgoingMessages.drainTo(sendingBatch, maxBatch - sendingBatch.size());
+				}
+			} catch (InterruptedException e) {
+				// stop() was called; write this batch, and let the sending loop see the interrupt
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			for (OutboundFrame frame : sendingBatch) {
+				frame.writeTo(outToClient, frameFormat());
+			}
+			outToClient.flush();
+			ServerMetrics.messagesWritten.add(sendingBatch.size());
+		} finally {
+			for (OutboundFrame frame : sendingBatch) {
+				frame.release();
+			}
+			sendingBatch.clear();
+		}
 	}
 	
 	/**
@@ -186,7 +583,90 @@ public class UserHandler {
 	 * @param message - message that is being added to this outgoingMessages queue
 	 */
 	public void addToOutgoingMessages(Message message) {
-		outgoingMessages.add(message);
+		OutboundFrame frame = new OutboundFrame(message);
+		addToOutgoingMessages(frame);
+		frame.release();
+	}
+	
+	/**
+	 * Frame argument will be added to this outgoingMessages queue. The queue takes its own
+	 * reference to the frame, so the caller still has to release its reference
+	 * 
+	 * If the queue is full, ServerConfig.slowConsumerPolicy decides whether the frame
+	 * is dropped or the Client is disconnected
+	 * 
+	 * A frame of a traced message is queued as a TracedFrame of its own, which stamps the time
+	 * this Client's copy of it spends in the queue
+	 * @param frame - frame that is being added to this outgoingMessages queue
+	 * @return true if the frame was queued
+	 */
+	public boolean addToOutgoingMessages(OutboundFrame frame) {
+		long sequence = frame.getHistorySequence();
+		if (sequence != 0 && sequence <= replayedUpTo) {
+			// Already sent as part of the history replay
+			return true;
+		}
+		if (frame.getMessage().getTrace() != null) {
+			return queue(new TracedFrame(frame, sendTraces));
+		}
+		return queue(frame.retain());
+	}
+	
+	/**
+	 * Adds a frame to this outgoingMessages queue, or to the NioConnection
+	 * @param frame - frame whose reference is taken over by the queue
+	 * @return true if the frame was queued
+	 */
+	private boolean queue(OutboundFrame frame) {
+		OutboundQueue.Result result;
+		if (nioConnection != null) {
+			result = nioConnection.send(frame);
+		} else {
+			result = outgoingMessages.offer(frame);
+		}
+		if (result == OutboundQueue.Result.OVERFLOW) {
+			disconnectSlowConsumer();
+		}
+		return result == OutboundQueue.Result.ACCEPTED;
+	}
+	
+	/**
+	 * Disconnects a Client whose outgoingMessages queue is full. Whatever it has not received yet
+	 * is thrown away, and the UserHandler is stopped on its own Thread (or EventLoop) rather than
+	 * on the Thread that is sending to it, so a broadcast never waits for a slow Client
+	 */
+	private void disconnectSlowConsumer() {
+		if (!bRun || !slowConsumer.compareAndSet(false, true)) {
+			return;
+		}
+		ServerMetrics.slowConsumerDisconnects.increment();
+		System.out.println("Disconnecting " + user + ", who is too slow to keep up.");
+		outgoingMessages.clear();
+		if (nioConnection != null) {
+			nioConnection.getEventLoop().execute(new Runnable() {
+				@Override
+				public void run() {
+					stop();
+				}
+			});
+		} else {
+			// The processing Thread stops this UserHandler as if the Client had asked to leave
+			addToIncomingMessages(new Message(MessageType.DISCONNECT_REQUEST_MESSAGE, user, null, null));
+		}
+	}
+	
+	/**
+	 * @return the number of messages waiting to be sent to the Client
+	 */
+	public int getQueuedMessages() {
+		return outgoingMessages.size();
+	}
+	
+	/**
+	 * @return the number of bytes the messages waiting to be sent to the Client take up
+	 */
+	public long getQueuedBytes() {
+		return outgoingMessages.bytes();
 	}
 	
 	/**
@@ -199,17 +679,183 @@ public class UserHandler {
 
 	/**
 	 * Message is being forwarded to all other UserHandlers,
-	 * who will send the message to their own Clients
+	 * who will send the message to their own Clients.
+	 * The message is put in a single OutboundFrame, so it is encoded once
+	 * for the whole broadcast instead of once per UserHandler
 	 * @param message - message that is being sent out to all other UserHandlers
 	 */
 	private void sendMessageToCurrentUserHandlers(Message message){
 		if (Server.getCurrentUserHandlers().size() != 0){
-			for (UserHandler userHandler : Server.getCurrentUserHandlers()) {
-				if (userHandler != this) {
-					userHandler.addToOutgoingMessages(message);
-				}
+			OutboundFrame frame = new OutboundFrame(message);
+			sendFrameToCurrentUserHandlers(frame);
+			frame.release();
+		}
+	}
+	
+	/**
+	 * Frame is being forwarded to all other UserHandlers. The caller keeps its reference
+	 * @param frame - frame that is being sent out to all other UserHandlers
+	 */
+	private void sendFrameToCurrentUserHandlers(OutboundFrame frame) {
+		boolean timed = ServerConfig.metrics;
+		long start = timed ? System.nanoTime() : 0;
+		for (UserHandler userHandler : Server.getCurrentUserHandlers()) {
+			if (userHandler != this) {
+				userHandler.addToOutgoingMessages(frame);
 			}
 		}
+		if (timed) {
+			ServerMetrics.broadcastNanos.record(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * A lobby CHAT_MESSAGE is remembered in the Server's MessageHistory and journal, relayed to
+	 * the other nodes of the cluster, and then forwarded to all other UserHandlers, using the
+	 * same frame for all of them
+	 * @param message - CHAT_MESSAGE from the Client
+	 */
+	private void sendChatMessage(Message message) {
+		OutboundFrame frame = new OutboundFrame(message);
+		Server.getHistory().add(frame);
+		journal(frame);
+		Cluster cluster = Server.getCluster();
+		if (cluster != null) {
+			cluster.relay(frame);
+		}
+		sendFrameToCurrentUserHandlers(frame);
+		frame.release();
+	}
+
+	/**
+	 * Hands a frame that is being relayed to the Server's MessageJournal, if it has one. This
+	 * never waits for the disk: the journal's own Thread writes it
+	 * @param frame - frame of the relayed message
+	 */
+	private void journal(OutboundFrame frame) {
+		MessageJournal journal = Server.getJournal();
+		if (journal != null) {
+			journal.append(frame);
+		}
+	}
+
+	/**
+	 * Message is sent to every other member of a room. Like sendMessageToCurrentUserHandlers
+	 * it is encoded once, but only the members of the room are looped over
+	 * @param room - name of the room
+	 * @param message - message that is being sent out to the room
+	 */
+	private void sendMessageToRoom(String room, Message message) {
+		OutboundFrame frame = new OutboundFrame(message);
+		journal(frame);
+		boolean timed = ServerConfig.metrics;
+		long start = timed ? System.nanoTime() : 0;
+		for (UserHandler userHandler : Server.getRooms().members(room)) {
+			if (userHandler != this) {
+				userHandler.addToOutgoingMessages(frame);
+			}
+		}
+		if (timed) {
+			ServerMetrics.broadcastNanos.record(System.nanoTime() - start);
+		}
+		frame.release();
+	}
+	
+	/**
+	 * Adds this user to a room and tells every member of the room, including this user
+	 * @param room - name of the room
+	 */
+	private void joinRoom(String room) {
+		if (!RoomRegistry.isValidName(room)) {
+			System.out.println(user + " tried to join a room with an invalid name.");
+			return;
+		}
+		// stop() leaves every room in rooms while holding this lock, so a join that came after it
+		// would never be left, and this user would stay a member of the room for good
+		synchronized (this) {
+			if (!bRun) {
+				return;
+			}
+			if (Server.getRooms().join(room, this)) {
+				rooms.add(room);
+				sendRoomMembershipChange(room, true);
+			}
+		}
+	}
+	
+	/**
+	 * Removes this user from a room and tells this user and every member that is left
+	 * @param room - name of the room
+	 */
+	private void leaveRoom(String room) {
+		if (Server.getRooms().leave(room, this)) {
+			rooms.remove(room);
+			sendRoomMembershipChange(room, false);
+		}
+	}
+	
+	/**
+	 * ROOM_MEMBERSHIP_CHANGE_MESSAGE will be sent to every member of a room and to this user
+	 * @param room - name of the room
+	 * @param joined - true if this user joined the room, false if it left
+	 */
+	private void sendRoomMembershipChange(String room, boolean joined) {
+		Object[] details = {this.user, joined};
+		Message membershipMessage = new Message(MessageType.ROOM_MEMBERSHIP_CHANGE_MESSAGE, User.SERVER, room, details);
+		if (!joined) {
+			addToOutgoingMessages(membershipMessage);
+		}
+		OutboundFrame frame = new OutboundFrame(membershipMessage);
+		for (UserHandler userHandler : Server.getRooms().members(room)) {
+			userHandler.addToOutgoingMessages(frame);
+		}
+		frame.release();
+	}
+	
+	/**
+	 * Forwards a ROOM_CHAT_MESSAGE to the room it was posted in. A user that is not in the room
+	 * is told so with a ROOM_MEMBERSHIP_CHANGE_MESSAGE instead
+	 * @param message - ROOM_CHAT_MESSAGE from the Client
+	 */
+	private void postToRoom(Message message) {
+		String room = (String) message.getMessageDetails()[0];
+		if (!rooms.contains(room)) {
+			Object[] details = {this.user, false};
+			addToOutgoingMessages(new Message(MessageType.ROOM_MEMBERSHIP_CHANGE_MESSAGE, User.SERVER, room, details));
+			return;
+		}
+		sendMessageToRoom(room, message);
+	}
+
+	/**
+	 * Forwards a DIRECT_MESSAGE to the one user it is for, found by ID in the Server's
+	 * ConnectionRegistry. If that user is not connected, or its queue would not take the
+	 * message, a DELIVERY_FAILURE_MESSAGE is sent back instead. Direct messages are not
+	 * relayed in cluster mode, so a user of another node is not reached either, and the
+	 * failure says so
+	 * @param message - DIRECT_MESSAGE from the Client
+	 */
+	private void sendDirectMessage(Message message) {
+		int targetId = (Integer) message.getMessageDetails()[0];
+		UserHandler target = Server.getCurrentUserHandlers().get(targetId);
+		Cluster cluster = Server.getCluster();
+		String failure = null;
+		if (target == null && cluster != null && cluster.isRemote(targetId)) {
+			failure = "User #" + targetId + " is connected to another server of the cluster, which direct messages cannot reach.";
+		} else if (target == null) {
+			failure = "User #" + targetId + " is not connected.";
+		} else {
+			OutboundFrame frame = new OutboundFrame(message);
+			journal(frame);
+			if (!target.addToOutgoingMessages(frame)) {
+				failure = target.getUser() + " is not keeping up with their messages.";
+			}
+			frame.release();
+		}
+		if (failure != null) {
+			Object[] details = {targetId, message.getMessageText()};
+			addToOutgoingMessages(new Message(MessageType.DELIVERY_FAILURE_MESSAGE, User.SERVER, failure, details));
+		}
 	}
 
 	/**
@@ -221,81 +867,146 @@ public class UserHandler {
 	
 	/**
 	 * Messages received from Client are processed. Received messages should only be
-	 * of type CHAT_MESSAGE or DISCONNECT_REQUEST_MESSAGE
+	 * of the types that canBeSentByClient
 	 * 
 	 * CHAT_MESSAGEs will be forwarded
 	 * USER_STATUS_CHANGE_MESSAGEs will be forwarded
+	 * ROOM_JOIN_REQUEST_MESSAGEs and ROOM_LEAVE_REQUEST_MESSAGEs will join or leave the room
+	 * ROOM_CHAT_MESSAGEs will be forwarded to the other members of their room
+	 * DIRECT_MESSAGEs will be forwarded to the user they are for
 	 * DISCONNECT_REQUEST_MESSAGEs will start disconnect sequence
+	 * HEARTBEAT_MESSAGEs are ignored
 	 * All other messages will thrown an exception
 	 * @param message - message from the Client that needs to be processed
 	 */
-	private void handleMessage(Message message) {
+	void handleMessage(Message message) {
 		switch (message.getType()) {
 		case CHAT_MESSAGE:
-			sendMessageToCurrentUserHandlers(message);
+			sendChatMessage(message);
 			break;
 		case USER_STATUS_CHANGE_MESSAGE:
 			addToOutgoingMessages(message);
 			break;
+		case ROOM_JOIN_REQUEST_MESSAGE:
+			joinRoom(message.getMessageText());
+			break;
+		case ROOM_LEAVE_REQUEST_MESSAGE:
+			leaveRoom(message.getMessageText());
+			break;
+		case ROOM_CHAT_MESSAGE:
+			postToRoom(message);
+			break;
+		case DIRECT_MESSAGE:
+			sendDirectMessage(message);
+			break;
 		case DISCONNECT_REQUEST_MESSAGE:
 			stop();
 			break;
+		case HEARTBEAT_MESSAGE:
+			// Only shows the Client is still there, which messageReceived has noted
+			break;
 		case CONNECTION_REQUEST_MESSAGE:
 		case CONNECTION_ACKNOWLEDGEMENT_MESSAGE:
 		case DISCONNECT_ACKNOWLEDGEMENT_MESSAGE:
+		case ROOM_MEMBERSHIP_CHANGE_MESSAGE:
+		case DELIVERY_FAILURE_MESSAGE:
+		case ROSTER_MESSAGE:
 			throw new IllegalArgumentException("UserHandler received a message from Client that Client should not be able to send.");
 		}
 	}
 
 	/**
-	 * Function to set boolean bRun to false, which will stop this UserHandler
+	 * Function to set boolean bRun to false, which will stop this UserHandler.
+	 * The sending and processing Threads are interrupted so that they wake up and see it
 	 */
-	private void stop() {
+	private synchronized void stop() {
 		if (bRun) {
+			for (String room : rooms) {
+				leaveRoom(room);
+			}
 			sendDisconnAck();
 			sendDisconnUserStatus();
 			bRun = false;
+			TimingWheel.Timeout check = idleCheck;
+			if (check != null) {
+				check.cancel();
+			}
+			if (nioConnection != null) {
+				nioConnection.closeAfterFlush();
+			}
+			if (sendingThread != null) {
+				sendingThread.interrupt();
+			}
+			if (processingThread != null) {
+				processingThread.interrupt();
+			}
 		}
 	}
+
+	/**
+	 * Called by the NioConnection when the Client went away without sending a
+	 * DISCONNECT_REQUEST_MESSAGE, so the other users still find out that it left
+	 */
+	void connectionLost() {
+		stop();
+	}
 	
 	/**
-	 * USER_STATUS_CHANGE_MESSAGE will be sent to every other UserHandler when a new UserHandler is created
+	 * USER_STATUS_CHANGE_MESSAGE will be sent to every other UserHandler when a new UserHandler is created,
+	 * unless joins are sent in batches by the Server's PresenceBatcher
+	 * @param rosterVersion - roster version of the join
 	 */
-	private void sendConnUserStatus(){
-		Object[] details = {this.user, true};
+	private void sendConnUserStatus(long rosterVersion){
+		if (ServerConfig.presenceWindowMillis > 0) {
+			Server.getPresence().changed();
+			return;
+		}
+		Object[] details = {this.user, true, rosterVersion};
 		Message statusMessage = new Message(MessageType.USER_STATUS_CHANGE_MESSAGE, User.SERVER, null, details);
 		sendMessageToCurrentUserHandlers(statusMessage);
 	}
 	
 	/**
-	 * USER_STATUS_CHANGE_MESSAGE will be sent to every other UserHandler when a UserHandler is disconnecting
-	 * This UserHandler will tell Server to delete this UserHandler from the currentUserHandlers list
+	 * USER_STATUS_CHANGE_MESSAGE will be sent to every other UserHandler when a UserHandler is disconnecting,
+	 * unless leaves are sent in batches by the Server's PresenceBatcher
+	 * This UserHandler will tell Server to delete this UserHandler from the Roster and the
+	 * currentUserHandlers list
 	 */
 	private void sendDisconnUserStatus(){
-		Object[] details = {this.user, false};
-		Message statusMessage = new Message(MessageType.USER_STATUS_CHANGE_MESSAGE, User.SERVER, null, details);
-		sendMessageToCurrentUserHandlers(statusMessage);
+		Roster roster = Server.getRoster();
+		long rosterVersion;
+		synchronized (roster) {
+			rosterVersion = roster.leave(this.user);
+			Cluster cluster = Server.getCluster();
+			if (rosterVersion != 0 && cluster != null) {
+				cluster.userLeft(this.user, rosterVersion);
+			}
+		}
+		if (rosterVersion != 0 && ServerConfig.presenceWindowMillis > 0) {
+			Server.getPresence().changed();
+		} else if (rosterVersion != 0) {
+			Object[] details = {this.user, false, rosterVersion};
+			Message statusMessage = new Message(MessageType.USER_STATUS_CHANGE_MESSAGE, User.SERVER, null, details);
+			sendMessageToCurrentUserHandlers(statusMessage);
+		}
 		Server.removeFromCurrentUserHandlers(this);
 	}
 	
 	public static void main(String[] args) {
 		UserHandler.TEST = true;
-		UserHandler testOne = new UserHandler(null, null, new User("testOne"));
-		UserHandler testTwo = new UserHandler(null, null, new User("testTwo"));
-		UserHandler testThree = new UserHandler(null, null, new User("testThree"));
-		Server.addToCurrentUserHandlers(testOne);
-		Server.addToCurrentUserHandlers(testTwo);
-		Server.addToCurrentUserHandlers(testThree);
+		// Every UserHandler registers itself with the Server
+		UserHandler testOne = new UserHandler(null, null, new User("testOne"), MessageCodec.FORMAT_JAVA, false, false, false, 0L);
+		UserHandler testTwo = new UserHandler(null, null, new User("testTwo"), MessageCodec.FORMAT_JAVA, false, false, false, 0L);
+		UserHandler testThree = new UserHandler(null, null, new User("testThree"), MessageCodec.FORMAT_JAVA, false, false, false, 0L);
 		
-		UserHandler testUH = new UserHandler(null, null, new User("testUser"));
-		Server.addToCurrentUserHandlers(testUH);
+		UserHandler testUH = new UserHandler(null, null, new User("testUser"), MessageCodec.FORMAT_JAVA, false, false, false, 0L);
 		
 		// Test with a chat message
 		Message textMessage = new Message(MessageType.CHAT_MESSAGE, testUH.getUser(), "test Test", null);
 		testUH.addToIncomingMessages(textMessage);
 		
 		// Test with a user status change message
-		Object[] details = {testTwo.getUser(), false};
+		Object[] details = {testTwo.getUser(), false, 0L};
 		Message statusMessage = new Message(MessageType.USER_STATUS_CHANGE_MESSAGE, User.SERVER, null, details);
 		testUH.addToIncomingMessages(statusMessage);
 		
@@ -316,12 +1027,12 @@ public class UserHandler {
 		}
 		
 		System.out.println("OUTGOING MESSAGES for testUH: ");
-		for (Message message : testUH.outgoingMessages) {
+		for (OutboundFrame message : testUH.outgoingMessages.toArray()) {
 			System.out.println("OUT: " + message);
 		}
 		
 		System.out.println("\nOUTGOING MESSAGES for testOne: ");
-		for (Message message : testOne.outgoingMessages) {
+		for (OutboundFrame message : testOne.outgoingMessages.toArray()) {
 			System.out.println("OUT: " + message);
 		}	
 	}
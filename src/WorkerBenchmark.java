@@ -0,0 +1,264 @@
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class measures how an NIO Server scales with the number of EventLoops (workers) and
+ * acceptors. For every number of workers it starts a Server as its own process on loopback,
+ * and measures:
+ *
+ *     connects/s    --concurrency Threads connect, wait for the acknowledgement and disconnect
+ *                   until --connections users have been acknowledged (see HandshakeBenchmark)
+ *     messages/s    --senders users send bursts of --burst lobby chat messages at the same time,
+ *                   to --receivers other users. The time until every receiver has every
+ *                   message is measured, and deliveries/s is messages/s times the receivers
+ *
+ * More workers only help as long as there are cores for them to run on, and the measuring
+ * Threads run on the same machine, so the results are only comparable between runs on the
+ * same machine.
+ *
+ * Usage: java WorkerBenchmark [--workers=1,2,4] [--acceptors=N] [--balance=round_robin|least_loaded]
+ *            [--connections=N] [--concurrency=N] [--receivers=N] [--senders=N] [--burst=N] [--rounds=N]
+ *            [server settings...]
+ *
+ * Every setting that is not one of the above is passed to the Server.
+ *
+ */
+public class WorkerBenchmark {
+
+	private static int[] workers = {1, 2, 4};
+	private static int acceptors = 1;
+	private static String balance = "round_robin";
+	private static int connections = 3000;
+	private static int concurrency = 50;
+	private static int receivers = 200;
+	private static int senders = 4;
+	private static int burst = 500;
+	private static int rounds = 3;
+	private static final ArrayList<String> serverSettings = new ArrayList<String>();
+
+	/**
+	 * This field is the port every Server is started on
+	 */
+	private static final int PORT = 9650;
+
+	/**
+	 * This field counts the chat messages all receivers have received
+	 */
+	private static final AtomicLong delivered = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		parse(args);
+		System.out.printf("%d acceptors (%s), %,d connects by %d Threads, %d senders and %d receivers,"
+				+ " bursts of %d, %d rounds, %d cores%n", acceptors, balance, connections, concurrency, senders, receivers,
+				burst, rounds, Runtime.getRuntime().availableProcessors());
+		System.out.println("workers  connects/s  ackP99ms  messages/s  deliveries/s");
+		for (int workerCount : workers) {
+			Process server = startServer(workerCount);
+			ArrayList<Socket> sockets = new ArrayList<Socket>();
+			try {
+				Histogram ackNanos = new Histogram();
+				double connectsPerSecond = connectStorm(ackNanos);
+
+				ArrayList<DataOutputStream> outs = new ArrayList<DataOutputStream>();
+				byte[][] frames = new byte[senders][];
+				for (int i = 0; i < receivers; i++) {
+					Harness.connect(PORT, "receiver" + i, sockets, null, delivered);
+				}
+				for (int i = 0; i < senders; i++) {
+					User sender = Harness.connect(PORT, "sender" + i, sockets, outs, null);
+					frames[i] = MessageCodec.encode(new Message(MessageType.CHAT_MESSAGE, sender,
+							"worker benchmark message", null), MessageCodec.FORMAT_BINARY);
+				}
+				long perRound = (long) senders * burst * receivers;
+				runRound(outs, frames, perRound);
+				long nanos = 0;
+				for (int round = 0; round < rounds; round++) {
+					nanos += runRound(outs, frames, perRound);
+				}
+				double seconds = nanos / 1e9;
+				System.out.printf("%7d %11.0f %9.1f %11.0f %13.0f%n", workerCount, connectsPerSecond,
+						ackNanos.percentile(99) / 1e6, (double) senders * burst * rounds / seconds, perRound * rounds / seconds);
+			} finally {
+				for (Socket socket : sockets) {
+					socket.close();
+				}
+				server.destroy();
+				server.waitFor();
+			}
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Starts a Server with a number of EventLoops, and waits until it accepts connections
+	 * @return the process of the Server
+	 */
+	private static Process startServer(int workerCount) throws Exception {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(java);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("Server");
+		command.add("--mode=nio");
+		command.add("--logMessages=false");
+		command.add("--port=" + PORT);
+		command.add("--eventLoops=" + workerCount);
+		command.add("--acceptors=" + acceptors);
+		command.add("--balance=" + balance);
+		command.addAll(serverSettings);
+		Process process = new ProcessBuilder(command).redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+		long deadline = System.currentTimeMillis() + 30000;
+		while (true) {
+			try {
+				new Socket(InetAddress.getLoopbackAddress(), PORT).close();
+				return process;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					process.destroy();
+					throw new IOException("The Server did not start.");
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Connects and disconnects --connections users from --concurrency Threads
+	 * @param ackNanos - Histogram every connect-to-ack time is recorded in
+	 * @return the users acknowledged per second
+	 */
+	private static double connectStorm(final Histogram ackNanos) throws Exception {
+		final AtomicInteger started = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		long start = System.nanoTime();
+		for (int t = 0; t < concurrency; t++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					int i;
+					while ((i = started.getAndIncrement()) < connections) {
+						long begin = System.nanoTime();
+						try {
+							HandshakeBenchmark.connectOnce(PORT, "storm" + i);
+							synchronized (ackNanos) {
+								ackNanos.record(System.nanoTime() - begin);
+							}
+						} catch (IOException e) {
+							failed.incrementAndGet();
+						}
+					}
+				}
+			}, "storm-" + t);
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		if (failed.get() > 0) {
+			System.out.println(failed.get() + " connects failed.");
+		}
+		return ackNanos.count() / seconds;
+	}
+
+	/**
+	 * Has every sender send one burst at the same time, and waits until every receiver has got
+	 * all of them
+	 * @return the nanoseconds that took
+	 */
+	private static long runRound(ArrayList<DataOutputStream> outs, byte[][] frames, long perRound) throws Exception {
+		long expected = delivered.get() + perRound;
+		long start = System.nanoTime();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < outs.size(); i++) {
+			final DataOutputStream out = outs.get(i);
+			final byte[] frame = frames[i];
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int m = 0; m < burst; m++) {
+							out.write(frame);
+						}
+						out.flush();
+					} catch (IOException e) {
+						System.out.println("Sender failed: " + e.getMessage());
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long deadline = System.currentTimeMillis() + 120000;
+		while (delivered.get() < expected) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new IllegalStateException("Only " + (delivered.get() - expected + perRound) + " of " + perRound
+						+ " messages were delivered.");
+			}
+			Thread.sleep(0, 100000);
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Reads every "--name=value" argument. Settings that are not the benchmark's own are kept
+	 * for the Server
+	 * @param args - arguments passed into main
+	 */
+	private static void parse(String[] args) {
+		serverSettings.addAll(Harness.parse(args, new Harness.Settings() {
+			@Override
+			public boolean set(String name, String value) {
+				switch (name) {
+				case "workers":
+					String[] counts = value.split(",");
+					workers = new int[counts.length];
+					for (int i = 0; i < counts.length; i++) {
+						workers[i] = Math.max(1, Integer.parseInt(counts[i].trim()));
+					}
+					return true;
+				case "acceptors":
+					acceptors = Math.max(1, Integer.parseInt(value));
+					return true;
+				case "balance":
+					balance = value;
+					return true;
+				case "connections":
+					connections = Integer.parseInt(value);
+					return true;
+				case "concurrency":
+					concurrency = Math.max(1, Integer.parseInt(value));
+					return true;
+				case "receivers":
+					receivers = Math.max(1, Integer.parseInt(value));
+					return true;
+				case "senders":
+					senders = Math.max(1, Integer.parseInt(value));
+					return true;
+				case "burst":
+					burst = Math.max(1, Integer.parseInt(value));
+					return true;
+				case "rounds":
+					rounds = Math.max(1, Integer.parseInt(value));
+					return true;
+				default:
+					return false;
+				}
+			}
+		}));
+	}
+
+}